@@ -1,37 +1,143 @@
 package it.mikeslab.truebank;
 
-import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.account.AccountMaintenance;
+import it.mikeslab.truebank.command.TrueBankCommand;
+import it.mikeslab.truebank.data.ConnectionRegistry;
+import it.mikeslab.truebank.data.RepositoryManager;
+import it.mikeslab.truebank.data.RepositoryUpgrade;
+import it.mikeslab.truebank.data.history.TransactionHistory;
+import it.mikeslab.truebank.data.warmup.RecentAccountsWarmup;
+import it.mikeslab.truebank.impl.CardNumberAllocator;
 import it.mikeslab.truebank.pojo.Card;
-import it.mikeslab.truebank.util.RepositoryUtil;
+import it.mikeslab.truebank.pojo.CardNumberLease;
+import it.mikeslab.truebank.pojo.User;
+import it.mikeslab.truebank.session.SessionDataManager;
+import it.mikeslab.truebank.util.LoggerUtil;
+import it.mikeslab.truebank.util.Money;
+import lombok.Getter;
 import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
 public final class TrueBank extends JavaPlugin {
 
+    @Getter
+    private static TrueBank instance;
+
+    @Getter
+    private RepositoryManager repositoryManager;
+
+    @Getter
+    private SessionDataManager sessionDataManager;
 
+    // Null when disabled in config.yml
+    @Getter
+    private TransactionHistory transactionHistory;
+
+    @Getter
+    private CardNumberAllocator cardNumberAllocator;
+
+    private AccountMaintenance accountMaintenance;
 
     @Override
     public void onEnable() {
         // Plugin startup logic
+        instance = this;
+
         saveDefaultConfig();
 
-        ConfigurationSection cardConfig = getConfig().getConfigurationSection("cardDb");
+        LoggerUtil.configure(getConfig().getConfigurationSection("logging"));
+        Money.configure(getConfig().getConfigurationSection("currency"));
 
-        Repository<Card> testRepo = new RepositoryUtil<>(
-                cardConfig,
-                Card.class,
-                "card-database"
-        ).fromConfig();
+        // Needed to read entities back from YAML files
+        ConfigurationSerialization.registerClass(Card.class);
+        ConfigurationSerialization.registerClass(User.class);
+        ConfigurationSerialization.registerClass(CardNumberLease.class);
 
-        testRepo.setRepositoryName("card-database");
+        // Repositories connect in parallel off the main thread,
+        // commands and API calls are gated by the manager's readiness state
+        this.repositoryManager = new RepositoryManager(getConfig(), getDataFolder());
 
-        testRepo.save(new Card(122112, "test3t"));
+        this.repositoryManager.register("card-database", "cardDb", Card.class, new RecentAccountsWarmup<>());
+        this.repositoryManager.register("user-database", "userDb", User.class, new RecentAccountsWarmup<>(),
+                Collections.<RepositoryUpgrade<User>>singletonList(repository -> repository.convertToFixedPoint("balance", Money.getScale())));
+        this.repositoryManager.register(CardNumberAllocator.LEASE_REPOSITORY, this.leaseDatabasePath(), CardNumberLease.class, null);
 
+        this.repositoryManager.startAsync();
+
+        // Online players' bank data is loaded on pre-login and served from memory
+        this.sessionDataManager = new SessionDataManager(this.repositoryManager, getConfig().getConfigurationSection("session"));
+        getServer().getPluginManager().registerEvents(this.sessionDataManager, this);
+
+        // Balance changes are buffered and written in batches, off the payment path
+        this.transactionHistory = TransactionHistory.fromConfig(getConfig().getConfigurationSection("history"), getConfig());
+
+        // Card numbers are issued from blocks leased from the card database
+        this.cardNumberAllocator = new CardNumberAllocator(this.repositoryManager, getConfig().getConfigurationSection("cards"), getDataFolder());
+
+        // Interest and fees, applied in the background to every account
+        this.accountMaintenance = new AccountMaintenance(this.repositoryManager, this.sessionDataManager,
+                getConfig().getConfigurationSection("accounts"), getDataFolder());
+
+        TrueBankCommand trueBankCommand = new TrueBankCommand(this);
+        getCommand("truebank").setExecutor(trueBankCommand);
+        getCommand("truebank").setTabCompleter(trueBankCommand);
 
     }
 
+    // Helper function to pick the database of the card number leases: the card database, unless it's a YAML file,
+    // which can't be shared with the cards; the leases then get a file of their own, next to it
+    private String leaseDatabasePath() {
+        ConfigurationSection cardDb = getConfig().getConfigurationSection("cardDb");
+
+        if (cardDb == null || !"YAML".equalsIgnoreCase(cardDb.getString("type"))) {
+            return "cardDb";
+        }
+
+        // Kept in memory only, under cards so that it isn't offered as a migration source
+        ConfigurationSection leaseDb = getConfig().createSection("cards.leaseDb");
+
+        for (Map.Entry<String, Object> setting : cardDb.getValues(true).entrySet()) {
+            if (!(setting.getValue() instanceof ConfigurationSection)) {
+                leaseDb.set(setting.getKey(), setting.getValue());
+            }
+        }
+
+        File cards = new File(cardDb.getString("path", "cards.yml"));
+
+        leaseDb.set("path", new File(cards.getParentFile(), CardNumberAllocator.LEASE_REPOSITORY + ".yml").getPath());
+        leaseDb.set("segments", 1);
+        return leaseDb.getCurrentPath();
+    }
+
     @Override
     public void onDisable() {
 
+        if (this.accountMaintenance != null) {
+            this.accountMaintenance.shutdown();
+        }
+
+        // Writes back the sessions of the players still online
+        if (this.sessionDataManager != null) {
+            this.sessionDataManager.shutdown();
+        }
+
+        if (this.transactionHistory != null) {
+            this.transactionHistory.shutdown();
+        }
+
+        if (this.repositoryManager != null) {
+            this.repositoryManager.close();
+        }
+
+        // Closes pools and clients still leased by repositories
+        ConnectionRegistry.closeAll();
+
+        // Flushes the messages still buffered by the async logger
+        LoggerUtil.shutdown();
     }
 }
@@ -0,0 +1,31 @@
+package it.mikeslab.truebank.account;
+
+import it.mikeslab.truebank.pojo.User;
+
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Interface: AccountGate
+ * Coordinates account jobs with the accounts held in memory, whose
+ * in-memory copy is written back over the database one.
+ */
+public interface AccountGate {
+
+    /**
+     * Runs an action while no account can be loaded in memory.
+     * @param action The action, receiving the ids of the accounts held in memory.
+     * @return The action result.
+     */
+    <R> R exclusive(Function<Set<String>, R> action);
+
+    /**
+     * Applies a change to an account held in memory, written back with it.
+     * @param id The account id.
+     * @param change The change.
+     * @return False if the account isn't held in memory anymore.
+     */
+    boolean updatePinned(String id, Consumer<User> change);
+
+}
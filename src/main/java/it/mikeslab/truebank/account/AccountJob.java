@@ -0,0 +1,120 @@
+package it.mikeslab.truebank.account;
+
+import it.mikeslab.truebank.data.FieldUpdate;
+import it.mikeslab.truebank.pojo.User;
+import it.mikeslab.truebank.util.Money;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class: AccountJob
+ * A periodic change of every account balance, such as interest or a maintenance fee,
+ * defined in the "accounts.jobs" section of config.yml.
+ *
+ * Periods are counted from the epoch, so every server agrees on the current one.
+ */
+@Getter
+@RequiredArgsConstructor
+public class AccountJob {
+
+    private static final String BALANCE_FIELD = "balance";
+
+    private final String name;
+    private final double factor;
+    private final long offset;
+    private final long minimumBalance;
+    private final long periodMillis;
+
+    /**
+     * Reads the jobs from their configuration section.
+     * @param section The "accounts.jobs" section, may be null.
+     * @return The jobs, in configuration order.
+     */
+    public static List<AccountJob> fromConfig(ConfigurationSection section) {
+
+        List<AccountJob> jobs = new ArrayList<>();
+
+        if (section == null) {
+            return jobs;
+        }
+
+        for (String name : section.getKeys(false)) {
+            ConfigurationSection job = section.getConfigurationSection(name);
+
+            if (job == null) {
+                continue;
+            }
+
+            jobs.add(new AccountJob(
+                    name,
+                    1 + job.getDouble("rate", 0),
+                    -Money.fromMajor(job.getDouble("fee", 0)),
+                    Money.fromMajor(job.getDouble("minimumBalance", 0)),
+                    TimeUnit.HOURS.toMillis(Math.max(1, job.getLong("periodHours", 24)))
+            ));
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Gets the period a point in time falls in.
+     * @param timeMillis The time.
+     * @return The period number.
+     */
+    public long periodAt(long timeMillis) {
+        return timeMillis / this.periodMillis;
+    }
+
+    /**
+     * Builds the database update of this job for a period.
+     * @param period The period number.
+     * @return The update.
+     */
+    public FieldUpdate toUpdate(long period) {
+        return new FieldUpdate(BALANCE_FIELD, this.factor, this.offset, this.minimumBalance, this.getGuardField(), period);
+    }
+
+    /**
+     * Applies this job to a user, the way the database does.
+     * @param user The user.
+     * @param periods The number of periods to apply.
+     */
+    public void apply(User user, long periods) {
+        user.setBalance(this.toUpdate(0).apply(user.getBalance(), periods));
+    }
+
+    /**
+     * Brings a user to a period the way the database does: the periods since the last one
+     * applied to the user are applied at once, a user seen for the first time only gets
+     * the period stamped. Used where the entity itself carries the guard field.
+     * @param user The user.
+     * @param period The period to bring the user to.
+     * @return True if the user has been changed.
+     */
+    public boolean bringTo(User user, long period) {
+        Long applied = user.getAppliedPeriod(this.getGuardField());
+
+        if (applied != null && applied >= period) {
+            return false;
+        }
+
+        if (applied != null) {
+            this.apply(user, period - applied);
+        }
+
+        user.setAppliedPeriod(this.getGuardField(), period);
+        return true;
+    }
+
+    // Stored next to the balance, the last period applied to the account
+    private String getGuardField() {
+        return FieldUpdate.GUARD_PREFIX + this.name.replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+}
@@ -0,0 +1,100 @@
+package it.mikeslab.truebank.account;
+
+import it.mikeslab.truebank.data.RepositoryManager;
+import it.mikeslab.truebank.pojo.User;
+import it.mikeslab.truebank.util.LoggerUtil;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Class: AccountMaintenance
+ * Runs the account jobs (interest, fees, ...) in the background, bringing every
+ * account to the current period of each job. Runs are cheap once a period is done,
+ * so they are simply repeated every few minutes: a run cut short by a crash or a
+ * restart is completed by the next one, and accounts skipped while their player
+ * was online are caught up once released.
+ *
+ * Configured through the "accounts" section of config.yml.
+ */
+public class AccountMaintenance {
+
+    private static final String USER_REPOSITORY = "user-database";
+
+    private final RepositoryManager repositoryManager;
+    private final AccountGate gate;
+    private final List<AccountJob> jobs;
+    private final File checkpointFolder;
+    private final int chunkSize;
+    private final int parallelism;
+    private final long throttleMillis;
+
+    private final ScheduledExecutorService scheduler;
+
+    public AccountMaintenance(RepositoryManager repositoryManager, AccountGate gate, ConfigurationSection config, File dataFolder) {
+        this.repositoryManager = repositoryManager;
+        this.gate = gate;
+        this.jobs = AccountJob.fromConfig(config == null ? null : config.getConfigurationSection("jobs"));
+        this.checkpointFolder = new File(dataFolder, "accounts");
+        this.chunkSize = Math.max(1, config == null ? 1000 : config.getInt("chunkSize", 1000));
+        this.parallelism = Math.max(1, config == null ? 4 : config.getInt("parallelism", 4));
+        this.throttleMillis = config == null ? 50 : config.getLong("throttleMillis", 50);
+
+        long checkMinutes = Math.max(1, config == null ? 10 : config.getLong("checkIntervalMinutes", 10));
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TrueBank-Accounts");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (config != null && config.getBoolean("enabled", false) && !this.jobs.isEmpty()) {
+            this.scheduler.scheduleWithFixedDelay(this::runAll, checkMinutes, checkMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Stops the background runs, a run in progress is completed by the next start.
+     */
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+    }
+
+    // Helper function to bring every job to its current period
+    private void runAll() {
+
+        if (!this.repositoryManager.getReadiness().isReady()) {
+            return;
+        }
+
+        AccountProcessor processor = new AccountProcessor(
+                this.repositoryManager.getRepository(USER_REPOSITORY, User.class),
+                this.gate,
+                this.checkpointFolder,
+                this.chunkSize,
+                this.parallelism,
+                this.throttleMillis,
+                message -> LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, message)
+        );
+
+        for (AccountJob job : this.jobs) {
+            try {
+                AccountProcessor.Result result = processor.run(job, job.periodAt(System.currentTimeMillis()));
+
+                if (result.getUpdated() > 0) {
+                    LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "[{}] {} accounts updated in {}ms ({})",
+                            job.getName(), result.getUpdated(), result.getElapsedMillis(), result.isSetBased() ? "set-based" : "streamed");
+                }
+            } catch (Exception e) {
+                // Picked up where it stopped on the next run
+                LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "[{}] Account job failed: {}", job.getName(), e.getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+package it.mikeslab.truebank.account;
+
+import it.mikeslab.truebank.data.FieldUpdate;
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.migration.MigrationCheckpoint;
+import it.mikeslab.truebank.data.scheduler.Priority;
+import it.mikeslab.truebank.pojo.User;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Class: AccountProcessor
+ * Runs an account job over every account of a repository.
+ *
+ * Where the backend supports it the job is a set-based update run by the database,
+ * chunk by chunk, each account carrying the last period applied to it: nothing is
+ * read, and a crashed run is resumed by just running it again.
+ *
+ * Otherwise accounts are streamed in id order one chunk at a time, updated in
+ * parallel on a fork-join pool and written back in batches; a checkpoint per period
+ * records the last chunk written, so a crashed run resumes after it. The entities
+ * of these backends carry the same guard fields, so an account written just before
+ * a crash isn't updated twice and missed periods are caught up at once.
+ *
+ * Accounts held in memory by online players are never written here: the set-based
+ * update skips them until they are released, the streamed one updates them in memory.
+ */
+@RequiredArgsConstructor
+public class AccountProcessor {
+
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Repository<User> repository;
+    private final AccountGate gate;
+    private final File checkpointFolder;
+    private final int chunkSize;
+    private final int parallelism;
+    private final long throttleMillis;
+    private final Consumer<String> progress;
+
+    /**
+     * Runs a job for a period. Blocking, must be invoked off the main thread.
+     * @param job The job.
+     * @param period The period to bring the accounts to.
+     * @return The run result.
+     * @throws IOException If the checkpoint of a streamed run can't be read or written.
+     */
+    public Result run(AccountJob job, long period) throws IOException {
+
+        long startedAt = System.nanoTime();
+
+        try {
+            // Chunks queue behind the operations players are waiting for
+            return Priority.BULK.call(() -> {
+                try {
+                    long updated = this.runSetBased(job, period, startedAt);
+                    return new Result(job.getName(), updated, true, elapsedMillis(startedAt));
+                } catch (UnsupportedOperationException e) {
+                    try {
+                        long updated = this.runStreamed(job, period, startedAt);
+                        return new Result(job.getName(), updated, false, elapsedMillis(startedAt));
+                    } catch (IOException ioException) {
+                        throw new UncheckedIOException(ioException);
+                    }
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Helper function to let the database update the accounts, one chunk per statement
+    private long runSetBased(AccountJob job, long period, long startedAt) {
+
+        FieldUpdate update = job.toUpdate(period);
+
+        long updated = 0;
+        long lastReport = System.nanoTime();
+
+        while (true) {
+            long chunk = this.gate.exclusive(pinned -> this.repository.updateAll(update, pinned, this.chunkSize));
+            updated += chunk;
+
+            if (chunk < this.chunkSize) {
+                return updated;
+            }
+
+            lastReport = this.report(job, updated, startedAt, lastReport);
+            this.throttle();
+        }
+    }
+
+    // Helper function to stream the accounts, updating every chunk in parallel
+    private long runStreamed(AccountJob job, long period, long startedAt) throws IOException {
+
+        File checkpointFile = new File(this.checkpointFolder, job.getName() + "-" + period + ".checkpoint");
+        MigrationCheckpoint checkpoint = MigrationCheckpoint.load(checkpointFile);
+
+        if (checkpoint.isCompleted()) {
+            return 0;
+        }
+
+        long resumedFrom = checkpoint.getMigrated();
+        long lastReport = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+
+        try {
+            while (true) {
+                List<Map.Entry<String, User>> page = this.repository.scan(checkpoint.getLastId(), this.chunkSize);
+
+                if (page.isEmpty()) {
+                    break;
+                }
+
+                this.gate.exclusive(pinned -> {
+                    List<Map.Entry<String, User>> stored = new ArrayList<>(page.size());
+
+                    for (Map.Entry<String, User> entry : page) {
+                        // Written back by its session, an update here would be overwritten
+                        if (!pinned.contains(entry.getKey()) || !this.gate.updatePinned(entry.getKey(), user -> job.bringTo(user, period))) {
+                            stored.add(entry);
+                        }
+                    }
+
+                    pool.invoke(new ChunkTask(stored, 0, stored.size(), job, period, Priority.current()));
+                    return null;
+                });
+
+                // A crash before this point goes through the last chunk again, its guards skip the accounts written
+                checkpoint.setLastId(page.get(page.size() - 1).getKey());
+                checkpoint.setMigrated(checkpoint.getMigrated() + page.size());
+                checkpoint.save(checkpointFile);
+
+                lastReport = this.report(job, checkpoint.getMigrated(), startedAt, lastReport);
+                this.throttle();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        checkpoint.setCompleted(true);
+        checkpoint.save(checkpointFile);
+
+        this.deleteOlderCheckpoints(job, period);
+
+        return checkpoint.getMigrated() - resumedFrom;
+    }
+
+    // Helper function to drop the checkpoints of the periods before the given one
+    private void deleteOlderCheckpoints(AccountJob job, long period) {
+
+        File[] files = this.checkpointFolder.listFiles((dir, file) -> file.startsWith(job.getName() + "-") && file.endsWith(".checkpoint"));
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String suffix = file.getName().substring(job.getName().length() + 1, file.getName().length() - ".checkpoint".length());
+
+            if (suffix.matches("\\d+") && Long.parseLong(suffix) < period) {
+                file.delete();
+            }
+        }
+    }
+
+    private long report(AccountJob job, long updated, long startedAt, long lastReport) {
+
+        long now = System.nanoTime();
+
+        if (now - lastReport < PROGRESS_INTERVAL_NANOS) {
+            return lastReport;
+        }
+
+        this.progress.accept("[" + job.getName() + "] " + updated + " accounts processed in " + elapsedMillis(startedAt) + "ms");
+        return now;
+    }
+
+    // Helper function to leave room to the other jobs between two chunks
+    private void throttle() {
+
+        if (this.throttleMillis <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(this.throttleMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+    }
+
+    private static long elapsedMillis(long startedAt) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    }
+
+    // Splits a chunk until each part is small enough, then updates and writes it as a batch
+    @RequiredArgsConstructor
+    private final class ChunkTask extends RecursiveAction {
+
+        private final List<Map.Entry<String, User>> entries;
+        private final int from;
+        private final int to;
+        private final AccountJob job;
+        private final long period;
+        private final Priority priority;
+
+        @Override
+        protected void compute() {
+
+            int threshold = Math.max(1, AccountProcessor.this.chunkSize / AccountProcessor.this.parallelism);
+
+            if (this.to - this.from > threshold) {
+                int middle = (this.from + this.to) >>> 1;
+
+                invokeAll(
+                        new ChunkTask(this.entries, this.from, middle, this.job, this.period, this.priority),
+                        new ChunkTask(this.entries, middle, this.to, this.job, this.period, this.priority)
+                );
+                return;
+            }
+
+            if (this.from == this.to) {
+                return;
+            }
+
+            List<Map.Entry<String, User>> changed = new ArrayList<>(this.to - this.from);
+
+            for (Map.Entry<String, User> entry : this.entries.subList(this.from, this.to)) {
+                if (this.job.bringTo(entry.getValue(), this.period)) {
+                    changed.add(entry);
+                }
+            }
+
+            if (!changed.isEmpty()) {
+                this.priority.run(() -> AccountProcessor.this.repository.saveAll(changed));
+            }
+        }
+
+    }
+
+    /**
+     * Outcome of an account job run.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static final class Result {
+
+        private final String job;
+        private final long updated;
+        private final boolean setBased;
+        private final long elapsedMillis;
+
+    }
+
+}
@@ -0,0 +1,481 @@
+package it.mikeslab.truebank.command;
+
+import it.mikeslab.truebank.TrueBank;
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.history.HistoryCursor;
+import it.mikeslab.truebank.data.history.HistoryPage;
+import it.mikeslab.truebank.data.history.TransactionHistory;
+import it.mikeslab.truebank.data.migration.DataMigration;
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.scheduler.OperationScheduler;
+import it.mikeslab.truebank.data.scheduler.Priority;
+import it.mikeslab.truebank.data.snapshot.SnapshotExporter;
+import it.mikeslab.truebank.data.snapshot.SnapshotImporter;
+import it.mikeslab.truebank.data.snapshot.SnapshotStats;
+import it.mikeslab.truebank.pojo.Card;
+import it.mikeslab.truebank.pojo.Transaction;
+import it.mikeslab.truebank.pojo.User;
+import it.mikeslab.truebank.util.LoggerUtil;
+import it.mikeslab.truebank.util.Money;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabCompleter;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.entity.Player;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+/**
+ * Class: TrueBankCommand
+ * Administration command of the plugin.
+ *
+ *   /truebank migrate <from> <to> [--restart]
+ *   /truebank snapshot export <repository>
+ *   /truebank snapshot import <repository> <file>
+ *   /truebank scheduler
+ *   /truebank economy
+ *   /truebank history <player|uuid> [cursor]
+ *
+ * migrate copies every registered repository from the database configured in
+ * the "from" section of config.yml to the one configured in the "to" section.
+ * snapshot exports a live repository to plugins/TrueBank/snapshots, or imports
+ * a file from there. Only one of them runs at a time, off the main thread.
+ * scheduler shows the queues of the database operation scheduler.
+ * economy shows accounts, money supply and issued cards, aggregated by the database.
+ * history shows a page of the transactions of a player, the cursor printed at
+ * the end of a page opens the next one.
+ */
+@RequiredArgsConstructor
+public class TrueBankCommand implements CommandExecutor, TabCompleter {
+
+    private static final String ADMIN_PERMISSION = "truebank.admin";
+    private static final String RESTART_FLAG = "--restart";
+    private static final String SNAPSHOT_EXTENSION = ".tbsnap";
+
+    private static final Aggregation BALANCES = Aggregation.builder()
+            .count("accounts")
+            .sum("balance", "supply")
+            .avg("balance", "average")
+            .max("balance", "largest")
+            .build();
+
+    private static final Aggregation CARDS = Aggregation.builder().count("cards").build();
+
+    private static final int HISTORY_PAGE_SIZE = 10;
+
+    private final TrueBank plugin;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+
+        if (!sender.hasPermission(ADMIN_PERMISSION)) {
+            sender.sendMessage("You don't have permission to use this command.");
+            return true;
+        }
+
+        // Bukkit shows the usage from plugin.yml when false is returned
+        if (args.length == 0) {
+            return false;
+        }
+
+        switch (args[0].toLowerCase()) {
+            case "migrate":
+                return this.onMigrate(sender, args);
+            case "snapshot":
+                return this.onSnapshot(sender, args);
+            case "scheduler":
+                return this.onScheduler(sender);
+            case "economy":
+                return this.onEconomy(sender);
+            case "history":
+                return this.onHistory(sender, args);
+            default:
+                return false;
+        }
+    }
+
+    private boolean onMigrate(CommandSender sender, String[] args) {
+
+        if (args.length < 3) {
+            return false;
+        }
+
+        String from = args[1];
+        String to = args[2];
+        boolean restart = args.length > 3 && args[3].equalsIgnoreCase(RESTART_FLAG);
+
+        if (from.equals(to)) {
+            sender.sendMessage("Source and target must be different.");
+            return true;
+        }
+
+        this.runInBackground(sender, "Migration from " + from + " to " + to,
+                () -> this.migrate(sender, from, to, restart),
+                "run the command again to resume");
+        return true;
+    }
+
+    private boolean onSnapshot(CommandSender sender, String[] args) {
+
+        if (args.length < 3) {
+            return false;
+        }
+
+        String name = args[2];
+        Class<? extends ConfigurationSerializable> type = this.plugin.getRepositoryManager().getRegisteredTypes().get(name);
+
+        if (type == null) {
+            sender.sendMessage("Unknown repository " + name + ".");
+            return true;
+        }
+
+        File folder = new File(this.plugin.getDataFolder(), "snapshots");
+
+        if (args[1].equalsIgnoreCase("export")) {
+            File file = new File(folder, name + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + SNAPSHOT_EXTENSION);
+
+            this.runInBackground(sender, "Snapshot export of " + name,
+                    () -> this.exportSnapshot(sender, name, type, file), null);
+            return true;
+        }
+
+        if (args[1].equalsIgnoreCase("import") && args.length > 3) {
+            File file = new File(folder, new File(args[3]).getName()); // Never outside the snapshots folder
+
+            if (!file.isFile()) {
+                sender.sendMessage("Snapshot " + file.getName() + " not found.");
+                return true;
+            }
+
+            this.runInBackground(sender, "Snapshot import of " + file.getName() + " into " + name,
+                    () -> this.importSnapshot(sender, name, type, file), null);
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean onScheduler(CommandSender sender) {
+
+        OperationScheduler scheduler = this.plugin.getRepositoryManager().getScheduler();
+
+        if (scheduler == null) {
+            sender.sendMessage("The repositories haven't been started yet.");
+            return true;
+        }
+
+        for (Priority priority : Priority.values()) {
+            OperationScheduler.Stats stats = scheduler.getStats(priority);
+
+            sender.sendMessage(String.format("%s: %d/%d queued, %d running, %d completed, %d rejected, wait avg %.1fms max %.1fms",
+                    priority.name().toLowerCase(),
+                    stats.getQueued(),
+                    stats.getCapacity(),
+                    stats.getRunning(),
+                    stats.getCompleted(),
+                    stats.getRejected(),
+                    stats.getAverageWaitMillis(),
+                    stats.getMaxWaitMillis()));
+        }
+
+        return true;
+    }
+
+    private boolean onEconomy(CommandSender sender) {
+
+        if (!this.plugin.getRepositoryManager().getReadiness().isReady()) {
+            sender.sendMessage("The repositories haven't been started yet.");
+            return true;
+        }
+
+        Repository<User> users = this.plugin.getRepositoryManager().getRepository("user-database", User.class);
+        Repository<Card> cards = this.plugin.getRepositoryManager().getRepository("card-database", Card.class);
+
+        // One aggregate query per repository, but still a round trip each: off the main thread
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
+            try {
+                Map<String, Object> balances = users.aggregate(BALANCES).get(0);
+                Map<String, Object> issued = cards.aggregate(CARDS).get(0);
+
+                this.report(sender, Level.INFO, String.format("%d accounts, %d cards issued, money supply %s, average balance %s, largest balance %s",
+                        balances.get("accounts"),
+                        issued.get("cards"),
+                        formatAmount(balances.get("supply")),
+                        formatAmount(balances.get("average")),
+                        formatAmount(balances.get("largest"))));
+            } catch (RuntimeException e) {
+                this.report(sender, Level.SEVERE, "Economy summary failed: " + e.getMessage());
+            }
+        });
+
+        return true;
+    }
+
+    private boolean onHistory(CommandSender sender, String[] args) {
+
+        if (args.length < 2) {
+            return false;
+        }
+
+        TransactionHistory history = this.plugin.getTransactionHistory();
+
+        if (history == null) {
+            sender.sendMessage("The transaction history is disabled.");
+            return true;
+        }
+
+        UUID uuid;
+        HistoryCursor cursor;
+
+        try {
+            Player player = Bukkit.getPlayerExact(args[1]);
+            uuid = player != null ? player.getUniqueId() : UUID.fromString(args[1]);
+            cursor = HistoryCursor.parse(args.length > 2 ? args[2] : null);
+        } catch (IllegalArgumentException e) {
+            sender.sendMessage("Unknown player or malformed cursor, offline players are looked up by UUID.");
+            return true;
+        }
+
+        // A few indexed queries, still round trips: off the main thread
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
+            try {
+                HistoryPage page = history.getHistory(uuid, cursor, HISTORY_PAGE_SIZE);
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+                if (page.getTransactions().isEmpty()) {
+                    this.report(sender, Level.INFO, "No transactions for " + uuid + ".");
+                    return;
+                }
+
+                for (Transaction transaction : page.getTransactions()) {
+                    this.report(sender, Level.INFO, String.format("%s %s %s, balance %s%s",
+                            format.format(new Date(transaction.getTimestamp())),
+                            transaction.getType().name().toLowerCase(),
+                            Money.format(transaction.getAmount()),
+                            Money.format(transaction.getBalance()),
+                            transaction.getCounterparty() == null ? "" : ", with " + transaction.getCounterparty()));
+                }
+
+                if (page.hasMore()) {
+                    this.report(sender, Level.INFO, "Next page: /truebank history " + uuid + " " + page.getNext().encode());
+                }
+            } catch (RuntimeException e) {
+                this.report(sender, Level.SEVERE, "History of " + uuid + " failed: " + e.getMessage());
+            }
+        });
+
+        return true;
+    }
+
+    private static String formatAmount(Object amount) {
+        if (amount == null) {
+            return "-";
+        }
+
+        // Averages are fractional minor units
+        return Money.format(amount instanceof Long ? (Long) amount : Math.round(((Number) amount).doubleValue()));
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String label, String[] args) {
+
+        if (!sender.hasPermission(ADMIN_PERMISSION)) {
+            return Collections.emptyList();
+        }
+
+        List<String> candidates = new ArrayList<>();
+
+        switch (args.length) {
+            case 1:
+                candidates.addAll(Arrays.asList("migrate", "snapshot", "scheduler", "economy", "history"));
+                break;
+            case 2:
+            case 3:
+                if (args[0].equalsIgnoreCase("migrate")) {
+                    // Every section declaring a database type
+                    candidates.addAll(this.plugin.getConfig().getKeys(false)
+                            .stream()
+                            .filter(key -> this.plugin.getConfig().isString(key + ".type"))
+                            .collect(Collectors.toList()));
+                } else if (args[0].equalsIgnoreCase("history") && args.length == 2) {
+                    candidates.addAll(Bukkit.getOnlinePlayers().stream().map(Player::getName).collect(Collectors.toList()));
+                } else if (!args[0].equalsIgnoreCase("snapshot")) {
+                    break;
+                } else if (args.length == 2) {
+                    candidates.addAll(Arrays.asList("export", "import"));
+                } else {
+                    candidates.addAll(this.plugin.getRepositoryManager().getRegisteredTypes().keySet());
+                }
+                break;
+            case 4:
+                if (args[0].equalsIgnoreCase("migrate")) {
+                    candidates.add(RESTART_FLAG);
+                } else if (args[0].equalsIgnoreCase("snapshot") && args[1].equalsIgnoreCase("import")) {
+                    String[] files = new File(this.plugin.getDataFolder(), "snapshots").list((dir, file) -> file.endsWith(SNAPSHOT_EXTENSION));
+                    candidates.addAll(files == null ? Collections.emptyList() : Arrays.asList(files));
+                }
+                break;
+            default:
+                break;
+        }
+
+        String typed = args[args.length - 1].toLowerCase();
+
+        return candidates.stream()
+                .filter(candidate -> candidate.toLowerCase().startsWith(typed))
+                .collect(Collectors.toList());
+    }
+
+    // Helper function to migrate every registered repository, one after the other
+    private void migrate(CommandSender sender, String from, String to, boolean restart) throws IOException {
+
+        ConfigurationSection config = this.plugin.getConfig().getConfigurationSection("migration");
+
+        int batchSize = config == null ? 500 : config.getInt("batchSize", 500);
+        int parallelism = config == null ? 4 : config.getInt("parallelism", 4);
+
+        for (Map.Entry<String, Class<? extends ConfigurationSerializable>> entry
+                : this.plugin.getRepositoryManager().getRegisteredTypes().entrySet()) {
+
+            this.migrateRepository(sender, entry.getKey(), entry.getValue(), from, to, restart, batchSize, parallelism);
+        }
+
+        this.report(sender, Level.INFO, "Migration from " + from + " to " + to + " completed.");
+    }
+
+    // Helper function to migrate a single repository between two configurations
+    private <T extends ConfigurationSerializable> void migrateRepository(CommandSender sender, String name, Class<T> type,
+                                                                        String from, String to, boolean restart,
+                                                                        int batchSize, int parallelism) throws IOException {
+
+        File checkpointFile = new File(this.plugin.getDataFolder(),
+                "migrations" + File.separator + from + "-" + to + "-" + name + ".checkpoint");
+
+        if (restart && checkpointFile.exists() && !checkpointFile.delete()) {
+            throw new IOException("Could not delete " + checkpointFile.getName());
+        }
+
+        Repository<T> source = this.plugin.getRepositoryManager().open(name, from, type);
+
+        try {
+            Repository<T> target = this.plugin.getRepositoryManager().open(name, to, type);
+
+            try {
+                DataMigration.Result result = new DataMigration<>(
+                        name,
+                        source,
+                        target,
+                        checkpointFile,
+                        Math.max(1, batchSize),
+                        Math.max(1, parallelism),
+                        message -> this.report(sender, Level.INFO, message)
+                ).run();
+
+                this.report(sender, result.isVerified() ? Level.INFO : Level.WARNING, String.format(
+                        "[%s] %d rows migrated in %dms (%d rows/s), source %d rows, target %d rows, checksums %s",
+                        name,
+                        result.getMigrated(),
+                        result.getElapsedMillis(),
+                        result.getRowsPerSecond(),
+                        result.getSource().getCount(),
+                        result.getTarget().getCount(),
+                        result.isVerified() ? "match" : "DIFFER"
+                ));
+            } finally {
+                target.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    // Helper function to export a live repository
+    private <T extends ConfigurationSerializable> void exportSnapshot(CommandSender sender, String name, Class<T> type, File file) throws IOException {
+
+        SnapshotStats stats = new SnapshotExporter<T>(this.snapshotBlockSize(), this.snapshotParallelism())
+                .export(this.plugin.getRepositoryManager().getRepository(name, type), type, file);
+
+        this.report(sender, Level.INFO, String.format("[%s] %d entities exported to %s, %d bytes in %dms (%.2f MB/s)",
+                name, stats.getEntities(), file.getName(), stats.getBytes(), stats.getElapsedMillis(), stats.getMegabytesPerSecond()));
+    }
+
+    // Helper function to import a snapshot into a live repository
+    private <T extends ConfigurationSerializable> void importSnapshot(CommandSender sender, String name, Class<T> type, File file) throws IOException {
+
+        SnapshotStats stats = new SnapshotImporter<T>(this.snapshotParallelism())
+                .restore(this.plugin.getRepositoryManager().getRepository(name, type), type, file);
+
+        this.report(sender, Level.INFO, String.format("[%s] %d entities imported from %s, %d bytes in %dms (%.2f MB/s)",
+                name, stats.getEntities(), file.getName(), stats.getBytes(), stats.getElapsedMillis(), stats.getMegabytesPerSecond()));
+    }
+
+    private int snapshotBlockSize() {
+        return Math.max(1, this.plugin.getConfig().getInt("snapshot.blockSize", 1000));
+    }
+
+    private int snapshotParallelism() {
+        return Math.max(1, this.plugin.getConfig().getInt("snapshot.parallelism", 4));
+    }
+
+    // Helper function to run a long task on its own thread, one at a time
+    private void runInBackground(CommandSender sender, String description, BackgroundTask task, String retryHint) {
+
+        if (!this.running.compareAndSet(false, true)) {
+            sender.sendMessage("A migration or snapshot is already running.");
+            return;
+        }
+
+        // Streams whole repositories, it can't run on the main thread
+        // and its queries must not delay the ones players are waiting for
+        Thread thread = new Thread(() -> Priority.BULK.run(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                this.report(sender, Level.SEVERE, description + " failed: " + e.getMessage()
+                        + (retryHint == null ? "" : ", " + retryHint));
+            } finally {
+                this.running.set(false);
+            }
+        }), "TrueBank-Admin-Task");
+
+        thread.setDaemon(true);
+        thread.start();
+
+        sender.sendMessage(description + " started.");
+    }
+
+    // Helper function to log a message and forward it to the player who ran the command
+    private void report(CommandSender sender, Level level, String message) {
+        LoggerUtil.log(level, LoggerUtil.LogSource.COMMAND, message);
+
+        if (sender instanceof Player) {
+            Bukkit.getScheduler().runTask(this.plugin, () -> sender.sendMessage(message));
+        }
+    }
+
+    @FunctionalInterface
+    private interface BackgroundTask {
+
+        void run() throws Exception;
+
+    }
+
+}
@@ -0,0 +1,66 @@
+package it.mikeslab.truebank.data;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Class: ChangeCursor
+ * Position in the change stream of a repository: changes are ordered by
+ * update time, then by id. Cursors can be persisted through {@link #encode()}.
+ */
+@Getter
+@EqualsAndHashCode
+@RequiredArgsConstructor
+public class ChangeCursor {
+
+    /**
+     * Cursor preceding every tracked change.
+     */
+    public static final ChangeCursor START = new ChangeCursor(0, null);
+
+    private final long updatedAt;
+    private final String id;
+
+    /**
+     * Moves the cursor back in time, so that the next read also returns changes
+     * committed late or stamped by a clock running behind. Changes seen twice
+     * can be told apart by their version.
+     * @param millis The time to go back.
+     * @return The rewound cursor.
+     */
+    public ChangeCursor rewind(long millis) {
+        return new ChangeCursor(Math.max(0, this.updatedAt - millis), null);
+    }
+
+    /**
+     * Encodes the cursor to a string, to be stored as a checkpoint.
+     * @return The encoded cursor.
+     */
+    public String encode() {
+        return this.updatedAt + ":" + (this.id == null ? "" : this.id);
+    }
+
+    /**
+     * Parses a cursor encoded by {@link #encode()}.
+     * @param encoded The encoded cursor, null or empty for the start.
+     * @return The cursor.
+     */
+    public static ChangeCursor parse(String encoded) {
+
+        if (encoded == null || encoded.isEmpty()) {
+            return START;
+        }
+
+        int separator = encoded.indexOf(':');
+
+        if (separator < 0) {
+            throw new IllegalArgumentException("Malformed change cursor " + encoded);
+        }
+
+        String id = encoded.substring(separator + 1);
+
+        return new ChangeCursor(Long.parseLong(encoded.substring(0, separator)), id.isEmpty() ? null : id);
+    }
+
+}
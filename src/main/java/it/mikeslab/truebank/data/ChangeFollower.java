@@ -0,0 +1,182 @@
+package it.mikeslab.truebank.data;
+
+import it.mikeslab.truebank.data.scheduler.Priority;
+import it.mikeslab.truebank.util.LoggerUtil;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Class: ChangeFollower
+ * Keeps a local copy of a repository (a cache, a resident store...) up to date
+ * by following its change stream (see Repository#changesSince).
+ *
+ * Every poll reads the changes made since the cursor, in batches, and hands
+ * them to the listener in change order. Each poll starts the rewind window
+ * before the cursor, so that changes committed late or stamped by a clock
+ * running behind are read as well: the listener sees some changes twice and
+ * tells them apart by their version. A change committed more than the window
+ * after its stamp is missed, see Repository#changesSince for how long that
+ * can be. A failed poll is tried again by the next one, from the same cursor.
+ *
+ * Usage:
+ *   ChangeFollower<User> follower = new ChangeFollower<>(repository, "OffHeap-users", 1000, ChangeFollower.DEFAULT_REWIND_MILLIS, ChangeCursor.START, listener);
+ *   follower.poll();
+ *   follower.follow(5000);
+ *   ...
+ *   follower.close();
+ */
+public final class ChangeFollower<T> implements AutoCloseable {
+
+    /**
+     * How far back each poll starts from the cursor, unless configured: above
+     * MySQL's default innodb_lock_wait_timeout (50 seconds).
+     */
+    public static final long DEFAULT_REWIND_MILLIS = 60_000;
+
+    private final Repository<T> repository;
+    private final String name;
+    private final int batchSize;
+    private final long rewindMillis;
+    private final Listener<T> listener;
+    private final ScheduledExecutorService executor;
+
+    private volatile ChangeCursor cursor;
+
+    /**
+     * Creates a follower, it doesn't poll until asked to.
+     * @param repository The repository to follow, must track changes.
+     * @param name The follower name, used by its thread and its logs.
+     * @param batchSize The changes read at once.
+     * @param rewindMillis How far back each poll starts from the cursor.
+     * @param cursor The cursor to start from.
+     * @param listener Applies the changes to the local copy.
+     */
+    public ChangeFollower(Repository<T> repository, String name, int batchSize, long rewindMillis, ChangeCursor cursor, Listener<T> listener) {
+        this.repository = repository;
+        this.name = name;
+        this.batchSize = batchSize;
+        this.rewindMillis = rewindMillis;
+        this.cursor = cursor;
+        this.listener = listener;
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TrueBank-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads the rewind window from the "rewindSeconds" key of a configuration section.
+     * @param section The section of the local copy ("cache", "offHeap").
+     * @return The rewind window in milliseconds, DEFAULT_REWIND_MILLIS if not configured.
+     */
+    public static long rewindMillis(ConfigurationSection section) {
+        long defaultSeconds = TimeUnit.MILLISECONDS.toSeconds(DEFAULT_REWIND_MILLIS);
+        return TimeUnit.SECONDS.toMillis(Math.max(1, section.getLong("rewindSeconds", defaultSeconds)));
+    }
+
+    /**
+     * Applies the changes made since the last poll, blocking.
+     * @return The cursor the next poll continues from.
+     * @throws IOException If the listener fails to apply a change.
+     * @throws UnsupportedOperationException If the repository doesn't track changes.
+     */
+    public synchronized ChangeCursor poll() throws IOException {
+
+        ChangeCursor from = this.cursor.rewind(this.rewindMillis);
+
+        while (true) {
+            ChangeCursor batchFrom = from;
+            ChangeSet<T> changes = Priority.BULK.call(() -> this.repository.changesSince(batchFrom, this.batchSize));
+
+            for (Versioned<T> change : changes.getChanges()) {
+                this.listener.onChange(change);
+            }
+
+            from = changes.getNext();
+
+            if (!changes.hasMore(this.batchSize)) {
+                break;
+            }
+        }
+
+        // A rewound poll finding nothing must not move the cursor back
+        if (from.getUpdatedAt() > this.cursor.getUpdatedAt()) {
+            this.cursor = from;
+            this.listener.onCaughtUp(from);
+        }
+
+        return this.cursor;
+    }
+
+    /**
+     * Polls in the background at a fixed delay, until closed.
+     * @param intervalMillis The delay between two polls.
+     */
+    public void follow(long intervalMillis) {
+        this.executor.scheduleWithFixedDelay(this::pollQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the cursor the next poll continues from.
+     * @return The cursor.
+     */
+    public ChangeCursor getCursor() {
+        return this.cursor;
+    }
+
+    /**
+     * Stops following, waiting for a poll in progress to complete.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+
+        try {
+            this.executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void pollQuietly() {
+        try {
+            this.poll();
+        } catch (Exception e) {
+            // Tried again on the next tick, from the same cursor
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "[{}] sync failed: {}", this.name, e.getMessage());
+        }
+    }
+
+    /**
+     * Interface: Listener
+     * Applies the changes read by a follower to a local copy.
+     */
+    public interface Listener<T> {
+
+        /**
+         * Applies a change, possibly one already applied. Deletions are read
+         * again by every poll within the rewind window, see Versioned#isDeletion.
+         * @param change The change, with its version.
+         * @throws IOException If the local copy can't be written.
+         */
+        void onChange(Versioned<T> change) throws IOException;
+
+        /**
+         * Invoked when a poll has moved the cursor, e.g. to persist it.
+         * @param cursor The new cursor.
+         * @throws IOException If the cursor can't be persisted.
+         */
+        default void onCaughtUp(ChangeCursor cursor) throws IOException {
+
+        }
+
+    }
+
+}
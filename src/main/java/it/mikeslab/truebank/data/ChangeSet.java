@@ -0,0 +1,65 @@
+package it.mikeslab.truebank.data;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class: ChangeSet
+ * A page of changes read by Repository#changesSince.
+ */
+@Getter
+@RequiredArgsConstructor
+public class ChangeSet<T> {
+
+    /**
+     * How long deletions stay in the change stream, a reader left behind for
+     * longer must start over instead of catching up.
+     */
+    public static final long DELETION_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private final List<Versioned<T>> changes;
+    private final ChangeCursor next;
+
+    /**
+     * Merges two pages read from the same cursor with the same limit, e.g. the
+     * changed entities and the deletions, into the first changes of both.
+     * @param first A page, in change order.
+     * @param second The other page, in change order.
+     * @param limit The limit both pages were read with.
+     * @param idOrder The order of the ids within the same update time, as the backend sorts them.
+     * @return The merged changes, in change order.
+     */
+    public static <T> List<Versioned<T>> merge(List<Versioned<T>> first, List<Versioned<T>> second, int limit, Comparator<String> idOrder) {
+        Comparator<Versioned<T>> order = Comparator.<Versioned<T>>comparingLong(Versioned::getUpdatedAt)
+                .thenComparing(Versioned::getId, idOrder);
+
+        List<Versioned<T>> merged = new ArrayList<>(Math.min(limit, first.size() + second.size()));
+        int i = 0;
+        int j = 0;
+
+        while (merged.size() < limit && (i < first.size() || j < second.size())) {
+            if (j >= second.size() || (i < first.size() && order.compare(first.get(i), second.get(j)) <= 0)) {
+                merged.add(first.get(i++));
+            } else {
+                merged.add(second.get(j++));
+            }
+        }
+
+        return merged;
+    }
+
+    /**
+     * Checks whether more changes may follow this page.
+     * @param limit The limit the page was read with.
+     * @return True if the page is full.
+     */
+    public boolean hasMore(int limit) {
+        return this.changes.size() >= limit;
+    }
+
+}
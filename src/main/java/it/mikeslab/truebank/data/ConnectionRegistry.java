@@ -0,0 +1,213 @@
+package it.mikeslab.truebank.data;
+
+import it.mikeslab.truebank.util.LoggerUtil;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Class: ConnectionRegistry
+ * Shares connection pools and clients between repositories pointing at
+ * the same server, instead of opening one pool per repository.
+ *
+ * Connections are keyed by their connection settings and reference counted:
+ * the first lease creates the connection, the last release closes it.
+ * Connections are created and closed outside of the map's locks, so leases
+ * for different keys never wait for each other; leases for the same key wait
+ * for the connection the first one is creating.
+ */
+public final class ConnectionRegistry {
+
+    private static final Map<String, Shared<?>> CONNECTIONS = new ConcurrentHashMap<>();
+
+    private ConnectionRegistry() {
+
+    }
+
+    /**
+     * Leases the connection registered under the given key, creating it if needed.
+     * @param key The connection settings key, see {@link #key(Object...)}.
+     * @param factory Creates the connection when no lease is active for the key.
+     * @param closer Closes the connection once the last lease is released.
+     * @param <C> The connection type (HikariDataSource, MongoClient, ...).
+     * @return The lease, to be released when the repository disconnects.
+     */
+    @SuppressWarnings("unchecked")
+    public static <C> Lease<C> lease(String key, Supplier<C> factory, Consumer<C> closer) {
+
+        boolean[] created = new boolean[1];
+
+        // Only registers the pending connection, it's created once the map's lock is released
+        Shared<C> shared = (Shared<C>) CONNECTIONS.compute(key, (theKey, current) -> {
+
+            if (current == null) {
+                created[0] = true;
+                return new Shared<>(closer);
+            }
+
+            current.references++;
+            return current;
+        });
+
+        if (created[0]) {
+            try {
+                shared.connection.complete(factory.get());
+            } catch (RuntimeException | Error e) {
+
+                // Leases waiting for it fail as well, the next one tries again
+                CONNECTIONS.remove(key, shared);
+                shared.connection.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        return new Lease<>(key, await(shared.connection), created[0]);
+    }
+
+    /**
+     * Builds a registry key out of the connection settings.
+     * The key is kept in memory only and is never logged.
+     * @param settings The connection settings (scheme, host, port, credentials, ...).
+     * @return The key.
+     */
+    public static String key(Object... settings) {
+        StringBuilder key = new StringBuilder();
+
+        for (Object setting : settings) {
+            key.append(setting).append('\u0000');
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Closes every registered connection, regardless of active leases.
+     * Should be invoked when the plugin is disabled.
+     */
+    public static void closeAll() {
+        for (String key : CONNECTIONS.keySet()) {
+            Shared<?> shared = CONNECTIONS.remove(key);
+
+            if (shared != null) {
+                shared.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of distinct connections currently registered.
+     * @return The connection count.
+     */
+    public static int size() {
+        return CONNECTIONS.size();
+    }
+
+    // Helper function to drop a reference, closing the connection on the last one
+    private static void release(String key) {
+        Shared<?>[] unreferenced = new Shared<?>[1];
+
+        CONNECTIONS.computeIfPresent(key, (theKey, shared) -> {
+
+            if (--shared.references > 0) {
+                return shared;
+            }
+
+            unreferenced[0] = shared;
+            return null;
+        });
+
+        if (unreferenced[0] != null) {
+            unreferenced[0].close();
+        }
+    }
+
+    // Helper function to wait for a connection being created by another lease
+    private static <C> C await(CompletableFuture<C> connection) {
+        try {
+            return connection.join();
+        } catch (CompletionException e) {
+
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    // A registered connection and its reference count, guarded by the map's per-key lock
+    private static final class Shared<C> {
+
+        private final CompletableFuture<C> connection = new CompletableFuture<>();
+        private final Consumer<C> closer;
+        private int references = 1;
+
+        private Shared(Consumer<C> closer) {
+            this.closer = closer;
+        }
+
+        // Closes the connection once created, a connection that failed to be created has nothing to close
+        private void close() {
+            this.connection.thenAccept(theConnection -> {
+                try {
+                    this.closer.accept(theConnection);
+                } catch (RuntimeException e) {
+                    LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * A reference to a shared connection, released exactly once.
+     * @param <C> The connection type.
+     */
+    public static final class Lease<C> {
+
+        private final String key;
+        private final C connection;
+        private final boolean created;
+        private boolean released;
+
+        private Lease(String key, C connection, boolean created) {
+            this.key = key;
+            this.connection = connection;
+            this.created = created;
+        }
+
+        /**
+         * Gets the shared connection.
+         * @return The connection.
+         */
+        public C get() {
+            return this.connection;
+        }
+
+        /**
+         * Checks whether this lease created the connection,
+         * useful to run one-time checks such as pings only once per server.
+         * @return True if the connection was created by this lease.
+         */
+        public boolean isCreated() {
+            return this.created;
+        }
+
+        /**
+         * Releases the lease, closing the connection if it was the last one.
+         */
+        public synchronized void release() {
+            if (this.released) {
+                return;
+            }
+
+            this.released = true;
+            ConnectionRegistry.release(this.key);
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package it.mikeslab.truebank.data;
+
+import it.mikeslab.truebank.util.Money;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Class: FieldUpdate
+ * A periodic update of a numeric field, applied by the database to every
+ * entity at once (see {@link Repository#updateAll}).
+ *
+ * Each period the field becomes value * factor + offset, for instance
+ * factor 1.001 for interest or offset -500 for a fee. Values are fixed-point
+ * amounts (see {@link Money}): the product is rounded half to even once for
+ * all the periods applied. Entities whose value is below the minimum are left
+ * unchanged.
+ *
+ * The last period applied to an entity is stored in its guard field, so an
+ * update interrupted halfway is simply run again, and entities skipped for a
+ * while (e.g. pinned by an online session) catch up on all the missed periods
+ * at once. Entities seen for the first time only get their guard stamped.
+ */
+@Getter
+@RequiredArgsConstructor
+public class FieldUpdate {
+
+    // Guard fields start with it, backends keep them out of the entities they read
+    public static final String GUARD_PREFIX = "_period_";
+
+    private final String field;
+    private final double factor;
+    private final long offset;
+    private final long minimum;
+    private final String guardField;
+    private final long period;
+
+    /**
+     * Computes the value of the field after some periods, as the backends do.
+     * @param value The current value.
+     * @param periods The number of periods to apply.
+     * @return The updated value.
+     */
+    public long apply(long value, long periods) {
+
+        if (periods <= 0 || value < this.minimum) {
+            return value;
+        }
+
+        return Money.add(Money.multiply(value, Math.pow(this.factor, periods)), Math.multiplyExact(this.offset, periods));
+    }
+
+}
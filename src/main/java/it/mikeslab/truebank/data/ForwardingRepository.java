@@ -0,0 +1,118 @@
+package it.mikeslab.truebank.data;
+
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Query;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class: ForwardingRepository
+ * A Repository forwarding every call to a delegate.
+ * Decorators (resilience, caching, ...) extend it and override
+ * only the operations they are interested in.
+ */
+@RequiredArgsConstructor
+public abstract class ForwardingRepository<T> implements Repository<T> {
+
+    protected final Repository<T> delegate;
+
+    @Override
+    public String save(T obj, Object... args) {
+        return this.delegate.save(obj, args);
+    }
+
+    @Override
+    public void update(String id, T obj) {
+        this.delegate.update(id, obj);
+    }
+
+    @Override
+    public UpsertResult upsert(String id, T obj) {
+        return this.delegate.upsert(id, obj);
+    }
+
+    @Override
+    public void delete(String id) {
+        this.delegate.delete(id);
+    }
+
+    @Override
+    public T get(String id) {
+        return this.delegate.get(id);
+    }
+
+    @Override
+    public Map.Entry<String, Object> find(Document document) {
+        return this.delegate.find(document);
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> scan(String afterId, int limit) {
+        return this.delegate.scan(afterId, limit);
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> query(Query query) {
+        return this.delegate.query(query);
+    }
+
+    @Override
+    public List<Map<String, Object>> select(Query query) {
+        return this.delegate.select(query);
+    }
+
+    @Override
+    public List<Map<String, Object>> aggregate(Aggregation aggregation) {
+        return this.delegate.aggregate(aggregation);
+    }
+
+    @Override
+    public List<String> saveAll(List<Map.Entry<String, T>> entities) {
+        return this.delegate.saveAll(entities);
+    }
+
+    @Override
+    public ChangeSet<T> changesSince(ChangeCursor cursor, int limit) {
+        return this.delegate.changesSince(cursor, limit);
+    }
+
+    @Override
+    public Versioned<T> getVersioned(String id) {
+        return this.delegate.getVersioned(id);
+    }
+
+    @Override
+    public boolean compareAndUpdate(String id, long expectedVersion, T obj) {
+        return this.delegate.compareAndUpdate(id, expectedVersion, obj);
+    }
+
+    @Override
+    public long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit) {
+        return this.delegate.updateAll(update, excludedIds, limit);
+    }
+
+    @Override
+    public long convertToFixedPoint(String field, int scale) {
+        return this.delegate.convertToFixedPoint(field, scale);
+    }
+
+    @Override
+    public String getRepositoryName() {
+        return this.delegate.getRepositoryName();
+    }
+
+    @Override
+    public void setColumns(String[] columns) {
+        this.delegate.setColumns(columns);
+    }
+
+    @Override
+    public void close() {
+        this.delegate.close();
+    }
+
+}
@@ -0,0 +1,74 @@
+package it.mikeslab.truebank.data;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class: OptimisticUpdate
+ * Read-modify-write loop over Repository#compareAndUpdate: the entity is read with
+ * its version, modified and written back only if nobody changed it meanwhile,
+ * otherwise it is read again and the modification is applied to the fresh copy.
+ *
+ * The modification may run more than once, so it must only depend on the entity
+ * it receives (e.g. "balance + 10"), never on state captured from a previous read.
+ */
+public final class OptimisticUpdate {
+
+    private static final int DEFAULT_ATTEMPTS = 8;
+    private static final long MAX_BACKOFF_MILLIS = 50;
+
+    private OptimisticUpdate() {
+    }
+
+    /**
+     * Applies a modification to an entity, retrying on conflicts.
+     * @param repository The repository.
+     * @param id The entity id.
+     * @param modification The modification, applied to a copy read from the repository.
+     * @return The entity as written, or null if it doesn't exist.
+     * @throws VersionConflictException If every attempt conflicted with another writer.
+     */
+    public static <T> T apply(Repository<T> repository, String id, UnaryOperator<T> modification) {
+        return apply(repository, id, modification, DEFAULT_ATTEMPTS);
+    }
+
+    /**
+     * Applies a modification to an entity, retrying on conflicts.
+     * @param repository The repository.
+     * @param id The entity id.
+     * @param modification The modification, applied to a copy read from the repository.
+     * @param maxAttempts The maximum number of attempts.
+     * @return The entity as written, or null if it doesn't exist.
+     * @throws VersionConflictException If every attempt conflicted with another writer.
+     */
+    public static <T> T apply(Repository<T> repository, String id, UnaryOperator<T> modification, int maxAttempts) {
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+
+            Versioned<T> current = repository.getVersioned(id);
+
+            if (current == null) {
+                return null;
+            }
+
+            T updated = modification.apply(current.getEntity());
+
+            if (repository.compareAndUpdate(id, current.getVersion(), updated)) {
+                return updated;
+            }
+
+            // Lost the race, spread the retries of concurrent writers
+            if (attempt < maxAttempts) {
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(Math.min(MAX_BACKOFF_MILLIS, 1L << attempt) + 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        throw new VersionConflictException(id, maxAttempts);
+    }
+
+}
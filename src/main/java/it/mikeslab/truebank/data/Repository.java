@@ -1,7 +1,11 @@
 package it.mikeslab.truebank.data;
 
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Query;
 import org.bson.Document;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -10,6 +14,22 @@ import java.util.Map;
  *
  * This interface enables data handling and storage through different sources.
  *
+ * Concurrency contract, kept by every implementation and wrapper:
+ * - A repository is safe for use by any number of threads; its name, entity
+ *   type and connection are fixed when it is created.
+ * - Operations on a single id are linearizable: each takes effect atomically
+ *   at some point between its call and its return, and a read returns the
+ *   latest write completed before it. compareAndUpdate and upsert are atomic
+ *   with respect to every other write of the same id.
+ * - Operations over many entities (scan, query, select, aggregate, saveAll,
+ *   updateAll) are not snapshots: each entity is read or written atomically,
+ *   but writes running alongside may or may not be seen.
+ * - Entities are copied on write and on read: an entity passed to a write may
+ *   be modified once the call returns, an entity returned is the caller's own.
+ * Wrappers relax the second point where documented: writes queued by the
+ * ResilientRepository aren't visible until replayed, caches catch up with
+ * other servers every sync interval. The stress mode of the load test checks
+ * the contract against any backend.
  */
 public interface Repository<T> {
 
@@ -30,6 +50,20 @@ public interface Repository<T> {
      */
     void update(String id, T obj);
 
+    /**
+     * Creates or replaces an object by its id, as a single atomic write:
+     * no need to look it up first, and no race with another writer creating it.
+     * The id is the caller's, and must fit the database: MySQL tables generate
+     * numeric ids and accept only those (anything else throws
+     * IllegalArgumentException), MongoDB and YAML accept any string.
+     *
+     * @param id  The id of the object.
+     * @param obj The object.
+     * @return Whether the object was inserted or updated, null if the write
+     *         was queued while the database is unavailable.
+     */
+    UpsertResult upsert(String id, T obj);
+
     /**
      * Deletes an object from the repository by its id.
      *
@@ -51,18 +85,134 @@ public interface Repository<T> {
 
 
     /**
-     * Sets the repository name for the repository.
-     * Note: This method should be invoked prior to any other operations.
-     *       For YAML, it designates the section from which data is read and written.
-     *       For MongoDB, it specifies the collection name.
-     *       For MySQL, it determines the table name.
-     * @param tableName The desired table name.
+     * Reads a page of entities in id order, starting right after the given id.
+     * Pages are read by key rather than by offset, so that a whole repository
+     * can be streamed without loading it in memory.
+     *
+     * @param afterId The last id of the previous page, null for the first page.
+     * @param limit The maximum number of entities to read.
+     * @return The entities with their ids, empty once there is nothing left.
+     */
+    List<Map.Entry<String, T>> scan(String afterId, int limit);
+
+
+    /**
+     * Runs a query, compiled once per query shape into a cached native plan.
+     * The projection of the query is ignored, whole entities are read.
+     *
+     * @param query The query.
+     * @return The matching entities with their ids, in query order.
+     */
+    List<Map.Entry<String, T>> query(Query query);
+
+
+    /**
+     * Runs a query, reading only the projected fields (every field without a projection).
+     *
+     * @param query The query.
+     * @return The matching rows, field name to value, each with its "id".
+     */
+    List<Map<String, Object>> select(Query query);
+
+
+    /**
+     * Computes aggregates (count, sum, average, min, max) over the matching
+     * entities inside the database, one row per group, without transferring them.
+     *
+     * @param aggregation The aggregation.
+     * @return The result rows: group fields and metric aliases to values.
+     */
+    List<Map<String, Object>> aggregate(Aggregation aggregation);
+
+
+    /**
+     * Saves a batch of entities, in a single round trip where the backend allows it.
+     * The given ids are kept when the backend can store them, replacing the entities
+     * already stored under the same ids; null or unsupported ids are generated.
+     *
+     * @param entities The entities with their ids.
+     * @return The ids the entities have been stored under, in the same order.
+     */
+    List<String> saveAll(List<Map.Entry<String, T>> entities);
+
+
+    /**
+     * Reads the entities changed after the given cursor, in change order.
+     * Every write stamps the entity with a new version and update time, indexed
+     * so that a replica or a cache can catch up without a full scan.
+     * A deletion is returned as a change without entity (see Versioned#isDeletion),
+     * for DELETION_RETENTION_MILLIS (see ChangeSet).
+     *
+     * The update time is taken when the write starts, not when it commits: a write
+     * waiting on a lock (up to innodb_lock_wait_timeout on MySQL) or running in a long
+     * transaction becomes visible with a time already behind the latest cursors.
+     * Readers must start each read that far back and tell the changes seen twice
+     * apart by their version, as ChangeFollower does with its rewind window; a write
+     * committed later than the window after it started is missed.
+     *
+     * @param cursor The cursor returned by the previous read, ChangeCursor.START at first.
+     * @param limit The maximum number of changes to read.
+     * @return The changes and the cursor to continue from.
+     * @throws UnsupportedOperationException If the backend doesn't track changes.
+     */
+    ChangeSet<T> changesSince(ChangeCursor cursor, int limit);
+
+
+    /**
+     * Retrieves an object along with its version, to be passed to compareAndUpdate.
+     *
+     * @param id The id of the object to be retrieved.
+     * @return The versioned object, null if it doesn't exist.
      */
-    void setRepositoryName(String tableName);
+    Versioned<T> getVersioned(String id);
 
 
     /**
-     * Gets the repository name for the repository.
+     * Updates an object only if its version is still the expected one, as a single
+     * conditional write. On success the version is bumped; on conflict nothing is
+     * written and the caller reads the object again (see OptimisticUpdate).
+     *
+     * @param id The id of the object to be updated.
+     * @param expectedVersion The version the update is based on.
+     * @param obj The updated object.
+     * @return True if the update has been applied, false if the object changed or is gone.
+     */
+    boolean compareAndUpdate(String id, long expectedVersion, T obj);
+
+
+    /**
+     * Applies a periodic field update inside the database, without reading the
+     * entities, to at most limit entities not yet updated for the period.
+     * Invoked in a loop until it returns less than the limit; every call is a
+     * short write, so the job can be throttled and interrupted at any time.
+     *
+     * @param update The update, carrying its period.
+     * @param excludedIds Ids to leave untouched, e.g. entities held in memory.
+     * @param limit The maximum number of entities to update.
+     * @return The number of entities updated.
+     * @throws UnsupportedOperationException If the backend can't run set-based updates.
+     */
+    long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit);
+
+
+    /**
+     * Converts a decimal field to an integer count of minor units (see Money),
+     * rounding half to even. Idempotent: values already converted are left alone,
+     * so an interrupted conversion is completed by running it again.
+     * Invoked on the raw repository at startup, before any other operation.
+     *
+     * @param field The field holding decimal amounts.
+     * @param scale The number of decimals kept.
+     * @return The number of entities converted.
+     */
+    long convertToFixedPoint(String field, int scale);
+
+
+    /**
+     * Gets the repository name, fixed when the repository is created.
+     * For YAML, it designates the section from which data is read and written.
+     * For MongoDB, it specifies the collection name.
+     * For MySQL, it determines the table name.
      * @return The table name.
      */
     String getRepositoryName();
@@ -73,8 +223,6 @@ public interface Repository<T> {
      */
     void setColumns(String[] columns);
 
-    void setType(Class<T> type);
-
     /**
      * Closes the repository.
      */
@@ -0,0 +1,18 @@
+package it.mikeslab.truebank.data;
+
+/**
+ * Class: RepositoryException
+ * Thrown when a repository operation fails because of the underlying
+ * database (connection errors, query failures, timeouts, ...).
+ */
+public class RepositoryException extends RuntimeException {
+
+    public RepositoryException(String message) {
+        super(message);
+    }
+
+    public RepositoryException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
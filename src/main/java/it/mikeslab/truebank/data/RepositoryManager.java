@@ -0,0 +1,290 @@
+package it.mikeslab.truebank.data;
+
+import it.mikeslab.truebank.data.cache.DiskCachedRepository;
+import it.mikeslab.truebank.data.offheap.OffHeapAccountRepository;
+import it.mikeslab.truebank.data.resilience.ResilientRepository;
+import it.mikeslab.truebank.data.scheduler.OperationScheduler;
+import it.mikeslab.truebank.data.scheduler.ScheduledRepository;
+import it.mikeslab.truebank.data.warmup.RepositoryWarmup;
+import it.mikeslab.truebank.pojo.User;
+import it.mikeslab.truebank.util.LoggerUtil;
+import it.mikeslab.truebank.util.ReadinessGate;
+import it.mikeslab.truebank.util.RepositoryUtil;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Class: RepositoryManager
+ * Owns the repositories of the plugin and initializes them in parallel,
+ * off the main thread. Until every repository has connected (and warmed up,
+ * if configured) the readiness gate stays closed.
+ *
+ * Once started, every repository runs its operations through a shared
+ * {@link OperationScheduler}, configured by the "scheduler" section, behind
+ * a {@link DiskCachedRepository} where its "cache" section enables one, and
+ * held resident by an {@link OffHeapAccountRepository} where "offHeap" does.
+ */
+@RequiredArgsConstructor
+public class RepositoryManager {
+
+    private final ConfigurationSection config;
+    private final File dataFolder;
+
+    @Getter
+    private final ReadinessGate readiness = new ReadinessGate();
+
+    private final Map<String, Definition<?>> definitions = new LinkedHashMap<>();
+    private final Map<String, Repository<?>> repositories = new ConcurrentHashMap<>();
+
+    @Getter
+    private volatile OperationScheduler scheduler;
+
+    /**
+     * Registers a repository, to be connected by {@link #startAsync()}.
+     * @param name The repository name (collection, table or YAML section).
+     * @param configPath The path of the database configuration section.
+     * @param type The entity class.
+     * @param warmup The warmup step, may be null.
+     */
+    public <T extends ConfigurationSerializable> void register(String name, String configPath, Class<T> type, RepositoryWarmup<T> warmup) {
+        this.register(name, configPath, type, warmup, Collections.emptyList());
+    }
+
+    /**
+     * Registers a repository, to be connected by {@link #startAsync()}.
+     * @param name The repository name (collection, table or YAML section).
+     * @param configPath The path of the database configuration section.
+     * @param type The entity class.
+     * @param warmup The warmup step, may be null.
+     * @param upgrades The storage upgrades, applied in order once connected.
+     */
+    public <T extends ConfigurationSerializable> void register(String name, String configPath, Class<T> type, RepositoryWarmup<T> warmup, List<RepositoryUpgrade<T>> upgrades) {
+        this.definitions.put(name, new Definition<>(name, configPath, type, warmup, upgrades));
+    }
+
+    /**
+     * Connects every registered repository in parallel.
+     * The readiness gate is opened once all of them are connected,
+     * or failed as soon as one of them fails.
+     * @return A future completed when the startup is over.
+     */
+    public CompletableFuture<Void> startAsync() {
+
+        this.scheduler = OperationScheduler.fromConfig(this.config.getConfigurationSection("scheduler"));
+
+        AtomicInteger threadCount = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, this.definitions.size()), runnable -> {
+            Thread thread = new Thread(runnable, "TrueBank-Startup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long startedAt = System.nanoTime();
+
+        CompletableFuture<?>[] futures = this.definitions.values()
+                .stream()
+                .map(definition -> CompletableFuture.runAsync(() -> this.start(definition), executor))
+                .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(futures).whenComplete((ignored, failure) -> {
+
+            executor.shutdown();
+
+            if (failure != null) {
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                        ? failure.getCause()
+                        : failure;
+
+                LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "Startup failed: {}", cause.getMessage());
+                this.readiness.fail(cause.getMessage());
+                return;
+            }
+
+            LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE,
+                    "{} repositories ready in {}ms", this.repositories.size(), elapsedMillis(startedAt));
+            this.readiness.open();
+        });
+    }
+
+    /**
+     * Gets a connected repository, failing fast if the plugin isn't ready.
+     * @param name The repository name.
+     * @param type The entity class.
+     * @return The repository.
+     * @throws IllegalStateException If the startup is still running or has failed.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ConfigurationSerializable> Repository<T> getRepository(String name, Class<T> type) {
+
+        this.readiness.checkReady();
+
+        Definition<?> definition = this.definitions.get(name);
+
+        if (definition == null || !definition.type.equals(type)) {
+            throw new IllegalArgumentException("No repository " + name + " of type " + type.getSimpleName());
+        }
+
+        return (Repository<T>) this.repositories.get(name);
+    }
+
+    /**
+     * Gets the registered repositories and their entity classes.
+     * @return The entity class of each repository by name, in registration order.
+     */
+    public Map<String, Class<? extends ConfigurationSerializable>> getRegisteredTypes() {
+        Map<String, Class<? extends ConfigurationSerializable>> types = new LinkedHashMap<>();
+        this.definitions.forEach((name, definition) -> types.put(name, definition.type));
+        return types;
+    }
+
+    /**
+     * Creates and connects a standalone repository from a configuration section,
+     * without the resilience layer and the warmup. The caller is in charge of closing it.
+     * Its operations go through the scheduler, competing fairly with the live repositories.
+     * @param name The repository name (collection, table or YAML section).
+     * @param configPath The path of the database configuration section.
+     * @param type The entity class.
+     * @return The connected repository.
+     * @throws IllegalStateException If the section is missing or invalid.
+     */
+    public <T extends ConfigurationSerializable> Repository<T> open(String name, String configPath, Class<T> type) {
+
+        Repository<T> repository = this.connect(name, configPath, type);
+
+        return this.scheduler == null ? repository : new ScheduledRepository<>(repository, this.scheduler);
+    }
+
+    /**
+     * Runs the operations still queued, then closes every connected repository.
+     */
+    public void close() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdown(5, TimeUnit.SECONDS);
+        }
+
+        this.repositories.values().forEach(Repository::close);
+        this.repositories.clear();
+    }
+
+    // Helper function to create and connect a bare repository
+    private <T extends ConfigurationSerializable> Repository<T> connect(String name, String configPath, Class<T> type) {
+
+        ConfigurationSection section = this.config.getConfigurationSection(configPath);
+
+        if (section == null) {
+            throw new IllegalStateException("[" + name + "] Missing configuration section " + configPath);
+        }
+
+        Repository<T> repository = new RepositoryUtil<>(section, type, name).fromConfig();
+
+        if (repository == null) {
+            throw new IllegalStateException("[" + name + "] Repository could not be created, check the configuration");
+        }
+
+        return repository;
+    }
+
+    // Helper function to connect and warm up a single repository, timing each phase
+    private <T extends ConfigurationSerializable> void start(Definition<T> definition) {
+
+        long startedAt = System.nanoTime();
+
+        Repository<T> repository = this.connect(definition.name, definition.configPath, definition.type);
+
+        // Applied to the raw repository, a failure must stop the startup rather than be retried or spilled
+        for (RepositoryUpgrade<T> upgrade : definition.upgrades) {
+            long upgradeStartedAt = System.nanoTime();
+            long upgraded = upgrade.upgrade(repository);
+
+            if (upgraded > 0) {
+                LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "[{}] upgraded {} entries in {}ms",
+                        definition.name, upgraded, elapsedMillis(upgradeStartedAt));
+            }
+        }
+
+        ConfigurationSection section = this.config.getConfigurationSection(definition.configPath);
+
+        if (section.getBoolean("resilience.enabled", false)) {
+            try {
+                repository = ResilientRepository.fromConfig(repository, definition.name, definition.type, section, this.dataFolder);
+            } catch (IOException e) {
+                throw new UncheckedIOException("[" + definition.name + "] Could not open the spillover file", e);
+            }
+        }
+
+        long connectedIn = elapsedMillis(startedAt);
+        long warmupStartedAt = System.nanoTime();
+
+        int warmed = definition.warmup == null ? 0 : definition.warmup.warmup(repository, section);
+
+        // Warmup reads run unscheduled, nothing else competes with them before the gate opens
+        Repository<T> live = new ScheduledRepository<>(repository, this.scheduler);
+
+        if (section.getBoolean("cache.enabled", false) && !"YAML".equalsIgnoreCase(section.getString("type"))) {
+            // In front of the scheduler, a cache hit doesn't wait for a worker
+            try {
+                live = DiskCachedRepository.open(live, definition.name, definition.type,
+                        section.getConfigurationSection("cache"), new File(this.dataFolder, "cache"));
+            } catch (IOException e) {
+                throw new UncheckedIOException("[" + definition.name + "] Could not open the disk cache", e);
+            }
+        }
+
+        if (section.getBoolean("offHeap.enabled", false)) {
+            live = this.keepOffHeap(definition, live, section.getConfigurationSection("offHeap"));
+        }
+
+        this.repositories.put(definition.name, live);
+
+        LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE,
+                "[{}] connected in {}ms, warmed up {} entries in {}ms",
+                definition.name, connectedIn, warmed, elapsedMillis(warmupStartedAt));
+    }
+
+    // Helper function to keep a whole repository resident off-heap, only accounts have a compact record
+    @SuppressWarnings("unchecked")
+    private <T extends ConfigurationSerializable> Repository<T> keepOffHeap(Definition<T> definition, Repository<T> repository, ConfigurationSection section) {
+
+        if (!User.class.equals(definition.type)) {
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "[{}] only user repositories can be kept off-heap, ignored", definition.name);
+            return repository;
+        }
+
+        return (Repository<T>) OffHeapAccountRepository.open((Repository<User>) repository, definition.name, section);
+    }
+
+    private static long elapsedMillis(long startedAt) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    }
+
+    @RequiredArgsConstructor
+    private static final class Definition<T extends ConfigurationSerializable> {
+
+        private final String name;
+        private final String configPath;
+        private final Class<T> type;
+        private final RepositoryWarmup<T> warmup;
+        private final List<RepositoryUpgrade<T>> upgrades;
+
+    }
+
+}
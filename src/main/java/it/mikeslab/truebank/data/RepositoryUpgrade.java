@@ -0,0 +1,19 @@
+package it.mikeslab.truebank.data;
+
+/**
+ * Interface: RepositoryUpgrade
+ * Storage format change applied to a repository at startup, right after it
+ * has connected and before anything else reads or writes it. Upgrades must be
+ * idempotent: they run on every startup, and one already applied does nothing.
+ */
+@FunctionalInterface
+public interface RepositoryUpgrade<T> {
+
+    /**
+     * Upgrades the stored entities.
+     * @param repository The freshly connected repository.
+     * @return The number of upgraded entities.
+     */
+    long upgrade(Repository<T> repository);
+
+}
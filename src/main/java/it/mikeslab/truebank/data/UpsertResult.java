@@ -0,0 +1,19 @@
+package it.mikeslab.truebank.data;
+
+/**
+ * Enum: UpsertResult
+ * Outcome of Repository#upsert.
+ */
+public enum UpsertResult {
+
+    /**
+     * No entity had the id, it has been created.
+     */
+    INSERTED,
+
+    /**
+     * An entity had the id, it has been replaced and its version bumped.
+     */
+    UPDATED
+
+}
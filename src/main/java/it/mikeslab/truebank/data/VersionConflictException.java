@@ -0,0 +1,22 @@
+package it.mikeslab.truebank.data;
+
+import lombok.Getter;
+
+/**
+ * Class: VersionConflictException
+ * Thrown when an optimistic update keeps losing the race against other
+ * writers and runs out of attempts. The database itself is healthy.
+ */
+@Getter
+public class VersionConflictException extends RuntimeException {
+
+    private final String id;
+    private final int attempts;
+
+    public VersionConflictException(String id, int attempts) {
+        super("Entity " + id + " kept changing, update given up after " + attempts + " attempts");
+        this.id = id;
+        this.attempts = attempts;
+    }
+
+}
@@ -0,0 +1,38 @@
+package it.mikeslab.truebank.data;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Class: Versioned
+ * An entity along with its change tracking metadata.
+ * The version is bumped by every write to the entity, the update time is
+ * taken from the database clock (MySQL) or the writer clock (MongoDB).
+ * In a change stream, a null entity stands for a deletion.
+ */
+@Getter
+@RequiredArgsConstructor
+public class Versioned<T> {
+
+    private final String id;
+    private final T entity;
+    private final long version;
+    private final long updatedAt;
+
+    /**
+     * Checks whether this change is the deletion of the entity.
+     * @return True if the entity has been deleted.
+     */
+    public boolean isDeletion() {
+        return this.entity == null;
+    }
+
+    /**
+     * Gets the cursor pointing right after this change.
+     * @return The cursor.
+     */
+    public ChangeCursor toCursor() {
+        return new ChangeCursor(this.updatedAt, this.id);
+    }
+
+}
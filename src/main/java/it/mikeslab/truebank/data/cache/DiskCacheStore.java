@@ -0,0 +1,553 @@
+package it.mikeslab.truebank.data.cache;
+
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.util.LoggerUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Class: DiskCacheStore
+ * Log-structured store of cached entities on local disk.
+ *
+ * Every change is appended to the log as a length-prefixed, checksummed record:
+ * an entity with its version, the removal of an entity, or the change cursor the
+ * cache is up to date with. The index of the live records is rebuilt by replaying
+ * the log on open; a torn or corrupted tail left by a crash ends the replay.
+ *
+ * The store is bounded: beyond the configured size the least recently read
+ * entities are evicted, and the log is compacted once it holds more garbage
+ * than live records.
+ */
+final class DiskCacheStore {
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CURSOR = 3;
+
+    // Length and checksum of every record
+    private static final int RECORD_HEADER = Integer.BYTES + Long.BYTES;
+
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private final Path path;
+    private final long maxBytes;
+
+    // Readers hold the read lock while reading from the channel, compaction swaps it under the write lock
+    private final ReadWriteLock channelLock = new ReentrantReadWriteLock();
+
+    // Guarded by this, in least recently read order
+    private final LinkedHashMap<String, Slot> index = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, String> keys = new HashMap<>();
+    private ChangeCursor cursor = ChangeCursor.START;
+    private long liveBytes;
+    private long fileBytes;
+
+    private FileChannel channel;
+
+    DiskCacheStore(File file, long maxBytes) throws IOException {
+        this.path = file.toPath();
+        this.maxBytes = maxBytes;
+
+        if (this.path.getParent() != null) {
+            Files.createDirectories(this.path.getParent());
+        }
+
+        boolean tornTail = this.load();
+
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        synchronized (this) {
+            this.evict();
+        }
+
+        if (tornTail || this.needsCompaction()) {
+            this.compact();
+        }
+    }
+
+    /**
+     * Reads a cached entity.
+     * @param id The entity id.
+     * @return The encoded entity, null if it isn't cached.
+     * @throws IOException If the log can't be read.
+     */
+    byte[] read(String id) throws IOException {
+
+        this.channelLock.readLock().lock();
+
+        try {
+            Slot slot;
+
+            synchronized (this) {
+                slot = this.index.get(id);
+            }
+
+            if (slot == null) {
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(slot.length);
+            long position = slot.offset;
+
+            while (buffer.hasRemaining()) {
+                int read = this.channel.read(buffer, position);
+
+                if (read < 0) {
+                    throw new EOFException("Cached entity " + id + " is truncated");
+                }
+
+                position += read;
+            }
+
+            return buffer.array();
+        } finally {
+            this.channelLock.readLock().unlock();
+        }
+    }
+
+    synchronized long version(String id) {
+        Slot slot = this.index.get(id);
+        return slot == null ? -1 : slot.version;
+    }
+
+    synchronized String idOf(String key) {
+        return this.keys.get(key);
+    }
+
+    synchronized boolean contains(String id) {
+        return this.index.containsKey(id);
+    }
+
+    synchronized ChangeCursor getCursor() {
+        return this.cursor;
+    }
+
+    synchronized int size() {
+        return this.index.size();
+    }
+
+    synchronized long getLiveBytes() {
+        return this.liveBytes;
+    }
+
+    /**
+     * Stores an entity, unless a newer version is already cached.
+     * @param id The entity id.
+     * @param key The value of the lookup field of the entity, may be null.
+     * @param version The entity version.
+     * @param entity The encoded entity.
+     * @return True if stored.
+     * @throws IOException If the record can't be appended.
+     */
+    boolean put(String id, String key, long version, byte[] entity) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entity.length + 64);
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeByte(PUT);
+        output.writeUTF(id);
+        output.writeUTF(key == null ? "" : key);
+        output.writeLong(version);
+        output.write(entity);
+
+        byte[] record = bytes.toByteArray();
+
+        this.channelLock.readLock().lock();
+
+        try {
+            synchronized (this) {
+                Slot current = this.index.get(id);
+
+                if (current != null && current.version > version) {
+                    return false;
+                }
+
+                long position = this.append(record);
+
+                this.drop(id);
+                this.index.put(id, new Slot(position + RECORD_HEADER + record.length - entity.length, entity.length, version, key, RECORD_HEADER + record.length));
+                this.liveBytes += RECORD_HEADER + record.length;
+
+                if (key != null) {
+                    this.keys.put(key, id);
+                }
+
+                this.evict();
+            }
+        } finally {
+            this.channelLock.readLock().unlock();
+        }
+
+        this.compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Removes an entity from the cache.
+     * @param id The entity id.
+     * @throws IOException If the record can't be appended.
+     */
+    void remove(String id) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeByte(REMOVE);
+        output.writeUTF(id);
+
+        this.channelLock.readLock().lock();
+
+        try {
+            synchronized (this) {
+                if (!this.index.containsKey(id)) {
+                    return;
+                }
+
+                this.append(bytes.toByteArray());
+                this.drop(id);
+            }
+        } finally {
+            this.channelLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Durably records the change cursor the cache is up to date with.
+     * Every record appended before it is forced to disk first.
+     * @param cursor The cursor.
+     * @throws IOException If the record can't be appended.
+     */
+    void setCursor(ChangeCursor cursor) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeByte(CURSOR);
+        output.writeUTF(cursor.encode());
+
+        this.channelLock.readLock().lock();
+
+        try {
+            synchronized (this) {
+                // The cursor must never be on disk ahead of the entries it covers
+                this.channel.force(false);
+                this.append(bytes.toByteArray());
+                this.channel.force(false);
+                this.cursor = cursor;
+            }
+        } finally {
+            this.channelLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops every cached entity, e.g. when the cache is too old to be caught up.
+     * @throws IOException If the log can't be truncated.
+     */
+    void clear() throws IOException {
+        this.channelLock.writeLock().lock();
+
+        try {
+            synchronized (this) {
+                this.index.clear();
+                this.keys.clear();
+                this.cursor = ChangeCursor.START;
+                this.liveBytes = 0;
+                this.fileBytes = 0;
+
+                this.channel.truncate(0);
+                this.channel.force(false);
+            }
+        } finally {
+            this.channelLock.writeLock().unlock();
+        }
+    }
+
+    void close() {
+        this.channelLock.writeLock().lock();
+
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, e);
+        } finally {
+            this.channelLock.writeLock().unlock();
+        }
+    }
+
+    // Helper function to append a record, returns its position. Callers hold this and the read lock
+    private long append(byte[] record) throws IOException {
+
+        CRC32 checksum = new CRC32();
+        checksum.update(record);
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + record.length);
+        buffer.putInt(record.length).putLong(checksum.getValue()).put(record).flip();
+
+        long start = this.fileBytes;
+        long position = start;
+
+        while (buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+
+        this.fileBytes = position;
+        return start;
+    }
+
+    // Helper function to forget an entry, the log keeps its record until the next compaction
+    private void drop(String id) {
+        Slot slot = this.index.remove(id);
+
+        if (slot == null) {
+            return;
+        }
+
+        this.liveBytes -= slot.recordBytes;
+
+        if (slot.key != null && id.equals(this.keys.get(slot.key))) {
+            this.keys.remove(slot.key);
+        }
+    }
+
+    // Helper function to evict the least recently read entries beyond the size bound
+    private void evict() {
+        Iterator<Map.Entry<String, Slot>> iterator = this.index.entrySet().iterator();
+
+        while (this.liveBytes > this.maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Slot> eldest = iterator.next();
+            iterator.remove();
+
+            this.liveBytes -= eldest.getValue().recordBytes;
+
+            if (eldest.getValue().key != null && eldest.getKey().equals(this.keys.get(eldest.getValue().key))) {
+                this.keys.remove(eldest.getValue().key);
+            }
+        }
+    }
+
+    private synchronized boolean needsCompaction() {
+        return this.fileBytes > MIN_COMPACTION_BYTES && this.fileBytes > 2 * this.liveBytes;
+    }
+
+    private void compactIfNeeded() {
+
+        if (!this.needsCompaction()) {
+            return;
+        }
+
+        try {
+            this.compact();
+        } catch (IOException e) {
+            // The log keeps working uncompacted
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "Could not compact the disk cache {}: {}", this.path, e.getMessage());
+        }
+    }
+
+    // Helper function to rewrite the live records to a new log, replacing the old one atomically
+    private void compact() throws IOException {
+
+        Path temporary = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+
+        this.channelLock.writeLock().lock();
+
+        try {
+            synchronized (this) {
+                if (!this.needsCompaction() && this.fileBytes == this.channel.size()) {
+                    return;
+                }
+
+                List<Map.Entry<String, Slot>> entries = new ArrayList<>(this.index.entrySet());
+                LinkedHashMap<String, Slot> moved = new LinkedHashMap<>(16, 0.75f, true);
+                long position = 0;
+
+                try (FileChannel target = FileChannel.open(temporary,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+                    // Least recently read first, so that the replay rebuilds the same eviction order
+                    for (Map.Entry<String, Slot> entry : entries) {
+                        Slot slot = entry.getValue();
+                        long recordStart = slot.offset + slot.length - slot.recordBytes;
+
+                        ByteBuffer record = ByteBuffer.allocate(slot.recordBytes);
+                        long from = recordStart;
+
+                        while (record.hasRemaining()) {
+                            int read = this.channel.read(record, from);
+
+                            if (read < 0) {
+                                throw new EOFException("Disk cache " + this.path + " is truncated");
+                            }
+
+                            from += read;
+                        }
+
+                        record.flip();
+
+                        while (record.hasRemaining()) {
+                            position += target.write(record, position);
+                        }
+
+                        moved.put(entry.getKey(), new Slot(position - slot.length, slot.length, slot.version, slot.key, slot.recordBytes));
+                    }
+
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+                    DataOutputStream output = new DataOutputStream(bytes);
+                    output.writeByte(CURSOR);
+                    output.writeUTF(this.cursor.encode());
+
+                    byte[] cursorRecord = bytes.toByteArray();
+                    CRC32 checksum = new CRC32();
+                    checksum.update(cursorRecord);
+
+                    ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + cursorRecord.length);
+                    buffer.putInt(cursorRecord.length).putLong(checksum.getValue()).put(cursorRecord).flip();
+
+                    while (buffer.hasRemaining()) {
+                        position += target.write(buffer, position);
+                    }
+
+                    target.force(true);
+                }
+
+                this.channel.close();
+                Files.move(temporary, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+                this.index.clear();
+                this.index.putAll(moved);
+                this.fileBytes = position;
+            }
+        } finally {
+            this.channelLock.writeLock().unlock();
+        }
+    }
+
+    // Helper function to replay the log left by a previous run, returns true if its tail is torn
+    private boolean load() throws IOException {
+
+        if (!Files.exists(this.path)) {
+            return false;
+        }
+
+        try (InputStream inputStream = Channels.newInputStream(FileChannel.open(this.path, StandardOpenOption.READ));
+             DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream))) {
+
+            long position = 0;
+
+            while (true) {
+                int length;
+                long expected;
+
+                try {
+                    length = input.readInt();
+                    expected = input.readLong();
+                } catch (EOFException e) {
+                    this.fileBytes = position;
+                    return false;
+                }
+
+                byte[] record = new byte[Math.max(0, length)];
+
+                try {
+                    input.readFully(record);
+                } catch (EOFException e) {
+                    return this.tornTail(position);
+                }
+
+                CRC32 checksum = new CRC32();
+                checksum.update(record);
+
+                if (length <= 0 || checksum.getValue() != expected) {
+                    return this.tornTail(position);
+                }
+
+                this.replay(record, position);
+                position += RECORD_HEADER + length;
+            }
+        }
+    }
+
+    private boolean tornTail(long position) {
+        LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "Discarding the torn tail of the disk cache {}", this.path);
+        this.fileBytes = position;
+        return true;
+    }
+
+    // Helper function to apply a record of the log to the index
+    private void replay(byte[] record, long position) throws IOException {
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+
+        switch (input.readByte()) {
+            case PUT:
+                String id = input.readUTF();
+                String key = input.readUTF();
+                long version = input.readLong();
+                int entityLength = input.available();
+
+                this.drop(id);
+                this.index.put(id, new Slot(position + RECORD_HEADER + record.length - entityLength, entityLength, version,
+                        key.isEmpty() ? null : key, RECORD_HEADER + record.length));
+                this.liveBytes += RECORD_HEADER + record.length;
+
+                if (!key.isEmpty()) {
+                    this.keys.put(key, id);
+                }
+                break;
+            case REMOVE:
+                this.drop(input.readUTF());
+                break;
+            case CURSOR:
+                this.cursor = ChangeCursor.parse(input.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown disk cache record in " + this.path);
+        }
+    }
+
+    // Location of the entity bytes of a live record
+    private static final class Slot {
+
+        private final long offset;
+        private final int length;
+        private final long version;
+        private final String key;
+        private final int recordBytes;
+
+        private Slot(long offset, int length, long version, String key, int recordBytes) {
+            this.offset = offset;
+            this.length = length;
+            this.version = version;
+            this.key = key;
+            this.recordBytes = recordBytes;
+        }
+
+    }
+
+}
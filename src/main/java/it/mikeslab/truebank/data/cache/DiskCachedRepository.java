@@ -0,0 +1,393 @@
+package it.mikeslab.truebank.data.cache;
+
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.ChangeFollower;
+import it.mikeslab.truebank.data.ChangeSet;
+import it.mikeslab.truebank.data.ForwardingRepository;
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.query.Condition;
+import it.mikeslab.truebank.data.query.Query;
+import it.mikeslab.truebank.data.snapshot.EntityCodec;
+import it.mikeslab.truebank.util.LoggerUtil;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+/**
+ * Class: DiskCachedRepository
+ * Second-level cache of a remote repository on local disk, so that a server
+ * restarting serves its working set locally instead of reading it again
+ * across the network.
+ *
+ * Entities are cached with their version when read by id, or by the lookup
+ * field (e.g. "uuid") through a single equality query. Local writes drop the
+ * cached copy; writes made by other servers are caught up from the change
+ * stream of the repository (see Repository#changesSince), on open and then
+ * every few seconds, a cached entity being replaced only by a newer version
+ * and dropped when deleted. An entity read while a local write of the same
+ * id runs, or while its deletion is caught up, is not cached, so a read
+ * always sees the latest write made on this server.
+ *
+ * Configured through the "cache" section of the repository configuration:
+ *
+ *   cache:
+ *     enabled: true
+ *     maxMegabytes: 256
+ *     lookupField: uuid
+ *     syncIntervalSeconds: 5
+ *     rewindSeconds: 60
+ *     maxOfflineHours: 24
+ */
+public class DiskCachedRepository<T extends ConfigurationSerializable> extends ForwardingRepository<T> {
+
+    private static final int SYNC_BATCH = 500;
+
+    // Invalidation stamps are kept per stripe of ids, a collision only skips caching a read
+    private static final int INVALIDATION_STRIPES = 1024;
+
+    private final String name;
+    private final Class<T> type;
+    private final DiskCacheStore store;
+    private final String lookupField;
+    private final ChangeFollower<T> follower;
+
+    // Ticks on every local invalidation, a read caches its result only if no id of its stripe
+    // has been invalidated since the read started
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLongArray invalidatedAt = new AtomicLongArray(INVALIDATION_STRIPES);
+
+    // Entries replaced by newer versions from the change stream, for the logs
+    private final AtomicLong refreshed = new AtomicLong();
+
+    private DiskCachedRepository(Repository<T> delegate, String name, Class<T> type, DiskCacheStore store, String lookupField, long rewindMillis) {
+        super(delegate);
+        this.name = name;
+        this.type = type;
+        this.store = store;
+        this.lookupField = lookupField;
+        this.follower = new ChangeFollower<>(delegate, "DiskCache-" + name, SYNC_BATCH, rewindMillis, store.getCursor(), new ChangeFollower.Listener<T>() {
+
+            @Override
+            public void onChange(Versioned<T> change) throws IOException {
+                DiskCachedRepository.this.refresh(change);
+            }
+
+            @Override
+            public void onCaughtUp(ChangeCursor cursor) throws IOException {
+                store.setCursor(cursor);
+            }
+        });
+    }
+
+    /**
+     * Opens the disk cache of a repository and brings it up to date, blocking.
+     * A cache left offline for longer than maxOfflineHours is dropped rather than caught up.
+     * @param delegate The repository, must track changes.
+     * @param name The repository name.
+     * @param type The entity class.
+     * @param section The "cache" section of the repository configuration.
+     * @param folder The folder of the cache files.
+     * @return The cached repository.
+     * @throws IOException If the cache file can't be opened.
+     */
+    public static <T extends ConfigurationSerializable> DiskCachedRepository<T> open(Repository<T> delegate, String name, Class<T> type,
+                                                                                   ConfigurationSection section, File folder) throws IOException {
+
+        long maxBytes = Math.max(1, section.getLong("maxMegabytes", 256)) * 1024 * 1024;
+        // Capped by the retention of deletions, past it the cache couldn't tell which entries were deleted
+        long maxOfflineMillis = Math.min(ChangeSet.DELETION_RETENTION_MILLIS,
+                TimeUnit.HOURS.toMillis(Math.max(1, section.getLong("maxOfflineHours", 24))));
+        long syncMillis = TimeUnit.SECONDS.toMillis(Math.max(1, section.getLong("syncIntervalSeconds", 5)));
+        long rewindMillis = ChangeFollower.rewindMillis(section);
+
+        DiskCacheStore store = new DiskCacheStore(new File(folder, name + ".cache"), maxBytes);
+        DiskCachedRepository<T> repository;
+
+        try {
+            if (store.getCursor().getUpdatedAt() < System.currentTimeMillis() - maxOfflineMillis) {
+                // Empty, or too far behind: catching up would read more than the working set
+                store.clear();
+                store.setCursor(new ChangeCursor(System.currentTimeMillis(), null));
+            }
+
+            repository = new DiskCachedRepository<>(delegate, name, type, store, section.getString("lookupField"), rewindMillis);
+
+            int cached = store.size();
+            long refreshedBefore = repository.refreshed.get();
+
+            repository.follower.poll();
+
+            LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "[{}] disk cache opened, {} entries, {} refreshed",
+                    name, cached, repository.refreshed.get() - refreshedBefore);
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+
+        repository.follower.follow(syncMillis);
+        return repository;
+    }
+
+    @Override
+    public T get(String id) {
+
+        T cached = this.readCached(id);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        long readAt = this.invalidations.get();
+        Versioned<T> versioned = this.delegate.getVersioned(id);
+
+        if (versioned == null) {
+            return null;
+        }
+
+        this.cache(versioned, readAt);
+        return versioned.getEntity();
+    }
+
+    @Override
+    public Versioned<T> getVersioned(String id) {
+
+        // Served by the database: an optimistic update must start from the latest version
+        long readAt = this.invalidations.get();
+        Versioned<T> versioned = this.delegate.getVersioned(id);
+
+        if (versioned != null) {
+            this.cache(versioned, readAt);
+        }
+
+        return versioned;
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> query(Query query) {
+
+        String key = this.lookupKey(query);
+
+        if (key == null) {
+            return this.delegate.query(query);
+        }
+
+        String id = this.store.idOf(key);
+        T cached = id == null ? null : this.readCached(id);
+
+        if (cached != null) {
+            return Collections.singletonList(new AbstractMap.SimpleEntry<>(id, cached));
+        }
+
+        List<Map.Entry<String, T>> results = this.delegate.query(query);
+
+        // Read again with its version, which the query doesn't carry, so that it can be cached
+        for (Map.Entry<String, T> result : results) {
+            long readAt = this.invalidations.get();
+            Versioned<T> versioned = this.delegate.getVersioned(result.getKey());
+
+            if (versioned != null) {
+                this.cache(versioned, readAt);
+            }
+        }
+
+        return results;
+    }
+
+    @Override
+    public String save(T obj, Object... args) {
+        String id = this.delegate.save(obj, args);
+        this.invalidate(id);
+        return id;
+    }
+
+    @Override
+    public void update(String id, T obj) {
+        try {
+            this.delegate.update(id, obj);
+        } finally {
+            this.invalidate(id);
+        }
+    }
+
+    @Override
+    public UpsertResult upsert(String id, T obj) {
+        try {
+            return this.delegate.upsert(id, obj);
+        } finally {
+            this.invalidate(id);
+        }
+    }
+
+    @Override
+    public void delete(String id) {
+        try {
+            this.delegate.delete(id);
+        } finally {
+            this.invalidate(id);
+        }
+    }
+
+    @Override
+    public List<String> saveAll(List<Map.Entry<String, T>> entities) {
+        List<String> ids = this.delegate.saveAll(entities);
+        ids.forEach(this::invalidate);
+        return ids;
+    }
+
+    @Override
+    public boolean compareAndUpdate(String id, long expectedVersion, T obj) {
+
+        boolean applied;
+        long writtenAt = this.invalidations.get();
+
+        try {
+            applied = this.delegate.compareAndUpdate(id, expectedVersion, obj);
+        } catch (RuntimeException e) {
+            this.invalidate(id);
+            throw e;
+        }
+
+        if (applied) {
+            // The version the write produced, the update time is only needed by the change stream
+            this.cache(new Versioned<>(id, obj, expectedVersion + 1, 0), writtenAt);
+        } else {
+            this.invalidate(id);
+        }
+
+        return applied;
+    }
+
+    @Override
+    public void close() {
+        this.follower.close();
+
+        this.store.close();
+        this.delegate.close();
+    }
+
+    // Helper function to apply a change read from the change stream, only what is cached is kept fresh
+    private void refresh(Versioned<T> change) {
+
+        // Stamped like a local write, a read of the id in flight doesn't cache what it read before the deletion
+        if (change.isDeletion()) {
+            this.invalidate(change.getId());
+            return;
+        }
+
+        long readAt = this.invalidations.get();
+
+        if (this.store.contains(change.getId()) && change.getVersion() > this.store.version(change.getId())) {
+            this.cache(change, readAt);
+            this.refreshed.incrementAndGet();
+        }
+    }
+
+    private T readCached(String id) {
+        try {
+            byte[] bytes = this.store.read(id);
+            return bytes == null ? null : EntityCodec.read(this.type, new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException | RuntimeException e) {
+            // Unreadable, e.g. written by an older version of the entity class: read it again
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "[{}] dropping unreadable cache entry {}: {}", this.name, id, e.getMessage());
+            this.invalidate(id);
+            return null;
+        }
+    }
+
+    // Helper function to cache an entity read when the invalidation counter was at readAt. Checked after the
+    // entry is stored: a write invalidating the id meanwhile either sees the entry and drops it, or is seen here
+    private void cache(Versioned<T> versioned, long readAt) {
+        try {
+            this.store.put(versioned.getId(), this.keyOf(versioned.getEntity()), versioned.getVersion(), encode(versioned.getEntity()));
+        } catch (IOException e) {
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "[{}] could not cache {}: {}", this.name, versioned.getId(), e.getMessage());
+            return;
+        }
+
+        if (this.invalidatedAt.get(stripeOf(versioned.getId())) > readAt) {
+            this.remove(versioned.getId());
+        }
+    }
+
+    // Helper function to drop the cached copy of an id written locally, stamped before it's removed
+    private void invalidate(String id) {
+
+        if (id == null) {
+            return;
+        }
+
+        long stamp = this.invalidations.incrementAndGet();
+        this.invalidatedAt.accumulateAndGet(stripeOf(id), stamp, Math::max);
+
+        this.remove(id);
+    }
+
+    private void remove(String id) {
+        try {
+            this.store.remove(id);
+        } catch (IOException e) {
+            // A stale entry must not survive, drop the whole cache
+            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "[{}] could not invalidate {}, clearing the disk cache: {}", this.name, id, e.getMessage());
+
+            try {
+                this.store.clear();
+            } catch (IOException ignored) {
+                // Nothing left to try, the next open starts over
+            }
+        }
+    }
+
+    private static int stripeOf(String id) {
+        return (id.hashCode() & 0x7fffffff) % INVALIDATION_STRIPES;
+    }
+
+    // Helper function to tell whether a query is a lookup by the lookup field, returns its value
+    private String lookupKey(Query query) {
+
+        if (this.lookupField == null || query.getConditions().size() != 1 || !query.getOrdering().isEmpty()) {
+            return null;
+        }
+
+        Condition condition = query.getConditions().get(0);
+
+        if (condition.getOperator() != Condition.Operator.EQ || !condition.getField().equals(this.lookupField)) {
+            return null;
+        }
+
+        return String.valueOf(condition.getValues().get(0));
+    }
+
+    private String keyOf(T entity) {
+
+        if (this.lookupField == null) {
+            return null;
+        }
+
+        Object key = entity.serialize().get(this.lookupField);
+        return key == null ? null : (key instanceof UUID ? key.toString() : String.valueOf(key));
+    }
+
+    private static byte[] encode(ConfigurationSerializable entity) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        EntityCodec.write(entity, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+}
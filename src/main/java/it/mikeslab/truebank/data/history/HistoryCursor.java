@@ -0,0 +1,49 @@
+package it.mikeslab.truebank.data.history;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Class: HistoryCursor
+ * Position in the history of a player: transactions are read newest first,
+ * ordered by timestamp, then by id. A page holds the transactions strictly
+ * before its cursor. Cursors can be handed to players through {@link #encode()}.
+ */
+@Getter
+@EqualsAndHashCode
+@RequiredArgsConstructor
+public class HistoryCursor {
+
+    private final long timestamp;
+    private final String id;
+
+    /**
+     * Encodes the cursor to a string.
+     * @return The encoded cursor.
+     */
+    public String encode() {
+        return this.timestamp + ":" + this.id;
+    }
+
+    /**
+     * Parses a cursor encoded by {@link #encode()}.
+     * @param encoded The encoded cursor, null or empty for the newest transactions.
+     * @return The cursor, null for the newest transactions.
+     */
+    public static HistoryCursor parse(String encoded) {
+
+        if (encoded == null || encoded.isEmpty()) {
+            return null;
+        }
+
+        int separator = encoded.indexOf(':');
+
+        if (separator <= 0 || separator == encoded.length() - 1) {
+            throw new IllegalArgumentException("Malformed history cursor " + encoded);
+        }
+
+        return new HistoryCursor(Long.parseLong(encoded.substring(0, separator)), encoded.substring(separator + 1));
+    }
+
+}
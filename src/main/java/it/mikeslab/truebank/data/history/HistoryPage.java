@@ -0,0 +1,30 @@
+package it.mikeslab.truebank.data.history;
+
+import it.mikeslab.truebank.pojo.Transaction;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Class: HistoryPage
+ * A page of the history of a player, newest first.
+ */
+@Getter
+@RequiredArgsConstructor
+public class HistoryPage {
+
+    private final List<Transaction> transactions;
+
+    // Cursor of the next page, null once the oldest transaction has been read
+    private final HistoryCursor next;
+
+    /**
+     * Checks whether older transactions may follow.
+     * @return True if there is a next page.
+     */
+    public boolean hasMore() {
+        return this.next != null;
+    }
+
+}
@@ -0,0 +1,221 @@
+package it.mikeslab.truebank.data.history;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Sorts;
+import it.mikeslab.truebank.data.monitor.OperationTrace;
+import it.mikeslab.truebank.data.monitor.OperationTracer;
+import it.mikeslab.truebank.data.mongodb.MongoDBService;
+import it.mikeslab.truebank.pojo.Transaction;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.time.YearMonth;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class: MongoTransactionLog
+ * Transaction log stored in one MongoDB collection per month. Appends are a
+ * single unordered insertMany; MongoDB has no multi-document atomicity
+ * outside of replica set transactions, so a batch may fail half-way.
+ * Ids are ObjectIds assigned here, once per batch: the retry of a failed
+ * batch inserts the same documents again and the ones already written are
+ * rejected as duplicate keys, which counts as written.
+ */
+public class MongoTransactionLog implements TransactionLog {
+
+    private static final Bson HISTORY_INDEX = Indexes.compoundIndex(
+            Indexes.ascending("uuid"),
+            Indexes.descending("timestamp"),
+            Indexes.descending("_id")
+    );
+
+    private static final Bson NEWEST_FIRST = Sorts.descending("timestamp", "_id");
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoDBService service;
+    private final String name;
+    private final OperationTracer tracer;
+
+    // Partitions already indexed by this server
+    private final Set<YearMonth> created = ConcurrentHashMap.newKeySet();
+
+    // The last batch that failed and its documents, ids included. The history retries
+    // a failed batch with the same list, on the single thread appends are invoked from
+    private List<Transaction> failedBatch;
+    private List<Document> failedDocuments;
+
+    public MongoTransactionLog(MongoDBService service, String name, OperationTracer tracer) {
+        this.service = service;
+        this.name = Partitions.checkName(name);
+        this.tracer = tracer;
+    }
+
+    @Override
+    public List<YearMonth> partitions() {
+
+        List<YearMonth> partitions = new ArrayList<>();
+
+        try (OperationTrace trace = this.tracer.start("partitions")) {
+            try {
+                for (String collection : this.service.getDatabase().listCollectionNames()) {
+                    YearMonth partition = Partitions.parse(this.name, collection);
+
+                    if (partition != null) {
+                        partitions.add(partition);
+                    }
+                }
+
+                trace.rows(partitions.size());
+            } catch (MongoException e) {
+                trace.failed(e);
+                throw e;
+            }
+        }
+
+        Collections.sort(partitions);
+        return partitions;
+    }
+
+    @Override
+    public void append(YearMonth partition, List<Transaction> transactions) {
+
+        if (transactions.isEmpty()) {
+            return;
+        }
+
+        MongoCollection<Document> collection = this.collection(partition);
+        List<Document> documents = transactions == this.failedBatch ? this.failedDocuments : this.documents(transactions);
+
+        try (OperationTrace trace = this.tracer.start("append")) {
+            trace.shape(Partitions.name(this.name, partition));
+
+            try {
+                // Created on the first write, the index must exist before the history is read
+                if (!this.created.contains(partition)) {
+                    collection.createIndex(HISTORY_INDEX);
+                    this.created.add(partition);
+                }
+
+                try {
+                    collection.insertMany(documents, new InsertManyOptions().ordered(false));
+                } catch (MongoBulkWriteException e) {
+
+                    // Written by the attempt that failed, the others have been inserted now
+                    if (!isAlreadyWritten(e)) {
+                        throw e;
+                    }
+                }
+
+                trace.rows(documents.size());
+            } catch (MongoException e) {
+                this.failedBatch = transactions;
+                this.failedDocuments = documents;
+
+                trace.failed(e);
+                throw e;
+            }
+        }
+
+        this.failedBatch = null;
+        this.failedDocuments = null;
+    }
+
+    @Override
+    public List<Map.Entry<String, Transaction>> page(YearMonth partition, UUID uuid, HistoryCursor before, int limit) {
+
+        Bson filter = Filters.eq("uuid", uuid.toString());
+
+        if (before != null) {
+            filter = Filters.and(filter, Filters.or(
+                    Filters.lt("timestamp", before.getTimestamp()),
+                    Filters.and(Filters.eq("timestamp", before.getTimestamp()), Filters.lt("_id", new ObjectId(before.getId())))
+            ));
+        }
+
+        List<Map.Entry<String, Transaction>> page = new ArrayList<>();
+
+        try (OperationTrace trace = this.tracer.start("history")) {
+            trace.shape(Partitions.name(this.name, partition));
+
+            try {
+                for (Document document : this.collection(partition).find(filter).sort(NEWEST_FIRST).limit(limit)) {
+                    page.add(new AbstractMap.SimpleImmutableEntry<>(document.getObjectId("_id").toHexString(), new Transaction(document)));
+                }
+
+                trace.rows(page.size());
+            } catch (MongoException e) {
+                trace.failed(e);
+                throw e;
+            }
+        }
+
+        return page;
+    }
+
+    @Override
+    public void drop(YearMonth partition) {
+        try (OperationTrace trace = this.tracer.start("drop")) {
+            trace.shape(Partitions.name(this.name, partition));
+
+            try {
+                this.collection(partition).drop();
+                this.created.remove(partition);
+            } catch (MongoException e) {
+                trace.failed(e);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.service.disconnect();
+    }
+
+    // Helper function to build the documents of a batch, with their ids
+    private List<Document> documents(List<Transaction> transactions) {
+        List<Document> documents = new ArrayList<>(transactions.size());
+
+        for (Transaction transaction : transactions) {
+            documents.add(new Document(transaction.serialize()).append("_id", new ObjectId()));
+        }
+
+        return documents;
+    }
+
+    // Helper function to check whether a bulk insert only failed on documents already inserted
+    private static boolean isAlreadyWritten(MongoBulkWriteException e) {
+
+        if (e.getWriteConcernError() != null) {
+            return false;
+        }
+
+        for (BulkWriteError error : e.getWriteErrors()) {
+            if (error.getCode() != DUPLICATE_KEY) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private MongoCollection<Document> collection(YearMonth partition) {
+        return this.service.getDatabase().getCollection(Partitions.name(this.name, partition));
+    }
+
+}
@@ -0,0 +1,296 @@
+package it.mikeslab.truebank.data.history;
+
+import com.zaxxer.hikari.HikariDataSource;
+import it.mikeslab.truebank.data.RepositoryException;
+import it.mikeslab.truebank.data.monitor.OperationTrace;
+import it.mikeslab.truebank.data.monitor.OperationTracer;
+import it.mikeslab.truebank.data.monitor.PoolCheckoutEvent;
+import it.mikeslab.truebank.data.mysql.MySQLService;
+import it.mikeslab.truebank.pojo.Transaction;
+import it.mikeslab.truebank.pojo.TransactionType;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.YearMonth;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class: MySQLTransactionLog
+ * Transaction log stored in one MySQL table per month. Appends are multi-row
+ * INSERTs run in a single transaction, so that a failed append can be retried
+ * without duplicating rows. Ids are per table, a cursor id is only compared
+ * within the month of its timestamp.
+ */
+public class MySQLTransactionLog implements TransactionLog {
+
+    private static final String COLUMNS = "uuid, type, amount, balance, counterparty, timestamp";
+    private static final int COLUMN_COUNT = 6;
+
+    // Rows per INSERT, keeps statements well below max_allowed_packet
+    private static final int ROWS_PER_STATEMENT = 500;
+
+    private final MySQLService service;
+    private final String name;
+    private final OperationTracer tracer;
+
+    // Partitions already created by this server
+    private final Set<YearMonth> created = ConcurrentHashMap.newKeySet();
+
+    public MySQLTransactionLog(MySQLService service, String name, OperationTracer tracer) {
+        this.service = service;
+        this.name = Partitions.checkName(name);
+        this.tracer = tracer;
+    }
+
+    @Override
+    public List<YearMonth> partitions() {
+
+        List<YearMonth> partitions = new ArrayList<>();
+
+        OperationTrace trace = this.tracer.start("partitions");
+
+        try (Connection connection = this.borrowConnection(trace);
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT table_name FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name LIKE ?")) {
+
+            statement.setString(1, this.name.replace("_", "\\_") + "\\_%");
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    YearMonth partition = Partitions.parse(this.name, resultSet.getString(1));
+
+                    if (partition != null) {
+                        partitions.add(partition);
+                    }
+                }
+            }
+
+            trace.rows(partitions.size());
+        } catch (SQLException e) {
+            trace.failed(e);
+            throw new RepositoryException("Could not list the partitions of " + this.name, e);
+        } finally {
+            trace.close();
+        }
+
+        Collections.sort(partitions);
+        return partitions;
+    }
+
+    @Override
+    public void append(YearMonth partition, List<Transaction> transactions) {
+
+        if (transactions.isEmpty()) {
+            return;
+        }
+
+        String table = Partitions.name(this.name, partition);
+
+        OperationTrace trace = this.tracer.start("append");
+        trace.shape(table);
+
+        try (Connection connection = this.borrowConnection(trace)) {
+
+            this.ensurePartition(connection, partition, table);
+
+            connection.setAutoCommit(false);
+
+            try {
+                for (int from = 0; from < transactions.size(); from += ROWS_PER_STATEMENT) {
+                    this.insert(connection, table, transactions.subList(from, Math.min(from + ROWS_PER_STATEMENT, transactions.size())));
+                }
+
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+
+            trace.rows(transactions.size());
+        } catch (SQLException e) {
+            trace.failed(e);
+            throw new RepositoryException("Could not append to " + table, e);
+        } finally {
+            trace.close();
+        }
+    }
+
+    @Override
+    public List<Map.Entry<String, Transaction>> page(YearMonth partition, UUID uuid, HistoryCursor before, int limit) {
+
+        String table = Partitions.name(this.name, partition);
+
+        StringBuilder sql = new StringBuilder("SELECT id, ").append(COLUMNS).append(" FROM ").append(table).append(" WHERE uuid = ?");
+
+        // Expanded rather than a row comparison, which older servers don't resolve through the index
+        if (before != null) {
+            sql.append(" AND (timestamp < ? OR (timestamp = ? AND id < ?))");
+        }
+
+        sql.append(" ORDER BY timestamp DESC, id DESC LIMIT ?");
+
+        List<Map.Entry<String, Transaction>> page = new ArrayList<>();
+
+        OperationTrace trace = this.tracer.start("history");
+        trace.shape(sql.toString());
+
+        try (Connection connection = this.borrowConnection(trace);
+             PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+
+            int index = 1;
+            statement.setString(index++, uuid.toString());
+
+            if (before != null) {
+                statement.setLong(index++, before.getTimestamp());
+                statement.setLong(index++, before.getTimestamp());
+                statement.setLong(index++, Long.parseLong(before.getId()));
+            }
+
+            statement.setInt(index, limit);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    page.add(new AbstractMap.SimpleImmutableEntry<>(resultSet.getString("id"), read(resultSet)));
+                }
+            }
+
+            trace.rows(page.size());
+        } catch (SQLException e) {
+            trace.failed(e);
+
+            // A partition dropped meanwhile by another server is just empty
+            if (e.getErrorCode() == 1146) {
+                return page;
+            }
+
+            throw new RepositoryException("Could not read the history of " + uuid + " from " + table, e);
+        } finally {
+            trace.close();
+        }
+
+        return page;
+    }
+
+    @Override
+    public void drop(YearMonth partition) {
+
+        String table = Partitions.name(this.name, partition);
+
+        OperationTrace trace = this.tracer.start("drop");
+        trace.shape(table);
+
+        try (Connection connection = this.borrowConnection(trace);
+             Statement statement = connection.createStatement()) {
+
+            statement.executeUpdate("DROP TABLE IF EXISTS " + table);
+            this.created.remove(partition);
+        } catch (SQLException e) {
+            trace.failed(e);
+            throw new RepositoryException("Could not drop " + table, e);
+        } finally {
+            trace.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.service.disconnect();
+    }
+
+    // Helper function to create a monthly table with its history index, once per server
+    private void ensurePartition(Connection connection, YearMonth partition, String table) throws SQLException {
+
+        if (this.created.contains(partition)) {
+            return;
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + table + " ("
+                    + "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, "
+                    + "uuid CHAR(36) NOT NULL, "
+                    + "type VARCHAR(16) NOT NULL, "
+                    + "amount BIGINT NOT NULL, "
+                    + "balance BIGINT NOT NULL, "
+                    + "counterparty CHAR(36) NULL, "
+                    + "timestamp BIGINT NOT NULL, "
+                    + "INDEX history (uuid, timestamp, id))");
+        }
+
+        this.created.add(partition);
+    }
+
+    // Helper function to insert rows with a single multi-row statement
+    private void insert(Connection connection, String table, List<Transaction> rows) throws SQLException {
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (").append(COLUMNS).append(") VALUES ");
+
+        for (int i = 0; i < rows.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?)");
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+
+            int index = 0;
+
+            for (Transaction transaction : rows) {
+                statement.setString(index + 1, transaction.getUuid().toString());
+                statement.setString(index + 2, transaction.getType().name());
+                statement.setLong(index + 3, transaction.getAmount());
+                statement.setLong(index + 4, transaction.getBalance());
+
+                if (transaction.getCounterparty() == null) {
+                    statement.setNull(index + 5, Types.CHAR);
+                } else {
+                    statement.setString(index + 5, transaction.getCounterparty().toString());
+                }
+
+                statement.setLong(index + 6, transaction.getTimestamp());
+                index += COLUMN_COUNT;
+            }
+
+            statement.executeUpdate();
+        }
+    }
+
+    private Connection borrowConnection(OperationTrace trace) throws SQLException {
+        HikariDataSource dataSource = this.service.getConnection();
+        PoolCheckoutEvent checkout = PoolCheckoutEvent.start();
+        Connection connection = null;
+
+        try {
+            connection = dataSource.getConnection();
+        } finally {
+            checkout.finish(dataSource.getPoolName(), connection != null);
+        }
+
+        trace.connectionAcquired();
+        return connection;
+    }
+
+    private static Transaction read(ResultSet resultSet) throws SQLException {
+        String counterparty = resultSet.getString("counterparty");
+
+        return new Transaction(
+                UUID.fromString(resultSet.getString("uuid")),
+                TransactionType.valueOf(resultSet.getString("type")),
+                resultSet.getLong("amount"),
+                resultSet.getLong("balance"),
+                counterparty == null ? null : UUID.fromString(counterparty),
+                resultSet.getLong("timestamp")
+        );
+    }
+
+}
@@ -0,0 +1,85 @@
+package it.mikeslab.truebank.data.history;
+
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.regex.Pattern;
+
+/**
+ * Class: Partitions
+ * Monthly partitions of a transaction log: the transactions of a month (UTC)
+ * are stored in "name_yyyyMM", e.g. transactions_202610.
+ */
+public final class Partitions {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private Partitions() {
+    }
+
+    /**
+     * Gets the month a point in time falls in.
+     * @param timestamp The epoch millis.
+     * @return The month, in UTC.
+     */
+    public static YearMonth monthOf(long timestamp) {
+        return YearMonth.from(Instant.ofEpochMilli(timestamp).atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * Gets the current month.
+     * @return The month, in UTC.
+     */
+    public static YearMonth current() {
+        return monthOf(System.currentTimeMillis());
+    }
+
+    /**
+     * Builds the name of a partition.
+     * @param log The log name.
+     * @param partition The month.
+     * @return The table or collection name.
+     */
+    public static String name(String log, YearMonth partition) {
+        return String.format("%s_%04d%02d", log, partition.getYear(), partition.getMonthValue());
+    }
+
+    /**
+     * Parses the name of a partition.
+     * @param log The log name.
+     * @param name The table or collection name.
+     * @return The month, null if the name isn't a partition of the log.
+     */
+    public static YearMonth parse(String log, String name) {
+
+        String prefix = log + "_";
+
+        if (!name.startsWith(prefix) || name.length() != prefix.length() + 6) {
+            return null;
+        }
+
+        String suffix = name.substring(prefix.length());
+
+        if (!suffix.chars().allMatch(Character::isDigit)) {
+            return null;
+        }
+
+        int month = Integer.parseInt(suffix.substring(4));
+
+        return month < 1 || month > 12 ? null : YearMonth.of(Integer.parseInt(suffix.substring(0, 4)), month);
+    }
+
+    /**
+     * Checks that a log name is a valid table and collection name.
+     * @param log The log name.
+     * @return The log name.
+     */
+    public static String checkName(String log) {
+        if (log == null || !NAME.matcher(log).matches()) {
+            throw new IllegalArgumentException("Invalid transaction log name: " + log);
+        }
+
+        return log;
+    }
+
+}
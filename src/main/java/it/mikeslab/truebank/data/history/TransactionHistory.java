@@ -0,0 +1,335 @@
+package it.mikeslab.truebank.data.history;
+
+import it.mikeslab.truebank.pojo.Transaction;
+import it.mikeslab.truebank.util.LoggerUtil;
+import it.mikeslab.truebank.util.RepositoryUtil;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Class: TransactionHistory
+ * Records the transactions of every player without adding a database write
+ * to the payment path: transactions are buffered in memory and flushed by a
+ * background thread as batched inserts, every flushIntervalMillis or as soon
+ * as batchSize of them are waiting. Months older than retentionMonths are
+ * dropped whole.
+ *
+ * The log is opened on the background thread; until the database is
+ * reachable, and while a flush fails, transactions keep being buffered up
+ * to maxPending, then they are dropped. A transaction shows up in the
+ * history once flushed.
+ *
+ * Configured through the "history" section of config.yml.
+ */
+public class TransactionHistory {
+
+    private static final long RETENTION_CHECK_HOURS = 6;
+
+    private final String name;
+    private final ConfigurationSection databaseSection;
+    private final int batchSize;
+    private final int retentionMonths;
+
+    private final BlockingQueue<Transaction> pending;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Months with a partition, kept in sync with the ones written and dropped
+    private final NavigableSet<YearMonth> partitions = new ConcurrentSkipListSet<>();
+
+    private volatile TransactionLog log;
+
+    // Groups of a failed flush still to be written, only touched by the history thread
+    private final NavigableMap<YearMonth, List<Transaction>> unflushed = new TreeMap<>();
+    private volatile int unflushedCount;
+
+    private TransactionHistory(String name, ConfigurationSection databaseSection, ConfigurationSection config) {
+        this.name = name;
+        this.databaseSection = databaseSection;
+        this.batchSize = Math.max(1, config.getInt("batchSize", 500));
+        this.retentionMonths = Math.max(0, config.getInt("retentionMonths", 12));
+        this.pending = new ArrayBlockingQueue<>(Math.max(this.batchSize, config.getInt("maxPending", 50_000)));
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TrueBank-History");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long flushIntervalMillis = Math.max(10, config.getLong("flushIntervalMillis", 1000));
+
+        this.executor.scheduleWithFixedDelay(this::flush, 0, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        this.executor.scheduleWithFixedDelay(this::applyRetention, RETENTION_CHECK_HOURS, RETENTION_CHECK_HOURS, TimeUnit.HOURS);
+    }
+
+    /**
+     * Starts the transaction history described by the configuration.
+     * @param config The "history" section, may be null.
+     * @param root The root configuration, holding the database sections.
+     * @return The history, null if disabled or not supported by the database.
+     */
+    public static TransactionHistory fromConfig(ConfigurationSection config, ConfigurationSection root) {
+
+        if (config == null || !config.getBoolean("enabled", false)) {
+            return null;
+        }
+
+        String name = Partitions.checkName(config.getString("name", "transactions"));
+        String databasePath = config.getString("database", "userDb");
+        ConfigurationSection databaseSection = root.getConfigurationSection(databasePath);
+
+        if (databaseSection == null) {
+            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.CONFIG, "[{}] Missing configuration section {}, history disabled", name, databasePath);
+            return null;
+        }
+
+        if ("YAML".equalsIgnoreCase(databaseSection.getString("type"))) {
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.CONFIG, "[{}] The history needs a MySQL or MongoDB database, history disabled", name);
+            return null;
+        }
+
+        return new TransactionHistory(name, databaseSection, config);
+    }
+
+    /**
+     * Records a transaction, to be written by the next flush. Never blocks.
+     * @param transaction The transaction.
+     * @return False if the buffer is full and the transaction has been dropped.
+     */
+    public boolean record(Transaction transaction) {
+
+        if (!this.pending.offer(transaction)) {
+            this.dropped.incrementAndGet();
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "[{}] History buffer full, a transaction of {} has been dropped",
+                    this.name, transaction.getUuid());
+            return false;
+        }
+
+        // A full batch doesn't wait for the next tick
+        if (this.pending.size() >= this.batchSize && this.flushRequested.compareAndSet(false, true)) {
+            this.executor.execute(() -> {
+                this.flushRequested.set(false);
+                this.flush();
+            });
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads a page of the history of a player, newest first, one indexed
+     * query per month until the page is full. Blocking, must be invoked off
+     * the main thread.
+     * @param uuid The player's UUID.
+     * @param before The cursor of the previous page, null for the newest transactions.
+     * @param limit The page size.
+     * @return The page.
+     * @throws IllegalStateException If the database hasn't been reached yet.
+     */
+    public HistoryPage getHistory(UUID uuid, HistoryCursor before, int limit) {
+
+        TransactionLog current = this.log;
+
+        if (current == null) {
+            throw new IllegalStateException("[" + this.name + "] The transaction history isn't available yet");
+        }
+
+        if (this.partitions.isEmpty()) {
+            return new HistoryPage(new ArrayList<>(), null);
+        }
+
+        YearMonth from = before == null ? this.partitions.last() : Partitions.monthOf(before.getTimestamp());
+
+        List<Transaction> transactions = new ArrayList<>(limit);
+        HistoryCursor next = null;
+
+        for (YearMonth partition : this.partitions.headSet(from, true).descendingSet()) {
+
+            // Older months hold only earlier transactions, the cursor is a no-op there
+            List<Map.Entry<String, Transaction>> rows = current.page(partition, uuid, before, limit - transactions.size());
+
+            for (Map.Entry<String, Transaction> row : rows) {
+                transactions.add(row.getValue());
+                next = new HistoryCursor(row.getValue().getTimestamp(), row.getKey());
+            }
+
+            if (transactions.size() >= limit) {
+                return new HistoryPage(transactions, next);
+            }
+        }
+
+        return new HistoryPage(transactions, null);
+    }
+
+    /**
+     * Gets the number of transactions waiting to be written.
+     * @return The pending transaction count.
+     */
+    public int getPending() {
+        return this.pending.size() + this.unflushedCount;
+    }
+
+    /**
+     * Gets the number of transactions dropped because the buffer was full.
+     * @return The dropped transaction count.
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Writes the buffered transactions and closes the log.
+     * Invoked when the plugin is disabled, blocks until the writes are done.
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+
+        try {
+            // Last chance, whatever is left is lost
+            if (this.executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                this.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int lost = this.getPending();
+
+        if (lost > 0) {
+            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "[{}] {} transactions could not be written to the history", this.name, lost);
+        }
+
+        if (this.log != null) {
+            this.log.close();
+        }
+    }
+
+    // Helper function to write the buffered transactions, one batch of each month at a time
+    private void flush() {
+
+        if (!this.open()) {
+            return;
+        }
+
+        while (true) {
+
+            if (this.unflushed.isEmpty()) {
+                List<Transaction> batch = new ArrayList<>(this.batchSize);
+
+                if (this.pending.drainTo(batch, this.batchSize) == 0) {
+                    return;
+                }
+
+                for (Transaction transaction : batch) {
+                    this.unflushed.computeIfAbsent(Partitions.monthOf(transaction.getTimestamp()), month -> new ArrayList<>()).add(transaction);
+                }
+
+                this.unflushedCount = batch.size();
+            }
+
+            // Months written are forgotten one by one, a retry never writes them twice
+            while (!this.unflushed.isEmpty()) {
+                Map.Entry<YearMonth, List<Transaction>> group = this.unflushed.firstEntry();
+
+                try {
+                    this.log.append(group.getKey(), group.getValue());
+                } catch (RuntimeException e) {
+                    LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "[{}] Could not write {} transactions, retrying: {}",
+                            this.name, this.getPending(), e.getMessage());
+                    return;
+                }
+
+                this.partitions.add(group.getKey());
+                this.unflushed.remove(group.getKey());
+                this.unflushedCount -= group.getValue().size();
+            }
+        }
+    }
+
+    // Helper function to open the log on the first flush reaching the database
+    private boolean open() {
+
+        if (this.log != null) {
+            return true;
+        }
+
+        try {
+            TransactionLog opened = new RepositoryUtil<>(this.databaseSection, Transaction.class, this.name).transactionLogFromConfig();
+
+            if (opened == null) {
+                throw new IllegalStateException("check the configuration");
+            }
+
+            try {
+                this.partitions.addAll(opened.partitions());
+            } catch (RuntimeException e) {
+                opened.close();
+                throw e;
+            }
+
+            this.log = opened;
+        } catch (RuntimeException e) {
+            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "[{}] Could not open the transaction history, retrying: {}", this.name, e.getMessage());
+            return false;
+        }
+
+        LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "[{}] Transaction history opened, {} monthly partitions", this.name, this.partitions.size());
+
+        this.applyRetention();
+        return true;
+    }
+
+    // Helper function to drop the months past the retention period
+    private void applyRetention() {
+
+        if (this.log == null) {
+            return;
+        }
+
+        // Months first written by another server
+        try {
+            this.partitions.addAll(this.log.partitions());
+        } catch (RuntimeException e) {
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "[{}] Could not list the monthly partitions: {}", this.name, e.getMessage());
+            return;
+        }
+
+        if (this.retentionMonths == 0) {
+            return;
+        }
+
+        // The current month counts as one
+        YearMonth oldestKept = Partitions.current().minusMonths(this.retentionMonths - 1);
+
+        for (YearMonth partition : new ArrayList<>(this.partitions.headSet(oldestKept, false))) {
+            try {
+                this.log.drop(partition);
+                this.partitions.remove(partition);
+
+                LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "[{}] Dropped the transactions of {}", this.name, partition);
+            } catch (RuntimeException e) {
+                LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "[{}] Could not drop the transactions of {}: {}", this.name, partition, e.getMessage());
+                return;
+            }
+        }
+    }
+
+}
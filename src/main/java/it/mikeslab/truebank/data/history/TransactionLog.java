@@ -0,0 +1,57 @@
+package it.mikeslab.truebank.data.history;
+
+import it.mikeslab.truebank.pojo.Transaction;
+
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Interface: TransactionLog
+ * Append-only storage of the transaction history, split into one partition
+ * (table or collection) per month, so that expired months are dropped whole
+ * instead of being deleted row by row. Partitions are named after the log,
+ * see {@link Partitions}.
+ *
+ * Reads of a player's history walk an index on (uuid, timestamp, id) from a
+ * cursor, never skipping rows with an offset.
+ */
+public interface TransactionLog {
+
+    /**
+     * Lists the existing partitions.
+     * @return The partitions, oldest first.
+     */
+    List<YearMonth> partitions();
+
+    /**
+     * Appends transactions of the same month, as batched inserts,
+     * creating the partition and its index if needed.
+     * @param partition The month of the transactions.
+     * @param transactions The transactions.
+     */
+    void append(YearMonth partition, List<Transaction> transactions);
+
+    /**
+     * Reads the transactions of a player from a single partition, newest first.
+     * @param partition The partition.
+     * @param uuid The player's UUID.
+     * @param before Only transactions strictly before it are read, null for the newest.
+     * @param limit The maximum number of transactions.
+     * @return The transactions with their ids.
+     */
+    List<Map.Entry<String, Transaction>> page(YearMonth partition, UUID uuid, HistoryCursor before, int limit);
+
+    /**
+     * Drops a partition with all of its transactions.
+     * @param partition The partition.
+     */
+    void drop(YearMonth partition);
+
+    /**
+     * Releases the connection.
+     */
+    void close();
+
+}
@@ -0,0 +1,268 @@
+package it.mikeslab.truebank.data.migration;
+
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.scheduler.Priority;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Class: DataMigration
+ * Copies every entity of a repository into another one, possibly of a different backend.
+ *
+ * Entities are streamed from the source in id order, one page at a time, and written
+ * to the target in batches by a pool of writers. At most "parallelism" batches are in
+ * flight, which bounds the memory used whatever the size of the repository.
+ * Batches are committed in order: once a batch and all the ones before it are written,
+ * the checkpoint is moved past it, so an interrupted migration resumes from there.
+ * Batches in flight when it stopped are written again, which replaces them only if
+ * the target keeps the source ids: when it assigns its own (e.g. YAML UUID keys moved
+ * to MySQL), resuming is refused and the migration has to start over on an empty
+ * target. A migration without a checkpoint refuses a target already holding entities.
+ *
+ * At the end both repositories are scanned again and their entity counts and
+ * content checksums are compared.
+ */
+@RequiredArgsConstructor
+public class DataMigration<T extends ConfigurationSerializable> {
+
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final String name;
+    private final Repository<T> source;
+    private final Repository<T> target;
+    private final File checkpointFile;
+    private final int batchSize;
+    private final int parallelism;
+    private final Consumer<String> progress;
+
+    /**
+     * Runs the migration, resuming from the checkpoint if there is one.
+     * Blocking, must be invoked off the main thread.
+     * @return The migration result.
+     * @throws IOException If the checkpoint can't be read or written.
+     */
+    public Result run() throws IOException {
+
+        MigrationCheckpoint checkpoint = MigrationCheckpoint.load(this.checkpointFile);
+
+        long startedAt = System.nanoTime();
+        long resumedFrom = checkpoint.getMigrated();
+
+        if (checkpoint.isCompleted()) {
+            this.progress.accept("[" + this.name + "] Already migrated, verifying only");
+        } else {
+            if (checkpoint.getLastId() == null) {
+                if (!this.target.scan(null, 1).isEmpty()) {
+                    throw new IllegalStateException("[" + this.name + "] The target already holds entities, "
+                            + "which could be duplicated: empty it before migrating");
+                }
+            } else if (!checkpoint.isPortableIds()) {
+                throw new IllegalStateException("[" + this.name + "] The target doesn't keep the source ids, so the "
+                        + "batches in flight when the migration stopped would be duplicated: empty the target and "
+                        + "run the migration again with --restart");
+            } else {
+                this.progress.accept("[" + this.name + "] Resuming after id " + checkpoint.getLastId()
+                        + " (" + checkpoint.getMigrated() + " rows already migrated)");
+            }
+
+            this.copy(checkpoint, startedAt, resumedFrom);
+
+            checkpoint.setCompleted(true);
+            checkpoint.save(this.checkpointFile);
+        }
+
+        long copiedIn = System.nanoTime() - startedAt;
+
+        this.progress.accept("[" + this.name + "] Verifying counts and checksums");
+
+        Fingerprint sourceFingerprint = this.fingerprint(this.source);
+        Fingerprint targetFingerprint = this.fingerprint(this.target);
+
+        return new Result(
+                this.name,
+                checkpoint.getMigrated() - resumedFrom,
+                TimeUnit.NANOSECONDS.toMillis(copiedIn),
+                sourceFingerprint,
+                targetFingerprint
+        );
+    }
+
+    // Helper function to stream the source into the target, committing batches in order
+    private void copy(MigrationCheckpoint checkpoint, long startedAt, long resumedFrom) throws IOException {
+
+        AtomicInteger threadCount = new AtomicInteger();
+
+        ExecutorService writers = Executors.newFixedThreadPool(this.parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "TrueBank-Migration-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Writers inherit the priority class of the caller
+        Priority priority = Priority.current();
+
+        Deque<Batch> inFlight = new ArrayDeque<>();
+        long lastReport = System.nanoTime();
+
+        try {
+            String lastReadId = checkpoint.getLastId();
+
+            while (true) {
+                List<Map.Entry<String, T>> page = this.source.scan(lastReadId, this.batchSize);
+
+                if (page.isEmpty()) {
+                    break;
+                }
+
+                lastReadId = page.get(page.size() - 1).getKey();
+
+                inFlight.addLast(new Batch(
+                        lastReadId,
+                        page,
+                        CompletableFuture.supplyAsync(() -> priority.call(() -> this.target.saveAll(page)), writers)
+                ));
+
+                // Bounded pipeline: the reader waits for the oldest batch once the writers are all busy
+                while (inFlight.size() >= this.parallelism || (!inFlight.isEmpty() && inFlight.peekFirst().write.isDone())) {
+                    this.commit(inFlight.pollFirst(), checkpoint);
+                }
+
+                if (System.nanoTime() - lastReport >= PROGRESS_INTERVAL_NANOS) {
+                    lastReport = System.nanoTime();
+                    this.progress.accept("[" + this.name + "] " + checkpoint.getMigrated() + " rows migrated, "
+                            + rowsPerSecond(checkpoint.getMigrated() - resumedFrom, lastReport - startedAt) + " rows/s");
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                this.commit(inFlight.pollFirst(), checkpoint);
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    // Helper function to wait for a batch and move the checkpoint past it
+    private void commit(Batch batch, MigrationCheckpoint checkpoint) throws IOException {
+
+        List<String> ids;
+
+        try {
+            ids = batch.write.join();
+        } catch (CompletionException e) {
+            // The checkpoint still points before this batch, a new run retries it
+            throw new IllegalStateException("[" + this.name + "] Batch ending at id " + batch.lastId + " failed: "
+                    + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()), e.getCause());
+        }
+
+        // Recorded along with the batch, before a later batch can be left in flight
+        if (ids == null || ids.size() != batch.entities.size()) {
+            checkpoint.setPortableIds(false);
+        }
+
+        for (int i = 0; i < batch.entities.size() && checkpoint.isPortableIds(); i++) {
+            if (!batch.entities.get(i).getKey().equals(ids.get(i))) {
+                checkpoint.setPortableIds(false);
+            }
+        }
+
+        checkpoint.setLastId(batch.lastId);
+        checkpoint.setMigrated(checkpoint.getMigrated() + batch.entities.size());
+        checkpoint.save(this.checkpointFile);
+    }
+
+    // Helper function to count and checksum every entity of a repository
+    private Fingerprint fingerprint(Repository<T> repository) {
+
+        long count = 0;
+        long checksum = 0;
+
+        String lastId = null;
+
+        while (true) {
+            List<Map.Entry<String, T>> page = repository.scan(lastId, this.batchSize);
+
+            if (page.isEmpty()) {
+                return new Fingerprint(count, checksum);
+            }
+
+            for (Map.Entry<String, T> entry : page) {
+                // Summed, so that the result doesn't depend on the order ids are assigned in
+                checksum += EntityChecksum.of(entry.getValue());
+                count++;
+            }
+
+            lastId = page.get(page.size() - 1).getKey();
+        }
+    }
+
+    private static long rowsPerSecond(long rows, long elapsedNanos) {
+        return elapsedNanos <= 0 ? rows : rows * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @RequiredArgsConstructor
+    private static final class Batch {
+
+        private final String lastId;
+        private final List<? extends Map.Entry<String, ?>> entities;
+        private final CompletableFuture<List<String>> write;
+
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static final class Fingerprint {
+
+        private final long count;
+        private final long checksum;
+
+    }
+
+    /**
+     * Outcome of a migration run.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static final class Result {
+
+        private final String name;
+        private final long migrated;
+        private final long elapsedMillis;
+        private final Fingerprint source;
+        private final Fingerprint target;
+
+        /**
+         * Checks whether the target holds exactly the entities of the source.
+         * @return True if counts and checksums match.
+         */
+        public boolean isVerified() {
+            return this.source.getCount() == this.target.getCount()
+                    && this.source.getChecksum() == this.target.getChecksum();
+        }
+
+        /**
+         * Gets the throughput of this run, verification excluded.
+         * @return The rows written per second.
+         */
+        public long getRowsPerSecond() {
+            return rowsPerSecond(this.migrated, TimeUnit.MILLISECONDS.toNanos(this.elapsedMillis));
+        }
+
+    }
+
+}
@@ -0,0 +1,76 @@
+package it.mikeslab.truebank.data.migration;
+
+import it.mikeslab.truebank.data.FieldUpdate;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Class: EntityChecksum
+ * Content checksum of a serialized entity, independent of the backend it
+ * has been read from: keys are sorted and numbers are compared by value,
+ * so that an INT column and a YAML long of the same amount match.
+ */
+final class EntityChecksum {
+
+    private EntityChecksum() {
+    }
+
+    /**
+     * Computes the checksum of an entity.
+     * @param entity The entity.
+     * @return The CRC32 of its canonical form.
+     */
+    static long of(ConfigurationSerializable entity) {
+        CRC32 crc = new CRC32();
+        crc.update(canonical(entity).getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    // Helper function to render a serialized value the same way whatever backend it comes from
+    private static String canonical(Object value) {
+
+        if (value instanceof ConfigurationSerializable) {
+            return canonical(((ConfigurationSerializable) value).serialize());
+        }
+
+        if (value instanceof Map) {
+            StringJoiner joiner = new StringJoiner(",", "{", "}");
+
+            // Guard fields are bookkeeping, kept out of the entities read by some backends only
+            Map<String, Object> sorted = new TreeMap<>();
+            ((Map<?, ?>) value).forEach((key, entry) -> {
+                if (!String.valueOf(key).startsWith(FieldUpdate.GUARD_PREFIX)) {
+                    sorted.put(String.valueOf(key), entry);
+                }
+            });
+            sorted.forEach((key, entry) -> joiner.add(key + "=" + canonical(entry)));
+
+            return joiner.toString();
+        }
+
+        if (value instanceof Collection) {
+            StringJoiner joiner = new StringJoiner(",", "[", "]");
+            ((Collection<?>) value).forEach(entry -> joiner.add(canonical(entry)));
+            return joiner.toString();
+        }
+
+        if (value instanceof Number) {
+            try {
+                return new BigDecimal(value.toString()).stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+                // NaN and infinities
+                return value.toString();
+            }
+        }
+
+        return String.valueOf(value);
+    }
+
+}
@@ -0,0 +1,87 @@
+package it.mikeslab.truebank.data.migration;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Class: MigrationCheckpoint
+ * Progress of a migration, persisted after every committed batch.
+ * Holds the last source id whose batch, and every batch before it,
+ * has been written to the target, and whether the target has kept the
+ * source ids so far: only then a batch written again replaces itself.
+ */
+@Data
+@NoArgsConstructor
+public class MigrationCheckpoint {
+
+    private String lastId;
+    private long migrated;
+    private boolean completed;
+    private boolean portableIds = true;
+
+    /**
+     * Loads a checkpoint, or a fresh one if the file doesn't exist.
+     * @param file The checkpoint file.
+     * @return The checkpoint.
+     * @throws IOException If the file can't be read.
+     */
+    public static MigrationCheckpoint load(File file) throws IOException {
+
+        MigrationCheckpoint checkpoint = new MigrationCheckpoint();
+
+        if (!file.exists()) {
+            return checkpoint;
+        }
+
+        YamlConfiguration yaml = new YamlConfiguration();
+
+        try {
+            yaml.load(file);
+        } catch (InvalidConfigurationException e) {
+            throw new IOException("Corrupted migration checkpoint " + file.getName(), e);
+        }
+
+        if (!yaml.isBoolean("portableIds")) {
+            throw new IOException("Corrupted migration checkpoint " + file.getName() + ": missing portableIds");
+        }
+
+        checkpoint.setLastId(yaml.getString("lastId", null));
+        checkpoint.setMigrated(yaml.getLong("migrated", 0));
+        checkpoint.setCompleted(yaml.getBoolean("completed", false));
+        checkpoint.setPortableIds(yaml.getBoolean("portableIds"));
+
+        return checkpoint;
+    }
+
+    /**
+     * Stores the checkpoint, replacing the previous one atomically
+     * so that a crash never leaves a half written file behind.
+     * @param file The checkpoint file.
+     * @throws IOException If the file can't be written.
+     */
+    public void save(File file) throws IOException {
+
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("lastId", this.lastId);
+        yaml.set("migrated", this.migrated);
+        yaml.set("completed", this.completed);
+        yaml.set("portableIds", this.portableIds);
+
+        Path path = file.toPath();
+        Path temporary = path.resolveSibling(file.getName() + ".tmp");
+
+        Files.createDirectories(path.getParent());
+        Files.write(temporary, yaml.saveToString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -1,10 +1,38 @@
 package it.mikeslab.truebank.data.mongodb;
 
 import com.mongodb.*;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BsonField;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.ChangeSet;
+import it.mikeslab.truebank.data.ConnectionRegistry;
+import it.mikeslab.truebank.data.FieldUpdate;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.monitor.OperationTrace;
+import it.mikeslab.truebank.data.monitor.OperationTracer;
+import it.mikeslab.truebank.data.monitor.SerializationEvent;
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Condition;
+import it.mikeslab.truebank.data.query.Query;
+import it.mikeslab.truebank.data.query.QueryPlanCache;
+import it.mikeslab.truebank.pojo.database.PoolSettings;
 import it.mikeslab.truebank.pojo.database.URIBuilder;
 import it.mikeslab.truebank.util.LoggerUtil;
 import org.bson.BsonDocument;
@@ -13,9 +41,24 @@ import org.bson.Document;
 import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.codecs.pojo.PojoCodecProvider;
 import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
-
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 
 import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
@@ -23,34 +66,68 @@ import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
 
 public class MongoDBImpl implements MongoDBService {
 
-    private MongoClient mongoClient;
-    public String collection;
-    public String database;
-    private Class<?> entityClass;
+    // Change tracking fields, bumped and stamped by every write
+    private static final String VERSION_FIELD = "_version";
+    private static final String UPDATED_AT_FIELD = "_updatedAt";
 
-    // Empty constructor, connection isn't established automatically
-    public MongoDBImpl() {
+    // Deleted ids with the version and time of their deletion, for the change stream
+    private static final String DELETIONS_SUFFIX = "_deletions";
 
-    }
+    // Ids in the order MongoDB sorts them: strings before ObjectIds, each in byte order
+    private static final Comparator<String> ID_ORDER = Comparator.<String, Boolean>comparing(ObjectId::isValid)
+            .thenComparing(Comparator.naturalOrder());
 
-    // Constructor with connection parameters, connection is established automatically
-    public MongoDBImpl(URIBuilder uriBuilder) {
-        this.connect(uriBuilder);
-    }
+    // Fixed at construction, a service is shared by every thread using its repository
+    private final MongoClient mongoClient;
+    private final ConnectionRegistry.Lease<MongoClient> lease;
+    private final String collection;
+    private final String database;
+    private final Class<?> entityClass;
+    private final OperationTracer tracer;
 
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+
+    // Translated queries run so far, by query shape
+    private final QueryPlanCache<QueryPlan> queryPlans = new QueryPlanCache<>(128);
+    private final QueryPlanCache<Bson> groupStages = new QueryPlanCache<>(128);
 
     /**
      * Connects to the MongoDB server using the provided credentials.
+     * Repositories sharing the same connection settings share the same client,
+     * the server is pinged only when the client is created.
      * Reference: https://www.mongodb.com/docs/drivers/java/sync
      *
      * @param uriBuilder The connection string.
+     * @param collection The collection, null if the service only lends its database.
+     * @param entityClass The class of the entities stored in the collection.
+     * @param tracer The tracer used to report slow and sampled operations.
      */
+    public MongoDBImpl(URIBuilder uriBuilder, String collection, Class<?> entityClass, OperationTracer tracer) {
 
-    @Override
-    public void connect(URIBuilder uriBuilder) {
+        this.collection = collection;
+        this.database = uriBuilder.getDatabase();
+        this.entityClass = entityClass;
+        this.tracer = tracer != null ? tracer : OperationTracer.fromConfig("mongodb", null);
+
+        // The client isn't bound to a database, so the database isn't part of the key
+        String key = ConnectionRegistry.key(
+                "mongodb",
+                uriBuilder.getHost(),
+                uriBuilder.getUsername(),
+                uriBuilder.getPassword()
+        );
+
+        this.lease = ConnectionRegistry.lease(key, () -> createClient(uriBuilder), MongoClient::close);
+        this.mongoClient = this.lease.get();
+
+        if(this.lease.isCreated() && !isConnected(false)) {
+            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "Failed to connect to MongoDB server.");
+        }
 
-        // Initialize the database, if not already set
-        this.setDatabase(uriBuilder.getDatabase());
+    }
+
+    // Helper function to create a new client, only invoked by the ConnectionRegistry
+    private MongoClient createClient(URIBuilder uriBuilder) {
 
         // Construct the connection string (URI)
 
@@ -69,21 +146,25 @@ public class MongoDBImpl implements MongoDBService {
         CodecRegistry pojoCodecRegistry = fromProviders(PojoCodecProvider.builder().automatic(true).build());
         CodecRegistry codecRegistry = fromRegistries(MongoClientSettings.getDefaultCodecRegistry(), pojoCodecRegistry);
 
+        PoolSettings poolSettings = Optional.ofNullable(uriBuilder.getPoolSettings())
+                .orElseGet(() -> PoolSettings.builder().build());
+
         MongoClientSettings settings = MongoClientSettings.builder()
                 .applyConnectionString(new ConnectionString(connectionString))
                 .codecRegistry(codecRegistry)
                 .serverApi(serverApi)
+                .applyToConnectionPoolSettings(builder -> builder
+                        .maxSize(poolSettings.getMaximumPoolSize())
+                        .minSize(poolSettings.getMinimumIdle())
+                        .maxWaitTime(poolSettings.getConnectionTimeoutMillis(), TimeUnit.MILLISECONDS)
+                        .maxConnectionIdleTime(poolSettings.getIdleTimeoutMillis(), TimeUnit.MILLISECONDS)
+                        .maxConnectionLifeTime(poolSettings.getMaxLifetimeMillis(), TimeUnit.MILLISECONDS)
+                        .addConnectionPoolListener(MongoPoolWaitListener.INSTANCE))
                 .build();
-        // redundant comment
 
         // Create a new client and connect to the server
 
-        this.mongoClient = MongoClients.create(settings);
-
-        if(!isConnected(false)) {
-            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "Failed to connect to MongoDB server.");
-        }
-
+        return MongoClients.create(settings);
     }
 
 
@@ -96,9 +177,9 @@ public class MongoDBImpl implements MongoDBService {
     @Override
     public void disconnect() {
 
-        if (this.mongoClient != null) {
-            this.mongoClient.close();
-            this.mongoClient = null; // Preventing memory leaks
+        if (this.disconnected.compareAndSet(false, true)) {
+            // The client is shared, it gets closed once the last repository releases it
+            this.lease.release();
             return;
         }
 
@@ -138,15 +219,6 @@ public class MongoDBImpl implements MongoDBService {
     }
 
 
-    /**
-     * Sets the database for the MongoDB client.
-     * @param database The desired database name.
-     */
-    @Override
-    public void setDatabase(String database) {
-        this.database = database;
-    }
-
     /**
      * Gets the database for the MongoDB client.
      *
@@ -158,16 +230,6 @@ public class MongoDBImpl implements MongoDBService {
     }
 
 
-    /**
-     * Sets the collection for the MongoDB client.
-     * @param collection The desired collection name.
-     */
-    @Override
-    public void setCollection(String collection) {
-        this.collection = collection;
-    }
-
-
     /**
      * Gets the collection for the MongoDB client.
      * Each call to this method will return a new instance of the collection.
@@ -181,6 +243,13 @@ public class MongoDBImpl implements MongoDBService {
                 .getCollection(this.collection);
     }
 
+    // Helper function to get the collection recording the deletions of the entity collection
+    private MongoCollection<Document> getDeletions() {
+        return this.mongoClient
+                .getDatabase(this.database)
+                .getCollection(this.collection + DELETIONS_SUFFIX);
+    }
+
 
     /**
      * Saves an object to the MongoDB database.
@@ -196,9 +265,22 @@ public class MongoDBImpl implements MongoDBService {
 
         Document document = toDocument(serializable);
 
-        this.getCollection().insertOne(document);
+        // The id is generated here, no need to look the document up again once inserted
+        ObjectId id = new ObjectId();
 
-        return this.find(document, this.entityClass).getKey();
+        OperationTrace trace = this.startTrace("save", document);
+
+        try {
+            this.getCollection().updateOne(new Document("_id", id), trackedUpdate(document), new UpdateOptions().upsert(true));
+            trace.rows(1);
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+
+        return id.toHexString();
 
     }
 
@@ -218,13 +300,24 @@ public class MongoDBImpl implements MongoDBService {
         ConfigurationSerializable serializable = (ConfigurationSerializable) obj;
 
         Document document = toDocument(serializable);
+        Document filter = new Document("_id", toIdValue(id));
 
-        this.getCollection().findOneAndUpdate(
-                new Document("_id", id),
-                new Document("$set", document)
-        );
+        OperationTrace trace = this.startTrace("update", filter);
 
-        return this.find(new Document("_id", id), this.entityClass);
+        try {
+            Document previous = this.getCollection().findOneAndUpdate(
+                    filter,
+                    trackedUpdate(document)
+            );
+            trace.rows(previous == null ? 0 : 1);
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+
+        return this.find(new Document("_id", toIdValue(id)), this.entityClass);
     }
 
 
@@ -232,13 +325,325 @@ public class MongoDBImpl implements MongoDBService {
 
 
     /**
-     * Deletes an object from the MongoDB database.
+     * Inserts or updates an object by its id with a single upserting update,
+     * which keeps the version and the fields outside the entity.
+     * @param id The object's ID.
+     * @param obj The object to be saved.
+     * @return Whether the document was inserted or updated.
+     */
+    @Override
+    public UpsertResult upsert(String id, Object obj) {
+
+        Document document = toDocument((ConfigurationSerializable) obj);
+        Document filter = new Document("_id", toIdValue(id));
+
+        OperationTrace trace = this.startTrace("upsert", filter);
+
+        try {
+            UpdateResult result = this.getCollection().updateOne(filter, trackedUpdate(document), new UpdateOptions().upsert(true));
+            trace.rows(1);
+
+            return result.getUpsertedId() != null ? UpsertResult.INSERTED : UpsertResult.UPDATED;
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+    }
+
+
+
+
+
+    /**
+     * Updates an object only if its version matches, with a single conditional update.
+     * Documents written before change tracking have no version and match version 0.
+     * @param id The object's ID.
+     * @param expectedVersion The version the update is based on.
+     * @param obj The object to be updated.
+     * @return True if the document has been updated, false on a version conflict.
+     */
+    @Override
+    public boolean compareAndUpdate(String id, long expectedVersion, Object obj) {
+
+        Document document = toDocument((ConfigurationSerializable) obj);
+
+        Bson versionFilter = expectedVersion == 0
+                ? Filters.or(Filters.eq(VERSION_FIELD, 0L), Filters.eq(VERSION_FIELD, null))
+                : Filters.eq(VERSION_FIELD, expectedVersion);
+
+        Bson filter = Filters.and(Filters.eq("_id", toIdValue(id)), versionFilter);
+
+        OperationTrace trace = this.startTrace("compareAndUpdate", new Document("_id", id).append(VERSION_FIELD, expectedVersion));
+
+        try {
+            UpdateResult result = this.getCollection().updateOne(filter, trackedUpdate(document));
+            trace.rows(result.getModifiedCount());
+
+            return result.getMatchedCount() == 1;
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+    }
+
+
+
+
+
+    /**
+     * Applies a periodic update to a chunk of documents with an update pipeline,
+     * computed by the server from the periods elapsed since each document's guard.
+     * The chunk is picked first, so that every call is bounded like a LIMIT.
+     * @param update The update, carrying its period.
+     * @param excludedIds Ids of the documents to leave untouched.
+     * @param limit The maximum number of documents to update.
+     * @return The number of documents updated.
+     */
+    @Override
+    public long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit) {
+
+        String field = update.getField();
+        String guard = update.getGuardField();
+
+        Bson pending = Filters.or(Filters.lt(guard, update.getPeriod()), Filters.eq(guard, null));
+
+        List<Object> excluded = new ArrayList<>(excludedIds.size());
+        excludedIds.forEach(id -> excluded.add(toIdValue(id)));
+
+        Bson filter = excluded.isEmpty() ? pending : Filters.and(pending, Filters.nin("_id", excluded));
+
+        OperationTrace trace = this.startTrace("updateAll", new Document(guard, new Document("$lt", update.getPeriod())));
+
+        try {
+            List<Object> chunk = new ArrayList<>(limit);
+
+            for (Document document : this.getCollection().find(filter).projection(Projections.include("_id")).limit(limit)) {
+                chunk.add(document.get("_id"));
+            }
+
+            if (chunk.isEmpty()) {
+                return 0;
+            }
+
+            // Every expression of a $set stage reads the document as it was, the field sees the previous guard
+            Document elapsed = new Document("$subtract", Arrays.asList(update.getPeriod(), "$" + guard));
+
+            Document unchanged = new Document("$or", Arrays.asList(
+                    new Document("$in", Arrays.asList(new Document("$type", "$" + guard), Arrays.asList("missing", "null"))),
+                    new Document("$lt", Arrays.asList("$" + field, update.getMinimum()))
+            ));
+
+            // Amounts are minor units, the product is rounded half to even like Money.multiply
+            Document product = new Document("$multiply", Arrays.asList("$" + field, new Document("$pow", Arrays.asList(update.getFactor(), elapsed))));
+
+            Document computed = new Document("$toLong", new Document("$add", Arrays.asList(
+                    new Document("$round", Arrays.asList(product, 0)),
+                    new Document("$multiply", Arrays.asList(update.getOffset(), elapsed))
+            )));
+
+            Document set = new Document(field, new Document("$cond", Arrays.asList(unchanged, "$" + field, computed)))
+                    .append(guard, new Document("$literal", update.getPeriod()))
+                    .append(VERSION_FIELD, new Document("$add", Arrays.asList(new Document("$ifNull", Arrays.asList("$" + VERSION_FIELD, 0L)), 1L)))
+                    .append(UPDATED_AT_FIELD, "$$NOW");
+
+            UpdateResult result = this.getCollection().updateMany(
+                    Filters.and(Filters.in("_id", chunk), pending),
+                    Collections.singletonList(new Document("$set", set))
+            );
+
+            trace.rows(result.getModifiedCount());
+            return result.getMatchedCount();
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+    }
+
+
+
+
+
+    /**
+     * Converts a decimal field to minor units with an update pipeline run by the server.
+     * Only documents still holding a decimal are matched, so running it again is a no-op.
+     * @param field The field holding decimal amounts.
+     * @param scale The number of decimals kept.
+     * @return The number of documents converted.
+     */
+    @Override
+    public long convertToFixedPoint(String field, int scale) {
+
+        Bson legacy = Filters.or(Filters.type(field, "double"), Filters.type(field, "decimal"));
+
+        OperationTrace trace = this.startTrace("convertToFixedPoint", new Document(field, new Document("$type", "double")));
+
+        try {
+            // $round rounds half to even, like Money.fromMajor
+            Document minor = new Document("$toLong", new Document("$round", Arrays.asList(
+                    new Document("$multiply", Arrays.asList("$" + field, (long) Math.pow(10, scale))), 0)));
+
+            UpdateResult result = this.getCollection().updateMany(
+                    legacy,
+                    Collections.singletonList(new Document("$set", new Document(field, minor)))
+            );
+
+            trace.rows(result.getModifiedCount());
+            return result.getModifiedCount();
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+    }
+
+
+
+
+
+    /**
+     * Runs a query through its cached plan, reading whole documents.
+     * @param query The query.
+     * @param clazz The objects' class.
+     * @return The objects with their ids, in query order.
+     */
+    @Override
+    public List<Map.Entry<String, Object>> query(Query query, Class<?> clazz) {
+
+        List<Map.Entry<String, Object>> results = new ArrayList<>();
+
+        this.runQuery("query", query, false, document -> results.add(Map.entry(String.valueOf(document.get("_id")), fromDocument(document, clazz))));
+
+        return results;
+    }
+
+
+
+
+
+    /**
+     * Runs a query through its cached plan, reading the projected fields only.
+     * @param query The query.
+     * @return The documents, field name to value, with their ids.
+     */
+    @Override
+    public List<Map<String, Object>> select(Query query) {
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+
+        this.runQuery("select", query, true, document -> {
+            Map<String, Object> row = new HashMap<>(document);
+            row.keySet().removeIf(key -> key.startsWith("_"));
+
+            row.put("id", String.valueOf(document.get("_id")));
+            rows.add(row);
+        });
+
+        return rows;
+    }
+
+
+
+
+
+    /**
+     * Computes an aggregation with a $match / $group pipeline, the group stage cached by shape.
+     * @param aggregation The aggregation.
+     * @return The rows: group fields and metric aliases to values.
+     */
+    @Override
+    public List<Map<String, Object>> aggregate(Aggregation aggregation) {
+
+        Query filter = aggregation.getFilter();
+        Bson group = this.groupStages.get(aggregation.getShape(), () -> compileGroup(aggregation));
+
+        List<Bson> pipeline = new ArrayList<>(2);
+
+        if (!filter.getConditions().isEmpty()) {
+            pipeline.add(Aggregates.match(this.queryPlans.get(filter, QueryPlan::new).filter(filter)));
+        }
+
+        pipeline.add(group);
+
+        OperationTrace trace = this.startTrace("aggregate", null);
+        trace.shape(aggregation.getShape());
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+
+        try {
+            for (Document document : this.getCollection().aggregate(pipeline)) {
+                Map<String, Object> row = new HashMap<>();
+                Object groupId = document.get("_id");
+
+                for (String field : aggregation.getGroupBy()) {
+                    row.put(field, groupId instanceof Document ? ((Document) groupId).get(field) : null);
+                }
+
+                for (Aggregation.Metric metric : aggregation.getMetrics()) {
+                    row.put(metric.getAlias(), Aggregation.normalize(metric, document.get(metric.getAlias())));
+                }
+
+                rows.add(row);
+            }
+
+            trace.rows(rows.size());
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+
+        // $group outputs nothing for an empty input, SQL outputs a row of empty aggregates
+        if (rows.isEmpty() && aggregation.emptyRow() != null) {
+            rows.add(aggregation.emptyRow());
+        }
+
+        return rows;
+    }
+
+
+
+
+
+    /**
+     * Deletes an object from the MongoDB database, recording the deletion for the change stream first:
+     * without a multi-document transaction, a failure in between leaves a deletion that didn't happen,
+     * which only makes caches read the document again.
      * @param id The object's ID.
      */
     @Override
     public void delete(String id) {
 
-        this.getCollection().deleteOne(new Document("_id", id));
+        Document filter = new Document("_id", toIdValue(id));
+
+        OperationTrace trace = this.startTrace("delete", filter);
+
+        try {
+            Document current = this.getCollection().find(filter).projection(Projections.include(VERSION_FIELD)).first();
+
+            if (current != null) {
+                Number version = current.get(VERSION_FIELD, Number.class);
+                Document tombstone = new Document("$set", new Document(VERSION_FIELD, (version == null ? 0 : version.longValue()) + 1))
+                        .append("$currentDate", new Document(UPDATED_AT_FIELD, true));
+
+                this.getDeletions().updateOne(filter, tombstone, new UpdateOptions().upsert(true));
+            }
+
+            DeleteResult result = this.getCollection().deleteOne(filter);
+            trace.rows(result.getDeletedCount());
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
 
     }
 
@@ -254,26 +659,227 @@ public class MongoDBImpl implements MongoDBService {
     @Override
     public Map.Entry<String, Object> find(Document document, Class<?> clazz) {
 
-        // IDs in MongoDB are stored as "_id", so we need to convert an eventual id key to "_id"
+        // IDs in MongoDB are stored as "_id", so we need to convert an eventual id key to "_id",
+        // on a copy: the caller's filter may be reused
         if (document.containsKey("id")) {
-            document.put("_id", document.get("id"));
-            document.remove("id");
+            document = new Document(document);
+            document.put("_id", document.remove("id"));
         }
 
 
         MongoCollection<Document> collection = this.getCollection();
 
-        Document theDocument = collection
-                .find(document)
-                .first();
+        OperationTrace trace = this.startTrace("find", document);
+
+        try {
+            Document theDocument = collection
+                    .find(document)
+                    .first();
+
+            if (theDocument == null) {
+                return null;
+            }
+
+            trace.rows(1);
 
-        if (theDocument == null) {
-            return null;
+            String id = idOf(theDocument);
+
+            // Decoded through ConfigurationSerialization, as in MySQLImpl, rather than
+            // querying the same document again through the POJO codec
+            return Map.entry(id, fromDocument(theDocument, clazz));
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+    }
+
+
+
+
+
+    /**
+     * Reads a page of documents ordered by _id, starting after the given id.
+     * @param afterId The last id of the previous page, null for the first page.
+     * @param limit The maximum number of documents.
+     * @param clazz The object's class.
+     * @return The objects with their ids.
+     */
+    @Override
+    public List<Map.Entry<String, Object>> scan(String afterId, int limit, Class<?> clazz) {
+
+        Bson filter = afterId == null ? Filters.empty() : idsAfter(afterId);
+
+        OperationTrace trace = this.startTrace("scan", new Document("_id", new Document("$gt", afterId)));
+
+        List<Map.Entry<String, Object>> page = new ArrayList<>();
+
+        try {
+            for (Document document : this.getCollection().find(filter).sort(Sorts.ascending("_id")).limit(limit)) {
+                page.add(Map.entry(idOf(document), fromDocument(document, clazz)));
+            }
+
+            trace.rows(page.size());
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+
+        return page;
+    }
+
+
+
+
+
+    /**
+     * Saves a batch of objects with a single unordered bulk write.
+     * Given ids are kept (as ObjectIds when valid, see upsert), updating the documents
+     * already stored under them; missing ones are generated client side.
+     * @param entities The objects with their ids.
+     * @return The objects' IDs, in order.
+     */
+    @Override
+    public List<String> saveAll(List<? extends Map.Entry<String, ?>> entities) {
+
+        List<String> ids = new ArrayList<>(entities.size());
+
+        if (entities.isEmpty()) {
+            return ids;
+        }
+
+        List<WriteModel<Document>> writes = new ArrayList<>(entities.size());
+
+        for (Map.Entry<String, ?> entry : entities) {
+            Document document = toDocument((ConfigurationSerializable) entry.getValue());
+
+            Object id = entry.getKey() != null ? toIdValue(entry.getKey()) : new ObjectId();
+
+            writes.add(new UpdateOneModel<>(new Document("_id", id), trackedUpdate(document), new UpdateOptions().upsert(true)));
+            ids.add(id instanceof ObjectId ? ((ObjectId) id).toHexString() : (String) id);
+        }
+
+        OperationTrace trace = this.startTrace("saveAll", null);
+
+        try {
+            this.getCollection().bulkWrite(writes, new BulkWriteOptions().ordered(false));
+            trace.rows(writes.size());
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+
+        return ids;
+    }
+
+
+
+
+
+    /**
+     * Reads the documents changed and deleted after the cursor, through the (_updatedAt, _id) indexes.
+     * Documents written before change tracking are returned once written again.
+     * @param cursor The cursor of the previous read.
+     * @param limit The maximum number of documents.
+     * @param clazz The object's class.
+     * @return The changed objects, null for the deleted ones, in change order.
+     */
+    @Override
+    public List<Versioned<Object>> changesSince(ChangeCursor cursor, int limit, Class<?> clazz) {
+
+        Date since = new Date(cursor.getUpdatedAt());
+
+        Bson filter = cursor.getId() == null
+                ? Filters.gte(UPDATED_AT_FIELD, since)
+                : Filters.or(
+                        Filters.gt(UPDATED_AT_FIELD, since),
+                        Filters.and(Filters.eq(UPDATED_AT_FIELD, since), idsAfter(cursor.getId()))
+                );
+
+        OperationTrace trace = this.startTrace("changesSince", new Document(UPDATED_AT_FIELD, new Document("$gte", since)));
+
+        List<Versioned<Object>> changes = new ArrayList<>();
+        List<Versioned<Object>> deletions = new ArrayList<>();
+
+        try {
+            for (Document document : this.getCollection().find(filter).sort(Sorts.ascending(UPDATED_AT_FIELD, "_id")).limit(limit)) {
+                changes.add(toVersioned(document, clazz));
+            }
+
+            for (Document document : this.getDeletions().find(filter).sort(Sorts.ascending(UPDATED_AT_FIELD, "_id")).limit(limit)) {
+                deletions.add(toVersioned(document, null));
+            }
+
+            changes = ChangeSet.merge(changes, deletions, limit, ID_ORDER);
+            trace.rows(changes.size());
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+
+        return changes;
+    }
+
+
+
+
+
+    /**
+     * Finds an object by id along with its version.
+     * @param id The object's ID.
+     * @param clazz The object's class.
+     * @return The versioned object, null if not found.
+     */
+    @Override
+    public Versioned<Object> getVersioned(String id, Class<?> clazz) {
+
+        Document filter = new Document("_id", toIdValue(id));
+
+        OperationTrace trace = this.startTrace("getVersioned", filter);
+
+        try {
+            Document document = this.getCollection().find(filter).first();
+
+            if (document == null) {
+                return null;
+            }
+
+            trace.rows(1);
+            return toVersioned(document, clazz);
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
         }
+    }
+
+
 
-        String id = theDocument.getObjectId("_id").toString();
 
-        return Map.entry(id, collection.find(theDocument, clazz).first()); // todo fix content null
+
+    /**
+     * Creates the indexes backing changesSince, if missing; deletions expire
+     * once past their retention.
+     * Failures are logged only, the collection keeps working without them.
+     */
+    @Override
+    public void ensureChangeTracking() {
+        try {
+            this.getCollection().createIndex(Indexes.ascending(UPDATED_AT_FIELD, "_id"));
+            this.getDeletions().createIndex(Indexes.ascending(UPDATED_AT_FIELD, "_id"));
+            this.getDeletions().createIndex(Indexes.ascending(UPDATED_AT_FIELD),
+                    new IndexOptions().expireAfter(ChangeSet.DELETION_RETENTION_MILLIS, TimeUnit.MILLISECONDS));
+        } catch (MongoException e) {
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "Change tracking index unavailable on {}: {}", this.collection, e.getMessage());
+        }
     }
 
 
@@ -288,6 +894,8 @@ public class MongoDBImpl implements MongoDBService {
     @Override
     public Document toDocument(ConfigurationSerializable serializable) {
 
+        SerializationEvent serialization = SerializationEvent.start();
+
         // Initialize a new Document instance
         Document theDocument = new Document();
 
@@ -297,6 +905,7 @@ public class MongoDBImpl implements MongoDBService {
         // Puts all the values into the document
         theDocument.putAll(serialized);
 
+        serialization.finish(serializable.getClass(), true, theDocument.size());
         return theDocument;
     }
 
@@ -305,25 +914,36 @@ public class MongoDBImpl implements MongoDBService {
 
 
     /**
-     * Gets the collection name.
-     * @return The collection name.
+     * Converts a Document back to its ConfigurationSerializable object.
+     * @param document The Document instance.
+     * @param clazz The object's class.
+     * @return The object.
      */
-    @Override
-    public String getCollectionName() {
-        return this.collection;
+    private Object fromDocument(Document document, Class<?> clazz) {
+
+        SerializationEvent serialization = SerializationEvent.start();
+
+        // Puts all the entries of the document into a new map, the id, the change tracking
+        // and guard fields (all named with a leading underscore) aren't part of the object
+        Map<String, Object> map = new HashMap<>(document);
+        map.keySet().removeIf(key -> key.startsWith("_"));
+
+        Object entity = ConfigurationSerialization.deserializeObject(map, clazz.asSubclass(ConfigurationSerializable.class));
+        serialization.finish(clazz, false, map.size());
+        return entity;
     }
 
 
 
 
+
     /**
-     * Sets the class for the MongoDB client.
-     * This implementation is though to be used with POJOs.
-     * @param clazz The desired class.
+     * Gets the collection name.
+     * @return The collection name.
      */
     @Override
-    public void setClass(Class<?> clazz) {
-        this.entityClass = clazz;
+    public String getCollectionName() {
+        return this.collection;
     }
 
 
@@ -337,4 +957,208 @@ public class MongoDBImpl implements MongoDBService {
     public MongoClient getConnection() {
         return this.mongoClient;
     }
+
+
+
+    // Helper function to decode a document along with its change tracking fields, a deletion without class has no entity
+    private Versioned<Object> toVersioned(Document document, Class<?> clazz) {
+        Number version = document.get(VERSION_FIELD, Number.class);
+        Date updatedAt = document.getDate(UPDATED_AT_FIELD);
+
+        return new Versioned<>(
+                idOf(document),
+                clazz == null ? null : fromDocument(document, clazz),
+                version == null ? 0 : version.longValue(),
+                updatedAt == null ? 0 : updatedAt.getTime()
+        );
+    }
+
+    // Helper function to build an update setting the fields, bumping the version and stamping the update time
+    private static Document trackedUpdate(Document fields) {
+        return new Document("$set", fields)
+                .append("$inc", new Document(VERSION_FIELD, 1L))
+                .append("$currentDate", new Document(UPDATED_AT_FIELD, true));
+    }
+
+    // Helper function to match ids stored as ObjectIds, as generated by save, or as plain strings
+    // (upserted or migrated ids that aren't valid ObjectIds)
+    static Object toIdValue(String id) {
+        return ObjectId.isValid(id) ? new ObjectId(id) : id;
+    }
+
+    // Helper function to read the id of a document, whatever it's stored as
+    private static String idOf(Document document) {
+        Object id = document.get("_id");
+        return id instanceof ObjectId ? ((ObjectId) id).toHexString() : String.valueOf(id);
+    }
+
+    // Helper function to match the ids following the given one in _id order. Comparisons only match values
+    // of the same type, and string ids sort before ObjectIds: every ObjectId follows a string id
+    private static Bson idsAfter(String id) {
+        Object value = toIdValue(id);
+
+        return value instanceof ObjectId
+                ? Filters.gt("_id", value)
+                : Filters.or(Filters.gt("_id", value), Filters.type("_id", "objectId"));
+    }
+
+    // Helper function to build the $group stage of an aggregation
+    private static Bson compileGroup(Aggregation aggregation) {
+
+        Document groupId = null;
+
+        if (!aggregation.getGroupBy().isEmpty()) {
+            groupId = new Document();
+
+            for (String field : aggregation.getGroupBy()) {
+                groupId.append(field, "$" + QueryPlan.storedField(field));
+            }
+        }
+
+        List<BsonField> accumulators = new ArrayList<>(aggregation.getMetrics().size());
+
+        for (Aggregation.Metric metric : aggregation.getMetrics()) {
+            Object operand = metric.getFunction() == Aggregation.Function.COUNT ? (Object) 1 : "$" + QueryPlan.storedField(metric.getField());
+
+            accumulators.add(new BsonField(metric.getAlias(), new Document(metric.getFunction() == Aggregation.Function.COUNT ? "$sum" : "$" + metric.getFunction().name().toLowerCase(Locale.ROOT), operand)));
+        }
+
+        // COUNT is a $sum of 1, the other functions have an accumulator of the same name
+        return Aggregates.group(groupId, accumulators);
+    }
+
+    // Helper function to bind a query to its plan and read every document
+    private void runQuery(String operation, Query query, boolean projected, Consumer<Document> reader) {
+
+        QueryPlan plan = this.queryPlans.get(query, QueryPlan::new);
+
+        OperationTrace trace = this.startTrace(operation, null);
+        trace.shape(query.getShape());
+
+        try {
+            FindIterable<Document> documents = this.getCollection().find(plan.filter(query));
+
+            if (plan.sort != null) {
+                documents = documents.sort(plan.sort);
+            }
+
+            if (projected && plan.projection != null) {
+                documents = documents.projection(plan.projection);
+            }
+
+            if (query.hasLimit()) {
+                documents = documents.limit(query.getLimit());
+            }
+
+            long rows = 0;
+
+            for (Document document : documents) {
+                reader.accept(document);
+                rows++;
+            }
+
+            trace.rows(rows);
+        } catch (MongoException e) {
+            trace.failed(e);
+            throw e;
+        } finally {
+            this.finishTrace(trace);
+        }
+    }
+
+    // Helper function to start a trace, discarding pool wait left over by untraced calls
+    private OperationTrace startTrace(String operation, Document filter) {
+        MongoPoolWaitListener.drain();
+
+        OperationTrace trace = this.tracer.start(operation);
+        trace.shape(filter);
+        return trace;
+    }
+
+    // Helper function to complete a trace with the pool wait measured by the driver
+    private void finishTrace(OperationTrace trace) {
+        trace.addPoolWait(MongoPoolWaitListener.drain());
+        trace.close();
+    }
+
+    // A query shape translated once: field names mapped to the stored ones, sort and projection built
+    private static final class QueryPlan {
+
+        private final String[] fields;
+        private final Condition.Operator[] operators;
+        private final Bson sort;
+        private final Bson projection;
+
+        private QueryPlan(Query query) {
+            List<Condition> conditions = query.getConditions();
+
+            this.fields = new String[conditions.size()];
+            this.operators = new Condition.Operator[conditions.size()];
+
+            for (int i = 0; i < conditions.size(); i++) {
+                this.fields[i] = storedField(conditions.get(i).getField());
+                this.operators[i] = conditions.get(i).getOperator();
+            }
+
+            List<Bson> sorts = new ArrayList<>();
+
+            for (Query.Order order : query.getOrdering()) {
+                String field = storedField(order.getField());
+                sorts.add(order.isAscending() ? Sorts.ascending(field) : Sorts.descending(field));
+            }
+
+            this.sort = sorts.isEmpty() ? null : Sorts.orderBy(sorts);
+            this.projection = query.getProjection().isEmpty() ? null : Projections.include(query.getProjection());
+        }
+
+        // Binds the values of a query of this shape
+        private Bson filter(Query query) {
+
+            if (this.fields.length == 0) {
+                return Filters.empty();
+            }
+
+            List<Bson> filters = new ArrayList<>(this.fields.length);
+
+            for (int i = 0; i < this.fields.length; i++) {
+                List<Object> values = query.getConditions().get(i).getValues();
+
+                if (this.fields[i].equals("_id")) {
+                    List<Object> ids = new ArrayList<>(values.size());
+                    values.forEach(value -> ids.add(value instanceof String ? toIdValue((String) value) : value));
+                    values = ids;
+                }
+
+                switch (this.operators[i]) {
+                    case EQ:
+                        filters.add(Filters.eq(this.fields[i], values.get(0)));
+                        break;
+                    case GT:
+                        filters.add(Filters.gt(this.fields[i], values.get(0)));
+                        break;
+                    case GTE:
+                        filters.add(Filters.gte(this.fields[i], values.get(0)));
+                        break;
+                    case LT:
+                        filters.add(Filters.lt(this.fields[i], values.get(0)));
+                        break;
+                    case LTE:
+                        filters.add(Filters.lte(this.fields[i], values.get(0)));
+                        break;
+                    default:
+                        filters.add(Filters.in(this.fields[i], values));
+                        break;
+                }
+            }
+
+            return filters.size() == 1 ? filters.get(0) : Filters.and(filters);
+        }
+
+        // IDs in MongoDB are stored as "_id"
+        private static String storedField(String field) {
+            return field.equals("id") ? "_id" : field;
+        }
+
+    }
+
 }
@@ -1,22 +1,34 @@
 package it.mikeslab.truebank.data.mongodb;
 
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.ChangeSet;
+import it.mikeslab.truebank.data.FieldUpdate;
 import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Query;
 import org.bson.Document;
-import org.bson.types.ObjectId;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 public class MongoDBRepository<T extends ConfigurationSerializable> implements Repository<T> {
 
     private final MongoDBService service;
-    private Class<T> type;
+    private final Class<T> type;
 
     public MongoDBRepository(MongoDBService service, Class<T> type) {
         this.service = service;
 
-        // Set the type of the repository, strictly necessary and related to the POJO based approach
-        this.setType(type);
+        // Strictly necessary and related to the POJO based approach, the service is bound to the same class
+        this.type = type;
+
+        // Idempotent, the server skips indexes that already exist
+        service.ensureChangeTracking();
     }
 
 
@@ -32,8 +44,7 @@ public class MongoDBRepository<T extends ConfigurationSerializable> implements R
 
     @Override
     public T get(String id) {
-        ObjectId objectId = new ObjectId(id);
-        Map.Entry<String, Object> entryMap = service.find(new Document("_id", objectId), type);
+        Map.Entry<String, Object> entryMap = service.find(new Document("_id", MongoDBImpl.toIdValue(id)), type);
 
         if (entryMap == null || !type.isInstance(entryMap.getValue())) {
             return null;
@@ -48,22 +59,99 @@ public class MongoDBRepository<T extends ConfigurationSerializable> implements R
     }
 
 
+    @Override
+    public List<Map.Entry<String, T>> scan(String afterId, int limit) {
+        List<Map.Entry<String, T>> page = new ArrayList<>();
+
+        for (Map.Entry<String, Object> entry : service.scan(afterId, limit, type)) {
+            page.add(Map.entry(entry.getKey(), type.cast(entry.getValue())));
+        }
+
+        return page;
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> query(Query query) {
+        List<Map.Entry<String, T>> results = new ArrayList<>();
+
+        for (Map.Entry<String, Object> entry : service.query(query, type)) {
+            results.add(Map.entry(entry.getKey(), type.cast(entry.getValue())));
+        }
+
+        return results;
+    }
+
+    @Override
+    public List<Map<String, Object>> select(Query query) {
+        return service.select(query);
+    }
+
+    @Override
+    public List<Map<String, Object>> aggregate(Aggregation aggregation) {
+        return service.aggregate(aggregation);
+    }
+
+    @Override
+    public List<String> saveAll(List<Map.Entry<String, T>> entities) {
+        return service.saveAll(entities);
+    }
+
+
+    @Override
+    public ChangeSet<T> changesSince(ChangeCursor cursor, int limit) {
+        List<Versioned<T>> changes = new ArrayList<>();
+
+        for (Versioned<Object> change : service.changesSince(cursor, limit, type)) {
+            changes.add(new Versioned<>(change.getId(), type.cast(change.getEntity()), change.getVersion(), change.getUpdatedAt()));
+        }
+
+        return new ChangeSet<>(changes, changes.isEmpty() ? cursor : changes.get(changes.size() - 1).toCursor());
+    }
+
+
+    @Override
+    public Versioned<T> getVersioned(String id) {
+        Versioned<Object> versioned = service.getVersioned(id, type);
+
+        if (versioned == null) {
+            return null;
+        }
+
+        return new Versioned<>(versioned.getId(), type.cast(versioned.getEntity()), versioned.getVersion(), versioned.getUpdatedAt());
+    }
+
+    @Override
+    public boolean compareAndUpdate(String id, long expectedVersion, T obj) {
+        return service.compareAndUpdate(id, expectedVersion, obj);
+    }
+
+    @Override
+    public long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit) {
+        return service.updateAll(update, excludedIds, limit);
+    }
+
+    @Override
+    public long convertToFixedPoint(String field, int scale) {
+        return service.convertToFixedPoint(field, scale);
+    }
+
+
     @Override
     public void update(String id, T obj) {
         service.update(id, obj);
     }
 
     @Override
-    public void delete(String id) {
-        service.delete(id);
+    public UpsertResult upsert(String id, T obj) {
+        return service.upsert(id, obj);
     }
 
-
     @Override
-    public void setRepositoryName(String tableName) {
-        service.setCollection(tableName);
+    public void delete(String id) {
+        service.delete(id);
     }
 
+
     @Override
     public String getRepositoryName() {
         return service.getCollectionName();
@@ -74,12 +162,6 @@ public class MongoDBRepository<T extends ConfigurationSerializable> implements R
         // Since MongoDB is a NoSQL database, we do not need to set any column
     }
 
-    @Override
-    public void setType(Class<T> type) {
-        this.type = type;
-        this.service.setClass(type);
-    }
-
     @Override
     public void close() {
         service.disconnect();
@@ -3,35 +3,38 @@ package it.mikeslab.truebank.data.mongodb;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import it.mikeslab.truebank.pojo.database.URIBuilder;
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.FieldUpdate;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Query;
 import org.bson.Document;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Interface: MongoDBService
  * Handles the MongoDB service for the plugin.
+ * The collection, entity class and tracer are fixed when the service is created,
+ * so a service can be shared by any number of threads.
  */
 
 public interface MongoDBService {
 
 
-    void connect(URIBuilder connectionString);
-
     void disconnect();
 
     boolean isConnected(boolean silent);
     MongoClient getConnection();
 
 
-    void setDatabase(String database);
-
     MongoDatabase getDatabase();
 
 
-    void setCollection(String collection);
-
     MongoCollection<Document> getCollection();
 
 
@@ -39,16 +42,37 @@ public interface MongoDBService {
 
     Map.Entry<String, Object> update(String id, Object obj);
 
+    UpsertResult upsert(String id, Object obj);
+
     Map.Entry<String, Object> find(Document document, Class<?> clazz);
 
     void delete(String id);
 
-    Document toDocument(ConfigurationSerializable serializable);
+    List<Map.Entry<String, Object>> scan(String afterId, int limit, Class<?> clazz);
 
-    String getCollectionName();
+    List<Map.Entry<String, Object>> query(Query query, Class<?> clazz);
+
+    List<Map<String, Object>> select(Query query);
+
+    List<Map<String, Object>> aggregate(Aggregation aggregation);
+
+    List<String> saveAll(List<? extends Map.Entry<String, ?>> entities);
 
-    void setClass(Class<?> clazz);
+    List<Versioned<Object>> changesSince(ChangeCursor cursor, int limit, Class<?> clazz);
 
+    void ensureChangeTracking();
+
+    Versioned<Object> getVersioned(String id, Class<?> clazz);
+
+    boolean compareAndUpdate(String id, long expectedVersion, Object obj);
+
+    long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit);
+
+    long convertToFixedPoint(String field, int scale);
+
+    Document toDocument(ConfigurationSerializable serializable);
+
+    String getCollectionName();
 
 
 
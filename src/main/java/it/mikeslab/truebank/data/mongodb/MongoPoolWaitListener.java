@@ -0,0 +1,83 @@
+package it.mikeslab.truebank.data.mongodb;
+
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import it.mikeslab.truebank.data.monitor.PoolCheckoutEvent;
+
+/**
+ * Class: MongoPoolWaitListener
+ * Accumulates, per thread, the time spent checking out pooled connections.
+ * The sync driver checks connections out on the calling thread, so the
+ * accumulated value belongs to the operation currently running on it.
+ * Checkouts are also recorded as PoolCheckoutEvents for Flight Recorder.
+ */
+public final class MongoPoolWaitListener implements ConnectionPoolListener {
+
+    public static final MongoPoolWaitListener INSTANCE = new MongoPoolWaitListener();
+
+    // [0] = check out start, [1] = accumulated wait
+    private static final ThreadLocal<long[]> WAIT = ThreadLocal.withInitial(() -> new long[2]);
+
+    // The Flight Recorder event of the check out running on the thread, if any
+    private static final ThreadLocal<PoolCheckoutEvent> CHECKOUT = new ThreadLocal<>();
+
+    private static final String POOL = "mongodb";
+
+    private MongoPoolWaitListener() {
+
+    }
+
+    @Override
+    public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+        WAIT.get()[0] = System.nanoTime();
+
+        PoolCheckoutEvent checkout = PoolCheckoutEvent.start();
+
+        // Kept only while recorded, so a disabled event isn't retained
+        if (checkout.isEnabled()) {
+            CHECKOUT.set(checkout);
+        }
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        this.accumulate(true);
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+        this.accumulate(false);
+    }
+
+    /**
+     * Returns and resets the pool wait accumulated by the current thread.
+     * @return The accumulated wait, in nanoseconds.
+     */
+    public static long drain() {
+        long[] wait = WAIT.get();
+        long accumulated = wait[1];
+
+        wait[1] = 0;
+        return accumulated;
+    }
+
+    // Helper function to add the last check out duration to the thread's total
+    private void accumulate(boolean obtained) {
+        long[] wait = WAIT.get();
+
+        if (wait[0] != 0) {
+            wait[1] += System.nanoTime() - wait[0];
+            wait[0] = 0;
+        }
+
+        PoolCheckoutEvent checkout = CHECKOUT.get();
+
+        if (checkout != null) {
+            CHECKOUT.remove();
+            checkout.finish(POOL, obtained);
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package it.mikeslab.truebank.data.monitor;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Class: OperationTrace
+ * A single traced repository operation. Instances are not thread-safe and
+ * are meant to live on the stack of the thread running the operation.
+ *
+ * Each trace is also a RepositoryOperationEvent for Flight Recorder.
+ *
+ * Usage:
+ *   try (OperationTrace trace = tracer.start("find")) {
+ *       trace.shape(sql);
+ *       ...
+ *       trace.rows(1);
+ *   }
+ */
+@Getter
+public class OperationTrace implements AutoCloseable {
+
+    private final OperationTracer tracer;
+    private final String operation;
+    private final long startedAt;
+
+    private long poolWaitNanos;
+    private long elapsedNanos;
+    private long rows;
+    private long bytes;
+    private Object shape;
+    private Throwable failure;
+    private boolean finished;
+
+    @Getter(AccessLevel.NONE)
+    private final RepositoryOperationEvent event;
+
+    OperationTrace(OperationTracer tracer, String operation) {
+        this.tracer = tracer;
+        this.operation = operation;
+        this.event = new RepositoryOperationEvent();
+        this.event.begin();
+        this.startedAt = System.nanoTime();
+    }
+
+    /**
+     * Marks the moment a pooled connection has been obtained,
+     * the time elapsed since the start is accounted as pool wait.
+     */
+    public void connectionAcquired() {
+        this.poolWaitNanos += System.nanoTime() - this.startedAt;
+    }
+
+    /**
+     * Adds pool wait time measured elsewhere, e.g. by a driver listener.
+     * @param nanos The time spent waiting for a connection.
+     */
+    public void addPoolWait(long nanos) {
+        this.poolWaitNanos += nanos;
+    }
+
+    /**
+     * Sets the query shape, an SQL string or a filter document.
+     * Values contained in documents are redacted before being logged.
+     * @param shape The query shape.
+     */
+    public void shape(Object shape) {
+        this.shape = shape;
+    }
+
+    /**
+     * Sets the number of rows/documents read or affected.
+     * @param rows The row count.
+     */
+    public void rows(long rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * Sets the number of bytes read or written, where known.
+     * @param bytes The byte count.
+     */
+    public void bytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Records the failure of the operation.
+     * @param failure The thrown exception.
+     */
+    public void failed(Throwable failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * Stops the clock and hands the trace to the tracer.
+     */
+    @Override
+    public void close() {
+
+        if (this.finished) {
+            return;
+        }
+
+        this.finished = true;
+        this.elapsedNanos = System.nanoTime() - this.startedAt;
+        this.tracer.complete(this);
+        this.event.finish(this);
+    }
+
+}
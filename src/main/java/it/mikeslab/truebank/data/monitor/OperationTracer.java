@@ -0,0 +1,179 @@
+package it.mikeslab.truebank.data.monitor;
+
+import it.mikeslab.truebank.util.LoggerUtil;
+import lombok.Getter;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Class: OperationTracer
+ * Measures repository operations and logs the ones exceeding the
+ * configured slow-operation threshold, plus a random sample of the others.
+ *
+ * A tracer is bound to a single repository and is configured through the
+ * "slowOperation" section of the repository's configuration:
+ *
+ *   slowOperation:
+ *     thresholdMillis: 100
+ *     sampleRate: 0.01
+ */
+@Getter
+public class OperationTracer {
+
+    private static final String DATA_PACKAGE = "it.mikeslab.truebank.data";
+    private static final String REDACTED = "?";
+
+    private final String repositoryName;
+    private final long thresholdNanos;
+    private final double sampleRate;
+
+    public OperationTracer(String repositoryName, long thresholdMillis, double sampleRate) {
+        this.repositoryName = repositoryName;
+        this.thresholdNanos = thresholdMillis < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+    }
+
+    /**
+     * Builds a tracer from the "slowOperation" section of a repository configuration.
+     * @param repositoryName The repository the tracer is bound to.
+     * @param section The repository configuration section, may be null.
+     * @return The tracer, with defaults applied when the section is missing.
+     */
+    public static OperationTracer fromConfig(String repositoryName, ConfigurationSection section) {
+
+        if (section == null || !section.isConfigurationSection("slowOperation")) {
+            return new OperationTracer(repositoryName, 100, 0);
+        }
+
+        ConfigurationSection slowSection = section.getConfigurationSection("slowOperation");
+
+        return new OperationTracer(
+                repositoryName,
+                slowSection.getLong("thresholdMillis", 100),
+                slowSection.getDouble("sampleRate", 0)
+        );
+    }
+
+    /**
+     * Starts tracing an operation, the clock starts immediately.
+     * @param operation The operation name (save, get, find, ...).
+     * @return The running trace.
+     */
+    public OperationTrace start(String operation) {
+        return new OperationTrace(this, operation);
+    }
+
+    // Invoked by OperationTrace once the operation has completed
+    void complete(OperationTrace trace) {
+
+        long elapsed = trace.getElapsedNanos();
+
+        boolean slow = elapsed >= this.thresholdNanos;
+        boolean sampled = !slow && this.sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < this.sampleRate;
+
+        if (!slow && !sampled) {
+            return;
+        }
+
+        Level level = slow ? Level.WARNING : Level.INFO;
+
+        if (!LoggerUtil.isLoggable(level)) {
+            return;
+        }
+
+        // Caller and shape are resolved here, the stack and the filter document belong to the calling thread
+        LoggerUtil.log(level, LoggerUtil.LogSource.DATABASE,
+                "{} {}.{} took {} (pool wait {}, execute {}) rows={} shape={} thread={} caller={}{}",
+                slow ? "[slow]" : "[trace]",
+                this.repositoryName,
+                trace.getOperation(),
+                formatMillis(elapsed),
+                formatMillis(trace.getPoolWaitNanos()),
+                formatMillis(elapsed - trace.getPoolWaitNanos()),
+                trace.getRows(),
+                describeShape(trace.getShape()),
+                Thread.currentThread().getName(),
+                describeCaller(),
+                trace.getFailure() != null ? " failed=" + trace.getFailure().getClass().getSimpleName() : "");
+    }
+
+    /**
+     * Renders the shape of a query, replacing every value with a placeholder.
+     * SQL strings are already parameterized and are returned as they are.
+     * @param shape The query shape, an SQL string or a filter document.
+     * @return The redacted shape.
+     */
+    static String describeShape(Object shape) {
+
+        if (shape == null) {
+            return "-";
+        }
+
+        if (shape instanceof Map) {
+            return String.valueOf(redact(shape));
+        }
+
+        return shape.toString();
+    }
+
+    // Helper function to replace filter values with placeholders, keeping operators and keys
+    private static Object redact(Object value) {
+
+        if (value instanceof Map) {
+            Map<String, Object> redacted = new LinkedHashMap<>();
+
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                redacted.put(String.valueOf(entry.getKey()), redact(entry.getValue()));
+            }
+
+            return redacted;
+        }
+
+        if (value instanceof Collection) {
+            return "[" + ((Collection<?>) value).size() + " x " + REDACTED + "]";
+        }
+
+        return REDACTED;
+    }
+
+    // Helper function to find the first caller outside the data layer and its owning plugin
+    private static String describeCaller() {
+
+        Optional<Class<?>> caller = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE)
+                .walk(frames -> frames
+                        .map(StackWalker.StackFrame::getDeclaringClass)
+                        .filter(clazz -> !clazz.getName().startsWith(DATA_PACKAGE))
+                        .filter(clazz -> !clazz.getName().startsWith("java."))
+                        .findFirst());
+
+        if (!caller.isPresent()) {
+            return "unknown";
+        }
+
+        Class<?> callerClass = caller.get();
+
+        String pluginName;
+
+        try {
+            pluginName = JavaPlugin.getProvidingPlugin(callerClass).getName();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // The class has not been loaded by a plugin class loader (server internals, tests, ...)
+            pluginName = "server";
+        }
+
+        return pluginName + " (" + callerClass.getName() + ")";
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.2fms", nanos / 1_000_000.0);
+    }
+
+}
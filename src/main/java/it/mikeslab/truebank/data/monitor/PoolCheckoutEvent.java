@@ -0,0 +1,61 @@
+package it.mikeslab.truebank.data.monitor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Class: PoolCheckoutEvent
+ * Flight Recorder event of a connection taken from a pool, recorded when
+ * the wait lasts longer than its threshold (1 ms by default): a crowd of
+ * them during a tick spike means the pool is too small for the load.
+ *
+ * Usage:
+ *   PoolCheckoutEvent checkout = PoolCheckoutEvent.start();
+ *   Connection connection = dataSource.getConnection();
+ *   checkout.finish("mysql:" + database, true);
+ */
+@Name("it.mikeslab.truebank.PoolCheckout")
+@Label("Connection Pool Checkout")
+@Category({ "TrueBank", "Repository" })
+@Description("Wait for a pooled database connection")
+@Threshold("1 ms")
+@StackTrace(true)
+public class PoolCheckoutEvent extends Event {
+
+    @Label("Pool")
+    String pool;
+
+    @Label("Obtained")
+    boolean obtained;
+
+    /**
+     * Starts timing a checkout.
+     * @return The running event.
+     */
+    public static PoolCheckoutEvent start() {
+        PoolCheckoutEvent event = new PoolCheckoutEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stops timing the checkout, committing the event if it's recorded.
+     * @param pool The pool the connection was taken from.
+     * @param obtained Whether a connection was obtained.
+     */
+    public void finish(String pool, boolean obtained) {
+        this.end();
+
+        if (this.shouldCommit()) {
+            this.pool = pool;
+            this.obtained = obtained;
+            this.commit();
+        }
+    }
+
+}
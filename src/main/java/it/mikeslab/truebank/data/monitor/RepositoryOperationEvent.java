@@ -0,0 +1,74 @@
+package it.mikeslab.truebank.data.monitor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Class: RepositoryOperationEvent
+ * Flight Recorder event of a repository operation, emitted by every
+ * OperationTrace when the event is enabled and the operation lasts longer
+ * than its threshold (10 ms unless the recording settings say otherwise):
+ *
+ *   -XX:StartFlightRecording:settings=profile,+it.mikeslab.truebank.RepositoryOperation#threshold=0ms
+ *
+ * Disabled, an event costs no more than the trace it belongs to.
+ */
+@Name("it.mikeslab.truebank.RepositoryOperation")
+@Label("Repository Operation")
+@Category({ "TrueBank", "Repository" })
+@Description("A read or write of a TrueBank repository")
+@Threshold("10 ms")
+@StackTrace(true)
+class RepositoryOperationEvent extends Event {
+
+    @Label("Repository")
+    String repository;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Rows")
+    long rows;
+
+    @Label("Bytes")
+    @Description("Bytes read or written, where the backend knows them without extra work")
+    @DataAmount
+    long bytes;
+
+    @Label("Pool Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long poolWait;
+
+    @Label("Shape")
+    @Description("The query shape, values redacted")
+    String shape;
+
+    @Label("Failure")
+    String failure;
+
+    // Helper function to fill in and commit the event of a completed trace, if it's recorded
+    void finish(OperationTrace trace) {
+        this.end();
+
+        if (!this.shouldCommit()) {
+            return;
+        }
+
+        this.repository = trace.getTracer().getRepositoryName();
+        this.operation = trace.getOperation();
+        this.rows = trace.getRows();
+        this.bytes = trace.getBytes();
+        this.poolWait = trace.getPoolWaitNanos();
+        this.shape = OperationTracer.describeShape(trace.getShape());
+        this.failure = trace.getFailure() == null ? null : trace.getFailure().getClass().getName();
+        this.commit();
+    }
+
+}
@@ -0,0 +1,67 @@
+package it.mikeslab.truebank.data.monitor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Class: SerializationEvent
+ * Flight Recorder event of an entity converted to or from its stored form
+ * (document, row or YAML map), recorded when the conversion lasts longer
+ * than its threshold (1 ms by default, set it to 0 ms to see them all).
+ *
+ * Usage:
+ *   SerializationEvent serialization = SerializationEvent.start();
+ *   Map<String, Object> fields = entity.serialize();
+ *   serialization.finish(entity.getClass(), true, fields.size());
+ */
+@Name("it.mikeslab.truebank.Serialization")
+@Label("Entity Serialization")
+@Category({ "TrueBank", "Repository" })
+@Description("An entity serialized for, or deserialized from, a repository")
+@Threshold("1 ms")
+@StackTrace(false)
+public class SerializationEvent extends Event {
+
+    @Label("Entity Type")
+    Class<?> entityType;
+
+    @Label("Serialize")
+    @Description("True when converting to the stored form, false when reading it back")
+    boolean serialize;
+
+    @Label("Fields")
+    int fields;
+
+    /**
+     * Starts timing a conversion.
+     * @return The running event.
+     */
+    public static SerializationEvent start() {
+        SerializationEvent event = new SerializationEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stops timing the conversion, committing the event if it's recorded.
+     * @param entityType The class of the entity.
+     * @param serialize True when serializing, false when deserializing.
+     * @param fields The number of fields converted.
+     */
+    public void finish(Class<?> entityType, boolean serialize, int fields) {
+        this.end();
+
+        if (this.shouldCommit()) {
+            this.entityType = entityType;
+            this.serialize = serialize;
+            this.fields = fields;
+            this.commit();
+        }
+    }
+
+}
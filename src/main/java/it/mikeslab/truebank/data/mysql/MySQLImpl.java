@@ -2,6 +2,22 @@ package it.mikeslab.truebank.data.mysql;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.ChangeSet;
+import it.mikeslab.truebank.data.ConnectionRegistry;
+import it.mikeslab.truebank.data.FieldUpdate;
+import it.mikeslab.truebank.data.RepositoryException;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.monitor.OperationTrace;
+import it.mikeslab.truebank.data.monitor.OperationTracer;
+import it.mikeslab.truebank.data.monitor.PoolCheckoutEvent;
+import it.mikeslab.truebank.data.monitor.SerializationEvent;
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Condition;
+import it.mikeslab.truebank.data.query.Query;
+import it.mikeslab.truebank.data.query.QueryPlanCache;
+import it.mikeslab.truebank.pojo.database.PoolSettings;
 import it.mikeslab.truebank.pojo.database.URIBuilder;
 import it.mikeslab.truebank.util.LoggerUtil;
 import org.bson.Document;
@@ -10,36 +26,95 @@ import org.bukkit.configuration.serialization.ConfigurationSerialization;
 
 import java.sql.*;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
+import java.util.regex.Pattern;
 
 public class MySQLImpl implements MySQLService {
 
-    private HikariDataSource sqlClient;
-    public String table;
-    public String database;
-    private Class<? extends ConfigurationSerializable> entityClass;
+    // Change tracking columns, stamped with the database clock so that every server agrees on the order.
+    // CURRENT_TIMESTAMP is the statement start, a write waiting on a lock commits with an older stamp
+    private static final String VERSION_COLUMN = "_version";
+    private static final String UPDATED_AT_COLUMN = "_updatedAt";
+    private static final String NOW_MILLIS = "CAST(UNIX_TIMESTAMP(CURRENT_TIMESTAMP(3)) * 1000 AS UNSIGNED)";
 
-    // Empty constructor, connection isn't established automatically
-    public MySQLImpl() {
+    private static final String TRACK_INSERT = ", " + VERSION_COLUMN + " = 1, " + UPDATED_AT_COLUMN + " = " + NOW_MILLIS;
+    private static final String TRACK_UPDATE = ", " + VERSION_COLUMN + " = " + VERSION_COLUMN + " + 1, " + UPDATED_AT_COLUMN + " = " + NOW_MILLIS;
 
-    }
+    // MySQL error codes of ALTER TABLE / CREATE INDEX on something already there
+    private static final int DUPLICATE_COLUMN = 1060;
+    private static final int DUPLICATE_KEY_NAME = 1061;
 
-    // Constructor with connection parameters, connection is established automatically
-    public MySQLImpl(URIBuilder uriBuilder) {
-        this.connect(uriBuilder);
-    }
+    // Column names concatenated into statements
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private static final int QUERY_PLAN_CAPACITY = 128;
+
+    // Fixed at construction, a service is shared by every thread using its repository
+    private final HikariDataSource sqlClient;
+    private final ConnectionRegistry.Lease<HikariDataSource> lease;
+    private final String table;
+    private final String database;
+    private final Class<? extends ConfigurationSerializable> entityClass;
+    private final OperationTracer tracer;
+
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+
+    // Deleted ids with the version and time of their deletion, for the change stream; written
+    // only once ensureChangeTracking has created the table
+    private final String deletionsTable;
+    private volatile boolean deletionsTracked;
+
+    // Guard columns of set-based updates already added to the table
+    private final Set<String> guardColumns = ConcurrentHashMap.newKeySet();
 
+    // SQL templates of the queries run so far, by query shape; entity queries read every column
+    private final QueryPlanCache<String> entityPlans = new QueryPlanCache<>(QUERY_PLAN_CAPACITY);
+    private final QueryPlanCache<String> selectPlans = new QueryPlanCache<>(QUERY_PLAN_CAPACITY);
+    private final QueryPlanCache<String> aggregatePlans = new QueryPlanCache<>(QUERY_PLAN_CAPACITY);
 
     /**
-     * Connects to the MySQL server using the provided credentials.*
+     * Connects to the MySQL server using the provided credentials.
+     * Repositories sharing the same connection settings share the same pool.
      * @param uriBuilder The connection string.
+     * @param table The table, null if the service only lends its pool.
+     * @param entityClass The class of the entities stored in the table.
+     * @param tracer The tracer used to report slow and sampled operations.
      */
+    public MySQLImpl(URIBuilder uriBuilder, String table, Class<? extends ConfigurationSerializable> entityClass, OperationTracer tracer) {
 
-    @Override
-    public void connect(URIBuilder uriBuilder) {
+        this.table = table;
+        this.deletionsTable = table + "_deletions";
+        this.database = uriBuilder.getDatabase();
+        this.entityClass = entityClass;
+        this.tracer = tracer != null ? tracer : OperationTracer.fromConfig("mysql", null);
+
+        String key = ConnectionRegistry.key(
+                "mysql",
+                uriBuilder.getHost(),
+                uriBuilder.getPort(),
+                uriBuilder.getDatabase(),
+                uriBuilder.getUsername(),
+                uriBuilder.getPassword()
+        );
+
+        this.lease = ConnectionRegistry.lease(key, () -> createDataSource(uriBuilder), HikariDataSource::close);
+        this.sqlClient = this.lease.get();
+    }
+
+    // Helper function to create a new Hikari pool, only invoked by the ConnectionRegistry
+    private HikariDataSource createDataSource(URIBuilder uriBuilder) {
         HikariConfig config = new HikariConfig();
         String jdbcUrl = new StringBuilder("jdbc:mysql://")
                 .append(uriBuilder.getHost())
@@ -52,7 +127,23 @@ public class MySQLImpl implements MySQLService {
         config.setUsername(uriBuilder.getUsername());
         config.setPassword(Optional.ofNullable(uriBuilder.getPassword()).orElse(""));
 
-        this.sqlClient = new HikariDataSource(config);
+        PoolSettings poolSettings = Optional.ofNullable(uriBuilder.getPoolSettings())
+                .orElseGet(() -> PoolSettings.builder().build());
+
+        config.setPoolName("TrueBank-MySQL-" + uriBuilder.getDatabase());
+        config.setMaximumPoolSize(poolSettings.getMaximumPoolSize());
+        config.setMinimumIdle(poolSettings.getMinimumIdle());
+        config.setConnectionTimeout(poolSettings.getConnectionTimeoutMillis());
+        config.setIdleTimeout(poolSettings.getIdleTimeoutMillis());
+        config.setMaxLifetime(poolSettings.getMaxLifetimeMillis());
+
+        // Statements are built from cached templates, let the driver keep them prepared per connection
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", "250");
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        config.addDataSourceProperty("useServerPrepStmts", "true");
+
+        return new HikariDataSource(config);
     }
 
 
@@ -65,9 +156,9 @@ public class MySQLImpl implements MySQLService {
     @Override
     public void disconnect() {
 
-        if (this.sqlClient != null) {
-            this.sqlClient.close();
-            this.sqlClient = null; // Preventing memory leaks
+        if (this.disconnected.compareAndSet(false, true)) {
+            // The pool is shared, it gets closed once the last repository releases it
+            this.lease.release();
             return;
         }
 
@@ -83,37 +174,16 @@ public class MySQLImpl implements MySQLService {
 
     @Override
     public boolean isConnected(boolean silent) {
-        boolean isConnected = this.sqlClient.isRunning();
+        boolean isConnected = !this.disconnected.get() && this.sqlClient.isRunning();
 
         if(!silent) {
-            LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "Connection status: " + (isConnected ? "Connected" : "Disconnected"));
+            LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "Connection status: {}", isConnected ? "Connected" : "Disconnected");
         }
 
         return isConnected;
     }
 
 
-    /**
-     * Sets the database for the MySQL client.
-     * @param database The desired database name.
-     */
-    @Override
-    public void setDatabase(String database) {
-        this.database = database;
-    }
-
-
-
-    /**
-     * Sets the collection for the MySQL client.
-     * @param table The desired collection name.
-     */
-    @Override
-    public void setTable(String table) {
-        this.table = table;
-    }
-
-
     /**
      * Gets the collection for the MySQL client.
      * Each call to this method will return a new instance of the collection.
@@ -138,12 +208,15 @@ public class MySQLImpl implements MySQLService {
         ConfigurationSerializable serializable = (ConfigurationSerializable) obj;
         Document document = toDocument(serializable);
 
-        String sql = buildSqlString("INSERT INTO", document);
+        String sql = buildSqlString("INSERT INTO", document) + TRACK_INSERT;
 
-        try (Connection connection = this.sqlClient.getConnection();
+        OperationTrace trace = this.tracer.start("save");
+        trace.shape(sql);
+
+        try (Connection connection = borrowConnection(trace);
              PreparedStatement statement = prepareStatement(connection, sql, document)) {
 
-            statement.executeUpdate();
+            trace.rows(statement.executeUpdate());
 
             try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
                 if (generatedKeys.next()) {
@@ -153,7 +226,10 @@ public class MySQLImpl implements MySQLService {
                 }
             }
         } catch (SQLException e) {
+            trace.failed(e);
             handleSQLException(e);
+        } finally {
+            trace.close();
         }
         return null;
     }
@@ -173,16 +249,22 @@ public class MySQLImpl implements MySQLService {
         ConfigurationSerializable serializable = (ConfigurationSerializable) obj;
         Document document = toDocument(serializable);
 
-        String sql = buildSqlString("UPDATE", document) + " WHERE id = ?";
+        String sql = buildSqlString("UPDATE", document) + TRACK_UPDATE + " WHERE id = ?";
 
-        try (Connection connection = this.sqlClient.getConnection();
+        OperationTrace trace = this.tracer.start("update");
+        trace.shape(sql);
+
+        try (Connection connection = borrowConnection(trace);
              PreparedStatement statement = connection.prepareStatement(sql)) {
 
             setParameters(statement, document);
             statement.setString(document.size() + 1, id); // Set id at the end of parameters
-            statement.executeUpdate();
+            trace.rows(statement.executeUpdate());
         } catch (SQLException e) {
-            System.err.println(e);
+            trace.failed(e);
+            handleSQLException(e);
+        } finally {
+            trace.close();
         }
 
         return find(new Document("id", id));
@@ -191,18 +273,262 @@ public class MySQLImpl implements MySQLService {
 
 
     /**
-     * Deletes an object from the MySQL database.
+     * Inserts or updates an object by its id with a single INSERT ... ON DUPLICATE KEY UPDATE.
+     * @param id The object's ID, numeric as the table generates them.
+     * @param obj The object to be saved.
+     * @return Whether the row was inserted or updated.
+     * @throws IllegalArgumentException If the id isn't numeric.
+     * @throws RepositoryException If the statement failed.
+     */
+    @Override
+    public UpsertResult upsert(String id, Object obj) {
+
+        if (id == null || !id.matches("\\d+")) {
+            throw new IllegalArgumentException("Ids of the " + this.table + " table are numeric, got " + id);
+        }
+
+        ConfigurationSerializable serializable = (ConfigurationSerializable) obj;
+        Document document = toDocument(serializable);
+        document.put("id", id);
+
+        String sql = buildUpsertSqlString(document);
+
+        OperationTrace trace = this.tracer.start("upsert");
+        trace.shape(sql);
+
+        try (Connection connection = borrowConnection(trace);
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+
+            setParameters(statement, document);
+
+            // 1 for a new row, 2 for an updated one: the version bump means it always changes
+            int affected = statement.executeUpdate();
+            trace.rows(affected);
+
+            return affected == 1 ? UpsertResult.INSERTED : UpsertResult.UPDATED;
+        } catch (SQLException e) {
+            trace.failed(e);
+            throw sqlFailure(e);
+        } finally {
+            trace.close();
+        }
+    }
+
+
+
+    /**
+     * Updates an object only if its version matches, with a single conditional UPDATE.
+     * @param id The object's ID.
+     * @param expectedVersion The version the update is based on.
+     * @param obj The object to be updated.
+     * @return True if the row has been updated, false on a version conflict.
+     */
+    @Override
+    public boolean compareAndUpdate(String id, long expectedVersion, Object obj) {
+        ConfigurationSerializable serializable = (ConfigurationSerializable) obj;
+        Document document = toDocument(serializable);
+
+        String sql = buildSqlString("UPDATE", document) + TRACK_UPDATE + " WHERE id = ? AND " + VERSION_COLUMN + " = ?";
+
+        OperationTrace trace = this.tracer.start("compareAndUpdate");
+        trace.shape(sql);
+
+        try (Connection connection = borrowConnection(trace);
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+
+            setParameters(statement, document);
+            statement.setString(document.size() + 1, id);
+            statement.setLong(document.size() + 2, expectedVersion);
+
+            int updated = statement.executeUpdate();
+            trace.rows(updated);
+
+            return updated == 1;
+        } catch (SQLException e) {
+            trace.failed(e);
+            handleSQLException(e);
+        } finally {
+            trace.close();
+        }
+
+        return false;
+    }
+
+
+
+    /**
+     * Applies a periodic update to a chunk of rows with a single UPDATE ... LIMIT,
+     * computed by the database from the periods elapsed since each row's guard.
+     * The guard column is added to the table on first use.
+     * @param update The update, carrying its period.
+     * @param excludedIds Ids of the rows to leave untouched.
+     * @param limit The maximum number of rows to update.
+     * @return The number of rows updated.
+     */
+    @Override
+    public long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit) {
+        String field = checkIdentifier(update.getField());
+        String guard = checkIdentifier(update.getGuardField());
+
+        ensureGuardColumn(guard);
+
+        // Assignments are evaluated left to right, the field is computed from the previous guard
+        StringBuilder sql = new StringBuilder("UPDATE ").append(this.table)
+                .append(" SET ").append(field).append(" = CASE WHEN ").append(guard).append(" IS NULL OR ").append(field).append(" < ?")
+                .append(" THEN ").append(field)
+                .append(" ELSE ROUND(").append(field).append(" * POW(?, ? - ").append(guard).append(")) + ? * (? - ").append(guard).append(") END, ")
+                .append(guard).append(" = ?")
+                .append(TRACK_UPDATE)
+                .append(" WHERE (").append(guard).append(" IS NULL OR ").append(guard).append(" < ?)");
+
+        if (!excludedIds.isEmpty()) {
+            sql.append(" AND id NOT IN (");
+
+            for (int i = 0; i < excludedIds.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+
+            sql.append(")");
+        }
+
+        sql.append(" LIMIT ?");
+
+        OperationTrace trace = this.tracer.start("updateAll");
+        trace.shape(sql);
+
+        try (Connection connection = borrowConnection(trace);
+             PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+
+            int index = 1;
+            statement.setLong(index++, update.getMinimum());
+            statement.setDouble(index++, update.getFactor());
+            statement.setLong(index++, update.getPeriod());
+            statement.setLong(index++, update.getOffset());
+            statement.setLong(index++, update.getPeriod());
+            statement.setLong(index++, update.getPeriod());
+            statement.setLong(index++, update.getPeriod());
+
+            for (String id : excludedIds) {
+                statement.setString(index++, id);
+            }
+
+            statement.setInt(index, limit);
+
+            int updated = statement.executeUpdate();
+            trace.rows(updated);
+
+            return updated;
+        } catch (SQLException e) {
+            trace.failed(e);
+            handleSQLException(e);
+        } finally {
+            trace.close();
+        }
+
+        return 0;
+    }
+
+
+
+    /**
+     * Converts a decimal column to a BIGINT of minor units. Values are copied to a
+     * staging column first, then the column is swapped in a single ALTER TABLE: a
+     * conversion interrupted halfway resumes from the rows not yet copied, and one
+     * already done is detected from the column type.
+     * @param field The column holding decimal amounts.
+     * @param scale The number of decimals kept.
+     * @return The number of rows converted.
+     */
+    @Override
+    public long convertToFixedPoint(String field, int scale) {
+        String column = checkIdentifier(field);
+        String staging = "_" + column + "_minor";
+
+        OperationTrace trace = this.tracer.start("convertToFixedPoint");
+        trace.shape(column);
+
+        try (Connection connection = borrowConnection(trace);
+             Statement statement = connection.createStatement()) {
+
+            if (isIntegerColumn(connection, column)) {
+                return 0;
+            }
+
+            try {
+                statement.execute("ALTER TABLE " + this.table + " ADD COLUMN " + staging + " BIGINT NULL");
+            } catch (SQLException e) {
+                if (e.getErrorCode() != DUPLICATE_COLUMN) {
+                    throw e;
+                }
+            }
+
+            // An approximate literal makes the product a DOUBLE, whose ROUND is half to even like Money.fromMajor
+            long converted = statement.executeUpdate("UPDATE " + this.table + " SET " + staging
+                    + " = ROUND(" + column + " * 1E" + scale + ") WHERE " + staging + " IS NULL");
+
+            statement.execute("ALTER TABLE " + this.table + " DROP COLUMN " + column
+                    + ", CHANGE COLUMN " + staging + " " + column + " BIGINT NOT NULL DEFAULT 0");
+
+            trace.rows(converted);
+            return converted;
+        } catch (SQLException e) {
+            trace.failed(e);
+            handleSQLException(e);
+        } finally {
+            trace.close();
+        }
+
+        return 0;
+    }
+
+
+
+    /**
+     * Deletes an object from the MySQL database, recording the deletion for the
+     * change stream in the same transaction.
      * @param id The object's ID.
      */
     @Override
     public void delete(String id) {
-        try (Connection connection = this.sqlClient.getConnection();
-             PreparedStatement statement = connection.prepareStatement(
-                     "DELETE FROM " + this.table + " WHERE id = ?")) {
-            statement.setString(1, id);
-            statement.executeUpdate();
+        String sql = "DELETE FROM " + this.table + " WHERE id = ?";
+        String tombstoneSql = "INSERT INTO " + this.deletionsTable + " (id, " + VERSION_COLUMN + ", " + UPDATED_AT_COLUMN + ")"
+                + " SELECT id, " + VERSION_COLUMN + " + 1, " + NOW_MILLIS + " FROM " + this.table + " WHERE id = ?"
+                + " ON DUPLICATE KEY UPDATE " + VERSION_COLUMN + " = VALUES(" + VERSION_COLUMN + "), "
+                + UPDATED_AT_COLUMN + " = VALUES(" + UPDATED_AT_COLUMN + ")";
+
+        OperationTrace trace = this.tracer.start("delete");
+        trace.shape(sql);
+
+        try (Connection connection = borrowConnection(trace);
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+
+            if (!this.deletionsTracked) {
+                statement.setString(1, id);
+                trace.rows(statement.executeUpdate());
+                return;
+            }
+
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement tombstone = connection.prepareStatement(tombstoneSql)) {
+                tombstone.setString(1, id);
+                tombstone.executeUpdate();
+
+                statement.setString(1, id);
+                trace.rows(statement.executeUpdate());
+
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
         } catch (SQLException e) {
-            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, e);
+            trace.failed(e);
+            handleSQLException(e);
+        } finally {
+            trace.close();
         }
     }
 
@@ -222,7 +548,10 @@ public class MySQLImpl implements MySQLService {
         }
         sql.delete(sql.length() - 5, sql.length()); // Remove the last " AND "
 
-        try (Connection connection = this.sqlClient.getConnection();
+        OperationTrace trace = this.tracer.start("find");
+        trace.shape(sql);
+
+        try (Connection connection = borrowConnection(trace);
              PreparedStatement statement = connection.prepareStatement(sql.toString())) {
 
             index = 1;
@@ -233,11 +562,15 @@ public class MySQLImpl implements MySQLService {
 
             try (ResultSet resultSet = statement.executeQuery()) {
                 if (resultSet.next()) {
+                    trace.rows(1);
                     return mapResultSetToEntry(resultSet);
                 }
             }
         } catch (SQLException e) {
+            trace.failed(e);
             handleSQLException(e);
+        } finally {
+            trace.close();
         }
 
         return null;
@@ -245,25 +578,339 @@ public class MySQLImpl implements MySQLService {
 
 
     /**
-     * Gets the collection name.
-     * @return The collection name.
+     * Reads a page of rows ordered by id, starting after the given id.
+     * @param afterId The last id of the previous page, null for the first page.
+     * @param limit The maximum number of rows.
+     * @return The objects with their ids.
      */
     @Override
-    public String getTableName() {
-        return this.table;
+    public List<Map.Entry<String, Object>> scan(String afterId, int limit) {
+        String sql = "SELECT * FROM " + this.table
+                + (afterId == null ? "" : " WHERE id > ?")
+                + " ORDER BY id LIMIT ?";
+
+        OperationTrace trace = this.tracer.start("scan");
+        trace.shape(sql);
+
+        List<Map.Entry<String, Object>> page = new ArrayList<>();
+
+        try (Connection connection = borrowConnection(trace);
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+
+            int index = 1;
+
+            if (afterId != null) {
+                statement.setString(index++, afterId);
+            }
+
+            statement.setInt(index, limit);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    page.add(mapResultSetToEntry(resultSet));
+                }
+            }
+
+            trace.rows(page.size());
+        } catch (SQLException e) {
+            trace.failed(e);
+            handleSQLException(e);
+        } finally {
+            trace.close();
+        }
+
+        return page;
+    }
+
+
+
+    /**
+     * Runs a query through its cached SQL template, reading whole rows.
+     * @param query The query.
+     * @return The objects with their ids, in query order.
+     */
+    @Override
+    public List<Map.Entry<String, Object>> query(Query query) {
+        String sql = this.entityPlans.get(query, shape -> compileQuery(shape, false));
+
+        List<Map.Entry<String, Object>> results = new ArrayList<>();
+
+        this.runQuery("query", sql, query, resultSet -> results.add(mapResultSetToEntry(resultSet)));
+
+        return results;
+    }
+
+
+
+    /**
+     * Runs a query through its cached SQL template, reading the projected columns only.
+     * @param query The query.
+     * @return The rows, column name to value, with their ids.
+     */
+    @Override
+    public List<Map<String, Object>> select(Query query) {
+        String sql = this.selectPlans.get(query, shape -> compileQuery(shape, true));
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+
+        this.runQuery("select", sql, query, resultSet -> {
+            Document row = readRow(resultSet);
+            stripMetadata(row);
+
+            row.put("id", resultSet.getString("id"));
+            rows.add(row);
+        });
+
+        return rows;
+    }
+
+
+
+    /**
+     * Computes an aggregation with a single SELECT ... GROUP BY, through its cached SQL template.
+     * @param aggregation The aggregation.
+     * @return The rows: group columns and metric aliases to values.
+     */
+    @Override
+    public List<Map<String, Object>> aggregate(Aggregation aggregation) {
+        String sql = this.aggregatePlans.get(aggregation.getShape(), () -> compileAggregation(aggregation));
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+
+        this.runQuery("aggregate", sql, aggregation.getFilter(), resultSet -> {
+            Map<String, Object> row = new HashMap<>();
+
+            for (String field : aggregation.getGroupBy()) {
+                row.put(field, resultSet.getObject(field));
+            }
+
+            for (Aggregation.Metric metric : aggregation.getMetrics()) {
+                row.put(metric.getAlias(), Aggregation.normalize(metric, resultSet.getObject(metric.getAlias())));
+            }
+
+            rows.add(row);
+        });
+
+        return rows;
+    }
+
+
+
+    /**
+     * Saves a batch of objects in a single transaction, one JDBC batch per statement shape.
+     * Numeric ids are kept (upserted), the others are generated by the table.
+     * @param entities The objects with their ids.
+     * @return The objects' IDs, in order.
+     */
+    @Override
+    public List<String> saveAll(List<? extends Map.Entry<String, ?>> entities) {
+
+        if (entities.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        String[] ids = new String[entities.size()];
+        List<Document> documents = new ArrayList<>(entities.size());
+
+        // Rows with the same columns share a statement, keyed by its SQL
+        Map<String, List<Integer>> batches = new LinkedHashMap<>();
+
+        for (int i = 0; i < entities.size(); i++) {
+            Map.Entry<String, ?> entry = entities.get(i);
+            Document document = toDocument((ConfigurationSerializable) entry.getValue());
+
+            boolean keepId = entry.getKey() != null && entry.getKey().matches("\\d+");
+
+            if (keepId) {
+                document.put("id", entry.getKey());
+                ids[i] = entry.getKey();
+            }
+
+            documents.add(document);
+            String sql = keepId ? buildUpsertSqlString(document) : buildSqlString("INSERT INTO", document) + TRACK_INSERT;
+            batches.computeIfAbsent(sql, key -> new ArrayList<>()).add(i);
+        }
+
+        OperationTrace trace = this.tracer.start("saveAll");
+        trace.shape(batches.isEmpty() ? null : batches.keySet().iterator().next());
+
+        try (Connection connection = borrowConnection(trace)) {
+            connection.setAutoCommit(false);
+
+            try {
+                for (Map.Entry<String, List<Integer>> batch : batches.entrySet()) {
+                    executeBatch(connection, batch.getKey(), batch.getValue(), documents, ids);
+                }
+
+                connection.commit();
+                trace.rows(entities.size());
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            trace.failed(e);
+            handleSQLException(e);
+        } finally {
+            trace.close();
+        }
+
+        return Arrays.asList(ids);
+    }
+
+
+
+    /**
+     * Reads the rows changed and deleted after the cursor, through the (_updatedAt, id) indexes.
+     * @param cursor The cursor of the previous read.
+     * @param limit The maximum number of rows.
+     * @return The changed objects, null for the deleted ones, in change order.
+     */
+    @Override
+    public List<Versioned<Object>> changesSince(ChangeCursor cursor, int limit) {
+        List<Versioned<Object>> changes = this.readChanges("changesSince", this.table, cursor, limit);
+
+        if (!this.deletionsTracked) {
+            return changes;
+        }
+
+        List<Versioned<Object>> deletions = this.readChanges("deletionsSince", this.deletionsTable, cursor, limit);
+
+        // Ids are numeric, as the table generates them
+        return ChangeSet.merge(changes, deletions, limit, Comparator.comparingLong(Long::parseLong));
     }
 
+    // Helper function to read a page of the changes of the table or of its deletions
+    private List<Versioned<Object>> readChanges(String operation, String table, ChangeCursor cursor, int limit) {
+        boolean deletions = table.equals(this.deletionsTable);
+        String sql = "SELECT " + (deletions ? "id, " + VERSION_COLUMN + ", " + UPDATED_AT_COLUMN : "*") + " FROM " + table
+                + (cursor.getId() == null
+                        ? " WHERE " + UPDATED_AT_COLUMN + " >= ?"
+                        : " WHERE " + UPDATED_AT_COLUMN + " > ? OR (" + UPDATED_AT_COLUMN + " = ? AND id > ?)")
+                + " ORDER BY " + UPDATED_AT_COLUMN + ", id LIMIT ?";
+
+        OperationTrace trace = this.tracer.start(operation);
+        trace.shape(sql);
+
+        List<Versioned<Object>> changes = new ArrayList<>();
+
+        try (Connection connection = borrowConnection(trace);
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+
+            int index = 1;
+            statement.setLong(index++, cursor.getUpdatedAt());
+
+            if (cursor.getId() != null) {
+                statement.setLong(index++, cursor.getUpdatedAt());
+                statement.setString(index++, cursor.getId());
+            }
+
+            statement.setInt(index, limit);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    changes.add(deletions
+                            ? new Versioned<>(resultSet.getString("id"), null, resultSet.getLong(VERSION_COLUMN), resultSet.getLong(UPDATED_AT_COLUMN))
+                            : mapResultSetToVersioned(resultSet));
+                }
+            }
+
+            trace.rows(changes.size());
+        } catch (SQLException e) {
+            trace.failed(e);
+            handleSQLException(e);
+        } finally {
+            trace.close();
+        }
+
+        return changes;
+    }
 
 
 
     /**
-     * Sets the class for the MySQL client.
-     * This implementation is though to be used with POJOs.
-     * @param clazz The desired class.
+     * Finds an object by id along with its version.
+     * @param id The object's ID.
+     * @return The versioned object, null if not found.
      */
     @Override
-    public void setClass(Class<? extends ConfigurationSerializable> clazz) {
-        this.entityClass = clazz;
+    public Versioned<Object> getVersioned(String id) {
+        String sql = "SELECT * FROM " + this.table + " WHERE id = ?";
+
+        OperationTrace trace = this.tracer.start("getVersioned");
+        trace.shape(sql);
+
+        try (Connection connection = borrowConnection(trace);
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+
+            statement.setString(1, id);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    trace.rows(1);
+                    return mapResultSetToVersioned(resultSet);
+                }
+            }
+        } catch (SQLException e) {
+            trace.failed(e);
+            handleSQLException(e);
+        } finally {
+            trace.close();
+        }
+
+        return null;
+    }
+
+
+
+    /**
+     * Adds the change tracking columns and their index to the table, if missing,
+     * and the table of the deletions, dropping those past their retention.
+     * Failures are logged only, the table keeps working without change tracking.
+     */
+    @Override
+    public void ensureChangeTracking() {
+        String[] statements = {
+                "ALTER TABLE " + this.table + " ADD COLUMN " + VERSION_COLUMN + " BIGINT NOT NULL DEFAULT 0",
+                "ALTER TABLE " + this.table + " ADD COLUMN " + UPDATED_AT_COLUMN + " BIGINT NOT NULL DEFAULT 0",
+                "CREATE INDEX idx_" + this.table + "_changes ON " + this.table + " (" + UPDATED_AT_COLUMN + ", id)",
+                "CREATE TABLE IF NOT EXISTS " + this.deletionsTable + " (id BIGINT NOT NULL PRIMARY KEY, "
+                        + VERSION_COLUMN + " BIGINT NOT NULL, " + UPDATED_AT_COLUMN + " BIGINT NOT NULL, "
+                        + "INDEX idx_" + this.deletionsTable + "_changes (" + UPDATED_AT_COLUMN + ", id))",
+                "DELETE FROM " + this.deletionsTable + " WHERE " + UPDATED_AT_COLUMN + " < "
+                        + NOW_MILLIS + " - " + ChangeSet.DELETION_RETENTION_MILLIS
+        };
+
+        try (Connection connection = this.sqlClient.getConnection();
+             Statement statement = connection.createStatement()) {
+
+            for (String sql : statements) {
+                try {
+                    statement.execute(sql);
+                } catch (SQLException e) {
+                    if (e.getErrorCode() != DUPLICATE_COLUMN && e.getErrorCode() != DUPLICATE_KEY_NAME) {
+                        throw e;
+                    }
+                }
+            }
+
+            this.deletionsTracked = true;
+        } catch (SQLException e) {
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "Change tracking unavailable on {}: {}", this.table, e.getMessage());
+        }
+    }
+
+
+
+    /**
+     * Gets the collection name.
+     * @return The collection name.
+     */
+    @Override
+    public String getTableName() {
+        return this.table;
     }
 
 
@@ -281,17 +928,29 @@ public class MySQLImpl implements MySQLService {
     @Override
     public ConfigurationSerializable fromDocument(Document document) {
 
+        SerializationEvent serialization = SerializationEvent.start();
+
         // Puts all the entries of the document into a new map
         Map<String, ?> map = new HashMap<>(document);
 
-        return ConfigurationSerialization.deserializeObject(map, this.entityClass);
+        ConfigurationSerializable entity = ConfigurationSerialization.deserializeObject(map, this.entityClass);
+        serialization.finish(this.entityClass, false, map.size());
+        return entity;
     }
 
 
 
     @Override
     public Document toDocument(ConfigurationSerializable serializable) {
-        return new Document(serializable.serialize());
+        SerializationEvent serialization = SerializationEvent.start();
+        Document document = new Document(serializable.serialize());
+
+        // Guard fields carried by entities of other backends (e.g. migrated from YAML) have no column
+        // until updateAll creates it, the guards of this table are only written by updateAll
+        document.keySet().removeIf(key -> key.startsWith(FieldUpdate.GUARD_PREFIX));
+
+        serialization.finish(serializable.getClass(), true, document.size());
+        return document;
     }
 
 
@@ -306,6 +965,242 @@ public class MySQLImpl implements MySQLService {
         return sql.toString();
     }
 
+    // Helper function to borrow a pooled connection, accounting the wait to the trace
+    private Connection borrowConnection(OperationTrace trace) throws SQLException {
+        PoolCheckoutEvent checkout = PoolCheckoutEvent.start();
+        Connection connection = null;
+
+        try {
+            connection = this.sqlClient.getConnection();
+        } finally {
+            checkout.finish(this.sqlClient.getPoolName(), connection != null);
+        }
+
+        trace.connectionAcquired();
+        return connection;
+    }
+
+    // Helper function to build an insert that updates the row, bumping its version, when the id exists
+    private String buildUpsertSqlString(Document document) {
+        StringBuilder sql = new StringBuilder(buildSqlString("INSERT INTO", document))
+                .append(TRACK_INSERT)
+                .append(" ON DUPLICATE KEY UPDATE ");
+
+        for (String key : document.keySet()) {
+            sql.append(key).append(" = VALUES(").append(key).append("), ");
+        }
+
+        return sql.append(TRACK_UPDATE.substring(2)).toString(); // Without the leading comma
+    }
+
+    // Helper function to run the rows of a batch through one statement, collecting the generated ids
+    private void executeBatch(Connection connection, String sql, List<Integer> rows, List<Document> documents, String[] ids) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+
+            for (int row : rows) {
+                setParameters(statement, documents.get(row));
+                statement.addBatch();
+            }
+
+            statement.executeBatch();
+
+            try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                for (int row : rows) {
+                    if (ids[row] == null && generatedKeys.next()) {
+                        ids[row] = generatedKeys.getString(1);
+                    }
+                }
+            }
+        }
+    }
+
+    // Helper function to add the guard column of a set-based update, once per table
+    private void ensureGuardColumn(String guard) {
+
+        if (this.guardColumns.contains(guard)) {
+            return;
+        }
+
+        try (Connection connection = this.sqlClient.getConnection();
+             Statement statement = connection.createStatement()) {
+
+            statement.execute("ALTER TABLE " + this.table + " ADD COLUMN " + guard + " BIGINT NULL");
+        } catch (SQLException e) {
+            if (e.getErrorCode() != DUPLICATE_COLUMN) {
+                handleSQLException(e);
+            }
+        }
+
+        this.guardColumns.add(guard);
+    }
+
+    // Helper function to tell whether a column already stores integers
+    private boolean isIntegerColumn(Connection connection, String column) throws SQLException {
+
+        try (ResultSet columns = connection.getMetaData().getColumns(this.database, null, this.table, column)) {
+
+            if (!columns.next()) {
+                throw new SQLException("Column " + column + " not found in " + this.table);
+            }
+
+            int type = columns.getInt("DATA_TYPE");
+            return type == Types.BIGINT || type == Types.INTEGER || type == Types.SMALLINT || type == Types.TINYINT;
+        }
+    }
+
+    // Helper function to turn a query shape into a parameterized SQL template
+    private String compileQuery(Query query, boolean projected) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+
+        if (projected && !query.getProjection().isEmpty()) {
+            sql.append("id");
+
+            for (String field : query.getProjection()) {
+                sql.append(", ").append(checkIdentifier(field));
+            }
+        } else {
+            sql.append("*");
+        }
+
+        sql.append(" FROM ").append(this.table);
+
+        appendConditions(sql, query.getConditions());
+
+        for (int i = 0; i < query.getOrdering().size(); i++) {
+            Query.Order order = query.getOrdering().get(i);
+
+            sql.append(i == 0 ? " ORDER BY " : ", ")
+                    .append(checkIdentifier(order.getField()))
+                    .append(order.isAscending() ? " ASC" : " DESC");
+        }
+
+        if (query.hasLimit()) {
+            sql.append(" LIMIT ?");
+        }
+
+        return sql.toString();
+    }
+
+    // Helper function to turn an aggregation shape into a parameterized SQL template
+    private String compileAggregation(Aggregation aggregation) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+
+        for (String field : aggregation.getGroupBy()) {
+            sql.append(checkIdentifier(field)).append(", ");
+        }
+
+        for (int i = 0; i < aggregation.getMetrics().size(); i++) {
+            Aggregation.Metric metric = aggregation.getMetrics().get(i);
+
+            sql.append(i == 0 ? "" : ", ")
+                    .append(metric.getFunction().name())
+                    .append('(').append(metric.getField() == null ? "*" : checkIdentifier(metric.getField())).append(')')
+                    .append(" AS ").append(checkIdentifier(metric.getAlias()));
+        }
+
+        sql.append(" FROM ").append(this.table);
+
+        appendConditions(sql, aggregation.getFilter().getConditions());
+
+        if (!aggregation.getGroupBy().isEmpty()) {
+            sql.append(" GROUP BY ");
+
+            for (int i = 0; i < aggregation.getGroupBy().size(); i++) {
+                sql.append(i == 0 ? "" : ", ").append(aggregation.getGroupBy().get(i));
+            }
+        }
+
+        return sql.toString();
+    }
+
+    // Helper function to append the WHERE clause of query conditions, one placeholder per value
+    private static void appendConditions(StringBuilder sql, List<Condition> conditions) {
+
+        for (int i = 0; i < conditions.size(); i++) {
+            Condition condition = conditions.get(i);
+
+            sql.append(i == 0 ? " WHERE " : " AND ").append(checkIdentifier(condition.getField()));
+
+            switch (condition.getOperator()) {
+                case EQ:
+                    sql.append(" = ?");
+                    break;
+                case GT:
+                    sql.append(" > ?");
+                    break;
+                case GTE:
+                    sql.append(" >= ?");
+                    break;
+                case LT:
+                    sql.append(" < ?");
+                    break;
+                case LTE:
+                    sql.append(" <= ?");
+                    break;
+                default:
+                    // IN, the number of placeholders is part of the shape
+                    sql.append(" IN (");
+
+                    for (int j = 0; j < condition.getValues().size(); j++) {
+                        sql.append(j == 0 ? "?" : ", ?");
+                    }
+
+                    sql.append(")");
+                    break;
+            }
+        }
+    }
+
+    // Helper function to bind the parameters of a query to its template and read every row
+    private void runQuery(String operation, String sql, Query query, RowReader reader) {
+
+        OperationTrace trace = this.tracer.start(operation);
+        trace.shape(sql);
+
+        try (Connection connection = borrowConnection(trace);
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+
+            int index = 1;
+
+            for (Object parameter : query.getParameters()) {
+                statement.setObject(index++, parameter);
+            }
+
+            if (query.hasLimit()) {
+                statement.setInt(index, query.getLimit());
+            }
+
+            long rows = 0;
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    reader.read(resultSet);
+                    rows++;
+                }
+            }
+
+            trace.rows(rows);
+        } catch (SQLException e) {
+            trace.failed(e);
+            handleSQLException(e);
+        } finally {
+            trace.close();
+        }
+    }
+
+    @FunctionalInterface
+    private interface RowReader {
+        void read(ResultSet resultSet) throws SQLException;
+    }
+
+    private static String checkIdentifier(String name) {
+        if (name == null || !IDENTIFIER.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid column name: " + name);
+        }
+
+        return name;
+    }
+
     // Helper function to set parameters of PreparedStatement
     private void setParameters(PreparedStatement statement, Document document) throws SQLException {
         int index = 1;
@@ -323,6 +1218,38 @@ public class MySQLImpl implements MySQLService {
 
     // Helper function to map a ResultSet to a Map.Entry
     private Map.Entry<String, Object> mapResultSetToEntry(ResultSet resultSet) throws SQLException {
+        Document document = readRow(resultSet);
+
+        // Change tracking and guard columns aren't part of the object
+        stripMetadata(document);
+
+        ConfigurationSerializable serializable = fromDocument(document);
+        return new AbstractMap.SimpleEntry<>(resultSet.getString("id"), serializable);
+    }
+
+    // Helper function to map a ResultSet to an object with its change tracking metadata
+    private Versioned<Object> mapResultSetToVersioned(ResultSet resultSet) throws SQLException {
+        Document document = readRow(resultSet);
+
+        Object version = document.remove(VERSION_COLUMN);
+        Object updatedAt = document.remove(UPDATED_AT_COLUMN);
+        stripMetadata(document);
+
+        return new Versioned<>(
+                resultSet.getString("id"),
+                fromDocument(document),
+                version instanceof Number ? ((Number) version).longValue() : 0,
+                updatedAt instanceof Number ? ((Number) updatedAt).longValue() : 0
+        );
+    }
+
+    // Metadata columns (change tracking, update guards) are named with a leading underscore
+    private static void stripMetadata(Document document) {
+        document.keySet().removeIf(column -> column.startsWith("_"));
+    }
+
+    // Helper function to read every column of the current row
+    private Document readRow(ResultSet resultSet) throws SQLException {
         ResultSetMetaData metaData = resultSet.getMetaData();
         int columnCount = metaData.getColumnCount();
         Document document = new Document();
@@ -333,12 +1260,18 @@ public class MySQLImpl implements MySQLService {
             document.put(columnName, value);
         }
 
-        ConfigurationSerializable serializable = fromDocument(document);
-        return new AbstractMap.SimpleEntry<>(resultSet.getString("id"), serializable);
+        return document;
     }
 
-    // Helper function to handle SQLException
+    // Helper function to handle SQLException, failures are surfaced so that callers
+    // (and the resilience layer) can tell them apart from missing entities
     private void handleSQLException(SQLException e) {
-        LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "Error executing SQL query: " + e.getMessage());
+        throw sqlFailure(e);
+    }
+
+    // Helper function to log a SQLException and wrap it, for callers that throw it themselves
+    private RepositoryException sqlFailure(SQLException e) {
+        LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "Error executing SQL query: {}", e.getMessage());
+        return new RepositoryException("Error executing SQL query on " + this.table, e);
     }
 }
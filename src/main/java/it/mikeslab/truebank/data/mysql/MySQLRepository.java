@@ -1,24 +1,36 @@
 package it.mikeslab.truebank.data.mysql;
 
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.ChangeSet;
+import it.mikeslab.truebank.data.FieldUpdate;
 import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Query;
 import it.mikeslab.truebank.util.LoggerUtil;
 import org.bson.Document;
-import org.bson.types.ObjectId;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 
 public class MySQLRepository<T extends ConfigurationSerializable> implements Repository<T> {
 
     private final MySQLService service;
-    private Class<T> type;
+    private final Class<T> type;
 
     public MySQLRepository(MySQLService service, Class<T> type) {
         this.service = service;
 
-        // Set the type of the repository, strictly necessary and related to the POJO based approach
-        this.setType(type);
+        // Strictly necessary and related to the POJO based approach, the service is bound to the same class
+        this.type = type;
+
+        // Idempotent, adds the version columns to tables created before change tracking
+        service.ensureChangeTracking();
     }
 
 
@@ -35,9 +47,13 @@ public class MySQLRepository<T extends ConfigurationSerializable> implements Rep
     @Override
     public T get(String id) {
 
-        // todo, analyze this int string conversion problem in find, be careful. Id should be also alphanumeric occasionally
+        // Ids are numeric on MySQL, anything else can't match a row
+        // (and compared to a BIGINT column it would be read as 0)
+        if (id == null || !id.matches("\\d+")) {
+            return null;
+        }
 
-        Map.Entry<String, Object> entryMap = service.find(new Document("id", new ObjectId(id)));
+        Map.Entry<String, Object> entryMap = service.find(new Document("id", id));
 
         // Removed !type.isInstance(entryMap.getValue()) from the if statement
         // Since find method creates a new un-casted instance of a ConfigurationSerializable
@@ -58,22 +74,99 @@ public class MySQLRepository<T extends ConfigurationSerializable> implements Rep
     }
 
 
+    @Override
+    public List<Map.Entry<String, T>> scan(String afterId, int limit) {
+        List<Map.Entry<String, T>> page = new ArrayList<>();
+
+        for (Map.Entry<String, Object> entry : service.scan(afterId, limit)) {
+            page.add(Map.entry(entry.getKey(), type.cast(entry.getValue())));
+        }
+
+        return page;
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> query(Query query) {
+        List<Map.Entry<String, T>> results = new ArrayList<>();
+
+        for (Map.Entry<String, Object> entry : service.query(query)) {
+            results.add(Map.entry(entry.getKey(), type.cast(entry.getValue())));
+        }
+
+        return results;
+    }
+
+    @Override
+    public List<Map<String, Object>> select(Query query) {
+        return service.select(query);
+    }
+
+    @Override
+    public List<Map<String, Object>> aggregate(Aggregation aggregation) {
+        return service.aggregate(aggregation);
+    }
+
+    @Override
+    public List<String> saveAll(List<Map.Entry<String, T>> entities) {
+        return service.saveAll(entities);
+    }
+
+
+    @Override
+    public ChangeSet<T> changesSince(ChangeCursor cursor, int limit) {
+        List<Versioned<T>> changes = new ArrayList<>();
+
+        for (Versioned<Object> change : service.changesSince(cursor, limit)) {
+            changes.add(new Versioned<>(change.getId(), type.cast(change.getEntity()), change.getVersion(), change.getUpdatedAt()));
+        }
+
+        return new ChangeSet<>(changes, changes.isEmpty() ? cursor : changes.get(changes.size() - 1).toCursor());
+    }
+
+
+    @Override
+    public Versioned<T> getVersioned(String id) {
+        Versioned<Object> versioned = service.getVersioned(id);
+
+        if (versioned == null) {
+            return null;
+        }
+
+        return new Versioned<>(versioned.getId(), type.cast(versioned.getEntity()), versioned.getVersion(), versioned.getUpdatedAt());
+    }
+
+    @Override
+    public boolean compareAndUpdate(String id, long expectedVersion, T obj) {
+        return service.compareAndUpdate(id, expectedVersion, obj);
+    }
+
+    @Override
+    public long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit) {
+        return service.updateAll(update, excludedIds, limit);
+    }
+
+    @Override
+    public long convertToFixedPoint(String field, int scale) {
+        return service.convertToFixedPoint(field, scale);
+    }
+
+
     @Override
     public void update(String id, T obj) {
         service.update(id, obj);
     }
 
     @Override
-    public void delete(String id) {
-        service.delete(id);
+    public UpsertResult upsert(String id, T obj) {
+        return service.upsert(id, obj);
     }
 
-
     @Override
-    public void setRepositoryName(String tableName) {
-        service.setTable(tableName);
+    public void delete(String id) {
+        service.delete(id);
     }
 
+
     @Override
     public String getRepositoryName() {
         return service.getTableName();
@@ -87,12 +180,6 @@ public class MySQLRepository<T extends ConfigurationSerializable> implements Rep
 
     }
 
-    @Override
-    public void setType(Class<T> type) {
-        this.type = type;
-        this.service.setClass(type);
-    }
-
     @Override
     public void close() {
         service.disconnect();
@@ -1,33 +1,35 @@
 package it.mikeslab.truebank.data.mysql;
 
 import com.zaxxer.hikari.HikariDataSource;
-import it.mikeslab.truebank.pojo.database.URIBuilder;
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.FieldUpdate;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Query;
 import org.bson.Document;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
- * Interface: MongoDBService
- * Handles the MongoDB service for the plugin.
+ * Interface: MySQLService
+ * Handles the MySQL service for the plugin.
+ * The table, entity class and tracer are fixed when the service is created,
+ * so a service can be shared by any number of threads.
  */
 
 public interface MySQLService {
 
 
-    void connect(URIBuilder connectionString);
-
     void disconnect();
 
     boolean isConnected(boolean silent);
     HikariDataSource getConnection();
 
 
-    void setDatabase(String database);
-
-
-    void setTable(String table);
-
     String getTable();
 
 
@@ -35,18 +37,39 @@ public interface MySQLService {
 
     Map.Entry<String, Object> update(String id, Object obj);
 
+    UpsertResult upsert(String id, Object obj);
+
     Map.Entry<String, Object> find(Document document);
 
     void delete(String id);
 
+    List<Map.Entry<String, Object>> scan(String afterId, int limit);
+
+    List<Map.Entry<String, Object>> query(Query query);
+
+    List<Map<String, Object>> select(Query query);
+
+    List<Map<String, Object>> aggregate(Aggregation aggregation);
+
+    List<String> saveAll(List<? extends Map.Entry<String, ?>> entities);
+
+    List<Versioned<Object>> changesSince(ChangeCursor cursor, int limit);
+
+    void ensureChangeTracking();
+
+    Versioned<Object> getVersioned(String id);
+
+    boolean compareAndUpdate(String id, long expectedVersion, Object obj);
+
+    long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit);
+
+    long convertToFixedPoint(String field, int scale);
+
     Document toDocument(ConfigurationSerializable serializable);
 
     String getTableName();
 
-    void setClass(Class<? extends ConfigurationSerializable> clazz);
-
     ConfigurationSerializable fromDocument(Document document);
 
 
-
 }
@@ -0,0 +1,118 @@
+package it.mikeslab.truebank.data.offheap;
+
+import it.mikeslab.truebank.pojo.User;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static it.mikeslab.truebank.data.offheap.OffHeapAccountStore.BALANCE;
+import static it.mikeslab.truebank.data.offheap.OffHeapAccountStore.CARD_NUMBER;
+import static it.mikeslab.truebank.data.offheap.OffHeapAccountStore.ID;
+import static it.mikeslab.truebank.data.offheap.OffHeapAccountStore.ID_LENGTH;
+import static it.mikeslab.truebank.data.offheap.OffHeapAccountStore.NAME;
+import static it.mikeslab.truebank.data.offheap.OffHeapAccountStore.NAME_LENGTH;
+import static it.mikeslab.truebank.data.offheap.OffHeapAccountStore.SECURITY_CODE;
+import static it.mikeslab.truebank.data.offheap.OffHeapAccountStore.UUID_LEAST;
+import static it.mikeslab.truebank.data.offheap.OffHeapAccountStore.UUID_MOST;
+import static it.mikeslab.truebank.data.offheap.OffHeapAccountStore.VERSION;
+
+/**
+ * Class: AccountRecord
+ * Flyweight over an account record of the {@link OffHeapAccountStore}:
+ * the primitive accessors read the record in place, only the accessors
+ * returning objects allocate. Positioned by the store, valid only inside
+ * the reader it was passed to.
+ */
+public final class AccountRecord {
+
+    private final OffHeapAccountStore store;
+
+    private ByteBuffer segment;
+    private int offset;
+
+    AccountRecord(OffHeapAccountStore store) {
+        this.store = store;
+    }
+
+    AccountRecord at(int slot) {
+        this.segment = this.store.segment(slot);
+        this.offset = this.store.offset(slot);
+        return this;
+    }
+
+    public long getUuidMostBits() {
+        return this.segment.getLong(this.offset + UUID_MOST);
+    }
+
+    public long getUuidLeastBits() {
+        return this.segment.getLong(this.offset + UUID_LEAST);
+    }
+
+    public long getCardNumber() {
+        return this.segment.getLong(this.offset + CARD_NUMBER);
+    }
+
+    /**
+     * Gets the balance of the account.
+     * @return The balance, in minor units (see Money).
+     */
+    public long getBalance() {
+        return this.segment.getLong(this.offset + BALANCE);
+    }
+
+    public long getVersion() {
+        return this.segment.getLong(this.offset + VERSION);
+    }
+
+    public int getSecurityCode() {
+        return this.segment.getInt(this.offset + SECURITY_CODE);
+    }
+
+    public UUID getUuid() {
+        return new UUID(this.getUuidMostBits(), this.getUuidLeastBits());
+    }
+
+    public String getId() {
+        int length = this.segment.get(this.offset + ID_LENGTH);
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) this.segment.get(this.offset + ID + i);
+        }
+
+        return new String(chars);
+    }
+
+    public String getDisplayName() {
+        int length = this.segment.get(this.offset + NAME_LENGTH);
+
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            bytes[i] = this.segment.get(this.offset + NAME + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies the account to the heap. The card isn't part of the record,
+     * it's stored in the card repository.
+     * @return The account.
+     */
+    public User toUser() {
+        return User.builder()
+                .uuid(this.getUuid())
+                .displayName(this.getDisplayName())
+                .securityCode(this.getSecurityCode())
+                .cardNumber(this.getCardNumber())
+                .balance(this.getBalance())
+                .build();
+    }
+
+}
@@ -0,0 +1,244 @@
+package it.mikeslab.truebank.data.offheap;
+
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.ChangeFollower;
+import it.mikeslab.truebank.data.ForwardingRepository;
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.query.Condition;
+import it.mikeslab.truebank.data.query.Query;
+import it.mikeslab.truebank.pojo.User;
+import it.mikeslab.truebank.util.LoggerUtil;
+import lombok.Getter;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Class: OffHeapAccountRepository
+ * Keeps the whole user repository resident in an {@link OffHeapAccountStore},
+ * serving reads by id and lookups by UUID without touching the database.
+ *
+ * The store is filled from the change stream of the repository (see
+ * Repository#changesSince) on open, then kept up to date by it every few
+ * seconds, writes made by other servers and set-based account jobs included.
+ * Single writes made here are stored at once, as the next version of the
+ * resident account (the change stream then brings the version the database
+ * assigned); accounts deleted by another server are dropped by the next sync.
+ *
+ * Configured through the "offHeap" section of the user repository configuration:
+ *
+ *   offHeap:
+ *     enabled: true
+ *     syncIntervalSeconds: 5
+ *     rewindSeconds: 60
+ */
+public class OffHeapAccountRepository extends ForwardingRepository<User> {
+
+    private static final int SYNC_BATCH = 1000;
+
+    private static final String UUID_FIELD = "uuid";
+
+    private final String name;
+
+    @Getter
+    private final OffHeapAccountStore store = new OffHeapAccountStore();
+
+    private final ChangeFollower<User> follower;
+
+    // Accounts of the change stream too large to fit, for the logs
+    private final AtomicLong skipped = new AtomicLong();
+
+    private OffHeapAccountRepository(Repository<User> delegate, String name, long rewindMillis) {
+        super(delegate);
+        this.name = name;
+        this.follower = new ChangeFollower<>(delegate, "OffHeap-" + name, SYNC_BATCH, rewindMillis, ChangeCursor.START, this::apply);
+    }
+
+    /**
+     * Loads every account of a repository off-heap, blocking.
+     * @param delegate The repository, must track changes.
+     * @param name The repository name.
+     * @param section The "offHeap" section of the repository configuration.
+     * @return The resident repository, or the given one if it doesn't track changes.
+     */
+    public static Repository<User> open(Repository<User> delegate, String name, ConfigurationSection section) {
+
+        long startedAt = System.nanoTime();
+        long syncMillis = TimeUnit.SECONDS.toMillis(Math.max(1, section.getLong("syncIntervalSeconds", 5)));
+
+        OffHeapAccountRepository repository = new OffHeapAccountRepository(delegate, name, ChangeFollower.rewindMillis(section));
+
+        try {
+            repository.follower.poll();
+        } catch (UnsupportedOperationException e) {
+            repository.follower.close();
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "[{}] changes aren't tracked, accounts stay on the database", name);
+            return delegate;
+        } catch (IOException e) {
+            // Not thrown, the store is in memory
+            throw new UncheckedIOException(e);
+        }
+
+        LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "[{}] {} accounts loaded off-heap ({} KiB) in {}ms, {} too large to fit",
+                name, repository.store.size(), repository.store.getOffHeapBytes() / 1024,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), repository.skipped.get());
+
+        repository.follower.follow(syncMillis);
+        return repository;
+    }
+
+    @Override
+    public User get(String id) {
+
+        User resident = this.store.get(id);
+
+        if (resident != null) {
+            return resident;
+        }
+
+        // Created on another server since the last sync, or too large to fit
+        Versioned<User> versioned = this.delegate.getVersioned(id);
+
+        if (versioned == null) {
+            return null;
+        }
+
+        this.store.put(id, versioned.getEntity(), versioned.getVersion());
+        return versioned.getEntity();
+    }
+
+    @Override
+    public Versioned<User> getVersioned(String id) {
+
+        // Versions of resident accounts may lag behind, compareAndUpdate needs the one the database holds
+        Versioned<User> versioned = this.delegate.getVersioned(id);
+
+        if (versioned != null) {
+            this.store.put(id, versioned.getEntity(), versioned.getVersion());
+        }
+
+        return versioned;
+    }
+
+    @Override
+    public List<Map.Entry<String, User>> query(Query query) {
+
+        UUID uuid = this.lookupUuid(query);
+
+        if (uuid == null) {
+            return this.delegate.query(query);
+        }
+
+        Map.Entry<String, User> resident = this.store.read(uuid, record -> new AbstractMap.SimpleEntry<>(record.getId(), record.toUser()));
+
+        return resident != null
+                ? Collections.singletonList(resident)
+                : this.delegate.query(query);
+    }
+
+    // New accounts are read on demand, or brought by the next sync
+    @Override
+    public String save(User obj, Object... args) {
+        return this.delegate.save(obj, args);
+    }
+
+    @Override
+    public void update(String id, User obj) {
+        this.delegate.update(id, obj);
+        this.written(id, obj);
+    }
+
+    @Override
+    public UpsertResult upsert(String id, User obj) {
+        UpsertResult result = this.delegate.upsert(id, obj);
+        this.written(id, obj);
+
+        return result;
+    }
+
+    @Override
+    public void delete(String id) {
+        this.delegate.delete(id);
+        this.store.remove(id);
+    }
+
+    @Override
+    public boolean compareAndUpdate(String id, long expectedVersion, User obj) {
+
+        boolean applied = this.delegate.compareAndUpdate(id, expectedVersion, obj);
+
+        if (applied) {
+            this.store.put(id, obj, expectedVersion + 1);
+        } else {
+            // Changed by another server, the resident copy is stale: read on demand until the next sync
+            this.store.remove(id);
+        }
+
+        return applied;
+    }
+
+    @Override
+    public void close() {
+        this.follower.close();
+
+        this.store.clear();
+        this.delegate.close();
+    }
+
+    // Helper function to store an account read from the change stream, older versions are ignored by the store
+    private void apply(Versioned<User> change) {
+        if (change.isDeletion()) {
+            this.store.remove(change.getId());
+            return;
+        }
+
+        if (!OffHeapAccountStore.fits(change.getId(), change.getEntity())) {
+            this.skipped.incrementAndGet();
+            return;
+        }
+
+        this.store.put(change.getId(), change.getEntity(), change.getVersion());
+    }
+
+    // Helper function to serve an account written here up to date, without reading it back: every write bumps
+    // the version by one, the next sync replaces it with the version the database assigned if others wrote meanwhile
+    private void written(String id, User user) {
+        long version = this.store.version(id);
+
+        if (version >= 0 && !this.store.put(id, user, version + 1)) {
+            this.store.remove(id);
+        }
+    }
+
+    // Helper function to tell whether a query is a lookup by UUID, returns the UUID
+    private UUID lookupUuid(Query query) {
+
+        if (query.getConditions().size() != 1 || !query.getOrdering().isEmpty()) {
+            return null;
+        }
+
+        Condition condition = query.getConditions().get(0);
+
+        if (condition.getOperator() != Condition.Operator.EQ || !condition.getField().equals(UUID_FIELD)) {
+            return null;
+        }
+
+        try {
+            return UUID.fromString(String.valueOf(condition.getValues().get(0)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+}
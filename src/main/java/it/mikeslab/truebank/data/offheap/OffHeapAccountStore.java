@@ -0,0 +1,509 @@
+package it.mikeslab.truebank.data.offheap;
+
+import it.mikeslab.truebank.pojo.User;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Class: OffHeapAccountStore
+ * Every account of the user repository as a fixed-width record in direct
+ * ByteBuffer segments, outside the Java heap, so that the whole table stays
+ * resident without weighing on the garbage collector. Two primitive
+ * open-addressing tables index the records by repository id and by UUID.
+ *
+ * Record layout, 128 bytes:
+ *   0   long      uuid, most significant bits
+ *   8   long      uuid, least significant bits
+ *   16  long      card number
+ *   24  long      balance, in minor units
+ *   32  long      version
+ *   40  int       security code
+ *   44  byte      id length
+ *   45  byte      display name length, -1 if none
+ *   46  byte[36]  id, ASCII
+ *   82  byte[46]  display name, UTF-8
+ *
+ * Accounts whose id or display name don't fit aren't stored (see #fits).
+ * Reads share a read lock, writes take the write lock.
+ */
+public final class OffHeapAccountStore {
+
+    static final int RECORD_SIZE = 128;
+
+    static final int UUID_MOST = 0;
+    static final int UUID_LEAST = 8;
+    static final int CARD_NUMBER = 16;
+    static final int BALANCE = 24;
+    static final int VERSION = 32;
+    static final int SECURITY_CODE = 40;
+    static final int ID_LENGTH = 44;
+    static final int NAME_LENGTH = 45;
+    static final int ID = 46;
+    static final int NAME = 82;
+
+    static final int MAX_ID_LENGTH = NAME - ID;
+    static final int MAX_NAME_LENGTH = RECORD_SIZE - NAME;
+
+    // 8192 records, 1 MiB per segment
+    private static final int SEGMENT_SHIFT = 13;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private ByteBuffer[] segments = new ByteBuffer[0];
+    private int highWater;
+
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+
+    // Slot + 1 of each record, EMPTY or REMOVED otherwise; both tables are kept the same size
+    private int[] idTable = new int[1024];
+    private int[] uuidTable = new int[1024];
+    private int idTableUsed;
+    private int uuidTableUsed;
+    private int size;
+
+    /**
+     * Tells whether an account can be stored, its id and display name must fit in a record.
+     * @param id The repository id.
+     * @param user The account.
+     * @return True if the account fits.
+     */
+    public static boolean fits(String id, User user) {
+
+        if (id.length() > MAX_ID_LENGTH || user.getUuid() == null) {
+            return false;
+        }
+
+        for (int i = 0; i < id.length(); i++) {
+            if (id.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+
+        return user.getDisplayName() == null || user.getDisplayName().getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_LENGTH;
+    }
+
+    /**
+     * Stores an account, unless a newer version of it is already stored.
+     * @param id The repository id.
+     * @param user The account.
+     * @param version The version of the account.
+     * @return False if the account doesn't fit or a newer version is stored.
+     */
+    public boolean put(String id, User user, long version) {
+
+        if (!fits(id, user)) {
+            return false;
+        }
+
+        byte[] name = user.getDisplayName() == null ? null : user.getDisplayName().getBytes(StandardCharsets.UTF_8);
+
+        this.lock.writeLock().lock();
+
+        try {
+            int slot = this.findById(id);
+
+            if (slot >= 0) {
+                if (this.segment(slot).getLong(this.offset(slot) + VERSION) > version) {
+                    return false;
+                }
+
+                // Indexed by the UUID being replaced
+                this.unindexUuid(slot);
+            } else {
+                slot = this.allocate();
+                this.writeId(slot, id);
+                this.indexId(slot, idHash(id));
+                this.size++;
+            }
+
+            ByteBuffer segment = this.segment(slot);
+            int offset = this.offset(slot);
+
+            segment.putLong(offset + UUID_MOST, user.getUuid().getMostSignificantBits());
+            segment.putLong(offset + UUID_LEAST, user.getUuid().getLeastSignificantBits());
+            segment.putLong(offset + CARD_NUMBER, user.getCardNumber());
+            segment.putLong(offset + BALANCE, user.getBalance());
+            segment.putLong(offset + VERSION, version);
+            segment.putInt(offset + SECURITY_CODE, user.getSecurityCode());
+            segment.put(offset + NAME_LENGTH, (byte) (name == null ? -1 : name.length));
+
+            if (name != null) {
+                for (int i = 0; i < name.length; i++) {
+                    segment.put(offset + NAME + i, name[i]);
+                }
+            }
+
+            this.indexUuid(slot, uuidHash(user.getUuid().getMostSignificantBits(), user.getUuid().getLeastSignificantBits()));
+            this.growIfNeeded();
+
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an account.
+     * @param id The repository id.
+     * @return True if the account was stored.
+     */
+    public boolean remove(String id) {
+
+        this.lock.writeLock().lock();
+
+        try {
+            int slot = this.findById(id);
+
+            if (slot < 0) {
+                return false;
+            }
+
+            this.unindexUuid(slot);
+            unindex(this.idTable, idHash(id), slot);
+            this.release(slot);
+            this.size--;
+
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads an account in place, without copying it to the heap.
+     * The record is only valid inside the reader and must not be kept.
+     * @param id The repository id.
+     * @param reader The reader.
+     * @return The reader result, null if the account isn't stored.
+     */
+    public <R> R read(String id, Function<AccountRecord, R> reader) {
+
+        this.lock.readLock().lock();
+
+        try {
+            int slot = this.findById(id);
+            return slot < 0 ? null : reader.apply(new AccountRecord(this).at(slot));
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads an account by UUID in place, without copying it to the heap.
+     * The record is only valid inside the reader and must not be kept.
+     * @param uuid The player's UUID.
+     * @param reader The reader.
+     * @return The reader result, null if the account isn't stored.
+     */
+    public <R> R read(UUID uuid, Function<AccountRecord, R> reader) {
+
+        this.lock.readLock().lock();
+
+        try {
+            int slot = this.findByUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            return slot < 0 ? null : reader.apply(new AccountRecord(this).at(slot));
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits every account in place, in no particular order, blocking writes meanwhile.
+     * The record is reused between accounts and must not be kept.
+     * @param visitor The visitor.
+     */
+    public void forEach(Consumer<AccountRecord> visitor) {
+
+        this.lock.readLock().lock();
+
+        try {
+            AccountRecord record = new AccountRecord(this);
+
+            for (int entry : this.idTable) {
+                if (entry > 0) {
+                    visitor.accept(record.at(entry - 1));
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies an account to the heap.
+     * @param id The repository id.
+     * @return The account, null if it isn't stored.
+     */
+    public User get(String id) {
+        return this.read(id, AccountRecord::toUser);
+    }
+
+    /**
+     * Gets the version of a stored account.
+     * @param id The repository id.
+     * @return The version, -1 if the account isn't stored.
+     */
+    public long version(String id) {
+        Long version = this.read(id, AccountRecord::getVersion);
+        return version == null ? -1 : version;
+    }
+
+    public int size() {
+        this.lock.readLock().lock();
+
+        try {
+            return this.size;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the memory reserved outside the heap, records and free slots.
+     * @return The size in bytes.
+     */
+    public long getOffHeapBytes() {
+        this.lock.readLock().lock();
+
+        try {
+            return (long) this.segments.length * (SEGMENT_MASK + 1) * RECORD_SIZE;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops every account, the memory is released once collected.
+     */
+    public void clear() {
+        this.lock.writeLock().lock();
+
+        try {
+            this.segments = new ByteBuffer[0];
+            this.highWater = 0;
+            this.freeCount = 0;
+            this.idTable = new int[1024];
+            this.uuidTable = new int[1024];
+            this.idTableUsed = 0;
+            this.uuidTableUsed = 0;
+            this.size = 0;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    ByteBuffer segment(int slot) {
+        return this.segments[slot >>> SEGMENT_SHIFT];
+    }
+
+    int offset(int slot) {
+        return (slot & SEGMENT_MASK) * RECORD_SIZE;
+    }
+
+    // Helper function to take a free slot, adding a segment when every slot is taken
+    private int allocate() {
+
+        if (this.freeCount > 0) {
+            return this.freeSlots[--this.freeCount];
+        }
+
+        if ((this.highWater >>> SEGMENT_SHIFT) == this.segments.length) {
+            this.segments = Arrays.copyOf(this.segments, this.segments.length + 1);
+            this.segments[this.segments.length - 1] = ByteBuffer.allocateDirect((SEGMENT_MASK + 1) * RECORD_SIZE).order(ByteOrder.nativeOrder());
+        }
+
+        return this.highWater++;
+    }
+
+    private void release(int slot) {
+
+        if (this.freeCount == this.freeSlots.length) {
+            this.freeSlots = Arrays.copyOf(this.freeSlots, this.freeSlots.length * 2);
+        }
+
+        this.freeSlots[this.freeCount++] = slot;
+    }
+
+    private void writeId(int slot, String id) {
+        ByteBuffer segment = this.segment(slot);
+        int offset = this.offset(slot);
+
+        segment.put(offset + ID_LENGTH, (byte) id.length());
+
+        for (int i = 0; i < id.length(); i++) {
+            segment.put(offset + ID + i, (byte) id.charAt(i));
+        }
+    }
+
+    private boolean idEquals(int slot, String id) {
+        ByteBuffer segment = this.segment(slot);
+        int offset = this.offset(slot);
+
+        if (segment.get(offset + ID_LENGTH) != id.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < id.length(); i++) {
+            if (segment.get(offset + ID + i) != id.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int findById(String id) {
+        int mask = this.idTable.length - 1;
+
+        for (int index = idHash(id) & mask; ; index = (index + 1) & mask) {
+            int entry = this.idTable[index];
+
+            if (entry == EMPTY) {
+                return -1;
+            }
+
+            if (entry > 0 && this.idEquals(entry - 1, id)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private int findByUuid(long most, long least) {
+        int mask = this.uuidTable.length - 1;
+
+        for (int index = uuidHash(most, least) & mask; ; index = (index + 1) & mask) {
+            int entry = this.uuidTable[index];
+
+            if (entry == EMPTY) {
+                return -1;
+            }
+
+            if (entry > 0) {
+                ByteBuffer segment = this.segment(entry - 1);
+                int offset = this.offset(entry - 1);
+
+                if (segment.getLong(offset + UUID_MOST) == most && segment.getLong(offset + UUID_LEAST) == least) {
+                    return entry - 1;
+                }
+            }
+        }
+    }
+
+    private void unindexUuid(int slot) {
+        ByteBuffer segment = this.segment(slot);
+        int offset = this.offset(slot);
+
+        unindex(this.uuidTable, uuidHash(segment.getLong(offset + UUID_MOST), segment.getLong(offset + UUID_LEAST)), slot);
+    }
+
+    private void indexId(int slot, int hash) {
+        if (index(this.idTable, hash, slot)) {
+            this.idTableUsed++;
+        }
+    }
+
+    private void indexUuid(int slot, int hash) {
+        if (index(this.uuidTable, hash, slot)) {
+            this.uuidTableUsed++;
+        }
+    }
+
+    // Helper function to add a slot to an index table, returns true if it took an empty cell rather than a removed one
+    private static boolean index(int[] table, int hash, int slot) {
+        int mask = table.length - 1;
+        int index = hash & mask;
+
+        while (table[index] > 0) {
+            index = (index + 1) & mask;
+        }
+
+        boolean empty = table[index] == EMPTY;
+        table[index] = slot + 1;
+        return empty;
+    }
+
+    private static void unindex(int[] table, int hash, int slot) {
+        int mask = table.length - 1;
+
+        for (int index = hash & mask; table[index] != EMPTY; index = (index + 1) & mask) {
+            if (table[index] == slot + 1) {
+                // Kept as a marker, the entries after it may have probed past this one
+                table[index] = REMOVED;
+                return;
+            }
+        }
+    }
+
+    // Helper function to rebuild the index tables once one of them is half full, removed cells included
+    private void growIfNeeded() {
+
+        if (Math.max(this.idTableUsed, this.uuidTableUsed) * 2 <= this.idTable.length) {
+            return;
+        }
+
+        int capacity = this.idTable.length;
+
+        while (this.size * 4 > capacity) {
+            capacity *= 2;
+        }
+
+        int[] previous = this.idTable;
+
+        this.idTable = new int[capacity];
+        this.uuidTable = new int[capacity];
+        this.idTableUsed = 0;
+        this.uuidTableUsed = 0;
+
+        for (int entry : previous) {
+            if (entry > 0) {
+                int slot = entry - 1;
+                ByteBuffer segment = this.segment(slot);
+                int offset = this.offset(slot);
+
+                this.indexId(slot, idHash(segment, offset));
+                this.indexUuid(slot, uuidHash(segment.getLong(offset + UUID_MOST), segment.getLong(offset + UUID_LEAST)));
+            }
+        }
+    }
+
+    private static int idHash(String id) {
+        return mix(id.hashCode());
+    }
+
+    // Same as idHash(String) of the stored id, which is ASCII
+    private static int idHash(ByteBuffer segment, int offset) {
+        int hash = 0;
+        int length = segment.get(offset + ID_LENGTH);
+
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + segment.get(offset + ID + i);
+        }
+
+        return mix(hash);
+    }
+
+    private static int uuidHash(long most, long least) {
+        long hash = most ^ least;
+        return mix((int) (hash ^ (hash >>> 32)));
+    }
+
+    // Spreads the low bits, sequential ids would otherwise cluster
+    private static int mix(int hash) {
+        int mixed = hash * 0x9E3779B9;
+        return mixed ^ (mixed >>> 16);
+    }
+
+}
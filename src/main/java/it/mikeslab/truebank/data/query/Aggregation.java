@@ -0,0 +1,210 @@
+package it.mikeslab.truebank.data.query;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class: Aggregation
+ * Aggregates computed by the database over the entities matching a query,
+ * optionally per group of field values, built with {@link #builder()}:
+ *
+ *   Aggregation.builder().count("accounts").sum("balance", "supply").build()
+ *
+ * Every result row holds the group fields and one value per metric, named by
+ * its alias. Sums of whole numbers are longs, averages are doubles; a metric
+ * over no value (e.g. the sum of an empty repository) is null, counts are 0.
+ */
+@Getter
+@RequiredArgsConstructor
+public final class Aggregation {
+
+    private final Query filter;
+    private final List<String> groupBy;
+    private final List<Metric> metrics;
+    private final String shape;
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Gets the row of an aggregation matching nothing, as SQL reports it: counts
+     * are 0 and the other metrics null. Grouped aggregations have no row at all.
+     * @return The row, null when grouped.
+     */
+    public Map<String, Object> emptyRow() {
+
+        if (!this.groupBy.isEmpty()) {
+            return null;
+        }
+
+        Map<String, Object> row = new HashMap<>();
+
+        for (Metric metric : this.metrics) {
+            row.put(metric.getAlias(), metric.getFunction() == Function.COUNT ? (Object) 0L : null);
+        }
+
+        return row;
+    }
+
+    /**
+     * Brings a metric value read from a backend to the documented type: longs for
+     * counts and whole sums, doubles for averages and fractional values.
+     * @param metric The metric.
+     * @param value The value, as read.
+     * @return The normalized value.
+     */
+    public static Object normalize(Metric metric, Object value) {
+
+        if (!(value instanceof Number)) {
+            return value;
+        }
+
+        Number number = (Number) value;
+
+        switch (metric.getFunction()) {
+            case COUNT:
+                return number.longValue();
+            case AVG:
+                return number.doubleValue();
+            default:
+                if (number instanceof BigDecimal) {
+                    BigDecimal decimal = (BigDecimal) number;
+                    return decimal.signum() == 0 || decimal.stripTrailingZeros().scale() <= 0 ? (Object) decimal.longValueExact() : (Object) decimal.doubleValue();
+                }
+
+                if (number instanceof BigInteger) {
+                    return number.longValue();
+                }
+
+                return number instanceof Integer || number instanceof Short || number instanceof Byte ? (Object) number.longValue() : number;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.shape;
+    }
+
+    public enum Function {
+        COUNT, SUM, AVG, MIN, MAX
+    }
+
+    /**
+     * A single aggregate, over a field (none for COUNT, which counts entities).
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static final class Metric {
+
+        private final Function function;
+        private final String field;
+        private final String alias;
+
+    }
+
+    public static final class Builder {
+
+        private final List<String> groupBy = new ArrayList<>();
+        private final List<Metric> metrics = new ArrayList<>();
+        private Query filter = Query.builder().build();
+
+        private Builder() {
+        }
+
+        /**
+         * Restricts the aggregation to the entities matching the conditions of a query,
+         * its ordering, limit and projection are ignored.
+         */
+        public Builder where(Query filter) {
+            this.filter = filter.conditionsOnly();
+            return this;
+        }
+
+        public Builder groupBy(String... fields) {
+            for (String field : fields) {
+                this.groupBy.add(checkName(field));
+            }
+
+            return this;
+        }
+
+        public Builder count(String alias) {
+            return this.metric(Function.COUNT, null, alias);
+        }
+
+        public Builder sum(String field, String alias) {
+            return this.metric(Function.SUM, checkName(field), alias);
+        }
+
+        public Builder avg(String field, String alias) {
+            return this.metric(Function.AVG, checkName(field), alias);
+        }
+
+        public Builder min(String field, String alias) {
+            return this.metric(Function.MIN, checkName(field), alias);
+        }
+
+        public Builder max(String field, String alias) {
+            return this.metric(Function.MAX, checkName(field), alias);
+        }
+
+        public Aggregation build() {
+
+            if (this.metrics.isEmpty()) {
+                throw new IllegalStateException("An aggregation needs at least one metric");
+            }
+
+            StringBuilder shape = new StringBuilder(this.filter.getShape());
+
+            for (Metric metric : this.metrics) {
+                shape.append(' ').append(metric.getFunction()).append('(')
+                        .append(metric.getField() == null ? "*" : metric.getField())
+                        .append(") ").append(metric.getAlias());
+            }
+
+            if (!this.groupBy.isEmpty()) {
+                shape.append(" group ").append(String.join(",", this.groupBy));
+            }
+
+            return new Aggregation(
+                    this.filter,
+                    Collections.unmodifiableList(new ArrayList<>(this.groupBy)),
+                    Collections.unmodifiableList(new ArrayList<>(this.metrics)),
+                    shape.toString()
+            );
+        }
+
+        private Builder metric(Function function, String field, String alias) {
+
+            checkName(alias);
+
+            if (this.groupBy.contains(alias) || this.metrics.stream().anyMatch(metric -> metric.getAlias().equals(alias))) {
+                throw new IllegalArgumentException("Duplicate aggregation alias: " + alias);
+            }
+
+            this.metrics.add(new Metric(function, field, alias));
+            return this;
+        }
+
+        // Names end up in statements, pipelines and plan keys
+        private static String checkName(String name) {
+
+            if (name == null || !name.matches("[A-Za-z][A-Za-z0-9_]*")) {
+                throw new IllegalArgumentException("Invalid name: " + name);
+            }
+
+            return name;
+        }
+
+    }
+
+}
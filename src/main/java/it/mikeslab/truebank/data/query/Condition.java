@@ -0,0 +1,92 @@
+package it.mikeslab.truebank.data.query;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Class: Condition
+ * A single test of a query on an entity field. Conditions of a query are
+ * combined with AND; the field "id" tests the id the entity is stored under.
+ */
+@Getter
+@RequiredArgsConstructor
+public final class Condition {
+
+    private final String field;
+    private final Operator operator;
+    private final List<Object> values;
+
+    /**
+     * Tests a field value against this condition, the way the backends do.
+     * Numbers are compared by value whatever their type, a null value matches nothing.
+     * @param actual The field value.
+     * @return True if the value matches.
+     */
+    public boolean matches(Object actual) {
+
+        if (actual == null) {
+            return false;
+        }
+
+        switch (this.operator) {
+            case EQ:
+                return compare(actual, this.values.get(0)) == 0;
+            case GT:
+                return compare(actual, this.values.get(0)) > 0;
+            case GTE:
+                return compare(actual, this.values.get(0)) >= 0;
+            case LT:
+                return compare(actual, this.values.get(0)) < 0;
+            case LTE:
+                return compare(actual, this.values.get(0)) <= 0;
+            default:
+                // IN
+                for (Object value : this.values) {
+                    if (compare(actual, value) == 0) {
+                        return true;
+                    }
+                }
+
+                return false;
+        }
+    }
+
+    /**
+     * Compares two field values: numbers by value, comparable values of the same
+     * class naturally, anything else through its string form.
+     * @param left The first value.
+     * @param right The second value.
+     * @return A negative number, zero or a positive number.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static int compare(Object left, Object right) {
+
+        if (left instanceof Number && right instanceof Number) {
+            Number a = (Number) left;
+            Number b = (Number) right;
+
+            if (isIntegral(a) && isIntegral(b)) {
+                return Long.compare(a.longValue(), b.longValue());
+            }
+
+            return Double.compare(a.doubleValue(), b.doubleValue());
+        }
+
+        if (left instanceof Comparable && right != null && left.getClass() == right.getClass()) {
+            return ((Comparable) left).compareTo(right);
+        }
+
+        return String.valueOf(left).compareTo(String.valueOf(right));
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+
+    public enum Operator {
+        EQ, GT, GTE, LT, LTE, IN
+    }
+
+}
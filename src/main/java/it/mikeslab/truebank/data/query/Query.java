@@ -0,0 +1,216 @@
+package it.mikeslab.truebank.data.query;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class: Query
+ * A backend-neutral query: field conditions combined with AND, ordering,
+ * limit and projection, built with {@link #builder()}.
+ *
+ * A query is split into its shape (fields, operators, ordering, projection)
+ * and its parameters (the compared values and the limit). Backends compile a
+ * shape once into a native plan, cached in a {@link QueryPlanCache}, and bind
+ * the parameters on every execution: queries differing only by their values
+ * share a plan.
+ */
+@Getter
+@RequiredArgsConstructor
+public final class Query {
+
+    private final List<Condition> conditions;
+    private final List<Order> ordering;
+    private final int limit;
+    private final List<String> projection;
+    private final String shape;
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Gets the compared values, in condition order.
+     * @return The values, IN lists flattened.
+     */
+    public List<Object> getParameters() {
+        List<Object> parameters = new ArrayList<>();
+
+        for (Condition condition : this.conditions) {
+            parameters.addAll(condition.getValues());
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Gets a query with the conditions of this one only, no ordering, limit or projection.
+     * @return The filtering part of this query.
+     */
+    public Query conditionsOnly() {
+        Builder builder = new Builder();
+        builder.conditions.addAll(this.conditions);
+        return builder.build();
+    }
+
+    public boolean hasLimit() {
+        return this.limit > 0;
+    }
+
+    @Override
+    public String toString() {
+        return this.shape;
+    }
+
+    /**
+     * Ordering on a single field.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static final class Order {
+
+        private final String field;
+        private final boolean ascending;
+
+    }
+
+    /**
+     * Builds queries, conditions on the same field are all kept.
+     */
+    public static final class Builder {
+
+        private final List<Condition> conditions = new ArrayList<>();
+        private final List<Order> ordering = new ArrayList<>();
+        private final List<String> projection = new ArrayList<>();
+        private int limit;
+
+        private Builder() {
+        }
+
+        public Builder eq(String field, Object value) {
+            return this.condition(field, Condition.Operator.EQ, value);
+        }
+
+        public Builder gt(String field, Object value) {
+            return this.condition(field, Condition.Operator.GT, value);
+        }
+
+        public Builder gte(String field, Object value) {
+            return this.condition(field, Condition.Operator.GTE, value);
+        }
+
+        public Builder lt(String field, Object value) {
+            return this.condition(field, Condition.Operator.LT, value);
+        }
+
+        public Builder lte(String field, Object value) {
+            return this.condition(field, Condition.Operator.LTE, value);
+        }
+
+        /**
+         * Matches values between from and to, both included.
+         */
+        public Builder between(String field, Object from, Object to) {
+            return this.gte(field, from).lte(field, to);
+        }
+
+        public Builder in(String field, Collection<?> values) {
+
+            if (values.isEmpty()) {
+                throw new IllegalArgumentException("IN on " + field + " needs at least one value");
+            }
+
+            this.conditions.add(new Condition(checkField(field), Condition.Operator.IN, Collections.unmodifiableList(new ArrayList<>(values))));
+            return this;
+        }
+
+        public Builder orderBy(String field, boolean ascending) {
+            this.ordering.add(new Order(checkField(field), ascending));
+            return this;
+        }
+
+        public Builder limit(int limit) {
+
+            if (limit < 0) {
+                throw new IllegalArgumentException("The limit can't be negative");
+            }
+
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * Restricts the fields returned by Repository#select, the id is always returned.
+         */
+        public Builder project(String... fields) {
+            for (String field : fields) {
+                this.projection.add(checkField(field));
+            }
+
+            return this;
+        }
+
+        public Query build() {
+            return new Query(
+                    Collections.unmodifiableList(new ArrayList<>(this.conditions)),
+                    Collections.unmodifiableList(new ArrayList<>(this.ordering)),
+                    this.limit,
+                    Collections.unmodifiableList(new ArrayList<>(this.projection)),
+                    this.buildShape()
+            );
+        }
+
+        private Builder condition(String field, Condition.Operator operator, Object value) {
+
+            if (value == null) {
+                throw new IllegalArgumentException("Can't compare " + field + " to null");
+            }
+
+            this.conditions.add(new Condition(checkField(field), operator, Collections.singletonList(value)));
+            return this;
+        }
+
+        // Helper function to describe everything but the values, the key of the compiled plans
+        private String buildShape() {
+            StringBuilder shape = new StringBuilder("where");
+
+            for (Condition condition : this.conditions) {
+                shape.append(' ').append(condition.getField()).append(' ').append(condition.getOperator());
+
+                if (condition.getOperator() == Condition.Operator.IN) {
+                    shape.append('(').append(condition.getValues().size()).append(')');
+                }
+            }
+
+            for (Order order : this.ordering) {
+                shape.append(" order ").append(order.getField()).append(order.isAscending() ? " asc" : " desc");
+            }
+
+            if (this.limit > 0) {
+                shape.append(" limit");
+            }
+
+            if (!this.projection.isEmpty()) {
+                shape.append(" select ").append(String.join(",", this.projection));
+            }
+
+            return shape.toString();
+        }
+
+        // Field names end up in statements and plan keys
+        private static String checkField(String field) {
+
+            if (field == null || !field.matches("[A-Za-z][A-Za-z0-9_]*")) {
+                throw new IllegalArgumentException("Invalid field name: " + field);
+            }
+
+            return field;
+        }
+
+    }
+
+}
@@ -0,0 +1,70 @@
+package it.mikeslab.truebank.data.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Class: QueryPlanCache
+ * Compiled plans of a repository by query shape, least recently used
+ * evicted beyond the capacity. Compilation happens outside the lock, two
+ * threads compiling the same shape at once simply keep the last plan.
+ */
+public final class QueryPlanCache<P> {
+
+    private final Map<String, P> plans;
+
+    public QueryPlanCache(int capacity) {
+        this.plans = new LinkedHashMap<String, P>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, P> eldest) {
+                return this.size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the plan of a query, compiling it on first use.
+     * @param query The query.
+     * @param compiler Compiles a query into its plan.
+     * @return The plan, shared by every query of the same shape.
+     */
+    public P get(Query query, Function<Query, P> compiler) {
+        return this.get(query.getShape(), () -> compiler.apply(query));
+    }
+
+    /**
+     * Gets the plan of a shape, compiling it on first use.
+     * @param shape The shape, e.g. of an aggregation.
+     * @param compiler Compiles the plan.
+     * @return The plan.
+     */
+    public P get(String shape, Supplier<P> compiler) {
+
+        P plan;
+
+        synchronized (this.plans) {
+            plan = this.plans.get(shape);
+        }
+
+        if (plan != null) {
+            return plan;
+        }
+
+        plan = compiler.get();
+
+        synchronized (this.plans) {
+            this.plans.put(shape, plan);
+        }
+
+        return plan;
+    }
+
+    public int size() {
+        synchronized (this.plans) {
+            return this.plans.size();
+        }
+    }
+
+}
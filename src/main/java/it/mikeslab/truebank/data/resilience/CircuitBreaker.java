@@ -0,0 +1,83 @@
+package it.mikeslab.truebank.data.resilience;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class: CircuitBreaker
+ * Stops sending requests to a failing database for a cooldown period.
+ *
+ * CLOSED: requests flow, consecutive failures are counted.
+ * OPEN: requests are rejected until the cooldown expires.
+ * HALF_OPEN: a single trial request is let through, its outcome
+ *            either closes the breaker or opens it again.
+ */
+public class CircuitBreaker {
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * Checks whether a request may be sent, moving an expired OPEN breaker to HALF_OPEN.
+     * A successful acquire must be followed by onSuccess or onFailure.
+     * @return True if the request may be sent.
+     */
+    public synchronized boolean tryAcquire() {
+        switch (this.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - this.openedAt >= this.openNanos) {
+                    this.state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                // A trial request is already in flight
+                return false;
+        }
+    }
+
+    /**
+     * Checks whether requests are currently rejected, without side effects.
+     * @return True if OPEN and still cooling down, or HALF_OPEN with a trial in flight.
+     */
+    public synchronized boolean isRejecting() {
+        return this.state == State.HALF_OPEN
+                || (this.state == State.OPEN && System.nanoTime() - this.openedAt < this.openNanos);
+    }
+
+    public synchronized void onSuccess() {
+        this.consecutiveFailures = 0;
+        this.state = State.CLOSED;
+    }
+
+    public synchronized void onFailure() {
+        if (this.state == State.HALF_OPEN || ++this.consecutiveFailures >= this.failureThreshold) {
+            this.state = State.OPEN;
+            this.openedAt = System.nanoTime();
+            this.consecutiveFailures = 0;
+        }
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    public enum State {
+
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+
+    }
+
+}
@@ -0,0 +1,20 @@
+package it.mikeslab.truebank.data.resilience;
+
+import it.mikeslab.truebank.data.RepositoryException;
+
+/**
+ * Class: RepositoryUnavailableException
+ * Thrown by the resilience layer when the database can't be reached:
+ * the circuit breaker is open, the operation timed out or every retry failed.
+ */
+public class RepositoryUnavailableException extends RepositoryException {
+
+    public RepositoryUnavailableException(String message) {
+        super(message);
+    }
+
+    public RepositoryUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,506 @@
+package it.mikeslab.truebank.data.resilience;
+
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.ChangeSet;
+import it.mikeslab.truebank.data.FieldUpdate;
+import it.mikeslab.truebank.data.ForwardingRepository;
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.RepositoryException;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Query;
+import it.mikeslab.truebank.util.LoggerUtil;
+import org.bson.Document;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Class: ResilientRepository
+ * Guards a Repository against database outages.
+ *
+ * Every operation runs with a timeout and is retried a bounded number of
+ * times with jittered exponential backoff. Repeated failures open a circuit
+ * breaker, which rejects reads immediately instead of letting threads pile up.
+ * While the breaker is open, writes are durably queued to a local spillover
+ * file and replayed in order once the database is reachable again.
+ *
+ * Saves are neither retried nor queued: an attempt that timed out may still
+ * be applied, and a second one would store the entity twice. They fail to the
+ * caller instead; writes by id (update, upsert, delete) are idempotent and are
+ * retried and queued. Reads don't observe queued writes until they have been replayed.
+ *
+ * Only failures telling that the database couldn't be reached (connection and
+ * timeout errors) are retried and count toward the breaker; constraint, syntax
+ * and duplicate key errors are surfaced to the caller straight away.
+ *
+ * Configured through the "resilience" section of the repository configuration.
+ */
+public class ResilientRepository<T extends ConfigurationSerializable> extends ForwardingRepository<T> {
+
+    private final String name;
+    private final Settings settings;
+    private final CircuitBreaker breaker;
+    private final SpilloverQueue<T> spillover;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService replayScheduler;
+
+    public ResilientRepository(Repository<T> delegate, String name, Settings settings, SpilloverQueue<T> spillover) {
+        super(delegate);
+
+        this.name = name;
+        this.settings = settings;
+        this.breaker = new CircuitBreaker(settings.failureThreshold, settings.openMillis);
+        this.spillover = spillover;
+
+        AtomicInteger threadCount = new AtomicInteger();
+
+        // No queue: when every worker is busy the database is already struggling, fail fast
+        this.executor = new ThreadPoolExecutor(0, settings.maxConcurrency, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "TrueBank-" + name + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        this.replayScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TrueBank-" + name + "-Replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.replayScheduler.scheduleWithFixedDelay(this::replay,
+                0, settings.replayIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wraps a repository, reading the settings from the "resilience" section of its configuration.
+     * @param delegate The repository to be guarded.
+     * @param name The repository name.
+     * @param type The entity class, needed to read back spilled writes.
+     * @param section The repository configuration section.
+     * @param dataFolder The plugin data folder, where spillover files are kept.
+     * @return The guarded repository.
+     * @throws IOException If the spillover file could not be opened.
+     */
+    public static <T extends ConfigurationSerializable> ResilientRepository<T> fromConfig(Repository<T> delegate,
+                                                                                         String name,
+                                                                                         Class<T> type,
+                                                                                         ConfigurationSection section,
+                                                                                         File dataFolder) throws IOException {
+        Settings settings = new Settings(
+                section.getLong("resilience.timeoutMillis", 2_000),
+                section.getInt("resilience.maxAttempts", 3),
+                section.getLong("resilience.baseBackoffMillis", 50),
+                section.getLong("resilience.maxBackoffMillis", 1_000),
+                section.getInt("resilience.failureThreshold", 5),
+                section.getLong("resilience.openMillis", 10_000),
+                section.getLong("resilience.replayIntervalMillis", 5_000),
+                section.getInt("resilience.maxConcurrency", 32)
+        );
+
+        File spilloverFile = new File(dataFolder, "spillover" + File.separator + name + ".queue");
+
+        return new ResilientRepository<>(delegate, name, settings, new SpilloverQueue<>(spilloverFile, type));
+    }
+
+    // Saves are neither retried nor spilled, see the class documentation
+    @Override
+    public String save(T obj, Object... args) {
+        return this.execute("save", () -> this.delegate.save(obj, args), 1);
+    }
+
+    @Override
+    public void update(String id, T obj) {
+        this.write(
+                new SpilledWrite<>(SpilledWrite.Operation.UPDATE, id, obj),
+                () -> {
+                    this.delegate.update(id, obj);
+                    return null;
+                }
+        );
+    }
+
+    @Override
+    public UpsertResult upsert(String id, T obj) {
+        return this.write(
+                new SpilledWrite<>(SpilledWrite.Operation.UPSERT, id, obj),
+                () -> this.delegate.upsert(id, obj)
+        );
+    }
+
+    @Override
+    public void delete(String id) {
+        this.write(
+                new SpilledWrite<>(SpilledWrite.Operation.DELETE, id, null),
+                () -> {
+                    this.delegate.delete(id);
+                    return null;
+                }
+        );
+    }
+
+    @Override
+    public T get(String id) {
+        return this.execute("get", () -> this.delegate.get(id));
+    }
+
+    @Override
+    public Map.Entry<String, Object> find(Document document) {
+        return this.execute("find", () -> this.delegate.find(document));
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> scan(String afterId, int limit) {
+        return this.execute("scan", () -> this.delegate.scan(afterId, limit));
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> query(Query query) {
+        return this.execute("query", () -> this.delegate.query(query));
+    }
+
+    @Override
+    public List<Map<String, Object>> select(Query query) {
+        return this.execute("select", () -> this.delegate.select(query));
+    }
+
+    @Override
+    public List<Map<String, Object>> aggregate(Aggregation aggregation) {
+        return this.execute("aggregate", () -> this.delegate.aggregate(aggregation));
+    }
+
+    @Override
+    public ChangeSet<T> changesSince(ChangeCursor cursor, int limit) {
+        return this.execute("changesSince", () -> this.delegate.changesSince(cursor, limit));
+    }
+
+    @Override
+    public Versioned<T> getVersioned(String id) {
+        return this.execute("getVersioned", () -> this.delegate.getVersioned(id));
+    }
+
+    // Conditional writes are neither spilled nor retried: an attempt timing out may have been
+    // applied, and retrying it would report a conflict with itself
+    @Override
+    public boolean compareAndUpdate(String id, long expectedVersion, T obj) {
+        return this.execute("compareAndUpdate", () -> this.delegate.compareAndUpdate(id, expectedVersion, obj), 1);
+    }
+
+    // Retried like reads: entities already updated for the period are skipped
+    @Override
+    public long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit) {
+        return this.execute("updateAll", () -> this.delegate.updateAll(update, excludedIds, limit));
+    }
+
+    // Bulk writes aren't spilled, a batch failing while the database is down is surfaced to the caller
+    @Override
+    public List<String> saveAll(List<Map.Entry<String, T>> entities) {
+        return this.execute("saveAll", () -> this.delegate.saveAll(entities));
+    }
+
+    /**
+     * Gets the circuit breaker state, for diagnostics.
+     * @return The breaker state.
+     */
+    public CircuitBreaker.State getBreakerState() {
+        return this.breaker.getState();
+    }
+
+    /**
+     * Gets the number of writes waiting in the spillover file.
+     * @return The pending write count.
+     */
+    public int getPendingWrites() {
+        return this.spillover.size();
+    }
+
+    @Override
+    public void close() {
+        this.replayScheduler.shutdownNow();
+
+        // Last chance to flush queued writes, whatever is left is replayed on the next start
+        this.replay();
+
+        this.spillover.close();
+        this.executor.shutdown();
+        this.delegate.close();
+    }
+
+    // Helper function to run a write, queuing it to disk when the database is unavailable
+    private <R> R write(SpilledWrite<T> write, Callable<R> call) {
+
+        // Writes already queued must be replayed first, in order
+        if (!this.spillover.isEmpty() || this.breaker.isRejecting()) {
+            this.spill(write);
+            return null;
+        }
+
+        try {
+            return this.execute(write.getOperation().name().toLowerCase(), call);
+        } catch (RepositoryUnavailableException e) {
+            this.spill(write);
+            return null;
+        }
+    }
+
+    // Helper function to run an operation through the breaker, with timeout and retries
+    private <R> R execute(String operation, Callable<R> call) {
+        return this.execute(operation, call, this.settings.maxAttempts);
+    }
+
+    private <R> R execute(String operation, Callable<R> call, int maxAttempts) {
+
+        if (!this.breaker.tryAcquire()) {
+            throw new RepositoryUnavailableException("[" + this.name + "] " + operation + " rejected, the circuit breaker is open");
+        }
+
+        RuntimeException lastFailure = null;
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+
+            try {
+                R result = this.callWithTimeout(operation, call);
+                this.breaker.onSuccess();
+                return result;
+            } catch (RuntimeException e) {
+
+                if (!isTransient(e)) {
+                    // The database answered, the failure is ours
+                    this.breaker.onSuccess();
+                    throw e;
+                }
+
+                lastFailure = e;
+            }
+
+            if (attempt < maxAttempts && !this.backoff(attempt)) {
+                break;
+            }
+        }
+
+        this.breaker.onFailure();
+
+        throw new RepositoryUnavailableException("[" + this.name + "] " + operation + " failed after "
+                + maxAttempts + " attempts", lastFailure);
+    }
+
+    // Helper function to run a single attempt on a worker thread, bounded by the timeout
+    private <R> R callWithTimeout(String operation, Callable<R> call) {
+
+        Future<R> future;
+
+        try {
+            future = this.executor.submit(call);
+        } catch (RejectedExecutionException e) {
+            throw new RepositoryUnavailableException("[" + this.name + "] " + operation + " rejected, too many operations in flight", e);
+        }
+
+        try {
+            return future.get(this.settings.timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new RepositoryUnavailableException("[" + this.name + "] " + operation + " timed out after "
+                    + this.settings.timeoutMillis + "ms", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RepositoryUnavailableException("[" + this.name + "] " + operation + " interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new RepositoryException("[" + this.name + "] " + operation + " failed", cause);
+        }
+    }
+
+    // Helper function to sleep with "full jitter" exponential backoff, returns false if interrupted
+    private boolean backoff(int attempt) {
+        long ceiling = Math.min(this.settings.maxBackoffMillis, this.settings.baseBackoffMillis << Math.min(attempt - 1, 20));
+
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Helper function to durably queue a write
+    private void spill(SpilledWrite<T> write) {
+        try {
+            boolean first = this.spillover.isEmpty();
+
+            this.spillover.append(write);
+
+            if (first) {
+                LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE,
+                        "[{}] Database unavailable, queuing writes to the spillover file", this.name);
+            }
+        } catch (IOException e) {
+            throw new RepositoryUnavailableException("[" + this.name + "] Database unavailable and the write could not be queued", e);
+        }
+    }
+
+    // Helper function to replay queued writes in order, stopping at the first transient failure
+    private synchronized void replay() {
+
+        if (this.spillover.isEmpty() || !this.breaker.tryAcquire()) {
+            return;
+        }
+
+        int replayed = 0;
+
+        try {
+
+            while (true) {
+                SpilledWrite<T> write = this.spillover.peek();
+
+                if (write == null) {
+                    break;
+                }
+
+                try {
+                    this.callWithTimeout("replay", () -> this.apply(write));
+                } catch (RuntimeException e) {
+
+                    if (isTransient(e)) {
+                        throw e;
+                    }
+
+                    // A write the database will never accept must not block the queue forever
+                    LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "[{}] Dropping queued {} of {}: {}",
+                            this.name, write.getOperation(), write.getId(), e.getMessage());
+                }
+
+                this.spillover.acknowledge();
+                replayed++;
+            }
+
+            this.breaker.onSuccess();
+
+            LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "[{}] Replayed {} queued writes", this.name, replayed);
+
+        } catch (RuntimeException e) {
+            this.breaker.onFailure();
+
+            if (replayed > 0) {
+                this.compactSpillover();
+            }
+        } catch (IOException e) {
+            this.breaker.onFailure();
+            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, e);
+        }
+    }
+
+    // Helper function to apply a queued write to the delegate
+    private Void apply(SpilledWrite<T> write) {
+        switch (write.getOperation()) {
+            case UPDATE:
+                this.delegate.update(write.getId(), write.getEntity());
+                break;
+            case UPSERT:
+                this.delegate.upsert(write.getId(), write.getEntity());
+                break;
+            case DELETE:
+                this.delegate.delete(write.getId());
+                break;
+        }
+        return null;
+    }
+
+    private void compactSpillover() {
+        try {
+            this.spillover.compact();
+        } catch (IOException e) {
+            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, e);
+        }
+    }
+
+    // Helper function to tell database outages apart from writes the database refused,
+    // RepositoryException only wraps the driver failure it's caused by
+    private static boolean isTransient(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RepositoryUnavailableException
+                    || cause instanceof TimeoutException
+                    || cause instanceof MongoSocketException
+                    || cause instanceof MongoTimeoutException
+                    || cause instanceof MongoNotPrimaryException
+                    || cause instanceof MongoNodeIsRecoveringException
+                    || cause instanceof SQLTransientException
+                    || cause instanceof SQLRecoverableException) {
+                return true;
+            }
+
+            // Connection exceptions, for drivers not using the exception subclasses
+            if (cause instanceof SQLException) {
+                String sqlState = ((SQLException) cause).getSQLState();
+
+                if (sqlState != null && sqlState.startsWith("08")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resilience settings of a repository.
+     */
+    public static final class Settings {
+
+        private final long timeoutMillis;
+        private final int maxAttempts;
+        private final long baseBackoffMillis;
+        private final long maxBackoffMillis;
+        private final int failureThreshold;
+        private final long openMillis;
+        private final long replayIntervalMillis;
+        private final int maxConcurrency;
+
+        public Settings(long timeoutMillis, int maxAttempts, long baseBackoffMillis, long maxBackoffMillis,
+                        int failureThreshold, long openMillis, long replayIntervalMillis, int maxConcurrency) {
+            this.timeoutMillis = timeoutMillis;
+            this.maxAttempts = Math.max(1, maxAttempts);
+            this.baseBackoffMillis = Math.max(1, baseBackoffMillis);
+            this.maxBackoffMillis = Math.max(this.baseBackoffMillis, maxBackoffMillis);
+            this.failureThreshold = failureThreshold;
+            this.openMillis = openMillis;
+            this.replayIntervalMillis = Math.max(100, replayIntervalMillis);
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package it.mikeslab.truebank.data.resilience;
+
+import lombok.Data;
+
+/**
+ * Class: SpilledWrite
+ * A write operation queued to disk while the database was unavailable.
+ */
+@Data
+public class SpilledWrite<T> {
+
+    private final Operation operation;
+
+    private final String id;
+
+    // The entity, null for deletes
+    private final T entity;
+
+    public enum Operation {
+
+        UPDATE,
+        UPSERT,
+        DELETE
+
+    }
+
+}
@@ -0,0 +1,299 @@
+package it.mikeslab.truebank.data.resilience;
+
+import it.mikeslab.truebank.util.LoggerUtil;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Level;
+
+/**
+ * Class: SpilloverQueue
+ * Durable FIFO of writes that could not reach the database.
+ *
+ * Each write is appended to the spillover file as a length-prefixed YAML
+ * record and forced to disk before the caller returns; a failed append is
+ * truncated away. A torn record left by a crash, length prefix included, is
+ * detected on load, discarded and compacted out of the file.
+ * A replayed write is acknowledged on disk by negating its length prefix,
+ * so that a restart doesn't replay it again. Once the queue is drained the
+ * file is truncated.
+ */
+public class SpilloverQueue<T extends ConfigurationSerializable> {
+
+    // Larger lengths can only be read from a corrupted file
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private final Path path;
+    private final Class<T> type;
+    private final Deque<SpilledWrite<T>> pending = new ArrayDeque<>();
+
+    // File positions of the pending writes' length prefixes, in the same order
+    private final Deque<Long> positions = new ArrayDeque<>();
+
+    private FileChannel channel;
+
+    public SpilloverQueue(File file, Class<T> type) throws IOException {
+        this.path = file.toPath();
+        this.type = type;
+
+        if (this.path.getParent() != null) {
+            Files.createDirectories(this.path.getParent());
+        }
+
+        boolean tornTail = this.load();
+
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (tornTail) {
+            this.compact();
+        }
+    }
+
+    /**
+     * Durably appends a write to the queue.
+     * @param write The write to be queued.
+     * @throws IOException If the write could not be persisted.
+     */
+    public synchronized void append(SpilledWrite<T> write) throws IOException {
+        byte[] payload = this.encode(write);
+
+        if (payload.length > MAX_RECORD_BYTES) {
+            throw new IOException("Spillover record of " + payload.length + " bytes exceeds " + MAX_RECORD_BYTES);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + payload.length);
+        buffer.putInt(payload.length).put(payload).flip();
+
+        long start = this.channel.size();
+        long position = start;
+
+        try {
+            while (buffer.hasRemaining()) {
+                position += this.channel.write(buffer, position);
+            }
+
+            this.channel.force(false);
+        } catch (IOException e) {
+
+            // A partial record would shift every record appended after it
+            try {
+                this.channel.truncate(start);
+            } catch (IOException truncateFailure) {
+                e.addSuppressed(truncateFailure);
+            }
+
+            throw e;
+        }
+
+        this.pending.addLast(write);
+        this.positions.addLast(start);
+    }
+
+    /**
+     * Gets the oldest queued write, without removing it.
+     * @return The write, or null if the queue is empty.
+     */
+    public synchronized SpilledWrite<T> peek() {
+        return this.pending.peekFirst();
+    }
+
+    /**
+     * Removes the oldest queued write, once it has been replayed.
+     * The write is marked as replayed in the file, which is truncated
+     * when the queue becomes empty.
+     * @throws IOException If the acknowledgement could not be persisted.
+     */
+    public synchronized void acknowledge() throws IOException {
+        this.pending.pollFirst();
+        Long position = this.positions.pollFirst();
+
+        if (this.pending.isEmpty()) {
+            this.channel.truncate(0);
+        } else if (position != null) {
+            this.markReplayed(position);
+        }
+
+        this.channel.force(false);
+    }
+
+    /**
+     * Rewrites the file with the writes still pending, dropping the replayed ones.
+     * The new file replaces the old one atomically.
+     * @throws IOException If the file could not be rewritten.
+     */
+    public synchronized void compact() throws IOException {
+        Path temp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        Deque<Long> compacted = new ArrayDeque<>();
+
+        try (FileChannel tempChannel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            for (SpilledWrite<T> write : this.pending) {
+                byte[] payload = this.encode(write);
+
+                ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + payload.length);
+                buffer.putInt(payload.length).put(payload).flip();
+
+                compacted.addLast(tempChannel.position());
+
+                while (buffer.hasRemaining()) {
+                    tempChannel.write(buffer);
+                }
+            }
+
+            tempChannel.force(true);
+        }
+
+        this.channel.close();
+        Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        this.positions.clear();
+        this.positions.addAll(compacted);
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.pending.isEmpty();
+    }
+
+    public synchronized int size() {
+        return this.pending.size();
+    }
+
+    public synchronized void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, e);
+        }
+    }
+
+    // Helper function to read the writes left by a previous run, returns true if the last record is torn
+    private boolean load() throws IOException {
+
+        if (!Files.exists(this.path)) {
+            return false;
+        }
+
+        long size = Files.size(this.path);
+
+        try (InputStream inputStream = Channels.newInputStream(FileChannel.open(this.path, StandardOpenOption.READ));
+             DataInputStream input = new DataInputStream(inputStream)) {
+
+            long position = 0;
+            byte[] prefix = new byte[Integer.BYTES];
+
+            while (true) {
+                int prefixRead = input.readNBytes(prefix, 0, prefix.length);
+
+                if (prefixRead == 0) {
+                    return false;
+                }
+
+                if (prefixRead < prefix.length) {
+                    LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "Discarding a torn spillover record in {}", this.path);
+                    return true;
+                }
+
+                // Negative lengths mark writes already replayed
+                int length = ByteBuffer.wrap(prefix).getInt();
+
+                if (length == Integer.MIN_VALUE || Math.abs(length) > MAX_RECORD_BYTES) {
+                    throw new IOException("Corrupted spillover record at " + position + " in " + this.path + ": length " + length);
+                }
+
+                // Cut short by a crash, checked before the payload is allocated
+                if (Math.abs(length) > size - position - Integer.BYTES) {
+                    LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "Discarding a torn spillover record in {}", this.path);
+                    return true;
+                }
+
+                byte[] payload = new byte[Math.abs(length)];
+                input.readFully(payload);
+
+                if (length >= 0) {
+                    this.pending.addLast(this.decode(payload));
+                    this.positions.addLast(position);
+                }
+
+                position += Integer.BYTES + payload.length;
+            }
+        }
+    }
+
+    // Helper function to negate the length prefix of a replayed record
+    private void markReplayed(long position) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES);
+
+        while (prefix.hasRemaining()) {
+            if (this.channel.read(prefix, position + prefix.position()) < 0) {
+                throw new EOFException("Spillover record at " + position + " is missing in " + this.path);
+            }
+        }
+
+        int length = prefix.getInt(0);
+        prefix.clear();
+        prefix.putInt(-Math.abs(length)).flip();
+
+        while (prefix.hasRemaining()) {
+            this.channel.write(prefix, position + prefix.position());
+        }
+    }
+
+    // Helper function to serialize a write into a YAML record
+    private byte[] encode(SpilledWrite<T> write) {
+        YamlConfiguration yaml = new YamlConfiguration();
+
+        yaml.set("operation", write.getOperation().name());
+        yaml.set("id", write.getId());
+
+        if (write.getEntity() != null) {
+            yaml.createSection("entity", write.getEntity().serialize());
+        }
+
+        return yaml.saveToString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Helper function to deserialize a YAML record into a write
+    private SpilledWrite<T> decode(byte[] payload) throws IOException {
+        YamlConfiguration yaml = new YamlConfiguration();
+
+        try {
+            yaml.loadFromString(new String(payload, StandardCharsets.UTF_8));
+        } catch (InvalidConfigurationException e) {
+            throw new IOException("Corrupted spillover record in " + this.path, e);
+        }
+
+        T entity = null;
+        ConfigurationSection entitySection = yaml.getConfigurationSection("entity");
+
+        if (entitySection != null) {
+            entity = this.type.cast(ConfigurationSerialization.deserializeObject(entitySection.getValues(false), this.type));
+        }
+
+        return new SpilledWrite<>(
+                SpilledWrite.Operation.valueOf(yaml.getString("operation")),
+                yaml.getString("id"),
+                entity
+        );
+    }
+
+}
@@ -0,0 +1,21 @@
+package it.mikeslab.truebank.data.scheduler;
+
+import it.mikeslab.truebank.data.RepositoryException;
+import lombok.Getter;
+
+/**
+ * Class: OperationRejectedException
+ * Thrown when the queue of a priority class is full: the database is
+ * saturated and the caller should back off or give up, not retry at once.
+ */
+@Getter
+public class OperationRejectedException extends RepositoryException {
+
+    private final Priority priority;
+
+    public OperationRejectedException(Priority priority, int capacity) {
+        super("The " + priority.name().toLowerCase() + " queue is full (" + capacity + " operations waiting)");
+        this.priority = priority;
+    }
+
+}
@@ -0,0 +1,426 @@
+package it.mikeslab.truebank.data.scheduler;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class: OperationScheduler
+ * Runs repository operations on a fixed set of workers, sized after the
+ * connection pool, picking queued operations by priority class.
+ *
+ * - the first "reservedInteractive" workers only run INTERACTIVE operations,
+ *   so a player never waits behind a bulk job holding every connection;
+ * - the other workers run INTERACTIVE, then NORMAL, then BULK operations,
+ *   with at most "bulkConcurrency" BULK operations running at once;
+ * - every class has a bounded queue. When it is full, INTERACTIVE and NORMAL
+ *   submissions are rejected, BULK callers are blocked until there is room
+ *   (backpressure on the job producing them).
+ *
+ * Queue depth, wait times and rejections are tracked per class.
+ */
+public class OperationScheduler {
+
+    // Operations submitted by a worker run inline, waiting for another worker could deadlock
+    private static final ThreadLocal<OperationScheduler> WORKER_OF = new ThreadLocal<>();
+
+    private final int bulkConcurrency;
+
+    private final Map<Priority, ArrayDeque<Task<?>>> queues = new EnumMap<>(Priority.class);
+    private final Map<Priority, Integer> capacities = new EnumMap<>(Priority.class);
+    private final Map<Priority, ClassStats> stats = new EnumMap<>(Priority.class);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = this.lock.newCondition();
+    private final Condition spaceAvailable = this.lock.newCondition();
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private int bulkRunning;
+    private volatile boolean shutdown;
+
+    public OperationScheduler(int concurrency, int reservedInteractive, int bulkConcurrency,
+                              int interactiveCapacity, int normalCapacity, int bulkCapacity) {
+
+        int workerCount = Math.max(1, concurrency);
+        int reserved = Math.max(0, Math.min(reservedInteractive, workerCount - 1));
+
+        this.bulkConcurrency = Math.max(1, Math.min(bulkConcurrency, workerCount - reserved));
+
+        this.capacities.put(Priority.INTERACTIVE, Math.max(1, interactiveCapacity));
+        this.capacities.put(Priority.NORMAL, Math.max(1, normalCapacity));
+        this.capacities.put(Priority.BULK, Math.max(1, bulkCapacity));
+
+        for (Priority priority : Priority.values()) {
+            this.queues.put(priority, new ArrayDeque<>());
+            this.stats.put(priority, new ClassStats());
+        }
+
+        for (int i = 0; i < workerCount; i++) {
+            boolean interactiveOnly = i < reserved;
+
+            Thread worker = new Thread(() -> this.work(interactiveOnly),
+                    "TrueBank-Scheduler-" + (interactiveOnly ? "Interactive-" : "") + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+
+            this.workers.add(worker);
+        }
+    }
+
+    /**
+     * Builds a scheduler from the "scheduler" section of config.yml.
+     * @param section The section, may be null.
+     * @return The scheduler, with defaults applied when the section is missing.
+     */
+    public static OperationScheduler fromConfig(ConfigurationSection section) {
+
+        if (section == null) {
+            return new OperationScheduler(10, 2, 4, 256, 1024, 64);
+        }
+
+        return new OperationScheduler(
+                section.getInt("concurrency", 10),
+                section.getInt("reservedInteractive", 2),
+                section.getInt("bulkConcurrency", 4),
+                section.getInt("queueCapacity.interactive", 256),
+                section.getInt("queueCapacity.normal", 1024),
+                section.getInt("queueCapacity.bulk", 64)
+        );
+    }
+
+    /**
+     * Queues an operation, without blocking.
+     * @param priority The priority class.
+     * @param call The operation.
+     * @return The operation result, failed with an OperationRejectedException if the queue is full.
+     */
+    public <R> CompletableFuture<R> submit(Priority priority, Callable<R> call) {
+
+        if (WORKER_OF.get() == this) {
+            return this.runInline(call);
+        }
+
+        Task<R> task = new Task<>(priority, call);
+
+        this.lock.lock();
+
+        try {
+            if (!this.enqueue(task)) {
+                this.stats.get(priority).rejected.incrementAndGet();
+                task.future.completeExceptionally(new OperationRejectedException(priority, this.capacities.get(priority)));
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        return task.future;
+    }
+
+    /**
+     * Runs an operation and waits for its result.
+     * BULK callers wait for room in their queue, the other classes are rejected when it is full.
+     * @param priority The priority class.
+     * @param call The operation.
+     * @return The operation result.
+     * @throws OperationRejectedException If the queue is full.
+     */
+    public <R> R execute(Priority priority, Callable<R> call) {
+
+        CompletableFuture<R> future;
+
+        if (priority == Priority.BULK && WORKER_OF.get() != this) {
+            future = this.submitBlocking(priority, call);
+        } else {
+            future = this.submit(priority, call);
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new CancellationException("Interrupted while waiting for a " + priority.name().toLowerCase() + " operation");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Gets the statistics of a priority class.
+     * @param priority The priority class.
+     * @return A snapshot of the statistics.
+     */
+    public Stats getStats(Priority priority) {
+
+        int queued;
+
+        this.lock.lock();
+
+        try {
+            queued = this.queues.get(priority).size();
+        } finally {
+            this.lock.unlock();
+        }
+
+        ClassStats classStats = this.stats.get(priority);
+
+        long started = classStats.started.get();
+
+        return new Stats(
+                priority,
+                queued,
+                this.capacities.get(priority),
+                classStats.running.get(),
+                classStats.completed.get(),
+                classStats.rejected.get(),
+                started == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(classStats.totalWaitNanos.get() / started) / 1000.0,
+                TimeUnit.NANOSECONDS.toMicros(classStats.maxWaitNanos.get()) / 1000.0
+        );
+    }
+
+    /**
+     * Stops the workers once the queued operations have run.
+     * @param timeout The maximum time to wait.
+     * @param unit The timeout unit.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+
+        this.lock.lock();
+
+        try {
+            this.shutdown = true;
+            this.workAvailable.signalAll();
+            this.spaceAvailable.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        for (Thread worker : this.workers) {
+            try {
+                worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Helper function to queue a BULK operation, waiting for room in the queue
+    private <R> CompletableFuture<R> submitBlocking(Priority priority, Callable<R> call) {
+
+        Task<R> task = new Task<>(priority, call);
+
+        this.lock.lock();
+
+        try {
+            while (!this.enqueue(task)) {
+                if (this.shutdown) {
+                    task.future.completeExceptionally(new OperationRejectedException(priority, this.capacities.get(priority)));
+                    break;
+                }
+
+                this.spaceAvailable.awaitUninterruptibly();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        return task.future;
+    }
+
+    // Invoked under the lock, returns false if the queue is full
+    private boolean enqueue(Task<?> task) {
+
+        ArrayDeque<Task<?>> queue = this.queues.get(task.priority);
+
+        if (this.shutdown || queue.size() >= this.capacities.get(task.priority)) {
+            return false;
+        }
+
+        queue.addLast(task);
+        this.workAvailable.signalAll();
+        return true;
+    }
+
+    // Invoked under the lock, picks the most urgent task this worker is allowed to run
+    private Task<?> next(boolean interactiveOnly) {
+
+        Task<?> task = this.queues.get(Priority.INTERACTIVE).pollFirst();
+
+        if (task == null && !interactiveOnly) {
+            task = this.queues.get(Priority.NORMAL).pollFirst();
+
+            if (task == null && this.bulkRunning < this.bulkConcurrency) {
+                task = this.queues.get(Priority.BULK).pollFirst();
+
+                if (task != null) {
+                    this.bulkRunning++;
+                }
+            }
+        }
+
+        if (task != null) {
+            this.spaceAvailable.signalAll();
+        }
+
+        return task;
+    }
+
+    // Worker loop, exits once shut down and out of work
+    private void work(boolean interactiveOnly) {
+
+        WORKER_OF.set(this);
+
+        while (true) {
+            Task<?> task;
+
+            this.lock.lock();
+
+            try {
+                while ((task = this.next(interactiveOnly)) == null) {
+                    if (this.shutdown) {
+                        return;
+                    }
+
+                    this.workAvailable.awaitUninterruptibly();
+                }
+            } finally {
+                this.lock.unlock();
+            }
+
+            try {
+                this.run(task);
+            } finally {
+                if (task.priority == Priority.BULK) {
+                    this.lock.lock();
+
+                    try {
+                        this.bulkRunning--;
+                        this.workAvailable.signalAll();
+                    } finally {
+                        this.lock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    // Helper function to run a task, recording its wait time
+    private <R> void run(Task<R> task) {
+
+        ClassStats classStats = this.stats.get(task.priority);
+
+        long waited = System.nanoTime() - task.queuedAt;
+        classStats.started.incrementAndGet();
+        classStats.totalWaitNanos.addAndGet(waited);
+        classStats.maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+        if (task.future.isDone()) {
+            // Cancelled while queued
+            return;
+        }
+
+        classStats.running.incrementAndGet();
+
+        try {
+            // The class is inherited by nested calls, e.g. lookups made by the backend itself
+            task.future.complete(task.priority.call(() -> {
+                try {
+                    return task.call.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        } catch (Throwable throwable) {
+            task.future.completeExceptionally(throwable);
+        } finally {
+            classStats.running.decrementAndGet();
+            classStats.completed.incrementAndGet();
+        }
+    }
+
+    private <R> CompletableFuture<R> runInline(Callable<R> call) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+
+        try {
+            future.complete(call.call());
+        } catch (Throwable throwable) {
+            future.completeExceptionally(throwable);
+        }
+
+        return future;
+    }
+
+    private static final class Task<R> {
+
+        private final Priority priority;
+        private final Callable<R> call;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+        private final long queuedAt = System.nanoTime();
+
+        private Task(Priority priority, Callable<R> call) {
+            this.priority = priority;
+            this.call = call;
+        }
+
+    }
+
+    private static final class ClassStats {
+
+        private final AtomicLong running = new AtomicLong();
+        private final AtomicLong started = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    }
+
+    /**
+     * Statistics of a priority class, since the scheduler started.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static final class Stats {
+
+        private final Priority priority;
+        private final int queued;
+        private final int capacity;
+        private final long running;
+        private final long completed;
+        private final long rejected;
+        private final double averageWaitMillis;
+        private final double maxWaitMillis;
+
+    }
+
+}
@@ -0,0 +1,81 @@
+package it.mikeslab.truebank.data.scheduler;
+
+import org.bukkit.Bukkit;
+
+import java.util.function.Supplier;
+
+/**
+ * Enum: Priority
+ * Priority class of a repository operation.
+ *
+ * The class is bound to the calling thread: code running bulk work wraps it in
+ * {@link #BULK}.run(...), and every repository call made inside inherits it.
+ * Calls made from the server thread default to INTERACTIVE, the others to NORMAL,
+ * as do all the calls made outside of a server (load and stress tests).
+ */
+public enum Priority {
+
+    /**
+     * A player is waiting for the result (commands, logins, GUIs).
+     */
+    INTERACTIVE,
+
+    /**
+     * Regular background writes (session flushes, replays).
+     */
+    NORMAL,
+
+    /**
+     * Jobs touching many entities (interest, imports, exports, migrations, leaderboards).
+     */
+    BULK;
+
+    private static final ThreadLocal<Priority> CURRENT = new ThreadLocal<>();
+
+    /**
+     * Gets the priority class of the calling thread.
+     * @return The priority class.
+     */
+    public static Priority current() {
+        Priority priority = CURRENT.get();
+
+        if (priority != null) {
+            return priority;
+        }
+
+        // Without a server, as in the load tools, there's no server thread to ask about
+        return Bukkit.getServer() != null && Bukkit.isPrimaryThread() ? INTERACTIVE : NORMAL;
+    }
+
+    /**
+     * Runs a task with this priority class bound to the calling thread.
+     * @param task The task.
+     */
+    public void run(Runnable task) {
+        this.call(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs a task with this priority class bound to the calling thread.
+     * @param task The task.
+     * @return The task result.
+     */
+    public <R> R call(Supplier<R> task) {
+        Priority previous = CURRENT.get();
+        CURRENT.set(this);
+
+        try {
+            return task.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+}
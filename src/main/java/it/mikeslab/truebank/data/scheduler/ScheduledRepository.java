@@ -0,0 +1,118 @@
+package it.mikeslab.truebank.data.scheduler;
+
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.ChangeSet;
+import it.mikeslab.truebank.data.FieldUpdate;
+import it.mikeslab.truebank.data.ForwardingRepository;
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Query;
+import org.bson.Document;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Class: ScheduledRepository
+ * Runs every data operation of the delegate through an {@link OperationScheduler},
+ * with the priority class bound to the calling thread (see {@link Priority#current()}).
+ */
+public class ScheduledRepository<T> extends ForwardingRepository<T> {
+
+    private final OperationScheduler scheduler;
+
+    public ScheduledRepository(Repository<T> delegate, OperationScheduler scheduler) {
+        super(delegate);
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public String save(T obj, Object... args) {
+        return this.schedule(() -> this.delegate.save(obj, args));
+    }
+
+    @Override
+    public void update(String id, T obj) {
+        this.schedule(() -> {
+            this.delegate.update(id, obj);
+            return null;
+        });
+    }
+
+    @Override
+    public UpsertResult upsert(String id, T obj) {
+        return this.schedule(() -> this.delegate.upsert(id, obj));
+    }
+
+    @Override
+    public void delete(String id) {
+        this.schedule(() -> {
+            this.delegate.delete(id);
+            return null;
+        });
+    }
+
+    @Override
+    public T get(String id) {
+        return this.schedule(() -> this.delegate.get(id));
+    }
+
+    @Override
+    public Map.Entry<String, Object> find(Document document) {
+        return this.schedule(() -> this.delegate.find(document));
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> scan(String afterId, int limit) {
+        return this.schedule(() -> this.delegate.scan(afterId, limit));
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> query(Query query) {
+        return this.schedule(() -> this.delegate.query(query));
+    }
+
+    @Override
+    public List<Map<String, Object>> select(Query query) {
+        return this.schedule(() -> this.delegate.select(query));
+    }
+
+    @Override
+    public List<Map<String, Object>> aggregate(Aggregation aggregation) {
+        return this.schedule(() -> this.delegate.aggregate(aggregation));
+    }
+
+    @Override
+    public List<String> saveAll(List<Map.Entry<String, T>> entities) {
+        return this.schedule(() -> this.delegate.saveAll(entities));
+    }
+
+    @Override
+    public ChangeSet<T> changesSince(ChangeCursor cursor, int limit) {
+        return this.schedule(() -> this.delegate.changesSince(cursor, limit));
+    }
+
+    @Override
+    public Versioned<T> getVersioned(String id) {
+        return this.schedule(() -> this.delegate.getVersioned(id));
+    }
+
+    @Override
+    public boolean compareAndUpdate(String id, long expectedVersion, T obj) {
+        return this.schedule(() -> this.delegate.compareAndUpdate(id, expectedVersion, obj));
+    }
+
+    @Override
+    public long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit) {
+        return this.schedule(() -> this.delegate.updateAll(update, excludedIds, limit));
+    }
+
+    private <R> R schedule(Callable<R> call) {
+        return this.scheduler.execute(Priority.current(), call);
+    }
+
+}
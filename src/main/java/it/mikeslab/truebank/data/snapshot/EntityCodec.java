@@ -0,0 +1,185 @@
+package it.mikeslab.truebank.data.snapshot;
+
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class: EntityCodec
+ * Compact binary encoding of the maps produced by ConfigurationSerializable.serialize().
+ * Every value is prefixed by a one byte tag; nested serializable objects are stored
+ * as maps carrying their alias, the same way Bukkit stores them in YAML.
+ */
+public final class EntityCodec {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte LIST = 6;
+    private static final byte MAP = 7;
+    private static final byte FLOAT = 8;
+    private static final byte DECIMAL = 9;
+
+    private EntityCodec() {
+    }
+
+    /**
+     * Encodes an entity.
+     * @param entity The entity.
+     * @param output The destination.
+     * @throws IOException If the destination can't be written.
+     */
+    public static void write(ConfigurationSerializable entity, DataOutput output) throws IOException {
+        writeValue(entity.serialize(), output);
+    }
+
+    /**
+     * Decodes an entity encoded by {@link #write(ConfigurationSerializable, DataOutput)}.
+     * @param type The entity class.
+     * @param input The source.
+     * @return The entity.
+     * @throws IOException If the source is truncated or malformed.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends ConfigurationSerializable> T read(Class<T> type, DataInput input) throws IOException {
+
+        Object value = readValue(input);
+
+        if (!(value instanceof Map)) {
+            throw new IOException("Malformed entity, expected a map");
+        }
+
+        return type.cast(ConfigurationSerialization.deserializeObject((Map<String, ?>) value, type));
+    }
+
+    // Helper function to write a tagged value
+    private static void writeValue(Object value, DataOutput output) throws IOException {
+
+        if (value == null) {
+            output.writeByte(NULL);
+        } else if (value instanceof String) {
+            output.writeByte(STRING);
+            writeString((String) value, output);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            output.writeByte(INT);
+            output.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE);
+            output.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            output.writeByte(FLOAT);
+            output.writeFloat((Float) value);
+        } else if (value instanceof BigDecimal) {
+            output.writeByte(DECIMAL);
+            writeString(((BigDecimal) value).toPlainString(), output);
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Collection) {
+            output.writeByte(LIST);
+            output.writeInt(((Collection<?>) value).size());
+
+            for (Object element : (Collection<?>) value) {
+                writeValue(element, output);
+            }
+        } else if (value instanceof Map) {
+            output.writeByte(MAP);
+            output.writeInt(((Map<?, ?>) value).size());
+
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writeString(String.valueOf(entry.getKey()), output);
+                writeValue(entry.getValue(), output);
+            }
+        } else if (value instanceof ConfigurationSerializable) {
+            ConfigurationSerializable serializable = (ConfigurationSerializable) value;
+
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put(ConfigurationSerialization.SERIALIZED_TYPE_KEY, ConfigurationSerialization.getAlias(serializable.getClass()));
+            map.putAll(serializable.serialize());
+
+            writeValue(map, output);
+        } else {
+            throw new IOException("Unsupported value type " + value.getClass().getName());
+        }
+    }
+
+    // Helper function to read a tagged value
+    private static Object readValue(DataInput input) throws IOException {
+
+        byte tag = input.readByte();
+
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(input);
+            case INT:
+                return input.readInt();
+            case LONG:
+                return input.readLong();
+            case DOUBLE:
+                return input.readDouble();
+            case FLOAT:
+                return input.readFloat();
+            case DECIMAL:
+                return new BigDecimal(readString(input));
+            case BOOLEAN:
+                return input.readBoolean();
+            case LIST:
+                int length = input.readInt();
+                List<Object> list = new ArrayList<>(length);
+
+                for (int i = 0; i < length; i++) {
+                    list.add(readValue(input));
+                }
+
+                return list;
+            case MAP:
+                int size = input.readInt();
+                Map<String, Object> map = new LinkedHashMap<>();
+
+                for (int i = 0; i < size; i++) {
+                    map.put(readString(input), readValue(input));
+                }
+
+                // Nested objects are rebuilt here, the root entity by read()
+                if (map.containsKey(ConfigurationSerialization.SERIALIZED_TYPE_KEY)) {
+                    return ConfigurationSerialization.deserializeObject(map);
+                }
+
+                return map;
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    // Strings are length prefixed with an int, DataOutput#writeUTF is limited to 64KB
+    private static void writeString(String value, DataOutput output) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInput input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
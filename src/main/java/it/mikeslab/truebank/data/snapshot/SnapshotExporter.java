@@ -0,0 +1,136 @@
+package it.mikeslab.truebank.data.snapshot;
+
+import it.mikeslab.truebank.data.Repository;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class: SnapshotExporter
+ * Streams every entity of a live repository into a snapshot file (see SnapshotFormat).
+ *
+ * Entities are read page by page through Repository#scan, so writers are never paused;
+ * each entity is captured as a whole, but entities changed during the export may be
+ * captured before or after the change. Pages are encoded and compressed in parallel
+ * and appended in order. The file is written aside and moved in place once complete,
+ * so an existing snapshot is never left half written.
+ */
+@RequiredArgsConstructor
+public class SnapshotExporter<T extends ConfigurationSerializable> {
+
+    private final int blockSize;
+    private final int parallelism;
+
+    /**
+     * Exports a repository.
+     * Blocking, must be invoked off the main thread.
+     * @param repository The repository to export.
+     * @param type The entity class.
+     * @param file The snapshot file, replaced if it exists.
+     * @return The export stats.
+     * @throws IOException If the file can't be written or an entity can't be encoded.
+     */
+    public SnapshotStats export(Repository<T> repository, Class<T> type, File file) throws IOException {
+
+        long startedAt = System.nanoTime();
+
+        Path path = file.toPath();
+        Path temporary = path.resolveSibling(file.getName() + ".tmp");
+
+        Files.createDirectories(path.getParent());
+
+        AtomicInteger threadCount = new AtomicInteger();
+
+        ExecutorService encoders = Executors.newFixedThreadPool(this.parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "TrueBank-Snapshot-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long entities = 0;
+
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            SnapshotFormat.writeFully(channel, SnapshotFormat.header(type, repository.getRepositoryName()));
+
+            Deque<CompletableFuture<ByteBuffer>> inFlight = new ArrayDeque<>();
+            String lastId = null;
+
+            while (true) {
+                List<Map.Entry<String, T>> page = repository.scan(lastId, this.blockSize);
+
+                if (page.isEmpty()) {
+                    break;
+                }
+
+                lastId = page.get(page.size() - 1).getKey();
+                entities += page.size();
+
+                inFlight.addLast(CompletableFuture.supplyAsync(() -> encode(page), encoders));
+
+                // Blocks are appended in order, at most one per encoder waits in memory
+                while (inFlight.size() >= this.parallelism || (!inFlight.isEmpty() && inFlight.peekFirst().isDone())) {
+                    SnapshotFormat.writeFully(channel, join(inFlight.pollFirst()));
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                SnapshotFormat.writeFully(channel, join(inFlight.pollFirst()));
+            }
+
+            SnapshotFormat.writeFully(channel, SnapshotFormat.footer(entities));
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        } finally {
+            encoders.shutdownNow();
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return new SnapshotStats(entities, Files.size(path), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+    }
+
+    private static <T extends ConfigurationSerializable> ByteBuffer encode(List<Map.Entry<String, T>> page) {
+        try {
+            return SnapshotFormat.encodeBlock(page);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Helper function to wait for a block, unwrapping encoding failures
+    private static ByteBuffer join(CompletableFuture<ByteBuffer> block) throws IOException {
+        try {
+            return block.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,293 @@
+package it.mikeslab.truebank.data.snapshot;
+
+import lombok.RequiredArgsConstructor;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Class: SnapshotFormat
+ * Layout of a snapshot file, all numbers big-endian:
+ *
+ *   header  int magic, short version, string entity class, string repository, long created at
+ *   block   int entity count, int raw length, int compressed length, long CRC32 of the raw bytes,
+ *           deflated bytes of (string id, encoded entity) x entity count
+ *   footer  int 0, long total entity count
+ *
+ * Strings are an int length followed by UTF-8 bytes. Blocks are independent
+ * of each other, so that they can be compressed and restored in parallel;
+ * a file without footer has been truncated.
+ */
+final class SnapshotFormat {
+
+    static final int MAGIC = 0x54425350; // "TBSP"
+    static final short VERSION = 1;
+
+    static final int BLOCK_HEADER_BYTES = Integer.BYTES * 3 + Long.BYTES;
+
+    // Upper bound of a block, a larger length means the file is corrupted
+    private static final int MAX_BLOCK_BYTES = 256 * 1024 * 1024;
+
+    private SnapshotFormat() {
+    }
+
+    static ByteBuffer header(Class<?> type, String repositoryName) {
+        byte[] typeName = type.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] name = repositoryName.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Short.BYTES + Integer.BYTES * 2 + typeName.length + name.length + Long.BYTES);
+
+        buffer.putInt(MAGIC)
+                .putShort(VERSION)
+                .putInt(typeName.length).put(typeName)
+                .putInt(name.length).put(name)
+                .putLong(System.currentTimeMillis());
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads and validates the header of a snapshot.
+     * @param channel The channel, positioned at the start of the file.
+     * @param type The expected entity class.
+     * @return The name of the repository the snapshot was taken from.
+     * @throws IOException If the file isn't a snapshot of the given type.
+     */
+    static String readHeader(FileChannel channel, Class<?> type) throws IOException {
+
+        ByteBuffer fixed = readFully(channel, Integer.BYTES + Short.BYTES);
+
+        if (fixed.getInt() != MAGIC) {
+            throw new IOException("Not a TrueBank snapshot");
+        }
+
+        short version = fixed.getShort();
+
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        String typeName = readString(channel);
+
+        if (!typeName.equals(type.getName())) {
+            throw new IOException("The snapshot holds " + typeName + " entities, not " + type.getName());
+        }
+
+        String repositoryName = readString(channel);
+        readFully(channel, Long.BYTES); // Creation time, informative only
+
+        return repositoryName;
+    }
+
+    /**
+     * Encodes and compresses a page of entities into a block.
+     * @param entities The entities with their ids.
+     * @return The block, ready to be written.
+     * @throws IOException If an entity holds an unsupported value.
+     */
+    static <T extends ConfigurationSerializable> ByteBuffer encodeBlock(List<Map.Entry<String, T>> entities) throws IOException {
+
+        ByteArrayOutputStream rawStream = new ByteArrayOutputStream();
+
+        try (DataOutputStream output = new DataOutputStream(rawStream)) {
+            for (Map.Entry<String, T> entry : entities) {
+                byte[] id = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                output.writeInt(id.length);
+                output.write(id);
+
+                EntityCodec.write(entry.getValue(), output);
+            }
+        }
+
+        byte[] raw = rawStream.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+
+        byte[] compressed = deflate(raw);
+
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_BYTES + compressed.length);
+        block.putInt(entities.size())
+                .putInt(raw.length)
+                .putInt(compressed.length)
+                .putLong(crc.getValue())
+                .put(compressed);
+
+        block.flip();
+        return block;
+    }
+
+    /**
+     * Decompresses, checks and decodes a block.
+     * @param header The block header.
+     * @param compressed The compressed bytes of the block.
+     * @param type The entity class.
+     * @return The entities with their ids.
+     * @throws IOException If the block is corrupted.
+     */
+    static <T extends ConfigurationSerializable> List<Map.Entry<String, T>> decodeBlock(BlockHeader header, byte[] compressed, Class<T> type) throws IOException {
+
+        byte[] raw = inflate(compressed, header.rawLength);
+
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+
+        if (crc.getValue() != header.crc) {
+            throw new IOException("Checksum mismatch, the snapshot is corrupted");
+        }
+
+        List<Map.Entry<String, T>> entities = new ArrayList<>(header.entityCount);
+
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(raw))) {
+            for (int i = 0; i < header.entityCount; i++) {
+                byte[] id = new byte[input.readInt()];
+                input.readFully(id);
+
+                entities.add(new AbstractMap.SimpleEntry<>(new String(id, StandardCharsets.UTF_8), EntityCodec.read(type, input)));
+            }
+        }
+
+        return entities;
+    }
+
+    static ByteBuffer footer(long totalEntities) {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+        buffer.putInt(0).putLong(totalEntities);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the header of the next block.
+     * @param channel The channel, positioned at a block boundary.
+     * @return The block header, null once the footer has been reached.
+     * @throws IOException If the file is truncated or corrupted.
+     */
+    static BlockHeader readBlockHeader(FileChannel channel) throws IOException {
+
+        int entityCount = readFully(channel, Integer.BYTES).getInt();
+
+        if (entityCount == 0) {
+            return null;
+        }
+
+        ByteBuffer buffer = readFully(channel, BLOCK_HEADER_BYTES - Integer.BYTES);
+
+        BlockHeader header = new BlockHeader(entityCount, buffer.getInt(), buffer.getInt(), buffer.getLong());
+
+        if (entityCount < 0 || header.rawLength < 0 || header.rawLength > MAX_BLOCK_BYTES
+                || header.compressedLength < 0 || header.compressedLength > MAX_BLOCK_BYTES) {
+            throw new IOException("Malformed block header, the snapshot is corrupted");
+        }
+
+        return header;
+    }
+
+    static ByteBuffer readFully(FileChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of snapshot, the file is truncated");
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String readString(FileChannel channel) throws IOException {
+        int length = readFully(channel, Integer.BYTES).getInt();
+
+        if (length < 0 || length > Short.MAX_VALUE) {
+            throw new IOException("Malformed snapshot header");
+        }
+
+        return new String(readFully(channel, length).array(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, raw.length / 2));
+            byte[] buffer = new byte[8192];
+
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(compressed);
+
+            byte[] raw = new byte[rawLength];
+            int inflated = 0;
+
+            while (inflated < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(raw, inflated, rawLength - inflated);
+
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                inflated += read;
+            }
+
+            if (inflated != rawLength) {
+                throw new IOException("Block shorter than declared, the snapshot is corrupted");
+            }
+
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed block, the snapshot is corrupted", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class BlockHeader {
+
+        final int entityCount;
+        final int rawLength;
+        final int compressedLength;
+        final long crc;
+
+    }
+
+}
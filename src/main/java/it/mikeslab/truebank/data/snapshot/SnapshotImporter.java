@@ -0,0 +1,128 @@
+package it.mikeslab.truebank.data.snapshot;
+
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.scheduler.Priority;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class: SnapshotImporter
+ * Restores a snapshot file into a repository of any backend.
+ *
+ * Blocks are read sequentially from the file, then decompressed, verified and
+ * written through Repository#saveAll by a pool of workers. Ids are kept where the
+ * target backend can store them, so importing a snapshot twice replaces the entities
+ * rather than duplicating them.
+ */
+@RequiredArgsConstructor
+public class SnapshotImporter<T extends ConfigurationSerializable> {
+
+    private final int parallelism;
+
+    /**
+     * Imports a snapshot.
+     * Blocking, must be invoked off the main thread.
+     * @param repository The repository to import into.
+     * @param type The entity class.
+     * @param file The snapshot file.
+     * @return The import stats.
+     * @throws IOException If the file can't be read, is corrupted or holds another entity class.
+     */
+    public SnapshotStats restore(Repository<T> repository, Class<T> type, File file) throws IOException {
+
+        long startedAt = System.nanoTime();
+
+        AtomicInteger threadCount = new AtomicInteger();
+
+        ExecutorService workers = Executors.newFixedThreadPool(this.parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "TrueBank-Snapshot-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long entities = 0;
+        long bytes;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            SnapshotFormat.readHeader(channel, type);
+
+            Deque<CompletableFuture<Integer>> inFlight = new ArrayDeque<>();
+
+            // Workers inherit the priority class of the caller
+            Priority priority = Priority.current();
+
+            SnapshotFormat.BlockHeader header;
+
+            while ((header = SnapshotFormat.readBlockHeader(channel)) != null) {
+
+                SnapshotFormat.BlockHeader block = header;
+                byte[] compressed = SnapshotFormat.readFully(channel, block.compressedLength).array();
+
+                inFlight.addLast(CompletableFuture.supplyAsync(() -> priority.call(() -> this.restoreBlock(repository, type, block, compressed)), workers));
+
+                // Bounds the blocks held in memory, failures stop the import early
+                while (inFlight.size() >= this.parallelism || (!inFlight.isEmpty() && inFlight.peekFirst().isDone())) {
+                    entities += join(inFlight.pollFirst());
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                entities += join(inFlight.pollFirst());
+            }
+
+            long declared = SnapshotFormat.readFully(channel, Long.BYTES).getLong();
+
+            if (declared != entities) {
+                throw new IOException("The snapshot declares " + declared + " entities but holds " + entities);
+            }
+
+            bytes = channel.position();
+        } finally {
+            workers.shutdownNow();
+        }
+
+        return new SnapshotStats(entities, bytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+    }
+
+    // Helper function to decode a block and store its entities, returns the entity count
+    private int restoreBlock(Repository<T> repository, Class<T> type, SnapshotFormat.BlockHeader header, byte[] compressed) {
+        try {
+            List<Map.Entry<String, T>> entities = SnapshotFormat.decodeBlock(header, compressed, type);
+            repository.saveAll(entities);
+            return entities.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Helper function to wait for a block, unwrapping decoding failures
+    private static int join(CompletableFuture<Integer> block) throws IOException {
+        try {
+            return block.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+
+            throw e;
+        }
+    }
+
+}
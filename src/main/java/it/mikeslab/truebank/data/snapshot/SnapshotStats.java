@@ -0,0 +1,26 @@
+package it.mikeslab.truebank.data.snapshot;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Class: SnapshotStats
+ * Outcome of a snapshot export or import.
+ */
+@Getter
+@RequiredArgsConstructor
+public class SnapshotStats {
+
+    private final long entities;
+    private final long bytes;
+    private final long elapsedMillis;
+
+    /**
+     * Gets the throughput over the snapshot file size.
+     * @return The megabytes written or read per second.
+     */
+    public double getMegabytesPerSecond() {
+        return this.elapsedMillis == 0 ? 0 : (this.bytes / (1024.0 * 1024.0)) / (this.elapsedMillis / 1000.0);
+    }
+
+}
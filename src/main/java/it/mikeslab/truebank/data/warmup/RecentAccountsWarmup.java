@@ -0,0 +1,45 @@
+package it.mikeslab.truebank.data.warmup;
+
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.query.Query;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Class: RecentAccountsWarmup
+ * Reads the entries of the most recently active players, so that their
+ * data is hot in the database caches and the pool connections are open
+ * by the time they join.
+ *
+ * Configured through the "warmup" section of the repository configuration:
+ *
+ *   warmup:
+ *     recentAccounts: 50
+ */
+public class RecentAccountsWarmup<T> implements RepositoryWarmup<T> {
+
+    @Override
+    public int warmup(Repository<T> repository, ConfigurationSection section) {
+
+        int recentAccounts = section.getInt("warmup.recentAccounts", 0);
+
+        if (recentAccounts <= 0) {
+            return 0;
+        }
+
+        OfflinePlayer[] players = Bukkit.getOfflinePlayers();
+
+        return (int) Arrays.stream(players)
+                .sorted(Comparator.comparingLong(OfflinePlayer::getLastPlayed).reversed())
+                .limit(recentAccounts)
+                // The lookup of the login path, so that its plan is compiled and cached too
+                .map(player -> repository.query(Query.builder().eq("uuid", player.getUniqueId().toString()).limit(1).build()))
+                .filter(results -> !results.isEmpty())
+                .count();
+    }
+
+}
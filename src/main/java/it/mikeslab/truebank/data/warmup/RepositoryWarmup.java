@@ -0,0 +1,23 @@
+package it.mikeslab.truebank.data.warmup;
+
+import it.mikeslab.truebank.data.Repository;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Interface: RepositoryWarmup
+ * Optional step executed right after a repository has connected,
+ * on the startup thread, to prime connections and caches before
+ * the plugin is marked as ready.
+ */
+@FunctionalInterface
+public interface RepositoryWarmup<T> {
+
+    /**
+     * Warms up the repository.
+     * @param repository The freshly connected repository.
+     * @param section The repository configuration section.
+     * @return The number of warmed up entries.
+     */
+    int warmup(Repository<T> repository, ConfigurationSection section);
+
+}
@@ -0,0 +1,273 @@
+package it.mikeslab.truebank.data.yaml;
+
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Condition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class: IncrementalAggregate
+ * An aggregation kept up to date in memory as entities are written, so that
+ * reading it costs nothing once built. Counts, sums and averages follow every
+ * change exactly; a min or max whose extreme is removed can't be updated
+ * backwards, it is marked stale and rebuilt from the entities on the next read.
+ *
+ * Fields are the serialized fields of the entities, plus their "id".
+ */
+final class IncrementalAggregate {
+
+    private final Aggregation aggregation;
+    private final Map<List<Object>, Group> groups = new HashMap<>();
+    private boolean stale = true;
+
+    IncrementalAggregate(Aggregation aggregation) {
+        this.aggregation = aggregation;
+    }
+
+    synchronized boolean isStale() {
+        return this.stale;
+    }
+
+    /**
+     * Rebuilds the aggregate from every entity.
+     * @param entities The fields of every entity.
+     */
+    synchronized void rebuild(Iterable<Map<String, Object>> entities) {
+        this.groups.clear();
+
+        for (Map<String, Object> fields : entities) {
+            this.add(fields);
+        }
+
+        this.stale = false;
+    }
+
+    /**
+     * Applies the change of an entity.
+     * @param before Its fields before the write, null if it didn't exist.
+     * @param after Its fields after the write, null if deleted.
+     */
+    synchronized void change(Map<String, Object> before, Map<String, Object> after) {
+
+        if (this.stale) {
+            // Rebuilt from scratch on the next read anyway
+            return;
+        }
+
+        if (before != null && this.matches(before)) {
+            this.remove(before);
+        }
+
+        if (after != null && this.matches(after)) {
+            this.add(after);
+        }
+    }
+
+    synchronized List<Map<String, Object>> rows() {
+
+        List<Map<String, Object>> rows = new ArrayList<>(this.groups.size());
+
+        for (Map.Entry<List<Object>, Group> entry : this.groups.entrySet()) {
+            Map<String, Object> row = new HashMap<>();
+
+            for (int i = 0; i < this.aggregation.getGroupBy().size(); i++) {
+                row.put(this.aggregation.getGroupBy().get(i), entry.getKey().get(i));
+            }
+
+            for (int i = 0; i < this.aggregation.getMetrics().size(); i++) {
+                Aggregation.Metric metric = this.aggregation.getMetrics().get(i);
+                row.put(metric.getAlias(), Aggregation.normalize(metric, entry.getValue().value(metric, i)));
+            }
+
+            rows.add(row);
+        }
+
+        if (rows.isEmpty() && this.aggregation.emptyRow() != null) {
+            rows.add(this.aggregation.emptyRow());
+        }
+
+        return rows;
+    }
+
+    private boolean matches(Map<String, Object> fields) {
+        for (Condition condition : this.aggregation.getFilter().getConditions()) {
+            if (!condition.matches(fields.get(condition.getField()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void add(Map<String, Object> fields) {
+        this.groups.computeIfAbsent(this.groupKey(fields), key -> new Group(this.aggregation.getMetrics().size())).add(this.aggregation, fields);
+    }
+
+    private void remove(Map<String, Object> fields) {
+        List<Object> key = this.groupKey(fields);
+        Group group = this.groups.get(key);
+
+        if (group == null) {
+            return;
+        }
+
+        if (!group.remove(this.aggregation, fields)) {
+            this.stale = true;
+            return;
+        }
+
+        if (group.entities == 0) {
+            this.groups.remove(key);
+        }
+    }
+
+    private List<Object> groupKey(Map<String, Object> fields) {
+        Object[] key = new Object[this.aggregation.getGroupBy().size()];
+
+        for (int i = 0; i < key.length; i++) {
+            key[i] = fields.get(this.aggregation.getGroupBy().get(i));
+        }
+
+        return Arrays.asList(key);
+    }
+
+    // Running state of a group, one slot per metric
+    private static final class Group {
+
+        private long entities;
+        private final long[] counts;
+        private final long[] wholeSums;
+        private final double[] fractionalSums;
+        private final boolean[] fractional;
+        private final Object[] extremes;
+
+        private Group(int metrics) {
+            this.counts = new long[metrics];
+            this.wholeSums = new long[metrics];
+            this.fractionalSums = new double[metrics];
+            this.fractional = new boolean[metrics];
+            this.extremes = new Object[metrics];
+        }
+
+        private void add(Aggregation aggregation, Map<String, Object> fields) {
+            this.entities++;
+
+            for (int i = 0; i < this.counts.length; i++) {
+                Aggregation.Metric metric = aggregation.getMetrics().get(i);
+
+                if (metric.getFunction() == Aggregation.Function.COUNT) {
+                    this.counts[i]++;
+                    continue;
+                }
+
+                Object value = fields.get(metric.getField());
+
+                if (value == null) {
+                    continue;
+                }
+
+                this.counts[i]++;
+
+                switch (metric.getFunction()) {
+                    case MIN:
+                        if (this.extremes[i] == null || Condition.compare(value, this.extremes[i]) < 0) {
+                            this.extremes[i] = value;
+                        }
+                        break;
+                    case MAX:
+                        if (this.extremes[i] == null || Condition.compare(value, this.extremes[i]) > 0) {
+                            this.extremes[i] = value;
+                        }
+                        break;
+                    default:
+                        // SUM and AVG
+                        this.accumulate(i, value, 1);
+                        break;
+                }
+            }
+        }
+
+        // Returns false if a removed value was an extreme, the group can't tell the next one
+        private boolean remove(Aggregation aggregation, Map<String, Object> fields) {
+            this.entities--;
+
+            boolean exact = true;
+
+            for (int i = 0; i < this.counts.length; i++) {
+                Aggregation.Metric metric = aggregation.getMetrics().get(i);
+
+                if (metric.getFunction() == Aggregation.Function.COUNT) {
+                    this.counts[i]--;
+                    continue;
+                }
+
+                Object value = fields.get(metric.getField());
+
+                if (value == null) {
+                    continue;
+                }
+
+                this.counts[i]--;
+
+                switch (metric.getFunction()) {
+                    case MIN:
+                    case MAX:
+                        if (this.extremes[i] != null && Condition.compare(value, this.extremes[i]) == 0) {
+                            exact = false;
+                        }
+                        break;
+                    default:
+                        this.accumulate(i, value, -1);
+                        break;
+                }
+            }
+
+            return exact;
+        }
+
+        private void accumulate(int slot, Object value, int sign) {
+
+            if (!(value instanceof Number)) {
+                return;
+            }
+
+            Number number = (Number) value;
+
+            if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte) {
+                this.wholeSums[slot] += sign * number.longValue();
+            } else {
+                this.fractionalSums[slot] += sign * number.doubleValue();
+                this.fractional[slot] = true;
+            }
+        }
+
+        private Object value(Aggregation.Metric metric, int slot) {
+
+            switch (metric.getFunction()) {
+                case COUNT:
+                    return this.counts[slot];
+                case MIN:
+                case MAX:
+                    return this.extremes[slot];
+                default:
+                    if (this.counts[slot] == 0) {
+                        return null;
+                    }
+
+                    double sum = this.fractional[slot] ? this.wholeSums[slot] + this.fractionalSums[slot] : this.wholeSums[slot];
+
+                    if (metric.getFunction() == Aggregation.Function.AVG) {
+                        return sum / this.counts[slot];
+                    }
+
+                    return this.fractional[slot] ? (Object) sum : (Object) this.wholeSums[slot];
+            }
+        }
+
+    }
+
+}
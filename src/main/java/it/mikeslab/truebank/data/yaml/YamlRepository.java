@@ -1,108 +1,675 @@
 package it.mikeslab.truebank.data.yaml;
 
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.ChangeSet;
 import it.mikeslab.truebank.data.EntityStyle;
+import it.mikeslab.truebank.data.FieldUpdate;
 import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.RepositoryException;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.monitor.OperationTrace;
+import it.mikeslab.truebank.data.monitor.OperationTracer;
+import it.mikeslab.truebank.data.monitor.SerializationEvent;
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Condition;
+import it.mikeslab.truebank.data.query.Query;
+import it.mikeslab.truebank.data.query.QueryPlanCache;
+import it.mikeslab.truebank.pojo.database.URIBuilder;
 import it.mikeslab.truebank.util.LoggerUtil;
 import lombok.RequiredArgsConstructor;
 import org.bson.Document;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-@RequiredArgsConstructor
+/**
+ * Class: YamlRepository
+ * Repository kept in a section of a YAML file, owned by a single server and
+ * by a single repository of it: a file is refused to a second repository.
+ * The section is read once into a concurrent map of immutable entries: every
+ * write replaces the entry of its key atomically, under the lock of that key
+ * only, and reads deserialize their own copy. The file is a snapshot of the
+ * map, rewritten under a lock of its own, so the FileConfiguration is never
+ * touched by two threads at once.
+ *
+ * With segments above 1 the entries are spread by key hash over that many
+ * files next to the configured path (users.yml: users-0.yml, users-1.yml...),
+ * each holding the same section: the files are read in parallel on startup
+ * and a write only rewrites the file of its key. A single file found in place
+ * of the segments is split on the first start, and deleted once they're
+ * written; changing the number of segments moves the entries on the next
+ * start, back into the single file when it's set to 1 again.
+ *
+ * Writes only mark the repository dirty: the first write after a flush
+ * schedules the next one flushIntervalMillis later, on a background thread,
+ * so a write returns without touching the disk and the file is written at
+ * most once per interval whatever the write rate. A file is written to a
+ * temporary file, synced and renamed over the previous one, so a crash
+ * leaves either the old or the new file whole, never a partial one; it
+ * loses the writes of the last interval at most. An interval of 0 writes
+ * the file on the writing thread, on every write.
+ */
 public class YamlRepository<T extends ConfigurationSerializable> implements Repository<T> {
 
-    private final FileConfiguration configurationFile;
     private final EntityStyle entityStyle;
-    private final File configFile;
-    private Class<T> type;
+    private final String repositoryName;
+    private final Class<T> type;
+    private final OperationTracer tracer;
 
-    private String repositoryName;
+    // A YAML file is owned by a single server, versions only have to order the writers of this
+    // process and are kept in memory. Entries loaded from the file start at version 0.
+    private final Map<String, Stored> entries = new ConcurrentHashMap<>();
+
+    // Keys in order, for scans and queries; updated under the lock of the entry of the key
+    private final NavigableSet<String> keys = new ConcurrentSkipListSet<>();
+
+    // Highest numeric key taken, INCREMENTAL files claim the next one
+    private final AtomicLong lastIncrementalKey = new AtomicLong();
+
+    // The files of the repository, a single one unless segmented
+    private final Segment[] segments;
+    private final long flushIntervalMillis;
+    private final ScheduledThreadPoolExecutor flusher;
+
+    // Holds the stored entry next to its fields while a query runs
+    private static final String ENTRY_KEY = "\u0000entry";
+
+    // Compiled query predicates, by query shape
+    private final QueryPlanCache<YamlQueryPlan> queryPlans = new QueryPlanCache<>(128);
+
+    // Aggregations kept up to date by every write, by shape, along with the fields they were last fed.
+    // Writers hold the read lock, so that a rebuild (write lock) never misses or doubles a write.
+    private static final int MAX_AGGREGATES = 32;
+    private final Map<String, IncrementalAggregate> aggregates = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Object>> aggregatedEntities = new ConcurrentHashMap<>();
+    private final ReadWriteLock aggregateLock = new ReentrantReadWriteLock();
+
+    // Files opened by the repositories of this process, with their owner: every repository rewrites
+    // its files from its own copy, so two of them sharing a file would drop each other's writes
+    private static final Map<Path, String> OPEN_FILES = new ConcurrentHashMap<>();
+    private final Path claimedFile;
+
+    public YamlRepository(URIBuilder uriBuilder, String repositoryName, Class<T> type, OperationTracer tracer) {
+        this.claimedFile = claim(new File(uriBuilder.getPath()), repositoryName);
+        this.entityStyle = uriBuilder.getStyle();
+        this.repositoryName = repositoryName;
+        this.type = type;
+        this.tracer = tracer;
+        this.flushIntervalMillis = Math.max(0, uriBuilder.getFlushIntervalMillis());
+
+        if (this.flushIntervalMillis > 0) {
+            this.flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "TrueBank-YAML-" + repositoryName);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            // Pending flushes are dropped on close, which writes the file itself
+            this.flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        } else {
+            this.flusher = null;
+        }
+
+        File path = new File(uriBuilder.getPath());
+        this.segments = new Segment[Math.max(1, uriBuilder.getSegments())];
+
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i] = new Segment(this.segments.length == 1 ? path : segmentFile(path, i));
+        }
+
+        try {
+            this.load(path);
+        } catch (RuntimeException e) {
+            OPEN_FILES.remove(this.claimedFile, repositoryName);
+            throw e;
+        }
+    }
+
+    // Helper function to claim the file of a repository, refusing one already used by another repository
+    private static Path claim(File file, String repositoryName) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        String owner = OPEN_FILES.putIfAbsent(path, repositoryName);
+
+        if (owner != null) {
+            throw new RepositoryException("[" + repositoryName + "] " + file + " is already used by " + owner
+                    + ", give each YAML repository a path of its own");
+        }
+
+        return path;
+    }
 
     @Override
     public String save(T obj, Object... args) {
 
-        int dataSize;
-        String key = null;
+        try (OperationTrace trace = this.tracer.start("save")) {
+            trace.shape(entityStyle);
+            trace.rows(1);
+
+            return this.saveEntity(obj, args);
+        }
+    }
+
+    // Helper function to store a new entity according to the entity style
+    private String saveEntity(T obj, Object... args) {
+        String key = this.storeEntity(obj, args);
+        this.markDirty(this.segmentOf(key));
+
+        // Since we're using ObjectIDs in our actual implementation, we should pad our string in order to be converted to
+        // an hex string, which is the format expected by the ObjectId constructor.
+
+        return key;
+    }
+
+    // Helper function to store a new entity in memory, without writing the file
+    private String storeEntity(T obj, Object... args) {
 
         switch (entityStyle) {
 
             case UUID:
                 UUID userUUID = (UUID) args[0];
-                configurationFile.set(repositoryName + "." + userUUID, obj);
-                key = userUUID.toString();
-                break;
+                String uuidKey = userUUID.toString();
+                this.setVersioned(uuidKey, obj);
+                return uuidKey;
             case CUSTOM:
-                key = (String) args[0];
-                configurationFile.set(repositoryName + "." + key, obj);
-                break;
+                String customKey = (String) args[0];
+                this.setVersioned(customKey, obj);
+                return customKey;
             default:
-                // Incremental, default behavior
-                if(!configurationFile.isConfigurationSection(repositoryName)) {
-                    configurationFile.createSection(repositoryName);
-                }
-
-                // Get the size of the configuration section
-                dataSize = configurationFile
-                        .getConfigurationSection(repositoryName)
-                        .getKeys(false)
-                        .size();
+                // Incremental, default behavior: the key after the highest one taken,
+                // claimed atomically so that concurrent saves never share a key
+                Map<String, Object> fields = copy(obj);
+                String key;
 
-                dataSize++; // Increment the size by 1 to get the next available id
+                do {
+                    key = String.valueOf(this.lastIncrementalKey.incrementAndGet());
+                } while (!this.insertVersioned(key, fields));
 
-                configurationFile.set(repositoryName + "." + dataSize, obj);
-                key = String.valueOf(dataSize);
-                break;
+                return key;
 
         }
+    }
 
-        this.saveYamlConfiguration();
-
-        // Since we're using ObjectIDs in our actual implementation, we should pad our string in order to be converted to
-        // an hex string, which is the format expected by the ObjectId constructor.
+    @Override
+    public void update(String id, T obj) {
+        try (OperationTrace trace = this.tracer.start("update")) {
+            trace.rows(1);
 
-        return key;
+            this.setVersioned(id, obj);
+            this.markDirty(this.segmentOf(id));
+        }
     }
 
     @Override
-    public void update(String id, T obj) {
-        configurationFile.set(repositoryName + "." + id, obj);
-        this.saveYamlConfiguration();
+    public UpsertResult upsert(String id, T obj) {
+        try (OperationTrace trace = this.tracer.start("upsert")) {
+            trace.rows(1);
+
+            boolean inserted = this.setVersioned(id, obj);
+            this.markDirty(this.segmentOf(id));
+
+            return inserted ? UpsertResult.INSERTED : UpsertResult.UPDATED;
+        }
     }
 
     @Override
     public void delete(String id) {
-        configurationFile.set(repositoryName + "." + id, null);
-        this.saveYamlConfiguration();
+        try (OperationTrace trace = this.tracer.start("delete")) {
+            trace.rows(1);
+
+            this.aggregateLock.readLock().lock();
+
+            try {
+                this.entries.computeIfPresent(id, (key, current) -> {
+                    this.keys.remove(key);
+                    this.segmentOf(key).keys.remove(key);
+                    this.aggregateChange(key, null);
+                    return null;
+                });
+            } finally {
+                this.aggregateLock.readLock().unlock();
+            }
+            this.markDirty(this.segmentOf(id));
+        }
     }
 
     @Override
     public T get(String id) {
-        return configurationFile.getSerializable(repositoryName + "." + id, type);
+        try (OperationTrace trace = this.tracer.start("get")) {
+            Stored stored = this.entries.get(id);
+
+            trace.rows(stored == null ? 0 : 1);
+            return stored == null ? null : this.decode(stored);
+        }
     }
 
     @Override
     public Map.Entry<String, Object> find(Document document) {
-        for (String key : configurationFile.getKeys(true)) {
-            if (configurationFile.isConfigurationSection(key)) continue;
+        try (OperationTrace trace = this.tracer.start("find")) {
+            trace.shape(document);
+
+            for (String key : this.keys) {
+                if (document.containsKey("id") && !String.valueOf(document.get("id")).equals(key)) continue;
+
+                Stored stored = this.entries.get(key);
 
-            if (document.containsKey("id") && !document.get("id").equals(key)) continue;
+                if (stored == null) continue;
 
-            if (document.entrySet().stream().anyMatch(entry -> !entry.getValue().equals(configurationFile.get(key + "." + entry.getKey())))) continue;
+                if (document.entrySet().stream().anyMatch(entry -> !entry.getKey().equals("id")
+                        && !Objects.equals(entry.getValue(), stored.fields.get(entry.getKey())))) continue;
 
-            return new AbstractMap.SimpleEntry<>(key, configurationFile.get(key));
+                trace.rows(1);
+                return new AbstractMap.SimpleEntry<>(key, this.decode(stored));
+            }
+            return null;
         }
-        return null;
     }
 
     @Override
-    public void setRepositoryName(String repositoryName) {
-        this.repositoryName = repositoryName;
+    public List<Map.Entry<String, T>> scan(String afterId, int limit) {
+        try (OperationTrace trace = this.tracer.start("scan")) {
+
+            List<Map.Entry<String, T>> page = new ArrayList<>();
+
+            // Keys are compared as strings, the order only has to be stable between pages
+            for (String key : afterId == null ? this.keys : this.keys.tailSet(afterId, false)) {
+                if (page.size() >= limit) break;
+
+                // Deleted since the key was listed
+                Stored stored = this.entries.get(key);
+
+                if (stored != null) {
+                    page.add(new AbstractMap.SimpleEntry<>(key, this.decode(stored)));
+                }
+            }
+
+            trace.rows(page.size());
+            return page;
+        }
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> query(Query query) {
+        try (OperationTrace trace = this.tracer.start("query")) {
+            trace.shape(query.getShape());
+
+            List<Map.Entry<String, T>> results = new ArrayList<>();
+
+            for (Map.Entry<String, Map<String, Object>> match : this.runQuery(query)) {
+                results.add(new AbstractMap.SimpleEntry<>(match.getKey(), this.decode((Stored) match.getValue().get(ENTRY_KEY))));
+            }
+
+            trace.rows(results.size());
+            return results;
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> select(Query query) {
+        try (OperationTrace trace = this.tracer.start("select")) {
+            trace.shape(query.getShape());
+
+            List<Map<String, Object>> rows = new ArrayList<>();
+
+            for (Map.Entry<String, Map<String, Object>> match : this.runQuery(query)) {
+                Map<String, Object> fields = match.getValue();
+                Map<String, Object> row = new HashMap<>();
+
+                if (query.getProjection().isEmpty()) {
+                    row.putAll(fields);
+                    row.remove(ENTRY_KEY);
+                } else {
+                    query.getProjection().forEach(field -> row.put(field, fields.get(field)));
+                }
+
+                row.put("id", match.getKey());
+                rows.add(row);
+            }
+
+            trace.rows(rows.size());
+            return rows;
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> aggregate(Aggregation aggregation) {
+        try (OperationTrace trace = this.tracer.start("aggregate")) {
+            trace.shape(aggregation.getShape());
+
+            IncrementalAggregate aggregate = this.aggregates.get(aggregation.getShape());
+
+            if (aggregate == null) {
+                aggregate = new IncrementalAggregate(aggregation);
+
+                // Beyond the limit an aggregation is computed once, without being maintained
+                if (this.aggregates.size() < MAX_AGGREGATES) {
+                    IncrementalAggregate existing = this.aggregates.putIfAbsent(aggregation.getShape(), aggregate);
+                    aggregate = existing == null ? aggregate : existing;
+                }
+            }
+
+            if (aggregate.isStale()) {
+                this.aggregateLock.writeLock().lock();
+
+                try {
+                    if (aggregate.isStale()) {
+                        aggregate.rebuild(this.snapshotEntities());
+                    }
+                } finally {
+                    this.aggregateLock.writeLock().unlock();
+                }
+            }
+
+            List<Map<String, Object>> rows = aggregate.rows();
+
+            trace.rows(rows.size());
+            return rows;
+        }
+    }
+
+    // Helper function to run a query over the candidates of its plan, the serialized fields of every match kept
+    private List<Map.Entry<String, Map<String, Object>>> runQuery(Query query) {
+
+        List<Map.Entry<String, Map<String, Object>>> matches = new ArrayList<>();
+
+        YamlQueryPlan plan = this.queryPlans.get(query, YamlQueryPlan::new);
+
+        for (String key : plan.candidates(query, this.keys)) {
+            Stored stored = this.entries.get(key);
+
+            if (stored == null) {
+                continue;
+            }
+
+            // Entities are deserialized only for the matches of a query, select reads the fields alone
+            Map<String, Object> fields = fieldsOf(key, stored.fields);
+
+            if (plan.matches(query, fields)) {
+                fields.put(ENTRY_KEY, stored);
+                matches.add(new AbstractMap.SimpleEntry<>(key, fields));
+            }
+        }
+
+        if (plan.comparator != null) {
+            matches.sort((left, right) -> plan.comparator.compare(left.getValue(), right.getValue()));
+        }
+
+        return query.hasLimit() && matches.size() > query.getLimit()
+                ? new ArrayList<>(matches.subList(0, query.getLimit()))
+                : matches;
+    }
+
+    @Override
+    public List<String> saveAll(List<Map.Entry<String, T>> entities) {
+        try (OperationTrace trace = this.tracer.start("saveAll")) {
+            trace.shape(entityStyle);
+
+            List<String> ids = new ArrayList<>(entities.size());
+            Set<Segment> touched = new HashSet<>();
+
+            for (Map.Entry<String, T> entry : entities) {
+                String key = this.resolveKey(entry.getKey(), entry.getValue());
+
+                if (key == null) {
+                    // Nothing to keep, the entity style decides the key
+                    String stored = this.storeEntity(entry.getValue(), new Object[] { null });
+
+                    touched.add(this.segmentOf(stored));
+                    ids.add(stored);
+                    continue;
+                }
+
+                this.setVersioned(key, entry.getValue());
+                touched.add(this.segmentOf(key));
+                ids.add(key);
+            }
+
+            // Written once for the whole batch, only the files holding its keys
+            touched.forEach(this::markDirty);
+
+            trace.rows(ids.size());
+            return ids;
+        }
+    }
+
+    @Override
+    public ChangeSet<T> changesSince(ChangeCursor cursor, int limit) {
+        // A YAML file belongs to a single server, there is no one else to catch up with
+        throw new UnsupportedOperationException("Change tracking isn't available for YAML repositories");
+    }
+
+    @Override
+    public long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit) {
+        // Entities are stored as serialized objects, they are updated one by one through scan and saveAll
+        throw new UnsupportedOperationException("Set-based updates aren't available for YAML repositories");
+    }
+
+    @Override
+    public long convertToFixedPoint(String field, int scale) {
+
+        // Entities were deserialized on load, reading their decimal amounts as minor units;
+        // writing the file back is all it takes, and rewriting converted entities changes nothing
+        long entities = this.entries.size();
+
+        for (Segment segment : this.segments) {
+            this.markDirty(segment);
+        }
+
+        return entities;
+    }
+
+    @Override
+    public Versioned<T> getVersioned(String id) {
+        try (OperationTrace trace = this.tracer.start("getVersioned")) {
+
+            // Entries are immutable, entity and version always belong together
+            Stored stored = this.entries.get(id);
+
+            trace.rows(stored == null ? 0 : 1);
+            return stored == null ? null : new Versioned<>(id, this.decode(stored), stored.version, 0);
+        }
+    }
+
+    @Override
+    public boolean compareAndUpdate(String id, long expectedVersion, T obj) {
+        try (OperationTrace trace = this.tracer.start("compareAndUpdate")) {
+
+            Map<String, Object> fields = copy(obj);
+            boolean[] applied = new boolean[1];
+
+            this.aggregateLock.readLock().lock();
+
+            try {
+                this.entries.computeIfPresent(id, (key, current) -> {
+                    if (current.version != expectedVersion) {
+                        return current;
+                    }
+
+                    this.aggregateChange(key, fields);
+                    applied[0] = true;
+
+                    return new Stored(fields, current.version + 1);
+                });
+            } finally {
+                this.aggregateLock.readLock().unlock();
+            }
+
+            trace.rows(applied[0] ? 1 : 0);
+
+            if (applied[0]) {
+                this.markDirty(this.segmentOf(id));
+            }
+
+            return applied[0];
+        }
+    }
+
+    // Helper function to write an entity and bump its version atomically, telling whether it was new
+    private boolean setVersioned(String key, T obj) {
+        Map<String, Object> fields = copy(obj);
+        boolean[] inserted = new boolean[1];
+
+        this.aggregateLock.readLock().lock();
+
+        try {
+            this.entries.compute(key, (ignored, current) -> {
+                inserted[0] = current == null;
+
+                if (inserted[0]) {
+                    this.keys.add(key);
+                    this.segmentOf(key).keys.add(key);
+                }
+
+                this.aggregateChange(key, fields);
+                return new Stored(fields, current == null ? 1 : current.version + 1);
+            });
+        } finally {
+            this.aggregateLock.readLock().unlock();
+        }
+
+        return inserted[0];
+    }
+
+    // Helper function to write an entity only if its key is free, telling whether it was written
+    private boolean insertVersioned(String key, Map<String, Object> fields) {
+        boolean[] inserted = new boolean[1];
+
+        this.aggregateLock.readLock().lock();
+
+        try {
+            this.entries.computeIfAbsent(key, ignored -> {
+                this.keys.add(key);
+                this.segmentOf(key).keys.add(key);
+                this.aggregateChange(key, fields);
+                inserted[0] = true;
+
+                return new Stored(fields, 1);
+            });
+        } finally {
+            this.aggregateLock.readLock().unlock();
+        }
+
+        return inserted[0];
+    }
+
+    // Helper function to feed a write to the aggregates, invoked under the entry lock of the key
+    private void aggregateChange(String key, Map<String, Object> fields) {
+
+        if (this.aggregates.isEmpty()) {
+            return;
+        }
+
+        // Compared with the fields last fed, entries don't keep the id the aggregates group on
+        Map<String, Object> after = fields == null ? null : fieldsOf(key, fields);
+        Map<String, Object> before = after == null ? this.aggregatedEntities.remove(key) : this.aggregatedEntities.put(key, after);
+
+        for (IncrementalAggregate aggregate : this.aggregates.values()) {
+            aggregate.change(before, after);
+        }
+    }
+
+    // Helper function to read the fields of every entity, resetting those the aggregates are fed from
+    private Collection<Map<String, Object>> snapshotEntities() {
+        this.aggregatedEntities.clear();
+
+        this.entries.forEach((key, stored) -> this.aggregatedEntities.put(key, fieldsOf(key, stored.fields)));
+
+        return this.aggregatedEntities.values();
+    }
+
+    private static Map<String, Object> fieldsOf(String key, Map<String, Object> stored) {
+        Map<String, Object> fields = new HashMap<>(stored);
+        fields.put("id", key);
+        return fields;
+    }
+
+    // Helper function to serialize an entity into the fields kept, copied so that the caller may go on changing it
+    private static Map<String, Object> copy(ConfigurationSerializable entity) {
+        SerializationEvent serialization = SerializationEvent.start();
+        Map<String, Object> fields = Collections.unmodifiableMap(new LinkedHashMap<>(entity.serialize()));
+
+        serialization.finish(entity.getClass(), true, fields.size());
+        return fields;
+    }
+
+    private T decode(Stored stored) {
+        SerializationEvent serialization = SerializationEvent.start();
+        T entity = this.type.cast(ConfigurationSerialization.deserializeObject(stored.fields, this.type));
+
+        serialization.finish(this.type, false, stored.fields.size());
+        return entity;
+    }
+
+    // Helper function to pick the key of a batch entity, UUID keyed files fall back to the entity's uuid
+    private String resolveKey(String id, T obj) {
+
+        switch (entityStyle) {
+
+            case UUID:
+                for (Object candidate : new Object[] { id, obj.serialize().get("uuid") }) {
+                    try {
+                        return UUID.fromString(String.valueOf(candidate)).toString();
+                    } catch (IllegalArgumentException ignored) {
+                        // Not a UUID, try the next candidate
+                    }
+                }
+
+                throw new IllegalArgumentException("Entity " + id + " has no UUID to be stored under");
+            case CUSTOM:
+                if (id == null) {
+                    throw new IllegalArgumentException("Entities of a CUSTOM keyed file need an id");
+                }
+
+                return id;
+            default:
+                // Incremental, a null id takes the next available one
+                return id;
+
+        }
     }
 
     @Override
@@ -117,22 +684,431 @@ public class YamlRepository<T extends ConfigurationSerializable> implements Repo
 
     }
 
-    @Override
-    public void setType(Class<T> type) {
-        this.type = type;
+    // Helper function to pick the segment of a key; String hashes are the same on every JVM
+    private Segment segmentOf(String key) {
+        return this.segments[this.segments.length == 1 ? 0 : Math.floorMod(key.hashCode(), this.segments.length)];
+    }
+
+    // Helper function to name the file of a segment: users.yml, segment 3 -> users-3.yml
+    private static File segmentFile(File path, int index) {
+        String name = path.getName();
+        int extension = name.lastIndexOf('.');
+
+        return new File(path.getAbsoluteFile().getParentFile(), extension < 0
+                ? name + "-" + index
+                : name.substring(0, extension) + "-" + index + name.substring(extension));
+    }
+
+    // Helper function to read the files of the repository, invoked once by the constructor
+    private void load(File path) {
+
+        // Segment files by index, including those of a larger number of segments used before
+        Map<Integer, File> files = new TreeMap<>();
+        String name = path.getName();
+        int extension = name.lastIndexOf('.');
+        Pattern naming = extension < 0
+                ? Pattern.compile(Pattern.quote(name) + "-(\\d+)")
+                : Pattern.compile(Pattern.quote(name.substring(0, extension)) + "-(\\d+)" + Pattern.quote(name.substring(extension)));
+        File[] listed = path.getAbsoluteFile().getParentFile().listFiles();
+
+        for (File file : listed == null ? new File[0] : listed) {
+            Matcher matcher = naming.matcher(file.getName());
+
+            if (matcher.matches()) {
+                files.put(Integer.parseInt(matcher.group(1)), file);
+            }
+        }
+
+        boolean split = false;
+
+        if (this.segments.length == 1) {
+            Segment segment = this.segments[0];
+
+            if (!files.isEmpty()) {
+                LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "[{}] Merging {} segments back into {}",
+                        this.repositoryName, files.size(), path.getName());
+
+                // Read first, a file left next to them by an older split holds older copies of their entries
+                this.readSegments(files);
+            }
+
+            segment.configuration = YamlConfiguration.loadConfiguration(segment.file);
+            this.read(segment.configuration, segment);
+        } else if (files.isEmpty()) {
+            if (path.exists()) {
+                LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "[{}] Splitting {} into {} segments, the file is deleted once they're written",
+                        this.repositoryName, path.getName(), this.segments.length);
+
+                // Every entry is out of place, the segments are written once read
+                this.read(YamlConfiguration.loadConfiguration(path), null);
+                split = true;
+            }
+
+            for (Segment segment : this.segments) {
+                if (segment.configuration == null) {
+                    segment.configuration = new YamlConfiguration();
+                }
+            }
+        } else {
+            this.readSegments(files);
+        }
+
+        // Segments holding entries of another one, or missing some of theirs, are rewritten before the first write
+        boolean rewritten = true;
+
+        for (Segment segment : this.segments) {
+            if (segment.dirty.get()) {
+                rewritten &= this.flush(segment);
+            }
+        }
+
+        if (!rewritten) {
+            return;
+        }
+
+        // Left in place, a later start with a single segment would read it again
+        if (split) {
+            this.deleteFile(path);
+        }
+
+        // Files beyond the number of segments, or every one of them once merged, had their entries moved
+        for (Map.Entry<Integer, File> file : files.entrySet()) {
+            if (this.segments.length == 1 || file.getKey() >= this.segments.length) {
+                this.deleteFile(file.getValue());
+            }
+        }
     }
 
-    private void saveYamlConfiguration() {
+    // Helper function to delete a file whose entries have been moved
+    private void deleteFile(File file) {
+        if (!file.delete()) {
+            LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "[{}] Couldn't delete {}", this.repositoryName, file);
+        }
+    }
+
+    // Helper function to parse the segment files in parallel, most of the startup is spent deserializing them
+    private void readSegments(Map<Integer, File> files) {
+
+        ExecutorService readers = Executors.newFixedThreadPool(Math.min(files.size(), Runtime.getRuntime().availableProcessors()), runnable -> {
+            Thread thread = new Thread(runnable, "TrueBank-YAML-Load");
+            thread.setDaemon(true);
+            return thread;
+        });
+
         try {
-            configurationFile.save(configFile);
-        } catch (Exception e) {
-            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, e);
+            List<Future<?>> reads = new ArrayList<>();
+
+            for (Map.Entry<Integer, File> file : files.entrySet()) {
+                // Segment files merged back into a single file are all out of place
+                Segment source = this.segments.length > 1 && file.getKey() < this.segments.length ? this.segments[file.getKey()] : null;
+
+                reads.add(readers.submit(() -> {
+                    FileConfiguration configuration = YamlConfiguration.loadConfiguration(file.getValue());
+
+                    if (source != null) {
+                        source.configuration = configuration;
+                    }
+
+                    this.read(configuration, source);
+                }));
+            }
+
+            for (Future<?> read : reads) {
+                read.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while reading " + this.repositoryName);
+        } catch (ExecutionException e) {
+            throw new RepositoryException("Couldn't read the segments of " + this.repositoryName, e.getCause());
+        } finally {
+            readers.shutdown();
+        }
+
+        for (Segment segment : this.segments) {
+            if (segment.configuration == null) {
+                segment.configuration = new YamlConfiguration();
+            }
         }
     }
 
+    // Helper function to read the section of a file; entries out of their segment mark both files to be rewritten
+    private void read(FileConfiguration configuration, Segment source) {
+
+        ConfigurationSection section = configuration.getConfigurationSection(this.repositoryName);
+
+        if (section == null) {
+            return;
+        }
+
+        for (String key : section.getKeys(false)) {
+            Segment segment = this.segmentOf(key);
+
+            if (segment != source) {
+                segment.dirty.set(true);
+
+                if (source != null) {
+                    source.dirty.set(true);
+                }
+            }
+
+            T entity = section.getSerializable(key, this.type);
+
+            if (entity == null) {
+                LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.DATABASE, "[{}] Entry {} isn't a valid entity, it's kept in the file but not read", this.repositoryName, key);
+                segment.unreadable.put(key, section.get(key));
+                continue;
+            }
+
+            // Left twice by a segment move interrupted, both copies were the same
+            if (this.entries.putIfAbsent(key, new Stored(copy(entity), 0)) != null) {
+                continue;
+            }
+
+            this.keys.add(key);
+            segment.keys.add(key);
+
+            try {
+                this.lastIncrementalKey.accumulateAndGet(Long.parseLong(key), Math::max);
+            } catch (NumberFormatException ignored) {
+                // Not an incremental key
+            }
+        }
+    }
+
+    // Helper function to have a file written, by the next scheduled flush or right away without a flusher
+    private void markDirty(Segment segment) {
+
+        if (this.flusher == null) {
+            this.flush(segment);
+            return;
+        }
+
+        // Writes landing before the scheduled flush runs are written by that flush
+        if (segment.dirty.compareAndSet(false, true)) {
+            try {
+                this.flusher.schedule(() -> this.flush(segment), this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closing, the flush of close() writes it
+            }
+        }
+    }
+
+    // Helper function to write a file, retried by the next interval when it fails
+    private boolean flush(Segment segment) {
+        synchronized (segment) {
+
+            // Cleared before the entries are read, a write landing meanwhile schedules the next flush
+            segment.dirty.set(false);
+
+            try (OperationTrace trace = this.tracer.start("flush")) {
+                this.writeFile(segment, trace);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "[{}] Couldn't write {}: {}", this.repositoryName, segment.file, e.getMessage());
+
+                if (this.flusher != null) {
+                    this.markDirty(segment);
+                }
+
+                return false;
+            }
+        }
+    }
+
+    // Helper function to write the entries of a segment to a temporary file, synced, then renamed over the file;
+    // invoked under the lock of the segment
+    private void writeFile(Segment segment, OperationTrace trace) throws IOException {
+
+        segment.configuration.set(this.repositoryName, null);
+        ConfigurationSection section = segment.configuration.createSection(this.repositoryName);
+
+        segment.unreadable.forEach(section::set);
+
+        // Written as the file represents a serialized entity, so that it loads back as one
+        String alias = ConfigurationSerialization.getAlias(this.type);
+        int written = 0;
+
+        // Each entry is taken as of the moment it's read
+        for (String key : segment.keys) {
+            Stored stored = this.entries.get(key);
+
+            if (stored != null) {
+                Map<String, Object> serialized = new LinkedHashMap<>();
+                serialized.put(ConfigurationSerialization.SERIALIZED_TYPE_KEY, alias);
+                serialized.putAll(stored.fields);
+
+                section.set(key, serialized);
+                written++;
+            }
+        }
+
+        ByteBuffer contents = ByteBuffer.wrap(segment.configuration.saveToString().getBytes(StandardCharsets.UTF_8));
+
+        Path path = segment.file.toPath().toAbsolutePath();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        Files.createDirectories(path.getParent());
+
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+
+            // On disk before it replaces the previous file
+            channel.force(true);
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        trace.rows(written);
+        trace.bytes(contents.limit());
+    }
+
     @Override
     public void close() {
-        this.saveYamlConfiguration();
+
+        if (this.flusher != null) {
+            this.flusher.shutdown();
+
+            try {
+                // Lets a flush already running complete
+                this.flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Whatever is still pending, on the closing thread
+        for (Segment segment : this.segments) {
+            this.flush(segment);
+        }
+
+        OPEN_FILES.remove(this.claimedFile, this.repositoryName);
+    }
+
+    // A query shape compiled into key lookups, when the id is constrained, and a field comparator
+    private static final class YamlQueryPlan {
+
+        private final int idCondition;
+        private final Comparator<Map<String, Object>> comparator;
+
+        private YamlQueryPlan(Query query) {
+            int lookup = -1;
+
+            for (int i = 0; i < query.getConditions().size() && lookup < 0; i++) {
+                Condition condition = query.getConditions().get(i);
+
+                if (condition.getField().equals("id")
+                        && (condition.getOperator() == Condition.Operator.EQ || condition.getOperator() == Condition.Operator.IN)) {
+                    lookup = i;
+                }
+            }
+
+            this.idCondition = lookup;
+
+            Comparator<Map<String, Object>> order = null;
+
+            for (Query.Order ordering : query.getOrdering()) {
+                String field = ordering.getField();
+
+                // Missing values sort first, as null does in SQL
+                Comparator<Map<String, Object>> next = (left, right) -> {
+                    Object a = left.get(field);
+                    Object b = right.get(field);
+
+                    if (a == null || b == null) {
+                        return a == null ? (b == null ? 0 : -1) : 1;
+                    }
+
+                    return Condition.compare(a, b);
+                };
+
+                if (!ordering.isAscending()) {
+                    next = next.reversed();
+                }
+
+                order = order == null ? next : order.thenComparing(next);
+            }
+
+            this.comparator = order;
+        }
+
+        // The keys to read: the constrained ids, or every key in a stable order
+        private Collection<String> candidates(Query query, NavigableSet<String> keys) {
+
+            if (this.idCondition < 0) {
+                return keys;
+            }
+
+            TreeSet<String> constrained = new TreeSet<>();
+
+            for (Object id : query.getConditions().get(this.idCondition).getValues()) {
+                if (keys.contains(String.valueOf(id))) {
+                    constrained.add(String.valueOf(id));
+                }
+            }
+
+            return constrained;
+        }
+
+        private boolean matches(Query query, Map<String, Object> fields) {
+
+            for (Condition condition : query.getConditions()) {
+                Object value = fields.get(condition.getField());
+
+                // Keys are strings, ids given as numbers are compared as such
+                if (condition.getField().equals("id") && !condition.getValues().isEmpty() && !(condition.getValues().get(0) instanceof String)) {
+                    value = toNumber(value);
+                }
+
+                if (!condition.matches(value)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static Object toNumber(Object key) {
+            try {
+                return Long.parseLong(String.valueOf(key));
+            } catch (NumberFormatException e) {
+                return key;
+            }
+        }
+
+    }
+
+    // An entity as serialized by its last write, along with the version that write gave it
+    @RequiredArgsConstructor
+    private static final class Stored {
+
+        private final Map<String, Object> fields;
+        private final long version;
+
+    }
+
+    // A file of the repository, holding the entries whose key hashes to it
+    @RequiredArgsConstructor
+    private static final class Segment {
+
+        private final File file;
+
+        // Keys of the segment, updated under the lock of the entry of the key
+        private final NavigableSet<String> keys = new ConcurrentSkipListSet<>();
+
+        // Values of the section that couldn't be read as entities, written back untouched
+        private final Map<String, Object> unreadable = new ConcurrentHashMap<>();
+
+        // Set by the first write after a flush, cleared by the flush it schedules
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        // Set once read, only touched under the lock of the segment afterwards
+        private volatile FileConfiguration configuration;
+
     }
 
 }
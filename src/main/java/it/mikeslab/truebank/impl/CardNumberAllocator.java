@@ -0,0 +1,243 @@
+package it.mikeslab.truebank.impl;
+
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.RepositoryException;
+import it.mikeslab.truebank.data.RepositoryManager;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.pojo.CardNumberLease;
+import it.mikeslab.truebank.util.LoggerUtil;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+
+/**
+ * Class: CardNumberAllocator
+ * Issues unique, Luhn-valid card numbers without looking them up: every
+ * server leases disjoint blocks of account numbers from the card database,
+ * with one compare-and-set per block, then issues the numbers of its block
+ * locally.
+ *
+ * A card number has 16 digits: the 6-digit prefix of the bank, a 9-digit
+ * account number and the Luhn check digit.
+ *
+ * The block in use is kept in a local state file, written ahead of the
+ * numbers issued: after a crash the allocator resumes past every number
+ * that may have been issued, at worst skipping a few of them.
+ */
+public class CardNumberAllocator {
+
+    public static final String LEASE_REPOSITORY = "card-number-leases";
+
+    // Numeric, so that it works on MySQL too (see Repository#upsert)
+    private static final String LEASE_ID = "1";
+
+    private static final long ACCOUNT_LIMIT = 1_000_000_000L;
+    private static final int RESERVE_STEP = 16;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long MAX_BACKOFF_MILLIS = 50;
+
+    private final RepositoryManager repositoryManager;
+    private final long prefix;
+    private final int configuredBlockSize;
+    private final File stateFile;
+
+    private boolean loaded;
+
+    // Current block, 0 when none is leased
+    private long block;
+    private int blockSize;
+
+    // Next offset in the block, and the one up to which numbers may have been issued
+    private int next;
+    private int reserved;
+
+    public CardNumberAllocator(RepositoryManager repositoryManager, ConfigurationSection config, File dataFolder) {
+        this.repositoryManager = repositoryManager;
+        this.prefix = config == null ? 400_000 : config.getLong("prefix", 400_000);
+        this.configuredBlockSize = Math.max(1, config == null ? 100 : config.getInt("blockSize", 100));
+        this.stateFile = new File(dataFolder, "cards" + File.separator + "number-lease.yml");
+
+        if (this.prefix < 100_000 || this.prefix > 999_999) {
+            throw new IllegalArgumentException("The card number prefix must have 6 digits, got " + this.prefix);
+        }
+    }
+
+    /**
+     * Issues a card number. Only leasing a new block reaches the database,
+     * once every blockSize numbers; must be invoked off the main thread.
+     * @return The card number.
+     * @throws IOException If the state file can't be read or written.
+     * @throws RepositoryException If a block can't be leased.
+     */
+    public synchronized long next() throws IOException {
+
+        if (!this.loaded) {
+            this.load();
+        }
+
+        if (this.block == 0 || this.next >= this.blockSize) {
+            this.lease();
+        }
+
+        // Written ahead, a crash never lets an issued number be issued again
+        if (this.next >= this.reserved) {
+            this.reserved = Math.min(this.blockSize, this.next + RESERVE_STEP);
+            this.save();
+        }
+
+        long account = (this.block - 1) * this.blockSize + this.next++;
+
+        return compose(this.prefix, account);
+    }
+
+    /**
+     * Checks the Luhn check digit of a card number, catching mistyped numbers
+     * before they reach the database.
+     * @param cardNumber The card number.
+     * @return True if the check digit matches.
+     */
+    public static boolean isValid(long cardNumber) {
+        return cardNumber > 0 && checkDigit(cardNumber / 10) == cardNumber % 10;
+    }
+
+    // Helper function to build the card number of an account, appending its check digit
+    static long compose(long prefix, long account) {
+        long payload = prefix * ACCOUNT_LIMIT + account;
+        return payload * 10 + checkDigit(payload);
+    }
+
+    // Helper function to compute the Luhn check digit, doubling every other digit from the rightmost one
+    static int checkDigit(long payload) {
+
+        int sum = 0;
+        boolean doubled = true;
+
+        for (long rest = payload; rest > 0; rest /= 10) {
+            int digit = (int) (rest % 10);
+
+            if (doubled) {
+                digit *= 2;
+
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+
+            sum += digit;
+            doubled = !doubled;
+        }
+
+        return (10 - sum % 10) % 10;
+    }
+
+    // Helper function to lease the next block with a compare-and-set on the shared lease
+    private void lease() throws IOException {
+
+        Repository<CardNumberLease> repository = this.repositoryManager.getRepository(LEASE_REPOSITORY, CardNumberLease.class);
+
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+
+            Versioned<CardNumberLease> current = repository.getVersioned(LEASE_ID);
+
+            if (current == null) {
+                // First lease ever, two servers racing here both end up in the loop below
+                repository.upsert(LEASE_ID, new CardNumberLease(1, this.configuredBlockSize, owner(), System.currentTimeMillis()));
+                continue;
+            }
+
+            CardNumberLease lease = current.getEntity();
+
+            // The version grows with every write: a late first upsert resetting nextBlock
+            // can't hand out a leased block again. YAML versions restart at 0, nextBlock is kept
+            long leased = Math.max(lease.getNextBlock(), current.getVersion());
+
+            if (leased * lease.getBlockSize() > ACCOUNT_LIMIT) {
+                throw new IllegalStateException("Every card number with prefix " + this.prefix + " has been issued");
+            }
+
+            CardNumberLease updated = new CardNumberLease(leased + 1, lease.getBlockSize(), owner(), System.currentTimeMillis());
+
+            if (repository.compareAndUpdate(LEASE_ID, current.getVersion(), updated)) {
+
+                if (lease.getBlockSize() != this.configuredBlockSize) {
+                    LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.CONFIG,
+                            "Card number blocks have {} numbers, fixed by the first lease, cards.blockSize ignored", lease.getBlockSize());
+                }
+
+                this.block = leased;
+                this.blockSize = lease.getBlockSize();
+                this.next = 0;
+                this.reserved = 0;
+
+                LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.DATABASE, "Leased card number block {} ({} numbers)", leased, this.blockSize);
+                return;
+            }
+
+            // Lost the race, spread the retries of concurrent servers
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(Math.min(MAX_BACKOFF_MILLIS, 1L << attempt) + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        throw new RepositoryException("Could not lease a block of card numbers after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    // Helper function to resume the block of the previous run
+    private void load() throws IOException {
+
+        this.loaded = true;
+
+        if (!this.stateFile.exists()) {
+            return;
+        }
+
+        YamlConfiguration yaml = new YamlConfiguration();
+
+        try {
+            yaml.load(this.stateFile);
+        } catch (InvalidConfigurationException e) {
+            throw new IOException("Corrupted card number lease " + this.stateFile.getName(), e);
+        }
+
+        this.block = yaml.getLong("block", 0);
+        this.blockSize = yaml.getInt("blockSize", this.configuredBlockSize);
+
+        // Whatever was reserved may have been issued
+        this.next = yaml.getInt("reserved", 0);
+        this.reserved = this.next;
+    }
+
+    // Helper function to store the block in use, replacing the previous state atomically
+    private void save() throws IOException {
+
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("block", this.block);
+        yaml.set("blockSize", this.blockSize);
+        yaml.set("reserved", this.reserved);
+
+        Path path = this.stateFile.toPath();
+        Path temporary = path.resolveSibling(this.stateFile.getName() + ".tmp");
+
+        Files.createDirectories(path.getParent());
+        Files.write(temporary, yaml.saveToString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String owner() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+}
@@ -28,7 +28,7 @@ public interface CardService {
      * Creates a new card
      * @param uuid the card's UUID
      * @param securityCode the card's security code
-     * @param cardNumber the card's number
+     * @param cardNumber the card's number, issued by CardNumberAllocator
      * @return the created card
      */
     Card createCard(UUID uuid, int securityCode, long cardNumber);
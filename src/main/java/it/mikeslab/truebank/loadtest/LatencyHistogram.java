@@ -0,0 +1,105 @@
+package it.mikeslab.truebank.loadtest;
+
+/**
+ * Class: LatencyHistogram
+ * Log-linear histogram of latencies in microseconds: exact below 128us, then
+ * 64 buckets per power of two, so that every percentile is within 1.6% of the
+ * recorded value. Not thread-safe, each worker records into its own histogram
+ * and they are merged once the run is over.
+ */
+final class LatencyHistogram {
+
+    private static final int LINEAR_LIMIT = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+
+    // Up to 2^40us, about 12 days
+    private static final int BUCKETS = LINEAR_LIMIT + 34 * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+
+    private long count;
+    private long sum;
+    private long max;
+
+    void record(long micros) {
+        long value = Math.max(0, micros);
+
+        this.counts[index(value)]++;
+        this.count++;
+        this.sum += value;
+        this.max = Math.max(this.max, value);
+    }
+
+    void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts[i] += other.counts[i];
+        }
+
+        this.count += other.count;
+        this.sum += other.sum;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    long getCount() {
+        return this.count;
+    }
+
+    long getMax() {
+        return this.max;
+    }
+
+    double getMean() {
+        return this.count == 0 ? 0 : (double) this.sum / this.count;
+    }
+
+    /**
+     * Gets the value below which a share of the recorded values fall.
+     * @param quantile The share, e.g. 0.99.
+     * @return The upper bound of the bucket holding the quantile, in microseconds.
+     */
+    long percentile(double quantile) {
+
+        if (this.count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * this.count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts[i];
+
+            if (seen >= rank) {
+                return Math.min(upperBound(i), this.max);
+            }
+        }
+
+        return this.max;
+    }
+
+    private static int index(long value) {
+
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int index = LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    private static long upperBound(int index) {
+
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+}
@@ -0,0 +1,427 @@
+package it.mikeslab.truebank.loadtest;
+
+import it.mikeslab.truebank.data.OptimisticUpdate;
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.query.Query;
+import it.mikeslab.truebank.data.scheduler.Priority;
+import it.mikeslab.truebank.pojo.Card;
+import it.mikeslab.truebank.pojo.User;
+import it.mikeslab.truebank.util.LoggerUtil;
+import it.mikeslab.truebank.util.Money;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Class: LoadGenerator
+ * Drives the user and card repositories with the traffic of a crowd of players:
+ * a weighted mix of operations (see {@link LoadOperation}) on accounts drawn from
+ * a Zipf distribution, by a fixed number of threads sharing a target rate.
+ *
+ * Every thread paces its operations on a fixed schedule and latencies are measured
+ * from the scheduled start, so that an operation delayed by a slow one before it is
+ * accounted for the wait too (no coordinated omission). A target rate of 0 runs
+ * every thread flat out, measuring from the actual start.
+ *
+ * Configured through the "loadTest" section of the load test file.
+ */
+public class LoadGenerator {
+
+    private static final int SEED_BATCH = 1000;
+    private static final long INITIAL_BALANCE = 1000;
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Repository<User> users;
+    private final Repository<Card> cards;
+
+    private final int accounts;
+    private final double zipfExponent;
+    private final int threads;
+    private final double targetRate;
+    private final long warmupNanos;
+    private final long durationNanos;
+
+    private final LoadOperation[] operations;
+    private final double[] cumulativeWeights;
+
+    private final List<String> userIds = new ArrayList<>();
+    private final List<UUID> uuids = new ArrayList<>();
+    private final List<String> cardIds = new ArrayList<>();
+
+    public LoadGenerator(Repository<User> users, Repository<Card> cards, ConfigurationSection section) {
+        this.users = users;
+        this.cards = cards;
+        this.accounts = Math.max(2, section.getInt("accounts", 10000));
+        this.zipfExponent = Math.max(0, section.getDouble("zipfExponent", 1.0));
+        this.threads = Math.max(1, section.getInt("threads", 500));
+        this.targetRate = Math.max(0, section.getDouble("targetRate", 2000));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Math.max(0, section.getLong("warmupSeconds", 10)));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Math.max(1, section.getLong("durationSeconds", 60)));
+
+        ConfigurationSection mix = section.getConfigurationSection("mix");
+
+        List<LoadOperation> weighted = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+
+        for (LoadOperation operation : LoadOperation.values()) {
+            double weight = mix == null ? 1 : mix.getDouble(operation.getConfigKey(), 0);
+
+            if (weight > 0) {
+                weighted.add(operation);
+                weights.add(weight);
+            }
+        }
+
+        if (weighted.isEmpty()) {
+            throw new IllegalArgumentException("The operation mix is empty, give at least one operation a weight");
+        }
+
+        this.operations = weighted.toArray(new LoadOperation[0]);
+        this.cumulativeWeights = new double[this.operations.length];
+
+        double total = weights.stream().mapToDouble(Double::doubleValue).sum();
+        double cumulative = 0;
+
+        for (int i = 0; i < this.operations.length; i++) {
+            cumulative += weights.get(i) / total;
+            this.cumulativeWeights[i] = cumulative;
+        }
+    }
+
+    /**
+     * Reads the existing accounts and creates the missing ones, each with a card.
+     * Accounts left by a previous run are reused.
+     */
+    public void seed() {
+
+        long startedAt = System.nanoTime();
+
+        Map<String, String> cardIdsByUuid = new HashMap<>();
+
+        String lastCardId = null;
+
+        while (true) {
+            String afterId = lastCardId;
+            List<Map.Entry<String, Card>> page = Priority.BULK.call(() -> this.cards.scan(afterId, SEED_BATCH));
+
+            for (Map.Entry<String, Card> entry : page) {
+                cardIdsByUuid.put(entry.getValue().getUuid(), entry.getKey());
+            }
+
+            if (page.size() < SEED_BATCH) {
+                break;
+            }
+
+            lastCardId = page.get(page.size() - 1).getKey();
+        }
+
+        String lastUserId = null;
+
+        while (this.userIds.size() < this.accounts) {
+            String afterId = lastUserId;
+            List<Map.Entry<String, User>> page = Priority.BULK.call(() -> this.users.scan(afterId, SEED_BATCH));
+
+            for (Map.Entry<String, User> entry : page) {
+                if (this.userIds.size() < this.accounts) {
+                    this.register(entry.getKey(), entry.getValue().getUuid(), cardIdsByUuid.get(entry.getValue().getUuid().toString()));
+                }
+            }
+
+            if (page.size() < SEED_BATCH) {
+                break;
+            }
+
+            lastUserId = page.get(page.size() - 1).getKey();
+        }
+
+        int reused = this.userIds.size();
+
+        while (this.userIds.size() < this.accounts) {
+            int batch = Math.min(SEED_BATCH, this.accounts - this.userIds.size());
+
+            List<Map.Entry<String, User>> newUsers = new ArrayList<>(batch);
+
+            for (int i = 0; i < batch; i++) {
+                UUID uuid = UUID.randomUUID();
+
+                newUsers.add(new AbstractMap.SimpleEntry<>(null, User.builder()
+                        .uuid(uuid)
+                        .displayName("player" + (this.userIds.size() + i))
+                        .securityCode(ThreadLocalRandom.current().nextInt(100, 1000))
+                        .cardNumber(ThreadLocalRandom.current().nextLong(1_000_000_000_000_000L, 10_000_000_000_000_000L))
+                        .balance(INITIAL_BALANCE * Money.getUnit())
+                        .build()));
+            }
+
+            List<String> ids = Priority.BULK.call(() -> this.users.saveAll(newUsers));
+
+            for (int i = 0; i < ids.size(); i++) {
+                this.register(ids.get(i), newUsers.get(i).getValue().getUuid(), null);
+            }
+        }
+
+        // Cards of the new accounts, and of the reused ones left without
+        List<Integer> missing = new ArrayList<>();
+
+        for (int i = 0; i < this.cardIds.size(); i++) {
+            if (this.cardIds.get(i) == null) {
+                missing.add(i);
+            }
+        }
+
+        for (int from = 0; from < missing.size(); from += SEED_BATCH) {
+            List<Integer> slice = missing.subList(from, Math.min(missing.size(), from + SEED_BATCH));
+            List<Map.Entry<String, Card>> newCards = new ArrayList<>(slice.size());
+
+            for (int index : slice) {
+                newCards.add(new AbstractMap.SimpleEntry<>(null, new Card(0, this.uuids.get(index).toString())));
+            }
+
+            List<String> ids = Priority.BULK.call(() -> this.cards.saveAll(newCards));
+
+            for (int i = 0; i < ids.size(); i++) {
+                this.cardIds.set(slice.get(i), ids.get(i));
+            }
+        }
+
+        LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.OTHER, "{} accounts ready ({} reused) in {}ms",
+                this.userIds.size(), reused, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+    }
+
+    /**
+     * Runs the warmup, then the measured run. Blocking.
+     * @return The report of the measured run.
+     * @throws InterruptedException If interrupted while waiting for the workers.
+     */
+    public LoadReport run() throws InterruptedException {
+
+        if (this.userIds.isEmpty()) {
+            throw new IllegalStateException("No accounts, seed() must run first");
+        }
+
+        ZipfSampler sampler = new ZipfSampler(this.userIds.size(), this.zipfExponent);
+
+        // Nanoseconds between two operations of the same thread, 0 to run flat out
+        long intervalNanos = this.targetRate <= 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) * this.threads / this.targetRate);
+
+        long startAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = startAt + this.warmupNanos;
+        long endAt = measureFrom + this.durationNanos;
+
+        Map<String, LongAdder> errorsByType = new ConcurrentHashMap<>();
+        Worker[] workers = new Worker[this.threads];
+        CountDownLatch done = new CountDownLatch(this.threads);
+
+        for (int i = 0; i < this.threads; i++) {
+            // Spread the first operation of each thread over an interval
+            long firstAt = startAt + (intervalNanos == 0 ? 0 : intervalNanos * i / this.threads);
+
+            workers[i] = new Worker(sampler, intervalNanos, firstAt, measureFrom, endAt, errorsByType, done);
+
+            Thread thread = new Thread(workers[i], "TrueBank-Load-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long lastReport = System.nanoTime();
+
+        while (!done.await(100, TimeUnit.MILLISECONDS)) {
+            long now = System.nanoTime();
+
+            if (now - lastReport >= PROGRESS_INTERVAL_NANOS) {
+                long completed = 0;
+
+                for (Worker worker : workers) {
+                    completed += worker.completed;
+                }
+
+                LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.OTHER, "{} {} operations completed",
+                        now < measureFrom ? "[warmup]" : "[run]", completed);
+                lastReport = now;
+            }
+        }
+
+        Map<LoadOperation, LatencyHistogram> latencies = new EnumMap<>(LoadOperation.class);
+        Map<LoadOperation, Long> errors = new EnumMap<>(LoadOperation.class);
+
+        for (LoadOperation operation : this.operations) {
+            LatencyHistogram merged = new LatencyHistogram();
+            long operationErrors = 0;
+
+            for (Worker worker : workers) {
+                merged.merge(worker.latencies[operation.ordinal()]);
+                operationErrors += worker.errors[operation.ordinal()];
+            }
+
+            latencies.put(operation, merged);
+            errors.put(operation, operationErrors);
+        }
+
+        Map<String, Long> errorTypes = new HashMap<>();
+        errorsByType.forEach((type, count) -> errorTypes.put(type, count.sum()));
+
+        return new LoadReport(this.durationNanos, this.targetRate, this.threads, latencies, errors, errorTypes);
+    }
+
+    private void register(String id, UUID uuid, String cardId) {
+        this.userIds.add(id);
+        this.uuids.add(uuid);
+        this.cardIds.add(cardId);
+    }
+
+    private LoadOperation pickOperation() {
+        double draw = ThreadLocalRandom.current().nextDouble();
+
+        for (int i = 0; i < this.cumulativeWeights.length - 1; i++) {
+            if (draw < this.cumulativeWeights[i]) {
+                return this.operations[i];
+            }
+        }
+
+        return this.operations[this.operations.length - 1];
+    }
+
+    // Helper function to run a single operation the way the plugin would
+    private void execute(LoadOperation operation, ZipfSampler sampler) {
+
+        int account = sampler.next();
+        long amount = ThreadLocalRandom.current().nextLong(1, 100) * Money.getUnit();
+
+        switch (operation) {
+            case BALANCE:
+                this.users.get(this.userIds.get(account));
+                break;
+            case DEPOSIT:
+                OptimisticUpdate.apply(this.users, this.userIds.get(account), user -> {
+                    user.setBalance(Money.add(user.getBalance(), amount));
+                    return user;
+                });
+                break;
+            case PAY:
+                int payee = sampler.next();
+
+                if (payee == account) {
+                    payee = (account + 1) % this.userIds.size();
+                }
+
+                User payer = OptimisticUpdate.apply(this.users, this.userIds.get(account), user -> {
+                    // Left as it is when short of money, as a refused payment would be
+                    user.setBalance(user.getBalance() >= amount ? Money.subtract(user.getBalance(), amount) : user.getBalance());
+                    return user;
+                });
+
+                if (payer != null) {
+                    OptimisticUpdate.apply(this.users, this.userIds.get(payee), user -> {
+                        user.setBalance(Money.add(user.getBalance(), amount));
+                        return user;
+                    });
+                }
+                break;
+            case LOGIN:
+                Query byUuid = Query.builder().eq("uuid", this.uuids.get(account).toString()).limit(1).build();
+
+                this.users.query(byUuid);
+                this.cards.query(byUuid);
+                break;
+            default:
+                // CARD
+                this.cards.get(this.cardIds.get(account));
+                break;
+        }
+    }
+
+    // A simulated player, recording into its own histograms
+    private final class Worker implements Runnable {
+
+        private final ZipfSampler sampler;
+        private final long intervalNanos;
+        private final long firstAt;
+        private final long measureFrom;
+        private final long endAt;
+        private final Map<String, LongAdder> errorsByType;
+        private final CountDownLatch done;
+
+        private final LatencyHistogram[] latencies = new LatencyHistogram[LoadOperation.values().length];
+        private final long[] errors = new long[LoadOperation.values().length];
+
+        // Read by the progress report, approximate
+        private volatile long completed;
+
+        private Worker(ZipfSampler sampler, long intervalNanos, long firstAt, long measureFrom, long endAt,
+                       Map<String, LongAdder> errorsByType, CountDownLatch done) {
+            this.sampler = sampler;
+            this.intervalNanos = intervalNanos;
+            this.firstAt = firstAt;
+            this.measureFrom = measureFrom;
+            this.endAt = endAt;
+            this.errorsByType = errorsByType;
+            this.done = done;
+
+            for (int i = 0; i < this.latencies.length; i++) {
+                this.latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                long scheduledAt = this.firstAt;
+
+                while (true) {
+                    long now = System.nanoTime();
+
+                    if (this.intervalNanos > 0 && scheduledAt > now) {
+                        LockSupport.parkNanos(scheduledAt - now);
+                    }
+
+                    long startedAt = this.intervalNanos > 0 ? scheduledAt : System.nanoTime();
+
+                    if (startedAt >= this.endAt) {
+                        return;
+                    }
+
+                    LoadOperation operation = LoadGenerator.this.pickOperation();
+                    boolean failed = false;
+
+                    try {
+                        Priority.INTERACTIVE.run(() -> LoadGenerator.this.execute(operation, this.sampler));
+                    } catch (RuntimeException e) {
+                        failed = true;
+
+                        if (startedAt >= this.measureFrom) {
+                            this.errorsByType.computeIfAbsent(e.getClass().getSimpleName(), type -> new LongAdder()).increment();
+                        }
+                    }
+
+                    if (startedAt >= this.measureFrom) {
+                        this.latencies[operation.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAt));
+
+                        if (failed) {
+                            this.errors[operation.ordinal()]++;
+                        }
+                    }
+
+                    this.completed++;
+                    scheduledAt += this.intervalNanos;
+                }
+            } finally {
+                this.done.countDown();
+            }
+        }
+
+    }
+
+}
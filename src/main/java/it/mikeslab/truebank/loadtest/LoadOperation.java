@@ -0,0 +1,42 @@
+package it.mikeslab.truebank.loadtest;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Enum: LoadOperation
+ * Player actions simulated by the load generator, each made of the
+ * repository operations the plugin runs for it.
+ */
+@Getter
+@RequiredArgsConstructor
+public enum LoadOperation {
+
+    /**
+     * Reads an account by id, as /balance does for an offline player.
+     */
+    BALANCE("balance"),
+
+    /**
+     * Adds to an account through an optimistic update.
+     */
+    DEPOSIT("deposit"),
+
+    /**
+     * Moves money between two accounts, through two optimistic updates.
+     */
+    PAY("pay"),
+
+    /**
+     * Looks up user and card by UUID, as the pre-login does.
+     */
+    LOGIN("login"),
+
+    /**
+     * Reads a card by id.
+     */
+    CARD("card");
+
+    private final String configKey;
+
+}
@@ -0,0 +1,121 @@
+package it.mikeslab.truebank.loadtest;
+
+import it.mikeslab.truebank.data.scheduler.OperationScheduler;
+import it.mikeslab.truebank.data.scheduler.Priority;
+import lombok.RequiredArgsConstructor;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class: LoadReport
+ * Outcome of a load test run: throughput, latency percentiles and error
+ * rate of every operation, errors by type, then the saturation of the
+ * scheduler queues and of the connection pool.
+ */
+@RequiredArgsConstructor
+public class LoadReport {
+
+    private final long durationNanos;
+    private final double targetRate;
+    private final int threads;
+    private final Map<LoadOperation, LatencyHistogram> latencies;
+    private final Map<LoadOperation, Long> errors;
+    private final Map<String, Long> errorsByType;
+
+    /**
+     * Prints the report as a table.
+     * @param out The stream to print to.
+     * @param scheduler The scheduler the operations ran through.
+     * @param pools The pool statistics of each stand-in repository, empty when running against a database.
+     */
+    public void print(PrintStream out, OperationScheduler scheduler, Map<String, StandInRepository.PoolStats> pools) {
+
+        double seconds = this.durationNanos / (double) TimeUnit.SECONDS.toNanos(1);
+
+        LatencyHistogram total = new LatencyHistogram();
+        long totalErrors = 0;
+
+        out.println();
+        out.printf(Locale.ROOT, "%d threads, target %s, measured over %.0fs%n",
+                this.threads, this.targetRate <= 0 ? "unbounded" : String.format(Locale.ROOT, "%.0f ops/s", this.targetRate), seconds);
+        out.println();
+        out.printf(Locale.ROOT, "%-10s %10s %10s %8s %9s %9s %9s %9s %9s %9s%n",
+                "operation", "count", "ops/s", "errors", "mean", "p50", "p90", "p99", "p99.9", "max");
+
+        for (Map.Entry<LoadOperation, LatencyHistogram> entry : this.latencies.entrySet()) {
+            long operationErrors = this.errors.getOrDefault(entry.getKey(), 0L);
+
+            this.printRow(out, entry.getKey().getConfigKey(), entry.getValue(), operationErrors, seconds);
+
+            total.merge(entry.getValue());
+            totalErrors += operationErrors;
+        }
+
+        this.printRow(out, "total", total, totalErrors, seconds);
+
+        if (!this.errorsByType.isEmpty()) {
+            out.println();
+            out.println("errors by type:");
+            this.errorsByType.forEach((type, count) -> out.printf(Locale.ROOT, "  %-40s %d%n", type, count));
+        }
+
+        out.println();
+        out.printf(Locale.ROOT, "%-12s %8s %8s %10s %10s %12s %12s%n",
+                "scheduler", "queued", "running", "completed", "rejected", "avg wait", "max wait");
+
+        for (Priority priority : Priority.values()) {
+            OperationScheduler.Stats stats = scheduler.getStats(priority);
+
+            out.printf(Locale.ROOT, "%-12s %8s %8d %10d %10d %10.2fms %10.2fms%n",
+                    priority.name().toLowerCase(Locale.ROOT),
+                    stats.getQueued() + "/" + stats.getCapacity(),
+                    stats.getRunning(),
+                    stats.getCompleted(),
+                    stats.getRejected(),
+                    stats.getAverageWaitMillis(),
+                    stats.getMaxWaitMillis());
+        }
+
+        if (!pools.isEmpty()) {
+            out.println();
+        }
+
+        for (Map.Entry<String, StandInRepository.PoolStats> entry : pools.entrySet()) {
+            StandInRepository.PoolStats pool = entry.getValue();
+
+            out.printf(Locale.ROOT, "%s pool: %d connections, peak %d in use, %.1f%% of %d operations waited, %.2fms average wait%n",
+                    entry.getKey(),
+                    pool.getSize(),
+                    pool.getPeakInUse(),
+                    pool.getOperations() == 0 ? 0 : 100.0 * pool.getWaitedOperations() / pool.getOperations(),
+                    pool.getOperations(),
+                    pool.getAverageWaitMillis());
+        }
+
+        out.println();
+    }
+
+    private void printRow(PrintStream out, String name, LatencyHistogram histogram, long errors, double seconds) {
+        out.printf(Locale.ROOT, "%-10s %10d %10.1f %7.2f%% %9s %9s %9s %9s %9s %9s%n",
+                name,
+                histogram.getCount(),
+                histogram.getCount() / seconds,
+                histogram.getCount() == 0 ? 0 : 100.0 * errors / histogram.getCount(),
+                formatMicros((long) histogram.getMean()),
+                formatMicros(histogram.percentile(0.5)),
+                formatMicros(histogram.percentile(0.9)),
+                formatMicros(histogram.percentile(0.99)),
+                formatMicros(histogram.percentile(0.999)),
+                formatMicros(histogram.getMax()));
+    }
+
+    private static String formatMicros(long micros) {
+        return micros < 1000
+                ? micros + "us"
+                : String.format(Locale.ROOT, "%.2fms", micros / 1000.0);
+    }
+
+}
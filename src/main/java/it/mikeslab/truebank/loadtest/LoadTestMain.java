@@ -0,0 +1,147 @@
+package it.mikeslab.truebank.loadtest;
+
+import it.mikeslab.truebank.data.ConnectionRegistry;
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.scheduler.OperationScheduler;
+import it.mikeslab.truebank.data.scheduler.ScheduledRepository;
+import it.mikeslab.truebank.pojo.Card;
+import it.mikeslab.truebank.pojo.User;
+import it.mikeslab.truebank.util.LoggerUtil;
+import it.mikeslab.truebank.util.Money;
+import it.mikeslab.truebank.util.RepositoryUtil;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class: LoadTestMain
+ * Runs a load test outside the server, against the repositories described
+ * by a load test file (see loadtest.yml in the plugin jar):
+ *
+ *   java -cp TrueBank.jar:spigot-api.jar it.mikeslab.truebank.loadtest.LoadTestMain [loadtest.yml]
+ *
+ * When the file doesn't exist the sample one is written in its place. The
+ * "database" setting picks either the in-memory stand-in or one of the
+ * database sections of the file, in the same format as config.yml; the
+ * accounts are created in dedicated repositories, never in the live ones.
+ *
+ * With "mode: stress" the user repository is checked against its concurrency
+ * contract instead (see StressTest), the exit code is 1 when it's broken.
+ */
+public final class LoadTestMain {
+
+    private static final String STAND_IN = "standIn";
+    private static final String STRESS = "stress";
+
+    private LoadTestMain() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        File file = new File(args.length == 0 ? "loadtest.yml" : args[0]);
+
+        if (!file.exists()) {
+            try (InputStream sample = LoadTestMain.class.getResourceAsStream("/loadtest.yml")) {
+                Files.copy(sample, file.toPath());
+            }
+
+            System.out.println("Wrote a sample load test to " + file.getAbsolutePath() + ", review it and run again");
+            return;
+        }
+
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+        ConfigurationSection section = config.getConfigurationSection("loadTest");
+
+        if (section == null) {
+            throw new IllegalArgumentException("Missing the loadTest section in " + file);
+        }
+
+        LoggerUtil.configure(config.getConfigurationSection("logging"));
+        Money.configure(config.getConfigurationSection("currency"));
+
+        ConfigurationSerialization.registerClass(Card.class);
+        ConfigurationSerialization.registerClass(User.class);
+
+        OperationScheduler scheduler = OperationScheduler.fromConfig(config.getConfigurationSection("scheduler"));
+
+        String database = section.getString("database", STAND_IN);
+
+        Repository<User> users = open(config, database, section.getString("userRepository", "loadtest-users"), User.class);
+        Repository<Card> cards = open(config, database, section.getString("cardRepository", "loadtest-cards"), Card.class);
+
+        boolean passed = true;
+
+        try {
+            if (STRESS.equals(section.getString("mode", "load"))) {
+                // Through the scheduler as well, the plugin never calls a repository directly
+                passed = new StressTest(new ScheduledRepository<>(users, scheduler), section.getConfigurationSection(STRESS)).run(System.out);
+                return;
+            }
+
+            LoadGenerator generator = new LoadGenerator(
+                    new ScheduledRepository<>(users, scheduler),
+                    new ScheduledRepository<>(cards, scheduler),
+                    section
+            );
+
+            generator.seed();
+
+            LoadReport report = generator.run();
+
+            Map<String, StandInRepository.PoolStats> pools = new LinkedHashMap<>();
+
+            if (users instanceof StandInRepository) {
+                pools.put(users.getRepositoryName(), ((StandInRepository<User>) users).getPoolStats());
+                pools.put(cards.getRepositoryName(), ((StandInRepository<Card>) cards).getPoolStats());
+            }
+
+            report.print(System.out, scheduler, pools);
+        } finally {
+            scheduler.shutdown(5, TimeUnit.SECONDS);
+
+            users.close();
+            cards.close();
+
+            ConnectionRegistry.closeAll();
+            LoggerUtil.shutdown();
+
+            if (!passed) {
+                System.exit(1);
+            }
+        }
+    }
+
+    // Helper function to open a repository on the stand-in or on a database section of the file
+    private static <T extends ConfigurationSerializable> Repository<T> open(YamlConfiguration config, String database, String name, Class<T> type) {
+
+        Repository<T> repository;
+
+        if (STAND_IN.equals(database)) {
+            repository = new StandInRepository<>(type, name, config.getConfigurationSection(STAND_IN));
+        } else {
+            ConfigurationSection section = config.getConfigurationSection(database);
+
+            if (section == null) {
+                throw new IllegalArgumentException("No database section " + database + " in the load test file");
+            }
+
+            repository = new RepositoryUtil<>(section, type, name).fromConfig();
+
+            if (repository == null) {
+                throw new IllegalStateException("[" + name + "] Repository could not be created, check the configuration");
+            }
+        }
+
+        return repository;
+    }
+
+}
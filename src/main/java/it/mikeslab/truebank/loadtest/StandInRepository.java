@@ -0,0 +1,479 @@
+package it.mikeslab.truebank.loadtest;
+
+import it.mikeslab.truebank.data.ChangeCursor;
+import it.mikeslab.truebank.data.ChangeSet;
+import it.mikeslab.truebank.data.FieldUpdate;
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.RepositoryException;
+import it.mikeslab.truebank.data.UpsertResult;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.data.query.Aggregation;
+import it.mikeslab.truebank.data.query.Condition;
+import it.mikeslab.truebank.data.query.Query;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class: StandInRepository
+ * In-memory repository standing in for a database server in load tests.
+ * Every operation borrows one of poolSize simulated connections and holds it
+ * for the configured latency, so that a load beyond what the pool serves
+ * queues up the way it would on a real connection pool; a share of the
+ * operations can be made to fail.
+ *
+ * Entities are kept serialized and read back as copies, versions and change
+ * tracking, deletions included, behave as on MySQL and MongoDB. Configured through the "standIn"
+ * section of the load test file:
+ *
+ *   standIn:
+ *     latencyMicros: 500
+ *     jitterMicros: 250
+ *     poolSize: 10
+ *     failureRate: 0.0
+ *     indexedField: uuid
+ */
+public class StandInRepository<T extends ConfigurationSerializable> implements Repository<T> {
+
+    private final ConcurrentNavigableMap<String, Stored> entities = new ConcurrentSkipListMap<>();
+
+    // Value of the indexed field -> id, as a unique database index would
+    private final Map<String, String> index = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextId = new AtomicLong();
+
+    // Deleted ids, without fields, for the change stream
+    private final Map<String, Stored> deletions = new ConcurrentHashMap<>();
+
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double failureRate;
+    private final String indexedField;
+
+    private final Semaphore pool;
+
+    @Getter
+    private final int poolSize;
+
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder waitedOperations = new LongAdder();
+    private final LongAdder poolWaitNanos = new LongAdder();
+
+    private final Class<T> type;
+    private final String repositoryName;
+
+    public StandInRepository(Class<T> type, String repositoryName, ConfigurationSection section) {
+        this.type = type;
+        this.repositoryName = repositoryName;
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(section == null ? 500 : section.getLong("latencyMicros", 500));
+        this.jitterNanos = TimeUnit.MICROSECONDS.toNanos(section == null ? 250 : section.getLong("jitterMicros", 250));
+        this.failureRate = section == null ? 0 : section.getDouble("failureRate", 0);
+        this.indexedField = section == null ? "uuid" : section.getString("indexedField", "uuid");
+        this.poolSize = Math.max(1, section == null ? 10 : section.getInt("poolSize", 10));
+        this.pool = new Semaphore(this.poolSize, true);
+    }
+
+    @Override
+    public String save(T obj, Object... args) {
+        return this.call(() -> {
+            String id = String.valueOf(this.nextId.incrementAndGet());
+            this.write(id, obj, false);
+            return id;
+        });
+    }
+
+    @Override
+    public void update(String id, T obj) {
+        this.call(() -> {
+            this.write(id, obj, true);
+            return null;
+        });
+    }
+
+    @Override
+    public UpsertResult upsert(String id, T obj) {
+        return this.call(() -> {
+            return this.write(id, obj, false) == null ? UpsertResult.INSERTED : UpsertResult.UPDATED;
+        });
+    }
+
+    @Override
+    public void delete(String id) {
+        this.call(() -> {
+            Stored removed = this.entities.remove(id);
+
+            if (removed != null) {
+                this.deletions.put(id, new Stored(null, removed.version + 1, System.currentTimeMillis()));
+            }
+
+            if (removed != null && this.indexedField != null) {
+                this.index.remove(String.valueOf(removed.fields.get(this.indexedField)), id);
+            }
+
+            return null;
+        });
+    }
+
+    @Override
+    public T get(String id) {
+        return this.call(() -> {
+            Stored stored = this.entities.get(id);
+            return stored == null ? null : this.decode(stored);
+        });
+    }
+
+    @Override
+    public Map.Entry<String, Object> find(Document document) {
+        throw new UnsupportedOperationException("Document lookups aren't available for the stand-in repository");
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> scan(String afterId, int limit) {
+        return this.call(() -> {
+            ConcurrentNavigableMap<String, Stored> page = afterId == null ? this.entities : this.entities.tailMap(afterId, false);
+            List<Map.Entry<String, T>> results = new ArrayList<>();
+
+            for (Map.Entry<String, Stored> entry : page.entrySet()) {
+                if (results.size() >= limit) {
+                    break;
+                }
+
+                results.add(new AbstractMap.SimpleEntry<>(entry.getKey(), this.decode(entry.getValue())));
+            }
+
+            return results;
+        });
+    }
+
+    @Override
+    public List<Map.Entry<String, T>> query(Query query) {
+        return this.call(() -> {
+            List<Map.Entry<String, T>> results = new ArrayList<>();
+
+            for (Map.Entry<String, Stored> match : this.match(query)) {
+                results.add(new AbstractMap.SimpleEntry<>(match.getKey(), this.decode(match.getValue())));
+            }
+
+            return results;
+        });
+    }
+
+    @Override
+    public List<Map<String, Object>> select(Query query) {
+        return this.call(() -> {
+            List<Map<String, Object>> rows = new ArrayList<>();
+
+            for (Map.Entry<String, Stored> match : this.match(query)) {
+                Map<String, Object> row = new HashMap<>();
+
+                if (query.getProjection().isEmpty()) {
+                    row.putAll(match.getValue().fields);
+                } else {
+                    query.getProjection().forEach(field -> row.put(field, match.getValue().fields.get(field)));
+                }
+
+                row.put("id", match.getKey());
+                rows.add(row);
+            }
+
+            return rows;
+        });
+    }
+
+    @Override
+    public List<Map<String, Object>> aggregate(Aggregation aggregation) {
+        throw new UnsupportedOperationException("Aggregations aren't available for the stand-in repository");
+    }
+
+    @Override
+    public List<String> saveAll(List<Map.Entry<String, T>> entities) {
+        return this.call(() -> {
+            List<String> ids = new ArrayList<>(entities.size());
+
+            for (Map.Entry<String, T> entity : entities) {
+                String id = entity.getKey() == null ? String.valueOf(this.nextId.incrementAndGet()) : entity.getKey();
+
+                this.write(id, entity.getValue(), false);
+                ids.add(id);
+            }
+
+            return ids;
+        });
+    }
+
+    @Override
+    public ChangeSet<T> changesSince(ChangeCursor cursor, int limit) {
+        return this.call(() -> {
+            List<Map.Entry<String, Stored>> changed = new ArrayList<>();
+
+            for (Map<String, Stored> source : Arrays.asList(this.entities, this.deletions)) {
+                for (Map.Entry<String, Stored> entry : source.entrySet()) {
+                    Stored stored = entry.getValue();
+
+                    if (stored.updatedAt > cursor.getUpdatedAt()
+                            || (stored.updatedAt == cursor.getUpdatedAt() && (cursor.getId() == null || entry.getKey().compareTo(cursor.getId()) > 0))) {
+                        changed.add(entry);
+                    }
+                }
+            }
+
+            changed.sort(Comparator.<Map.Entry<String, Stored>>comparingLong(entry -> entry.getValue().updatedAt).thenComparing(Map.Entry::getKey));
+
+            List<Versioned<T>> changes = new ArrayList<>();
+
+            for (Map.Entry<String, Stored> entry : changed.subList(0, Math.min(limit, changed.size()))) {
+                Stored stored = entry.getValue();
+                changes.add(new Versioned<>(entry.getKey(), stored.fields == null ? null : this.decode(stored), stored.version, stored.updatedAt));
+            }
+
+            return new ChangeSet<>(changes, changes.isEmpty() ? cursor : changes.get(changes.size() - 1).toCursor());
+        });
+    }
+
+    @Override
+    public Versioned<T> getVersioned(String id) {
+        return this.call(() -> {
+            Stored stored = this.entities.get(id);
+            return stored == null ? null : new Versioned<>(id, this.decode(stored), stored.version, stored.updatedAt);
+        });
+    }
+
+    @Override
+    public boolean compareAndUpdate(String id, long expectedVersion, T obj) {
+        return this.call(() -> {
+            Map<String, Object> fields = copy(obj);
+            Stored[] replaced = new Stored[1];
+
+            // The skip list may run the function again when another writer wins, only the last run counts
+            this.entities.computeIfPresent(id, (key, current) -> {
+                replaced[0] = current.version == expectedVersion ? current : null;
+                return replaced[0] != null ? new Stored(fields, expectedVersion + 1, System.currentTimeMillis()) : current;
+            });
+
+            if (replaced[0] == null) {
+                return false;
+            }
+
+            this.reindex(id, replaced[0], fields);
+            return true;
+        });
+    }
+
+    @Override
+    public long updateAll(FieldUpdate update, Collection<String> excludedIds, int limit) {
+        throw new UnsupportedOperationException("Set-based updates aren't available for the stand-in repository");
+    }
+
+    @Override
+    public long convertToFixedPoint(String field, int scale) {
+        // Load test entities are created with fixed-point amounts
+        return 0;
+    }
+
+    @Override
+    public String getRepositoryName() {
+        return this.repositoryName;
+    }
+
+    @Override
+    public void setColumns(String[] columns) {
+
+        // Nothing to create, entities are kept as maps.
+
+    }
+
+    @Override
+    public void close() {
+        this.entities.clear();
+        this.index.clear();
+    }
+
+    /**
+     * Gets the statistics of the simulated connection pool since it was created.
+     * @return A snapshot of the pool statistics.
+     */
+    public PoolStats getPoolStats() {
+        long total = this.operations.sum();
+
+        return new PoolStats(
+                this.poolSize,
+                this.peakInUse.get(),
+                total,
+                this.waitedOperations.sum(),
+                total == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(this.poolWaitNanos.sum() / total) / 1000.0
+        );
+    }
+
+    // Helper function to run an operation on a simulated connection, held for the configured latency
+    private <R> R call(Operation<R> operation) {
+
+        long waitStartedAt = System.nanoTime();
+
+        if (!this.pool.tryAcquire()) {
+            this.waitedOperations.increment();
+            this.pool.acquireUninterruptibly();
+        }
+
+        this.poolWaitNanos.add(System.nanoTime() - waitStartedAt);
+        this.operations.increment();
+        this.peakInUse.accumulateAndGet(this.inUse.incrementAndGet(), Math::max);
+
+        try {
+            long latency = this.latencyNanos + (this.jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(this.jitterNanos + 1) : 0);
+
+            if (latency > 0) {
+                LockSupport.parkNanos(latency);
+            }
+
+            if (this.failureRate > 0 && ThreadLocalRandom.current().nextDouble() < this.failureRate) {
+                throw new RepositoryException("Injected stand-in failure");
+            }
+
+            return operation.run();
+        } finally {
+            this.inUse.decrementAndGet();
+            this.pool.release();
+        }
+    }
+
+    // Helper function to write an entity, bumping its version atomically; returns the entity replaced, if any
+    private Stored write(String id, T obj, boolean existingOnly) {
+        Map<String, Object> fields = copy(obj);
+        Stored[] previous = new Stored[1];
+
+        // The skip list may run the function again when another writer wins, only the last run counts
+        Stored written = this.entities.compute(id, (key, current) -> {
+            previous[0] = current;
+
+            if (current == null && existingOnly) {
+                return null;
+            }
+
+            return new Stored(fields, current == null ? 1 : current.version + 1, System.currentTimeMillis());
+        });
+
+        if (written != null) {
+            this.reindex(id, previous[0], fields);
+        }
+
+        return previous[0];
+    }
+
+    // Helper function to point the index at a written entity; a lookup re-checks the entity, so a stale entry only misses
+    private void reindex(String id, Stored previous, Map<String, Object> fields) {
+
+        if (this.indexedField == null) {
+            return;
+        }
+
+        if (previous != null) {
+            this.index.remove(String.valueOf(previous.fields.get(this.indexedField)), id);
+        }
+
+        if (fields.get(this.indexedField) != null) {
+            this.index.put(String.valueOf(fields.get(this.indexedField)), id);
+        }
+    }
+
+    // Helper function to find the entities matching a query, through the index when it's a lookup on the indexed field
+    private List<Map.Entry<String, Stored>> match(Query query) {
+
+        List<Condition> conditions = query.getConditions();
+        Collection<Map.Entry<String, Stored>> candidates;
+
+        if (conditions.size() == 1 && conditions.get(0).getOperator() == Condition.Operator.EQ && conditions.get(0).getField().equals(this.indexedField)) {
+            String id = this.index.get(String.valueOf(conditions.get(0).getValues().get(0)));
+            Stored stored = id == null ? null : this.entities.get(id);
+
+            candidates = stored == null
+                    ? Collections.<Map.Entry<String, Stored>>emptyList()
+                    : Collections.<Map.Entry<String, Stored>>singletonList(new AbstractMap.SimpleEntry<>(id, stored));
+        } else {
+            candidates = this.entities.entrySet();
+        }
+
+        List<Map.Entry<String, Stored>> matches = new ArrayList<>();
+
+        for (Map.Entry<String, Stored> candidate : candidates) {
+            if (conditions.stream().allMatch(condition -> condition.matches(
+                    condition.getField().equals("id") ? candidate.getKey() : candidate.getValue().fields.get(condition.getField())))) {
+                matches.add(candidate);
+            }
+        }
+
+        for (int i = query.getOrdering().size() - 1; i >= 0; i--) {
+            Query.Order order = query.getOrdering().get(i);
+            Comparator<Map.Entry<String, Stored>> comparator = (left, right) ->
+                    Condition.compare(left.getValue().fields.get(order.getField()), right.getValue().fields.get(order.getField()));
+
+            // Stable sorts from the last order to the first one
+            matches.sort(order.isAscending() ? comparator : comparator.reversed());
+        }
+
+        return query.hasLimit() && matches.size() > query.getLimit() ? matches.subList(0, query.getLimit()) : matches;
+    }
+
+    private T decode(Stored stored) {
+        return this.type.cast(ConfigurationSerialization.deserializeObject(stored.fields, this.type));
+    }
+
+    private static Map<String, Object> copy(ConfigurationSerializable entity) {
+        return Collections.unmodifiableMap(new HashMap<>(entity.serialize()));
+    }
+
+    private interface Operation<R> {
+
+        R run();
+
+    }
+
+    @RequiredArgsConstructor
+    private static final class Stored {
+
+        private final Map<String, Object> fields;
+        private final long version;
+        private final long updatedAt;
+
+    }
+
+    /**
+     * Statistics of the simulated connection pool.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static final class PoolStats {
+
+        private final int size;
+        private final int peakInUse;
+        private final long operations;
+        private final long waitedOperations;
+        private final double averageWaitMillis;
+
+    }
+
+}
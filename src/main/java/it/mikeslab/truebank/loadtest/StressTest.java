@@ -0,0 +1,414 @@
+package it.mikeslab.truebank.loadtest;
+
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.Versioned;
+import it.mikeslab.truebank.pojo.User;
+import it.mikeslab.truebank.util.LoggerUtil;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.PrintStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Class: StressTest
+ * Checks the concurrency contract of a repository (see Repository) under
+ * parallel load, instead of measuring it:
+ *
+ * - every thread creates accounts at once, the ids must all differ and
+ *   read back as the accounts created;
+ * - the threads then hammer a few of them with versioned reads and
+ *   compare-and-update increments of the balance, recording when each
+ *   operation was called and when it returned;
+ * - the history is checked for linearizability: versions order the writes
+ *   of an account, so it is linearizable when no operation observes a
+ *   version older than one already observed or written by an operation
+ *   completed before it started, no read observes a write that started
+ *   after it returned, and each version is written once;
+ * - each entity read must carry the balance and the tag of the write of
+ *   its version (no torn reads), the final balance must count every
+ *   successful increment (no lost updates).
+ *
+ * Configured through the "stress" section of the loadTest section:
+ *
+ *   stress:
+ *     threads: 32
+ *     accounts: 4
+ *     inserts: 50
+ *     durationSeconds: 10
+ */
+final class StressTest {
+
+    // Violations printed in full, the rest are only counted
+    private static final int MAX_PRINTED = 10;
+
+    private final Repository<User> users;
+    private final int threads;
+    private final int accounts;
+    private final int inserts;
+    private final long durationNanos;
+
+    // Added to by the workers too
+    private final List<String> violations = Collections.synchronizedList(new ArrayList<>());
+
+    StressTest(Repository<User> users, ConfigurationSection section) {
+        this.users = users;
+        this.threads = Math.max(2, section == null ? 32 : section.getInt("threads", 32));
+        this.accounts = Math.max(1, section == null ? 4 : section.getInt("accounts", 4));
+        this.inserts = Math.max(1, section == null ? 50 : section.getInt("inserts", 50));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Math.max(1, section == null ? 10 : section.getLong("durationSeconds", 10)));
+
+        if (this.accounts > this.threads * this.inserts) {
+            throw new IllegalArgumentException("The stress test needs at least " + this.accounts + " inserts in total");
+        }
+    }
+
+    /**
+     * Runs the stress test and prints its report. Blocking.
+     * Accounts created by the test are deleted at the end.
+     * @param out The stream to print the report to.
+     * @return Whether the repository kept its contract.
+     * @throws InterruptedException If interrupted while waiting for the workers.
+     */
+    boolean run(PrintStream out) throws InterruptedException {
+
+        List<String> created = new ArrayList<>();
+
+        try {
+            this.insert(created);
+
+            List<String> hot = created.subList(0, this.accounts);
+            long operations = this.hammer(hot);
+
+            out.println();
+            out.println("Stress test: " + this.threads + " threads, " + created.size() + " accounts created, "
+                    + operations + " operations on " + hot.size() + " accounts");
+        } finally {
+            for (String id : created) {
+                this.users.delete(id);
+            }
+        }
+
+        for (String violation : this.violations.subList(0, Math.min(MAX_PRINTED, this.violations.size()))) {
+            out.println("  VIOLATION " + violation);
+        }
+
+        if (this.violations.size() > MAX_PRINTED) {
+            out.println("  ... " + (this.violations.size() - MAX_PRINTED) + " more violations");
+        }
+
+        out.println(this.violations.isEmpty() ? "The repository kept its contract" : this.violations.size() + " violations found");
+        return this.violations.isEmpty();
+    }
+
+    // Helper function to create accounts from every thread at once, checking that each gets its own id
+    private void insert(List<String> created) throws InterruptedException {
+
+        List<List<Map.Entry<String, UUID>>> results = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+
+        for (int i = 0; i < this.threads; i++) {
+            List<Map.Entry<String, UUID>> saved = new ArrayList<>();
+            results.add(saved);
+
+            Thread thread = new Thread(() -> {
+                awaitQuietly(start);
+
+                for (int j = 0; j < this.inserts; j++) {
+                    UUID uuid = UUID.randomUUID();
+
+                    try {
+                        saved.add(new AbstractMap.SimpleEntry<>(this.users.save(newUser(uuid), uuid), uuid));
+                    } catch (RuntimeException e) {
+                        // Failures aren't the point here, fewer accounts get created
+                        LoggerUtil.log(Level.WARNING, LoggerUtil.LogSource.OTHER, "Stress insert failed: {}", e.getMessage());
+                    }
+                }
+            }, "TrueBank-Stress-Insert-" + (i + 1));
+
+            thread.setDaemon(true);
+            workers.add(thread);
+            thread.start();
+        }
+
+        start.countDown();
+
+        for (Thread thread : workers) {
+            thread.join();
+        }
+
+        Set<String> seen = new HashSet<>();
+
+        for (List<Map.Entry<String, UUID>> saved : results) {
+            for (Map.Entry<String, UUID> entry : saved) {
+                if (entry.getKey() == null) {
+                    this.violations.add("save returned no id for " + entry.getValue());
+                    continue;
+                }
+
+                if (!seen.add(entry.getKey())) {
+                    this.violations.add("id " + entry.getKey() + " was returned by two concurrent saves");
+                    continue;
+                }
+
+                created.add(entry.getKey());
+                User read = this.users.get(entry.getKey());
+
+                if (read == null || !entry.getValue().equals(read.getUuid())) {
+                    this.violations.add("id " + entry.getKey() + " doesn't read back as " + entry.getValue());
+                }
+            }
+        }
+
+        if (created.size() < this.accounts) {
+            throw new IllegalStateException("Only " + created.size() + " accounts could be created");
+        }
+    }
+
+    // Helper function to run the versioned reads and increments, then check their history
+    private long hammer(List<String> hot) throws InterruptedException {
+
+        long[] baseVersions = new long[hot.size()];
+        long[] baseBalances = new long[hot.size()];
+
+        for (int i = 0; i < hot.size(); i++) {
+            Versioned<User> base = this.users.getVersioned(hot.get(i));
+            baseVersions[i] = base.getVersion();
+            baseBalances[i] = base.getEntity().getBalance();
+        }
+
+        List<List<Event>> histories = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] endAt = new long[1];
+
+        for (int i = 0; i < this.threads; i++) {
+            List<Event> history = new ArrayList<>();
+            histories.add(history);
+
+            String tagPrefix = "stress-" + (i + 1) + "-";
+
+            Thread thread = new Thread(() -> {
+                awaitQuietly(start);
+
+                long sequence = 0;
+
+                while (System.nanoTime() < endAt[0]) {
+                    int account = ThreadLocalRandom.current().nextInt(hot.size());
+                    String id = hot.get(account);
+
+                    long startedAt = System.nanoTime();
+                    Versioned<User> read;
+
+                    try {
+                        read = this.users.getVersioned(id);
+                    } catch (RuntimeException e) {
+                        continue;
+                    }
+
+                    if (read == null) {
+                        this.violations.add(id + ": account not found while being updated");
+                        continue;
+                    }
+
+                    history.add(new Event(account, false, startedAt, System.nanoTime(), read.getVersion(),
+                            read.getEntity().getDisplayName(), read.getEntity().getBalance()));
+
+                    if (ThreadLocalRandom.current().nextBoolean()) {
+                        continue;
+                    }
+
+                    // Increment on the entity just read, tagged so that reads can tell which write they see
+                    User updated = read.getEntity();
+                    updated.setBalance(updated.getBalance() + 1);
+                    updated.setDisplayName(tagPrefix + (++sequence));
+
+                    startedAt = System.nanoTime();
+                    Boolean applied;
+
+                    try {
+                        applied = this.users.compareAndUpdate(id, read.getVersion(), updated);
+                    } catch (RuntimeException e) {
+                        // May or may not have been applied
+                        applied = null;
+                    }
+
+                    if (applied == null || applied) {
+                        history.add(new Event(account, true, startedAt, applied == null ? Long.MAX_VALUE : System.nanoTime(),
+                                applied == null ? -1 : read.getVersion() + 1, updated.getDisplayName(), updated.getBalance()));
+                    }
+                }
+            }, "TrueBank-Stress-" + (i + 1));
+
+            thread.setDaemon(true);
+            workers.add(thread);
+        }
+
+        endAt[0] = System.nanoTime() + this.durationNanos;
+        workers.forEach(Thread::start);
+        start.countDown();
+
+        for (Thread thread : workers) {
+            thread.join();
+        }
+
+        long operations = 0;
+
+        for (int i = 0; i < hot.size(); i++) {
+            List<Event> events = new ArrayList<>();
+
+            for (List<Event> history : histories) {
+                for (Event event : history) {
+                    if (event.account == i) {
+                        events.add(event);
+                    }
+                }
+            }
+
+            operations += events.size();
+            this.check(hot.get(i), events, baseVersions[i], baseBalances[i]);
+        }
+
+        LoggerUtil.log(Level.INFO, LoggerUtil.LogSource.OTHER, "Stress run completed, {} operations checked", operations);
+        return operations;
+    }
+
+    // Helper function to check the history of a single account
+    private void check(String id, List<Event> events, long baseVersion, long baseBalance) {
+
+        Map<Long, Event> writes = new HashMap<>();
+        int indeterminate = 0;
+
+        for (Event event : events) {
+            if (!event.write) {
+                continue;
+            }
+
+            if (event.version < 0) {
+                indeterminate++;
+                continue;
+            }
+
+            Event previous = writes.put(event.version, event);
+
+            if (previous != null) {
+                this.violations.add(id + ": version " + event.version + " written by " + previous.tag + " and " + event.tag);
+            }
+        }
+
+        // Reads see whole writes, the balance counts the increments up to their version
+        for (Event event : events) {
+            if (event.write) {
+                continue;
+            }
+
+            if (event.balance != baseBalance + event.version - baseVersion) {
+                this.violations.add(id + ": read version " + event.version + " with balance " + event.balance
+                        + ", expected " + (baseBalance + event.version - baseVersion));
+            }
+
+            if (event.version == baseVersion) {
+                continue;
+            }
+
+            Event write = writes.get(event.version);
+
+            if (write == null) {
+                if (indeterminate == 0) {
+                    this.violations.add(id + ": read version " + event.version + " that no write produced");
+                }
+            } else if (!write.tag.equals(event.tag)) {
+                this.violations.add(id + ": read version " + event.version + " tagged " + event.tag + ", written as " + write.tag);
+            } else if (write.startedAt > event.returnedAt) {
+                this.violations.add(id + ": read version " + event.version + " before its write started");
+            }
+        }
+
+        // Real-time order: nothing observes a version older than one observed by an operation completed before it
+        List<Event> known = new ArrayList<>();
+
+        for (Event event : events) {
+            if (event.version >= 0) {
+                known.add(event);
+            }
+        }
+
+        List<Event> byReturn = new ArrayList<>(known);
+        byReturn.sort(Comparator.comparingLong(event -> event.returnedAt));
+        known.sort(Comparator.comparingLong(event -> event.startedAt));
+
+        long completedVersion = baseVersion;
+        int returned = 0;
+
+        for (Event event : known) {
+            while (returned < byReturn.size() && byReturn.get(returned).returnedAt < event.startedAt) {
+                completedVersion = Math.max(completedVersion, byReturn.get(returned++).version);
+            }
+
+            // A write replaces the version it expected, which must be at least the latest completed one
+            boolean stale = event.write ? event.version <= completedVersion : event.version < completedVersion;
+
+            if (stale) {
+                this.violations.add(id + ": " + (event.write ? "write of" : "read of") + " version " + event.version
+                        + " after version " + completedVersion + " was completed");
+            }
+        }
+
+        // No lost updates: every successful increment is counted once
+        Versioned<User> last = this.users.getVersioned(id);
+        long increments = last.getVersion() - baseVersion;
+        long balance = last.getEntity().getBalance() - baseBalance;
+
+        if (balance != increments || increments < writes.size() || increments > writes.size() + indeterminate) {
+            this.violations.add(id + ": " + writes.size() + " increments succeeded (" + indeterminate + " unknown), version moved by "
+                    + increments + ", balance by " + balance);
+        }
+    }
+
+    private static User newUser(UUID uuid) {
+        return User.builder()
+                .uuid(uuid)
+                .displayName("stress")
+                .securityCode(ThreadLocalRandom.current().nextInt(100, 1000))
+                .cardNumber(ThreadLocalRandom.current().nextLong(1_000_000_000_000_000L, 10_000_000_000_000_000L))
+                .balance(0)
+                .build();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // An operation of the history: a versioned read, or a successful (or unknown, version -1) increment
+    @RequiredArgsConstructor
+    private static final class Event {
+
+        private final int account;
+        private final boolean write;
+        private final long startedAt;
+        private final long returnedAt;
+        private final long version;
+        private final String tag;
+        private final long balance;
+
+    }
+
+}
@@ -0,0 +1,49 @@
+package it.mikeslab.truebank.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class: ZipfSampler
+ * Draws account ranks following a Zipf distribution: rank k is drawn with a
+ * probability proportional to 1 / k^exponent, so that a few accounts get most
+ * of the traffic, as the richest and most active players do. An exponent of 0
+ * draws every account evenly.
+ */
+final class ZipfSampler {
+
+    private final double[] cumulative;
+
+    ZipfSampler(int size, double exponent) {
+
+        if (size <= 0) {
+            throw new IllegalArgumentException("At least one account is needed, got " + size);
+        }
+
+        this.cumulative = new double[size];
+
+        double total = 0;
+
+        for (int rank = 1; rank <= size; rank++) {
+            total += 1 / Math.pow(rank, exponent);
+            this.cumulative[rank - 1] = total;
+        }
+
+        for (int i = 0; i < size; i++) {
+            this.cumulative[i] /= total;
+        }
+    }
+
+    /**
+     * Draws a rank.
+     * @return The rank, from 0 (the most popular) to size - 1.
+     */
+    int next() {
+        double draw = ThreadLocalRandom.current().nextDouble();
+        int index = Arrays.binarySearch(this.cumulative, draw);
+
+        // Not found: the insertion point is the first rank whose cumulative share exceeds the draw
+        return Math.min(index >= 0 ? index : -index - 1, this.cumulative.length - 1);
+    }
+
+}
@@ -0,0 +1,57 @@
+package it.mikeslab.truebank.pojo;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.SerializableAs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+    Class: CardNumberLease
+    Shared state of the card number allocators: the next block of
+    account numbers to be leased, and who leased the last one.
+*/
+
+@Data
+@Builder
+@AllArgsConstructor
+@SerializableAs("CardNumberLease")
+public class CardNumberLease implements ConfigurationSerializable {
+
+    // Next block to be leased, blocks are numbered from 1
+
+    private final long nextBlock;
+
+    // Account numbers per block, fixed by the first lease
+
+    private final int blockSize;
+
+    // Server that leased the last block, for diagnostics
+
+    private final String leasedBy;
+
+    private final long leasedAt;
+
+    public CardNumberLease(Map<String, ?> map) {
+        this.nextBlock = ((Number) map.get("nextBlock")).longValue();
+        this.blockSize = ((Number) map.get("blockSize")).intValue();
+        this.leasedBy = (String) map.get("leasedBy");
+        this.leasedAt = map.get("leasedAt") == null ? 0 : ((Number) map.get("leasedAt")).longValue();
+    }
+
+    @Override
+    public Map<String, Object> serialize() {
+        Map<String, Object> map = new HashMap<>();
+
+        map.put("nextBlock", nextBlock);
+        map.put("blockSize", blockSize);
+        map.put("leasedBy", leasedBy);
+        map.put("leasedAt", leasedAt);
+
+        return map;
+    }
+
+}
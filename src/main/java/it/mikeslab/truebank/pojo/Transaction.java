@@ -0,0 +1,70 @@
+package it.mikeslab.truebank.pojo;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.SerializableAs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+    Class: Transaction
+    A balance change of a player, as recorded in the transaction history.
+    Transactions are never updated once written.
+*/
+
+@Data
+@Builder
+@AllArgsConstructor
+@SerializableAs("Transaction")
+public class Transaction implements ConfigurationSerializable {
+
+    // Uuid of the player whose balance changed
+
+    private final UUID uuid;
+
+    private final TransactionType type;
+
+    // Amount in minor units (see Money), always positive, the type tells the direction
+
+    private final long amount;
+
+    // Balance after the change, in minor units
+
+    private final long balance;
+
+    // The other player of a transfer, null otherwise
+
+    private final UUID counterparty;
+
+    // Epoch millis, also picks the monthly partition
+
+    private final long timestamp;
+
+    public Transaction(Map<String, ?> map) {
+        this.uuid = UUID.fromString((String) map.get("uuid"));
+        this.type = TransactionType.valueOf((String) map.get("type"));
+        this.amount = ((Number) map.get("amount")).longValue();
+        this.balance = ((Number) map.get("balance")).longValue();
+        this.counterparty = map.get("counterparty") == null ? null : UUID.fromString((String) map.get("counterparty"));
+        this.timestamp = ((Number) map.get("timestamp")).longValue();
+    }
+
+    @Override
+    public Map<String, Object> serialize() {
+        Map<String, Object> map = new HashMap<>();
+
+        map.put("uuid", uuid.toString());
+        map.put("type", type.name());
+        map.put("amount", amount);
+        map.put("balance", balance);
+        map.put("counterparty", counterparty == null ? null : counterparty.toString());
+        map.put("timestamp", timestamp);
+
+        return map;
+    }
+
+}
@@ -0,0 +1,39 @@
+package it.mikeslab.truebank.pojo;
+
+/**
+ * Enum: TransactionType
+ * Kind of balance change recorded in the transaction history.
+ */
+public enum TransactionType {
+
+    /**
+     * Money paid into the account.
+     */
+    DEPOSIT,
+
+    /**
+     * Money taken out of the account.
+     */
+    WITHDRAWAL,
+
+    /**
+     * Money received from another account.
+     */
+    TRANSFER_IN,
+
+    /**
+     * Money sent to another account.
+     */
+    TRANSFER_OUT,
+
+    /**
+     * Interest credited by an account job.
+     */
+    INTEREST,
+
+    /**
+     * Fee withdrawn by an account job.
+     */
+    FEE
+
+}
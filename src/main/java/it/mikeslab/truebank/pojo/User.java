@@ -1,9 +1,17 @@
 package it.mikeslab.truebank.pojo;
 
+import it.mikeslab.truebank.data.FieldUpdate;
+import it.mikeslab.truebank.util.Money;
+import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import org.bson.codecs.pojo.annotations.BsonProperty;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.SerializableAs;
 
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 /*
@@ -13,7 +21,9 @@ import java.util.UUID;
 
 @Data
 @Builder
-public class User {
+@AllArgsConstructor
+@SerializableAs("User")
+public class User implements ConfigurationSerializable {
 
     // Player uuid
 
@@ -40,11 +50,83 @@ public class User {
     @BsonProperty("card")
     private Card card;
 
-    // Player balance, defaults to 0, can be updated
+    // Player balance in minor units (see Money), defaults to 0, can be updated
 
     @BsonProperty("balance")
-    private double balance;
-
-
+    private long balance;
+
+    // Last period applied by each account job, by guard field (see FieldUpdate). Only carried by
+    // backends without set-based updates, the others keep the guards out of the entities they read
+
+    private Map<String, Long> periods;
+
+    public User(Map<String, ?> map) {
+        this.uuid = UUID.fromString((String) map.get("uuid"));
+        this.displayName = (String) map.get("displayName");
+        this.securityCode = ((Number) map.get("securityCode")).intValue();
+        this.cardNumber = ((Number) map.get("cardNumber")).longValue();
+        this.balance = toMinorUnits(map.get("balance"));
+
+        map.forEach((key, value) -> {
+            if (key.startsWith(FieldUpdate.GUARD_PREFIX) && value instanceof Number) {
+                this.setAppliedPeriod(key, ((Number) value).longValue());
+            }
+        });
+    }
+
+    /**
+     * Gets the last period an account job has applied to this user.
+     * @param guardField The guard field of the job.
+     * @return The period, or null if the job has never seen this user.
+     */
+    public Long getAppliedPeriod(String guardField) {
+        return this.periods == null ? null : this.periods.get(guardField);
+    }
+
+    /**
+     * Records the last period an account job has applied to this user.
+     * @param guardField The guard field of the job.
+     * @param period The period.
+     */
+    public void setAppliedPeriod(String guardField, long period) {
+        if (this.periods == null) {
+            this.periods = new HashMap<>();
+        }
+
+        this.periods.put(guardField, period);
+    }
+
+    // Helper function to read a balance, stored as a decimal amount before fixed-point balances
+    private static long toMinorUnits(Object value) {
+
+        if (value instanceof Double || value instanceof Float) {
+            return Money.fromMajor(((Number) value).doubleValue());
+        }
+
+        if (value instanceof BigDecimal) {
+            return Money.fromMajor(((BigDecimal) value).doubleValue());
+        }
+
+        return value == null ? 0 : ((Number) value).longValue();
+    }
+
+    // The card isn't serialized, it's stored in the card repository and linked by uuid
+
+    @Override
+    public Map<String, Object> serialize() {
+        Map<String, Object> map = new HashMap<>();
+
+        map.put("uuid", uuid.toString());
+        map.put("displayName", displayName);
+        map.put("securityCode", securityCode);
+        map.put("cardNumber", cardNumber);
+        map.put("balance", balance);
+
+        if (periods != null) {
+            map.putAll(periods);
+        }
+
+        return map;
+    }
 
 }
@@ -0,0 +1,63 @@
+package it.mikeslab.truebank.pojo.database;
+
+import lombok.Builder;
+import lombok.Data;
+import org.bukkit.configuration.ConfigurationSection;
+
+/*
+    Class: PoolSettings
+    Connection pool sizing and timeouts, shared by the MySQL (Hikari)
+    and MongoDB (driver pool) backends.
+*/
+
+@Data
+@Builder
+public class PoolSettings {
+
+    @Builder.Default
+    private final int maximumPoolSize = 10;
+
+    @Builder.Default
+    private final int minimumIdle = 2;
+
+    // Maximum time a caller waits for a pooled connection
+
+    @Builder.Default
+    private final long connectionTimeoutMillis = 5_000;
+
+    // Maximum time a connection may sit idle in the pool
+
+    @Builder.Default
+    private final long idleTimeoutMillis = 600_000;
+
+    // Maximum lifetime of a connection in the pool
+
+    @Builder.Default
+    private final long maxLifetimeMillis = 1_800_000;
+
+    /**
+     * Reads the pool settings from the "pool" section of a database configuration.
+     * Missing values fall back to the defaults.
+     * @param section The database configuration section, may be null.
+     * @return The PoolSettings.
+     */
+    public static PoolSettings fromConfig(ConfigurationSection section) {
+
+        PoolSettings defaults = PoolSettings.builder().build();
+
+        if (section == null || !section.isConfigurationSection("pool")) {
+            return defaults;
+        }
+
+        ConfigurationSection poolSection = section.getConfigurationSection("pool");
+
+        return PoolSettings.builder()
+                .maximumPoolSize(poolSection.getInt("maximumPoolSize", defaults.getMaximumPoolSize()))
+                .minimumIdle(poolSection.getInt("minimumIdle", defaults.getMinimumIdle()))
+                .connectionTimeoutMillis(poolSection.getLong("connectionTimeoutMillis", defaults.getConnectionTimeoutMillis()))
+                .idleTimeoutMillis(poolSection.getLong("idleTimeoutMillis", defaults.getIdleTimeoutMillis()))
+                .maxLifetimeMillis(poolSection.getLong("maxLifetimeMillis", defaults.getMaxLifetimeMillis()))
+                .build();
+    }
+
+}
@@ -15,5 +15,10 @@ public class URIBuilder {
     private String database;
     private String path;
     private EntityStyle style;
+    private PoolSettings poolSettings;
+
+    // YAML only: files the entities are spread over, and the interval between two writes of a file
+    private int segments;
+    private long flushIntervalMillis;
 
 }
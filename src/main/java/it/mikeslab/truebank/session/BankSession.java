@@ -0,0 +1,136 @@
+package it.mikeslab.truebank.session;
+
+import it.mikeslab.truebank.pojo.Card;
+import it.mikeslab.truebank.pojo.User;
+import lombok.Getter;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Class: BankSession
+ * The bank data of an online player, pinned in memory from login to quit.
+ * Reads are served from here, mutations mark the session dirty so that
+ * only changed entities are written back.
+ *
+ * Mutations are synchronized on the session, readers get the current instances.
+ */
+@Getter
+public class BankSession {
+
+    private final UUID uuid;
+
+    // Set by every login the session is loaded or kept for, the generation tells them apart
+    private volatile long claimedAt;
+    private volatile int generation;
+
+    // Whether the player has joined and not quit yet, set on the main thread
+    private volatile boolean online;
+
+    // Repository ids, null until the entity has been saved for the first time
+    private volatile String userId;
+    private volatile String cardId;
+
+    private volatile User user;
+    private volatile Card card;
+
+    private boolean userDirty;
+    private boolean cardDirty;
+
+    BankSession(UUID uuid, String userId, User user, String cardId, Card card) {
+        this.uuid = uuid;
+        this.claimedAt = System.currentTimeMillis();
+        this.userId = userId;
+        this.user = user;
+        this.cardId = cardId;
+        this.card = card;
+
+        // A brand new user has to be saved on the first flush
+        this.userDirty = userId == null;
+    }
+
+    /**
+     * Applies a change to the user, it will be written back on the next flush.
+     * @param change The change.
+     */
+    public synchronized void updateUser(Consumer<User> change) {
+        change.accept(this.user);
+        this.userDirty = true;
+    }
+
+    /**
+     * Applies a change to the card, it will be written back on the next flush.
+     * Does nothing if the player has no card.
+     * @param change The change.
+     */
+    public synchronized void updateCard(Consumer<Card> change) {
+        if (this.card == null) {
+            return;
+        }
+
+        change.accept(this.card);
+        this.cardDirty = true;
+    }
+
+    /**
+     * Attaches a newly issued card to the session.
+     * @param card The card.
+     */
+    public synchronized void setCard(Card card) {
+        this.card = card;
+        this.cardDirty = true;
+    }
+
+    // Takes copies of the dirty entities, made under the lock so that the flush never sees
+    // a half-applied change. A failed flush gives the flags back through markDirty
+    synchronized Snapshot takeDirty() {
+        Snapshot snapshot = new Snapshot(
+                this.userDirty ? new User(this.user.serialize()) : null,
+                this.cardDirty && this.card != null ? new Card(this.card.serialize()) : null
+        );
+
+        this.userDirty = false;
+        this.cardDirty = false;
+        return snapshot;
+    }
+
+    synchronized void markDirty(Snapshot snapshot) {
+        this.userDirty |= snapshot.user != null;
+        this.cardDirty |= snapshot.card != null;
+    }
+
+    // Claims the session for a new login of the player; invoked under the lock of the
+    // session's entry in the sessions map, so that a release never misses it
+    void claim() {
+        this.claimedAt = System.currentTimeMillis();
+        this.generation++;
+    }
+
+    void setOnline(boolean online) {
+        this.online = online;
+    }
+
+    void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    void setCardId(String cardId) {
+        this.cardId = cardId;
+    }
+
+    static final class Snapshot {
+
+        final User user;
+        final Card card;
+
+        private Snapshot(User user, Card card) {
+            this.user = user;
+            this.card = card;
+        }
+
+        boolean isEmpty() {
+            return this.user == null && this.card == null;
+        }
+    }
+
+}
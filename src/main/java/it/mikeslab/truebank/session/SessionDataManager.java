@@ -0,0 +1,371 @@
+package it.mikeslab.truebank.session;
+
+import it.mikeslab.truebank.account.AccountGate;
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.RepositoryManager;
+import it.mikeslab.truebank.data.query.Query;
+import it.mikeslab.truebank.data.scheduler.Priority;
+import it.mikeslab.truebank.pojo.Card;
+import it.mikeslab.truebank.pojo.User;
+import it.mikeslab.truebank.util.LoggerUtil;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+/**
+ * Class: SessionDataManager
+ * Prefetches the User and Card of a joining player during the async
+ * pre-login, keeps them pinned in memory while the player is online and
+ * writes back the dirty ones on quit, on autosave and on shutdown.
+ * In-game bank operations of online players never read from the database.
+ *
+ * Account jobs skip or update in memory the users pinned here (see AccountGate):
+ * a load never overlaps with a job chunk, so it reads a user either before or
+ * after the chunk has updated it.
+ *
+ * Configured through the "session" section of config.yml.
+ */
+public class SessionDataManager implements Listener, AccountGate {
+
+    private static final String USER_REPOSITORY = "user-database";
+    private static final String CARD_REPOSITORY = "card-database";
+
+    private final RepositoryManager repositoryManager;
+    private final long loadTimeoutMillis;
+    private final long orphanTimeoutMillis;
+
+    private final Map<UUID, BankSession> sessions = new ConcurrentHashMap<>();
+
+    // Loads share the read side, account job chunks take the write side
+    private final ReadWriteLock accountLock = new ReentrantReadWriteLock();
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService autosaveScheduler;
+
+    public SessionDataManager(RepositoryManager repositoryManager, ConfigurationSection config) {
+        this.repositoryManager = repositoryManager;
+        this.loadTimeoutMillis = config == null ? 5_000 : config.getLong("loadTimeoutMillis", 5_000);
+        this.orphanTimeoutMillis = config == null ? 60_000 : config.getLong("orphanTimeoutMillis", 60_000);
+
+        int loaderThreads = config == null ? 4 : config.getInt("loaderThreads", 4);
+        long autosaveSeconds = config == null ? 300 : config.getLong("autosaveSeconds", 300);
+
+        AtomicInteger threadCount = new AtomicInteger();
+
+        this.executor = Executors.newFixedThreadPool(Math.max(2, loaderThreads), runnable -> {
+            Thread thread = new Thread(runnable, "TrueBank-Session-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.autosaveScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TrueBank-Session-Autosave");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (autosaveSeconds > 0) {
+            this.autosaveScheduler.scheduleWithFixedDelay(this::autosave, autosaveSeconds, autosaveSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Gets the session of an online player.
+     * @param uuid The player's UUID.
+     * @return The session, if loaded.
+     */
+    public Optional<BankSession> getSession(UUID uuid) {
+        return Optional.ofNullable(this.sessions.get(uuid));
+    }
+
+    /**
+     * Gets the user of an online player, without touching the database.
+     * @param uuid The player's UUID.
+     * @return The user, if the player's session is loaded.
+     */
+    public Optional<User> getUser(UUID uuid) {
+        return this.getSession(uuid).map(BankSession::getUser);
+    }
+
+    /**
+     * Gets the card of an online player, without touching the database.
+     * @param uuid The player's UUID.
+     * @return The card, if the session is loaded and the player owns one.
+     */
+    public Optional<Card> getCard(UUID uuid) {
+        return this.getSession(uuid).map(BankSession::getCard);
+    }
+
+    @EventHandler(priority = EventPriority.HIGHEST)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+
+        // Pre-login runs off the main thread, the player can wait for the startup to complete
+        if (!this.repositoryManager.getReadiness().awaitReady(this.loadTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, "The bank is starting up, please try again in a moment.");
+            return;
+        }
+
+        UUID uuid = event.getUniqueId();
+
+        // A quick reconnect finds its previous session still waiting to be flushed, keep it. Claimed under
+        // the entry's lock: a quit flush completing meanwhile either sees the claim or has released it already
+        BankSession previous = this.sessions.computeIfPresent(uuid, (theUuid, session) -> {
+            session.claim();
+            return session;
+        });
+
+        if (previous != null) {
+            return;
+        }
+
+        try {
+            if (!this.accountLock.readLock().tryLock(this.loadTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("timed out waiting for an account job");
+            }
+
+            try {
+                BankSession session = this.load(uuid, event.getName()).get(this.loadTimeoutMillis, TimeUnit.MILLISECONDS);
+                this.sessions.put(uuid, session);
+            } finally {
+                this.accountLock.readLock().unlock();
+            }
+        } catch (Exception e) {
+            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.EVENT, "Could not load the bank data of {}: {}", event.getName(), e.getMessage());
+            event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, "Could not load your bank data, please try again in a moment.");
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onJoin(PlayerJoinEvent event) {
+        BankSession session = this.sessions.get(event.getPlayer().getUniqueId());
+
+        if (session != null) {
+            session.setOnline(true);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        BankSession session = this.sessions.get(event.getPlayer().getUniqueId());
+
+        if (session == null) {
+            return;
+        }
+
+        session.setOnline(false);
+        int generation = session.getGeneration();
+
+        // Released only once written back, unless the player has reconnected meanwhile
+        this.executor.execute(() -> {
+            if (this.flush(session)) {
+                this.release(session, generation);
+            }
+        });
+    }
+
+    @Override
+    public <R> R exclusive(Function<Set<String>, R> action) {
+        this.accountLock.writeLock().lock();
+
+        try {
+            // Users never saved have no row yet, nothing to skip
+            Set<String> pinned = this.sessions.values()
+                    .stream()
+                    .map(BankSession::getUserId)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toSet());
+
+            return action.apply(pinned);
+        } finally {
+            this.accountLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean updatePinned(String id, Consumer<User> change) {
+        for (BankSession session : this.sessions.values()) {
+            if (id.equals(session.getUserId())) {
+                session.updateUser(change);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes back every dirty session and stops the background threads.
+     * Invoked when the plugin is disabled, blocks until the writes are done.
+     */
+    public void shutdown() {
+        this.autosaveScheduler.shutdownNow();
+
+        this.sessions.values().forEach(this::flush);
+        this.sessions.clear();
+
+        this.executor.shutdown();
+
+        try {
+            this.executor.awaitTermination(this.loadTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Helper function to fetch user and card in parallel
+    private CompletableFuture<BankSession> load(UUID uuid, String name) {
+
+        Repository<User> userRepository = this.repositoryManager.getRepository(USER_REPOSITORY, User.class);
+        Repository<Card> cardRepository = this.repositoryManager.getRepository(CARD_REPOSITORY, Card.class);
+
+        Query byUuid = byUuid(uuid);
+
+        // The player is waiting on the login screen
+
+        CompletableFuture<Map.Entry<String, User>> userFuture = CompletableFuture.supplyAsync(
+                () -> Priority.INTERACTIVE.call(() -> first(userRepository.query(byUuid))), this.executor);
+
+        CompletableFuture<Map.Entry<String, Card>> cardFuture = CompletableFuture.supplyAsync(
+                () -> Priority.INTERACTIVE.call(() -> first(cardRepository.query(byUuid))), this.executor);
+
+        return userFuture.thenCombine(cardFuture, (userEntry, cardEntry) -> {
+
+            User user = userEntry == null
+                    ? User.builder().uuid(uuid).displayName(name).build()
+                    : userEntry.getValue();
+
+            Card card = cardEntry == null ? null : cardEntry.getValue();
+
+            user.setCard(card);
+
+            return new BankSession(
+                    uuid,
+                    userEntry == null ? null : userEntry.getKey(),
+                    user,
+                    cardEntry == null ? null : cardEntry.getKey(),
+                    card
+            );
+        });
+    }
+
+    // Same shape for every lookup, compiled once per repository
+    private static Query byUuid(UUID uuid) {
+        return Query.builder().eq("uuid", uuid.toString()).limit(1).build();
+    }
+
+    private static <E> E first(List<E> results) {
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    // Helper function to write back the dirty entities of a session, returns false if the write failed
+    private boolean flush(BankSession session) {
+
+        BankSession.Snapshot snapshot = session.takeDirty();
+
+        if (snapshot.isEmpty()) {
+            return true;
+        }
+
+        try {
+            if (snapshot.user != null) {
+                Repository<User> userRepository = this.repositoryManager.getRepository(USER_REPOSITORY, User.class);
+
+                if (session.getUserId() == null) {
+                    session.setUserId(insert(userRepository, snapshot.user, session.getUuid()));
+                } else {
+                    userRepository.update(session.getUserId(), snapshot.user);
+                }
+            }
+
+            if (snapshot.card != null) {
+                Repository<Card> cardRepository = this.repositoryManager.getRepository(CARD_REPOSITORY, Card.class);
+
+                if (session.getCardId() == null) {
+                    session.setCardId(insert(cardRepository, snapshot.card, session.getUuid()));
+                } else {
+                    cardRepository.update(session.getCardId(), snapshot.card);
+                }
+            }
+        } catch (RuntimeException e) {
+            // The session stays pinned and the write is retried on the next autosave
+            session.markDirty(snapshot);
+
+            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.DATABASE, "Could not save the bank data of {}: {}", session.getUuid(), e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    // Helper function to save an entity the session has no id for yet. A save that failed may still
+    // have been applied (e.g. it timed out), so the entity is looked up by UUID before being saved again
+    private static <E extends ConfigurationSerializable> String insert(Repository<E> repository, E entity, UUID uuid) {
+        Map.Entry<String, E> existing = first(repository.query(byUuid(uuid)));
+
+        if (existing != null) {
+            repository.update(existing.getKey(), entity);
+            return existing.getKey();
+        }
+
+        String id = repository.save(entity, uuid);
+
+        // Without an id the next flush would save it once more
+        if (id == null) {
+            throw new IllegalStateException("no id returned for the saved entity");
+        }
+
+        return id;
+    }
+
+    // Helper function to drop a session that has been written back, unless a new login has claimed it meanwhile
+    private void release(BankSession session, int generation) {
+        this.sessions.computeIfPresent(session.getUuid(), (uuid, current) ->
+                current == session && !current.isOnline() && current.getGeneration() == generation ? null : current);
+    }
+
+    // Helper function to flush dirty sessions and release the ones whose player never joined or left
+    private void autosave() {
+        long now = System.currentTimeMillis();
+
+        this.sessions.values().forEach(session -> {
+            int generation = session.getGeneration();
+            boolean flushed = this.flush(session);
+
+            // Logins denied after the pre-login (whitelist, bans, ...) and failed quit
+            // flushes leave offline sessions behind, released once written back
+            if (flushed && !session.isOnline() && now - session.getClaimedAt() > this.orphanTimeoutMillis) {
+                this.release(session, generation);
+            }
+        });
+    }
+
+}
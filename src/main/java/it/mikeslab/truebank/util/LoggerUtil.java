@@ -1,17 +1,121 @@
 package it.mikeslab.truebank.util;
 
+import it.mikeslab.truebank.util.logging.AsyncLogWriter;
+import it.mikeslab.truebank.util.logging.LogEvent;
+import it.mikeslab.truebank.util.logging.LogRateLimiter;
+import lombok.Getter;
 import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
 
 import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Class: LoggerUtil
+ * Plugin logging facade. Messages are parameterized ("{}" placeholders),
+ * discarded before formatting when their level is disabled, and written
+ * to the server console by a background thread so that callers never
+ * block on console I/O. Repeated warnings are rate-limited.
+ */
 public class LoggerUtil {
 
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private static final Logger STANDALONE = Logger.getLogger("TrueBank");
+
+    private static volatile AsyncLogWriter writer = new AsyncLogWriter(8192, new LogRateLimiter(5, 10));
+
     public static void log(Level logLevel, LogSource logSource, Exception exception) {
-        Bukkit.getLogger().log(logLevel, "[" + logSource.sourceDisplayName + "]: " + exception.getMessage());
+        if (!isLoggable(logLevel)) return;
+
+        // Exceptions of the same type are considered identical by the rate limiter
+        writer.submit(new LogEvent(logLevel, logSource, exception.getClass().getName() + ": {}", new Object[]{exception.getMessage()}));
     }
 
     public static void log(Level logLevel, LogSource logSource, String message) {
-        Bukkit.getLogger().log(logLevel, "[" + logSource.sourceDisplayName + "]: " + message);
+        if (!isLoggable(logLevel)) return;
+
+        writer.submit(new LogEvent(logLevel, logSource, message, NO_ARGS));
+    }
+
+    public static void log(Level logLevel, LogSource logSource, String pattern, Object arg) {
+        if (!isLoggable(logLevel)) return;
+
+        writer.submit(new LogEvent(logLevel, logSource, pattern, new Object[]{arg}));
+    }
+
+    public static void log(Level logLevel, LogSource logSource, String pattern, Object arg1, Object arg2) {
+        if (!isLoggable(logLevel)) return;
+
+        writer.submit(new LogEvent(logLevel, logSource, pattern, new Object[]{arg1, arg2}));
+    }
+
+    public static void log(Level logLevel, LogSource logSource, String pattern, Object... args) {
+        if (!isLoggable(logLevel)) return;
+
+        writer.submit(new LogEvent(logLevel, logSource, pattern, args));
+    }
+
+    /**
+     * Checks whether messages of the given level reach the console,
+     * callers building expensive arguments should check it first.
+     * @param logLevel The level.
+     * @return True if the level is enabled.
+     */
+    public static boolean isLoggable(Level logLevel) {
+        Logger logger = getConsole();
+        return logger == null || logger.isLoggable(logLevel);
+    }
+
+    /**
+     * Gets the logger of the server console, or a standalone one
+     * when no server is running (e.g. the load generator).
+     * @return The console logger.
+     */
+    public static Logger getConsole() {
+        return Bukkit.getServer() == null ? STANDALONE : Bukkit.getLogger();
+    }
+
+    /**
+     * Gets the number of messages dropped because the log buffer was full.
+     * @return The dropped message count.
+     */
+    public static long getDroppedCount() {
+        return writer.getDroppedCount();
+    }
+
+    /**
+     * Replaces the writer with one configured from the "logging" section.
+     *
+     *   logging:
+     *     bufferSize: 8192
+     *     repeatLimit: 5
+     *     repeatWindowSeconds: 10
+     *
+     * @param section The logging configuration section, may be null.
+     */
+    public static void configure(ConfigurationSection section) {
+
+        if (section == null) {
+            return;
+        }
+
+        AsyncLogWriter previous = writer;
+
+        writer = new AsyncLogWriter(
+                section.getInt("bufferSize", 8192),
+                new LogRateLimiter(section.getInt("repeatLimit", 5), section.getInt("repeatWindowSeconds", 10))
+        );
+
+        previous.shutdown(1_000);
+    }
+
+    /**
+     * Writes the buffered messages and stops the writer.
+     * Should be invoked as the last step of the plugin shutdown.
+     */
+    public static void shutdown() {
+        writer.shutdown(5_000);
     }
 
 
@@ -28,6 +132,7 @@ public class LoggerUtil {
         API("API"),
         OTHER("Other");
 
+        @Getter
         private final String sourceDisplayName;
 
         LogSource(String sourceDisplayName) {
@@ -0,0 +1,218 @@
+package it.mikeslab.truebank.util;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Class: Money
+ * Fixed-point money arithmetic. Amounts are plain longs counting minor units
+ * (cents with the default scale of 2), so that sums are exact and the payment
+ * path allocates nothing. Overflows throw an ArithmeticException instead of
+ * wrapping around.
+ *
+ * The scale is read from the "currency" section of config.yml and must not be
+ * changed once amounts have been stored.
+ */
+public final class Money {
+
+    // Largest magnitude a double holds without losing a unit
+    private static final long EXACT_LIMIT = 1L << 53;
+
+    private static final ThreadLocal<StringBuilder> FORMAT_BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(32));
+
+    private static volatile int scale = 2;
+    private static volatile long unit = 100;
+
+    private Money() {
+    }
+
+    /**
+     * Reads the scale from the configuration.
+     * @param section The "currency" section, may be null.
+     */
+    public static void configure(ConfigurationSection section) {
+        int configured = section == null ? 2 : section.getInt("scale", 2);
+
+        if (configured < 0 || configured > 9) {
+            throw new IllegalArgumentException("The currency scale must be between 0 and 9, got " + configured);
+        }
+
+        long configuredUnit = 1;
+
+        for (int i = 0; i < configured; i++) {
+            configuredUnit *= 10;
+        }
+
+        unit = configuredUnit;
+        scale = configured;
+    }
+
+    /**
+     * Gets the number of decimal digits of an amount.
+     * @return The scale.
+     */
+    public static int getScale() {
+        return scale;
+    }
+
+    /**
+     * Gets the number of minor units in a major unit (100 with a scale of 2).
+     * @return The minor units per major unit.
+     */
+    public static long getUnit() {
+        return unit;
+    }
+
+    public static long add(long amount, long other) {
+        return Math.addExact(amount, other);
+    }
+
+    public static long subtract(long amount, long other) {
+        return Math.subtractExact(amount, other);
+    }
+
+    /**
+     * Multiplies an amount by a rate, such as 1.05 or 0.001, rounding half to even.
+     * @param amount The amount, in minor units.
+     * @param rate The rate.
+     * @return The product, in minor units.
+     * @throws ArithmeticException If the product doesn't fit in a long.
+     */
+    public static long multiply(long amount, double rate) {
+        double product = amount * rate;
+
+        if (Math.abs(amount) <= EXACT_LIMIT && Math.abs(product) <= EXACT_LIMIT) {
+            return (long) Math.rint(product);
+        }
+
+        // Beyond 2^53 minor units a double can't represent every amount, rare enough to allocate
+        return new BigDecimal(amount)
+                .multiply(new BigDecimal(rate))
+                .setScale(0, RoundingMode.HALF_EVEN)
+                .longValueExact();
+    }
+
+    /**
+     * Converts an amount of major units, as stored before fixed-point amounts, to minor units.
+     * @param major The amount, e.g. 12.34.
+     * @return The amount in minor units, rounded half to even.
+     */
+    public static long fromMajor(double major) {
+        return multiply(unit, major);
+    }
+
+    /**
+     * Converts an amount to major units, for display or for APIs working with doubles.
+     * @param amount The amount, in minor units.
+     * @return The amount in major units.
+     */
+    public static double toMajor(long amount) {
+        return (double) amount / unit;
+    }
+
+    /**
+     * Parses an amount of major units such as "-12.34", without going through a double.
+     * @param text The text.
+     * @return The amount, in minor units.
+     * @throws NumberFormatException If the text isn't an amount or has more decimals than the scale.
+     */
+    public static long parse(CharSequence text) {
+        int length = text.length();
+        int index = 0;
+        boolean negative = false;
+
+        if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            negative = text.charAt(0) == '-';
+            index++;
+        }
+
+        long whole = 0;
+        long fraction = 0;
+        int decimals = -1;
+        boolean digits = false;
+
+        try {
+            for (; index < length; index++) {
+                char character = text.charAt(index);
+
+                if (character == '.' && decimals < 0) {
+                    decimals = 0;
+                    continue;
+                }
+
+                if (character < '0' || character > '9') {
+                    throw new NumberFormatException("Invalid amount: " + text);
+                }
+
+                digits = true;
+
+                if (decimals < 0) {
+                    whole = Math.addExact(Math.multiplyExact(whole, 10), character - '0');
+                } else if (++decimals > scale) {
+                    throw new NumberFormatException("Too many decimals (at most " + scale + "): " + text);
+                } else {
+                    fraction = fraction * 10 + (character - '0');
+                }
+            }
+
+            if (!digits) {
+                throw new NumberFormatException("Invalid amount: " + text);
+            }
+
+            for (int i = Math.max(decimals, 0); i < scale; i++) {
+                fraction *= 10;
+            }
+
+            long amount = Math.addExact(Math.multiplyExact(whole, unit), fraction);
+            return negative ? -amount : amount;
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + text);
+        }
+    }
+
+    /**
+     * Appends an amount in major units, e.g. "-12.34", without allocating.
+     * @param out The buffer to append to.
+     * @param amount The amount, in minor units.
+     * @return The buffer.
+     */
+    public static StringBuilder appendTo(StringBuilder out, long amount) {
+        int currentScale = scale;
+        long currentUnit = unit;
+
+        if (amount < 0) {
+            out.append('-');
+        }
+
+        // Negated digit by digit, Long.MIN_VALUE has no positive counterpart
+        long whole = Math.abs(amount / currentUnit);
+        long fraction = Math.abs(amount % currentUnit);
+
+        out.append(whole);
+
+        if (currentScale > 0) {
+            out.append('.');
+
+            for (long divisor = currentUnit / 10; divisor > 0; divisor /= 10) {
+                out.append((char) ('0' + fraction / divisor % 10));
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Formats an amount in major units, e.g. "-12.34", reusing a per-thread buffer.
+     * @param amount The amount, in minor units.
+     * @return The formatted amount.
+     */
+    public static String format(long amount) {
+        StringBuilder buffer = FORMAT_BUFFER.get();
+        buffer.setLength(0);
+
+        return appendTo(buffer, amount).toString();
+    }
+
+}
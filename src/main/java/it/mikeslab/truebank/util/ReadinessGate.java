@@ -0,0 +1,89 @@
+package it.mikeslab.truebank.util;
+
+import lombok.Getter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class: ReadinessGate
+ * Tracks whether the plugin has completed its asynchronous startup.
+ * Commands and API consumers can either wait for it or reject quickly.
+ */
+public class ReadinessGate {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    @Getter
+    private volatile State state = State.STARTING;
+
+    @Getter
+    private volatile String failureReason;
+
+    /**
+     * Marks the plugin as ready, releasing every waiting thread.
+     */
+    public void open() {
+        this.state = State.READY;
+        this.latch.countDown();
+    }
+
+    /**
+     * Marks the startup as failed, releasing every waiting thread.
+     * @param reason The failure reason, shown to rejected callers.
+     */
+    public void fail(String reason) {
+        this.failureReason = reason;
+        this.state = State.FAILED;
+        this.latch.countDown();
+    }
+
+    /**
+     * Checks if the plugin is ready, without blocking.
+     * @return True if ready.
+     */
+    public boolean isReady() {
+        return this.state == State.READY;
+    }
+
+    /**
+     * Waits for the startup to complete.
+     * Must not be invoked from the main thread.
+     * @param timeout The maximum time to wait.
+     * @param unit The time unit.
+     * @return True if the plugin became ready within the timeout.
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) {
+        try {
+            this.latch.await(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return this.isReady();
+    }
+
+    /**
+     * Fails fast if the plugin isn't ready.
+     * @throws IllegalStateException If the startup is still running or has failed.
+     */
+    public void checkReady() {
+        switch (this.state) {
+            case READY:
+                return;
+            case FAILED:
+                throw new IllegalStateException("TrueBank failed to start: " + this.failureReason);
+            default:
+                throw new IllegalStateException("TrueBank is still starting, try again in a moment.");
+        }
+    }
+
+    public enum State {
+
+        STARTING,
+        READY,
+        FAILED
+
+    }
+
+}
@@ -3,21 +3,24 @@ package it.mikeslab.truebank.util;
 import it.mikeslab.truebank.data.EDatabase;
 import it.mikeslab.truebank.data.EntityStyle;
 import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.history.MongoTransactionLog;
+import it.mikeslab.truebank.data.history.MySQLTransactionLog;
+import it.mikeslab.truebank.data.history.TransactionLog;
 import it.mikeslab.truebank.data.mongodb.MongoDBImpl;
 import it.mikeslab.truebank.data.mongodb.MongoDBRepository;
 import it.mikeslab.truebank.data.mongodb.MongoDBService;
+import it.mikeslab.truebank.data.monitor.OperationTracer;
 import it.mikeslab.truebank.data.mysql.MySQLImpl;
 import it.mikeslab.truebank.data.mysql.MySQLRepository;
 import it.mikeslab.truebank.data.mysql.MySQLService;
 import it.mikeslab.truebank.data.yaml.YamlRepository;
+import it.mikeslab.truebank.pojo.Transaction;
+import it.mikeslab.truebank.pojo.database.PoolSettings;
 import it.mikeslab.truebank.pojo.database.URIBuilder;
 import lombok.AllArgsConstructor;
 import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.FileConfiguration;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 
-import java.io.File;
 import java.util.logging.Level;
 
 @AllArgsConstructor
@@ -34,42 +37,74 @@ public class RepositoryUtil<T extends ConfigurationSerializable> {
      */
     public Repository<T> fromConfig() {
 
-        String databaseTypeAsString = theDbConfigSection.getString("type", null);
+        EDatabase databaseType = parseDatabaseType();
 
-        // Checking if property is correctly set
-        if (databaseTypeAsString == null) {
-            LoggerUtil.log(Level.SEVERE,
-                           LoggerUtil.LogSource.CONFIG,
-                    "[" + theServiceName + "] Database type not found in configuration (" + theDbConfigSection.getCurrentPath() + "." + theServiceName + ".type)"
-            );
+        if (databaseType == null) {
             return null;
         }
 
-        // Parsing the string to the enum
-        EDatabase databaseType;
+        switch (databaseType) {
+            case MONGODB:
+                return connectMongoDB();
+            case MYSQL:
+                return connectMySQL();
+            case YAML:
+                return connectYAML();
+            default:
+                LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.CONFIG, "[{}] Invalid database type: {}", theServiceName, databaseType);
+                return null;
+        }
+
 
+    }
 
-        // Little error handling
-        try {
-            databaseType = EDatabase.valueOf(databaseTypeAsString);
-        } catch (IllegalArgumentException e) {
-            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.CONFIG, "[" + theServiceName + "] Invalid database type: " + databaseTypeAsString);
+    /**
+     * Generates a transaction log from the configuration, sharing the pool
+     * or client of the repositories connected to the same server.
+     * @return The TransactionLog, null if the type is invalid or is YAML.
+     */
+    public TransactionLog transactionLogFromConfig() {
+
+        EDatabase databaseType = parseDatabaseType();
+
+        if (databaseType == null) {
             return null;
         }
 
         switch (databaseType) {
             case MONGODB:
-                return connectMongoDB();
+                return new MongoTransactionLog(new MongoDBImpl(generateURIBuilder(), null, Transaction.class, null), theServiceName, generateTracer());
             case MYSQL:
-                return connectMySQL();
-            case YAML:
-                return connectYAML();
+                return new MySQLTransactionLog(new MySQLImpl(generateURIBuilder(), null, Transaction.class, null), theServiceName, generateTracer());
             default:
-                LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.CONFIG, "[" + theServiceName + "] Invalid database type: " + databaseTypeAsString);
+                LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.CONFIG, "[{}] No transaction log for database type {}", theServiceName, databaseType);
                 return null;
         }
+    }
 
+    // Helper function to read the database type, logging why it is missing or invalid
+    private EDatabase parseDatabaseType() {
 
+        String databaseTypeAsString = theDbConfigSection.getString("type", null);
+
+        // Checking if property is correctly set
+        if (databaseTypeAsString == null) {
+            LoggerUtil.log(Level.SEVERE,
+                           LoggerUtil.LogSource.CONFIG,
+                    "[{}] Database type not found in configuration ({}.type)",
+                    theServiceName,
+                    theDbConfigSection.getCurrentPath()
+            );
+            return null;
+        }
+
+        // Little error handling
+        try {
+            return EDatabase.valueOf(databaseTypeAsString);
+        } catch (IllegalArgumentException e) {
+            LoggerUtil.log(Level.SEVERE, LoggerUtil.LogSource.CONFIG, "[{}] Invalid database type: {}", theServiceName, databaseTypeAsString);
+            return null;
+        }
     }
 
     /**
@@ -83,6 +118,7 @@ public class RepositoryUtil<T extends ConfigurationSerializable> {
                 .host(this.theDbConfigSection.getString("host"))
                 .port(this.theDbConfigSection.getInt("port")) // default port
                 .database(this.theDbConfigSection.getString("database"))
+                .poolSettings(PoolSettings.fromConfig(this.theDbConfigSection))
                 .build();
     }
 
@@ -96,6 +132,8 @@ public class RepositoryUtil<T extends ConfigurationSerializable> {
         return URIBuilder.builder()
                 .path(this.theDbConfigSection.getString("path"))
                 .style(EntityStyle.valueOf(this.theDbConfigSection.getString("entityStyle")))
+                .segments(this.theDbConfigSection.getInt("segments", 1))
+                .flushIntervalMillis(this.theDbConfigSection.getLong("flushIntervalMillis", 1000))
                 .build();
     }
 
@@ -107,7 +145,7 @@ public class RepositoryUtil<T extends ConfigurationSerializable> {
 
         URIBuilder uriBuilder = generateURIBuilder();
 
-        MongoDBService mongoDBService = new MongoDBImpl(uriBuilder);
+        MongoDBService mongoDBService = new MongoDBImpl(uriBuilder, theServiceName, thePojoClazz, generateTracer());
 
         return new MongoDBRepository<>(mongoDBService, thePojoClazz);
     }
@@ -120,7 +158,7 @@ public class RepositoryUtil<T extends ConfigurationSerializable> {
 
         URIBuilder uriBuilder = generateURIBuilder();
 
-        MySQLService mySQLService = new MySQLImpl(uriBuilder);
+        MySQLService mySQLService = new MySQLImpl(uriBuilder, theServiceName, thePojoClazz, generateTracer());
 
         return new MySQLRepository<>(mySQLService, thePojoClazz);
     }
@@ -130,16 +168,15 @@ public class RepositoryUtil<T extends ConfigurationSerializable> {
      * @return The repository.
      */
     Repository<T> connectYAML() {
+        return new YamlRepository<>(generateYamlURIBuilder(), theServiceName, thePojoClazz, generateTracer());
+    }
 
-        URIBuilder uriBuilder = generateYamlURIBuilder();
-
-        File file = new File(uriBuilder.getPath());
-
-        FileConfiguration fileConfiguration = YamlConfiguration.loadConfiguration(file);
-
-        return new YamlRepository<>(fileConfiguration,
-                                    uriBuilder.getStyle(),
-                                    file);
+    /**
+     * Generates the slow-operation tracer of the repository.
+     * @return The OperationTracer.
+     */
+    OperationTracer generateTracer() {
+        return OperationTracer.fromConfig(theServiceName, theDbConfigSection);
     }
 
 
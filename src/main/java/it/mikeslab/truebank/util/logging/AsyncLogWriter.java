@@ -0,0 +1,136 @@
+package it.mikeslab.truebank.util.logging;
+
+import it.mikeslab.truebank.util.LoggerUtil;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class: AsyncLogWriter
+ * Hands log events from any thread to a single background writer
+ * through a bounded ring buffer. When the buffer is full events are
+ * dropped rather than blocking the caller, and the drops are counted
+ * and periodically reported.
+ */
+public class AsyncLogWriter {
+
+    private static final long POLL_MILLIS = 1_000;
+
+    private final BlockingQueue<LogEvent> buffer;
+    private final LogRateLimiter rateLimiter;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread;
+
+    // Owned by the writer thread, reused for every event
+    private final StringBuilder builder = new StringBuilder(256);
+
+    private long reportedDrops;
+    private volatile boolean running = true;
+
+    public AsyncLogWriter(int capacity, LogRateLimiter rateLimiter) {
+        this.buffer = new ArrayBlockingQueue<>(Math.max(16, capacity));
+        this.rateLimiter = rateLimiter;
+
+        this.thread = new Thread(this::run, "TrueBank-Logger");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues an event, unless it's a rate-limited warning or the buffer is full.
+     * Never blocks.
+     * @param event The event.
+     */
+    public void submit(LogEvent event) {
+
+        // Only warnings and errors are rate-limited, they are the ones flooding the console during incidents
+        if (event.getLevel().intValue() >= Level.WARNING.intValue() && !this.rateLimiter.tryAcquire(event.getPattern())) {
+            return;
+        }
+
+        if (!this.running || !this.buffer.offer(event)) {
+            this.dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the number of events dropped because the buffer was full.
+     * @return The dropped event count, since the writer started.
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Stops accepting events and waits for the buffered ones to be written.
+     * @param timeoutMillis The maximum time to wait.
+     */
+    public void shutdown(long timeoutMillis) {
+        this.running = false;
+
+        try {
+            this.thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long lastReport = System.nanoTime();
+
+        while (this.running || !this.buffer.isEmpty()) {
+
+            try {
+                LogEvent event = this.buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (event != null) {
+                    this.write(event);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                // A failing toString() of an argument must not kill the writer
+                LoggerUtil.getConsole().log(Level.WARNING, "[Util]: Could not write a log message: " + e);
+            }
+
+            if (System.nanoTime() - lastReport >= TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS)) {
+                this.report();
+                lastReport = System.nanoTime();
+            }
+        }
+
+        this.report();
+    }
+
+    // Helper function to format and write a single event
+    private void write(LogEvent event) {
+        Logger logger = LoggerUtil.getConsole();
+
+        this.builder.setLength(0);
+        this.builder.append('[').append(event.getSource().getSourceDisplayName()).append("]: ");
+        event.formatTo(this.builder);
+
+        logger.log(event.getLevel(), this.builder.toString());
+    }
+
+    // Helper function to report suppressed repetitions and dropped events
+    private void report() {
+        Logger logger = LoggerUtil.getConsole();
+
+        this.rateLimiter.drainExpired((pattern, suppressed) ->
+                logger.log(Level.WARNING, "[Util]: Suppressed " + suppressed + " repetitions of \"" + pattern + "\""));
+
+        long totalDrops = this.dropped.get();
+
+        if (totalDrops > this.reportedDrops) {
+            logger.log(Level.WARNING, "[Util]: Dropped " + (totalDrops - this.reportedDrops)
+                    + " log messages, the log buffer is full (" + totalDrops + " in total)");
+            this.reportedDrops = totalDrops;
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package it.mikeslab.truebank.util.logging;
+
+import it.mikeslab.truebank.util.LoggerUtil;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.logging.Level;
+
+/**
+ * Class: LogEvent
+ * A log call captured on the calling thread and formatted on the writer thread.
+ * Arguments are kept by reference, so callers must not mutate them afterwards.
+ */
+@Getter
+@RequiredArgsConstructor
+public class LogEvent {
+
+    private final Level level;
+    private final LoggerUtil.LogSource source;
+    private final String pattern;
+    private final Object[] args;
+
+    /**
+     * Appends the pattern to the builder, replacing each "{}" with the next argument.
+     * @param builder The builder, reused by the writer thread.
+     */
+    public void formatTo(StringBuilder builder) {
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+
+        while ((placeholder = this.pattern.indexOf("{}", start)) >= 0) {
+            builder.append(this.pattern, start, placeholder);
+
+            if (argIndex < this.args.length) {
+                builder.append(this.args[argIndex++]);
+            } else {
+                builder.append("{}");
+            }
+
+            start = placeholder + 2;
+        }
+
+        builder.append(this.pattern, start, this.pattern.length());
+    }
+
+}
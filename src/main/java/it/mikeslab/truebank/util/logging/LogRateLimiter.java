@@ -0,0 +1,95 @@
+package it.mikeslab.truebank.util.logging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Class: LogRateLimiter
+ * Lets through at most a fixed number of identical messages per time window,
+ * counting the ones suppressed so that they can be reported as a summary.
+ * Messages are identical when they share the same pattern, not the same arguments.
+ */
+public class LogRateLimiter {
+
+    private final int limit;
+    private final long windowNanos;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    public LogRateLimiter(int limit, long windowSeconds) {
+        this.limit = limit;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+    }
+
+    /**
+     * Checks whether a message with the given key may be logged.
+     * @param key The message key, usually its pattern.
+     * @return True if the message may be logged, false if it has been suppressed.
+     */
+    public boolean tryAcquire(String key) {
+
+        if (this.limit <= 0) {
+            return true;
+        }
+
+        while (true) {
+            Window window = this.windows.computeIfAbsent(key, theKey -> new Window(System.nanoTime()));
+
+            synchronized (window) {
+
+                // The window expired and was drained meanwhile, a new one will be created
+                if (window.closed) {
+                    continue;
+                }
+
+                if (window.emitted < this.limit) {
+                    window.emitted++;
+                    return true;
+                }
+
+                window.suppressed++;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Closes the expired windows, reporting how many messages each of them suppressed.
+     * @param reporter Receives the key and the suppressed count of each expired window.
+     */
+    public void drainExpired(BiConsumer<String, Long> reporter) {
+        long now = System.nanoTime();
+
+        this.windows.forEach((key, window) -> {
+            long suppressed;
+
+            synchronized (window) {
+                if (now - window.startedAt < this.windowNanos) {
+                    return;
+                }
+
+                suppressed = window.suppressed;
+                window.closed = true;
+                this.windows.remove(key, window);
+            }
+
+            if (suppressed > 0) {
+                reporter.accept(key, suppressed);
+            }
+        });
+    }
+
+    private static final class Window {
+
+        private final long startedAt;
+        private int emitted;
+        private long suppressed;
+        private boolean closed;
+
+        private Window(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package it.mikeslab.truebank.loadtest;
+
+import it.mikeslab.truebank.data.Repository;
+import it.mikeslab.truebank.data.scheduler.OperationScheduler;
+import it.mikeslab.truebank.data.scheduler.ScheduledRepository;
+import it.mikeslab.truebank.pojo.User;
+import it.mikeslab.truebank.util.RepositoryUtil;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class: StressTestTest
+ * Runs the stress test (see StressTest) against the repositories that need
+ * no database server: the load-test stand-in and a YAML file. Both go
+ * through the operation scheduler, as in "mode: stress".
+ */
+class StressTestTest {
+
+    @BeforeAll
+    static void registerClasses() {
+        ConfigurationSerialization.registerClass(User.class);
+    }
+
+    @Test
+    void standInKeepsItsContract() throws InterruptedException {
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("latencyMicros", 50);
+        config.set("jitterMicros", 25);
+
+        assertTrue(run(new StandInRepository<>(User.class, "stress-users", config)), "The stand-in broke its contract");
+    }
+
+    @Test
+    void yamlKeepsItsContract(@TempDir File directory) throws InterruptedException {
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("type", "YAML");
+        config.set("path", new File(directory, "stress-users.yml").getPath());
+        config.set("entityStyle", "UUID");
+        config.set("flushIntervalMillis", 100);
+
+        Repository<User> users = new RepositoryUtil<>(config, User.class, "stress-users").fromConfig();
+        assertNotNull(users, "The YAML repository could not be created");
+
+        assertTrue(run(users), "The YAML repository broke its contract");
+    }
+
+    // Helper function to run a short stress test through the scheduler, closing the repository afterwards
+    private static boolean run(Repository<User> users) throws InterruptedException {
+        YamlConfiguration stress = new YamlConfiguration();
+        stress.set("threads", 8);
+        stress.set("accounts", 2);
+        stress.set("inserts", 10);
+        stress.set("durationSeconds", 1);
+
+        OperationScheduler scheduler = OperationScheduler.fromConfig(null);
+
+        try {
+            return new StressTest(new ScheduledRepository<>(users, scheduler), stress).run(System.out);
+        } finally {
+            scheduler.shutdown(5, TimeUnit.SECONDS);
+            users.close();
+        }
+    }
+
+}